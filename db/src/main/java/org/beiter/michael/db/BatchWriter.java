@@ -0,0 +1,657 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A writer that groups the row writes of many threads into JDBC batches (group commit).
+ * <p>
+ * Each writer executes one parameterized SQL statement (e.g. an <code>INSERT</code>). Threads submit the parameters
+ * of a row with {@link #write(Object...)}, and receive a future of the row's update count. A single writer thread
+ * collects the submitted rows into groups: a group is written when it reaches <code>maxBatchSize</code> rows, or
+ * <code>maxDelayMillis</code> after its first row has been submitted. Every group is written as one JDBC batch on one
+ * connection borrowed with {@link ConnectionFactory#getConnection(ConnectionProperties)}, and committed once. Rows
+ * that are submitted while a group is being written are collected for the next group, so the batches grow with the
+ * load.
+ * <p>
+ * The futures complete when the group has been committed. If the batch fails, the group is rolled back, and its rows
+ * are written one by one, each in its own transaction, so that only the rows that fail complete with an error (and
+ * all other rows are still written). If no connection can be obtained, all rows of the group complete with the
+ * {@link FactoryException}. Cancelling a future removes its row only if the row has not been collected into a group
+ * yet. A row that has already been collected is still written, and its future stays cancelled.
+ * <p>
+ * Instances of this class are thread safe. Call {@link #close()} to write the pending rows and stop the writer thread.
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about a potential God class (not the case, the writer thread and its futures are one unit)
+// suppress warnings about using threads (the writer runs its own writer thread, it is not a J2EE component)
+@SuppressWarnings({"PMD.GodClass", "PMD.TooManyMethods", "PMD.DoNotUseThreads"})
+// CHECKSTYLE:ON
+public final class BatchWriter {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(BatchWriter.class);
+
+    /**
+     * Counter for the names of the writer threads
+     */
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    /**
+     * Marks the end of the submitted rows in the queue when the writer is closed
+     */
+    private static final PendingWrite END_OF_QUEUE = new PendingWrite(new Object[0]);
+
+    /**
+     * The connection pool spec
+     */
+    private final ConnectionProperties poolSpec;
+
+    /**
+     * The SQL statement that is executed for every row
+     */
+    private final String sql;
+
+    /**
+     * The maximum number of rows in a group
+     */
+    private final int maxBatchSize;
+
+    /**
+     * The maximum time in nanoseconds to wait for more rows after the first row of a group has been submitted
+     */
+    private final long maxDelayNanos;
+
+    /**
+     * The rows that have been submitted, but not yet collected into a group
+     */
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * The writer thread
+     */
+    private final Thread writerThread;
+
+    /**
+     * The number of groups that have been written (successfully or not)
+     */
+    private final AtomicLong batchCount = new AtomicLong();
+
+    /**
+     * The number of rows that have been written successfully
+     */
+    private final AtomicLong rowCount = new AtomicLong();
+
+    /**
+     * Makes submitting a row and closing the writer mutually exclusive, so that no row is added to the queue after the
+     * end of the queue has been marked, or after the writer thread has collected the last rows (submitting threads
+     * share the read lock, closing takes the write lock)
+     */
+    private final ReadWriteLock submitLock = new ReentrantReadWriteLock();
+
+    /**
+     * {@code true} when the writer has been closed, or the writer thread has stopped (guarded by {@link #submitLock})
+     */
+    private boolean closed;
+
+    /**
+     * Create a batch writer, and start its writer thread
+     *
+     * @param poolSpec       The spec of the connection pool that the rows are written to
+     * @param sql            The parameterized SQL statement that is executed for every row
+     * @param maxBatchSize   The maximum number of rows that are written in one batch
+     * @param maxDelayMillis The maximum time in milliseconds to wait for more rows after the first row of a group has
+     *                       been submitted, or 0 to write the rows that have been submitted so far as soon as the
+     *                       previous group has been written
+     * @throws NullPointerException     When {@code poolSpec} or {@code sql} are {@code null}
+     * @throws IllegalArgumentException When {@code sql} is empty, {@code maxBatchSize} is not positive, or
+     *                                  {@code maxDelayMillis} is negative
+     */
+    public BatchWriter(final ConnectionProperties poolSpec, final String sql, final int maxBatchSize,
+                       final long maxDelayMillis) {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+        Validate.notBlank(sql, "The validated character sequence 'sql' is null or empty");
+        Validate.inclusiveBetween(1, Integer.MAX_VALUE, maxBatchSize);
+        Validate.inclusiveBetween(0, Long.MAX_VALUE, maxDelayMillis);
+
+        // the pool spec may be changed by the caller while the writer is running
+        this.poolSpec = new ConnectionProperties(poolSpec);
+
+        // no need for defensive copies of Strings
+
+        this.sql = sql;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeGroups();
+            }
+        }, "batch-writer-" + THREAD_COUNTER.incrementAndGet());
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Submit a row to be written with the next group.
+     * <p>
+     * The parameters are bound to the statement with {@link PreparedStatement#setObject(int, Object)}.
+     *
+     * @param parameters The parameters of the SQL statement for the row
+     * @return The future update count of the row, which fails with the {@link SQLException} of the row (or the
+     * {@link FactoryException} of its group)
+     * @throws NullPointerException  When {@code parameters} is {@code null}
+     * @throws IllegalStateException When the writer has been closed
+     */
+    public Future<Integer> write(final Object... parameters) {
+
+        Validate.notNull(parameters, "The validated object 'parameters' is null");
+
+        final PendingWrite pendingWrite = new PendingWrite(parameters);
+        submitLock.readLock().lock();
+        try {
+            Validate.validState(!closed, "The batch writer has been closed");
+            queue.add(pendingWrite);
+        } finally {
+            submitLock.readLock().unlock();
+        }
+        return pendingWrite;
+    }
+
+    /**
+     * @return The number of groups that have been written (successfully or not)
+     */
+    public long getBatchCount() {
+
+        return batchCount.get();
+    }
+
+    /**
+     * @return The number of rows that have been written successfully
+     */
+    public long getRowCount() {
+
+        return rowCount.get();
+    }
+
+    /**
+     * Stop accepting rows, write the rows that have been submitted, and wait for the writer thread to stop.
+     *
+     * @throws InterruptedException When the thread is interrupted while waiting for the writer thread
+     */
+    public void close()
+            throws InterruptedException {
+
+        submitLock.writeLock().lock();
+        try {
+            if (!closed) {
+                closed = true;
+                queue.add(END_OF_QUEUE);
+            }
+        } finally {
+            submitLock.writeLock().unlock();
+        }
+        writerThread.join();
+    }
+
+    /**
+     * Collect the submitted rows into groups and write them, until the writer is closed
+     */
+    // suppress warnings about catching RuntimeException (an unexpected error must not stop the writer thread)
+    @SuppressWarnings("PMD.AvoidCatchingGenericException")
+    private void writeGroups() {
+
+        final List<PendingWrite> group = new ArrayList<>(maxBatchSize);
+        boolean endOfQueue = false;
+        while (!endOfQueue) {
+            try {
+                endOfQueue = collectGroup(group);
+            } catch (InterruptedException e) {
+                LOG.warn("The batch writer thread has been interrupted, writing the pending rows", e);
+                endOfQueue = true;
+            }
+
+            if (!group.isEmpty()) {
+                try {
+                    writeGroup(group);
+                } catch (RuntimeException e) {
+                    // do not let an unexpected error stop the writer thread
+                    LOG.warn("Cannot write a group of " + group.size() + " rows", e);
+                    fail(group, e);
+                }
+                group.clear();
+            }
+        }
+
+        // stop accepting rows if the writer thread has been interrupted, and fail the rows that have been submitted
+        // after the last group has been collected
+        submitLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            submitLock.writeLock().unlock();
+        }
+        final List<PendingWrite> rejected = new ArrayList<>();
+        queue.drainTo(rejected);
+        fail(rejected, new SQLException("The batch writer has been closed"));
+    }
+
+    /**
+     * Collect the next group of rows: wait for the first row, and then for more rows until the group is full or the
+     * maximum delay has passed.
+     *
+     * @param group The list to add the rows to
+     * @return {@code true} if the end of the queue has been reached
+     * @throws InterruptedException When the thread is interrupted while waiting for rows
+     */
+    // suppress warnings about comparing object references (the end of the queue is marked with a sentinel instance)
+    @SuppressWarnings("PMD.CompareObjectsWithEquals")
+    private boolean collectGroup(final List<PendingWrite> group)
+            throws InterruptedException {
+
+        PendingWrite pendingWrite = queue.take();
+        final long deadline = System.nanoTime() + maxDelayNanos;
+        while (pendingWrite != END_OF_QUEUE) {
+            if (!pendingWrite.isCancelled()) {
+                group.add(pendingWrite);
+            }
+            if (group.size() >= maxBatchSize) {
+                return false;
+            }
+
+            // take whatever is available without waiting, and only wait for more rows until the deadline
+            pendingWrite = queue.poll();
+            if (pendingWrite == null) {
+                final long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                pendingWrite = queue.poll(remainingNanos, TimeUnit.NANOSECONDS);
+                if (pendingWrite == null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write a group of rows as one batch in one transaction. If the batch fails, the rows are written one by one.
+     *
+     * @param group The rows to write
+     */
+    // suppress warnings about the resource handling (the connection is closed quietly in the finally block)
+    @SuppressWarnings("PMD.CloseResource")
+    private void writeGroup(final List<PendingWrite> group) {
+
+        final Connection connection;
+        try {
+            connection = ConnectionFactory.getConnection(poolSpec);
+        } catch (FactoryException e) {
+            LOG.warn("Cannot obtain a connection to write a group of " + group.size() + " rows", e);
+            fail(group, e);
+            return;
+        }
+
+        try {
+            final boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                if (!writeBatch(connection, group)) {
+                    for (final PendingWrite pendingWrite : group) {
+                        writeRow(connection, pendingWrite);
+                    }
+                }
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            LOG.warn("Cannot write a group of " + group.size() + " rows", e);
+            fail(group, e);
+        } finally {
+            closeQuietly(connection);
+        }
+        batchCount.incrementAndGet();
+    }
+
+    /**
+     * Write a group of rows as one batch, and commit the transaction. If the batch fails, the transaction is rolled
+     * back.
+     *
+     * @param connection The connection
+     * @param group      The rows to write
+     * @return {@code true} if the rows have been written, {@code false} if the batch has failed and has been rolled
+     * back
+     */
+    private boolean writeBatch(final Connection connection, final List<PendingWrite> group) {
+
+        final int[] updateCounts;
+        try {
+            final PreparedStatement statement = connection.prepareStatement(sql);
+            try {
+                for (final PendingWrite pendingWrite : group) {
+                    pendingWrite.bind(statement);
+                    statement.addBatch();
+                }
+                updateCounts = statement.executeBatch();
+            } finally {
+                statement.close();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            LOG.debug("A batch of " + group.size() + " rows failed, writing the rows one by one", e);
+            rollbackQuietly(connection);
+            return false;
+        }
+
+        for (int i = 0; i < group.size(); i++) {
+            // CHECKSTYLE:OFF
+            // this inline condition is easy to read :-)
+            group.get(i).complete(i < updateCounts.length ? updateCounts[i] : PreparedStatement.SUCCESS_NO_INFO);
+            // CHECKSTYLE:ON
+        }
+        rowCount.addAndGet(group.size());
+        return true;
+    }
+
+    /**
+     * Write a single row in its own transaction. If the row fails, the transaction is rolled back, and the row
+     * completes with the error.
+     *
+     * @param connection   The connection
+     * @param pendingWrite The row to write
+     */
+    private void writeRow(final Connection connection, final PendingWrite pendingWrite) {
+
+        try {
+            final int updateCount;
+            final PreparedStatement statement = connection.prepareStatement(sql);
+            try {
+                pendingWrite.bind(statement);
+                updateCount = statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+            connection.commit();
+            pendingWrite.complete(updateCount);
+            rowCount.incrementAndGet();
+        } catch (SQLException e) {
+            rollbackQuietly(connection);
+            pendingWrite.fail(e);
+        }
+    }
+
+    /**
+     * Complete the rows that have not completed yet with an error
+     *
+     * @param pendingWrites The rows
+     * @param throwable     The error
+     */
+    private static void fail(final List<PendingWrite> pendingWrites, final Throwable throwable) {
+
+        for (final PendingWrite pendingWrite : pendingWrites) {
+            pendingWrite.fail(throwable);
+        }
+    }
+
+    /**
+     * Roll back the current transaction, ignoring any errors
+     *
+     * @param connection The connection
+     */
+    private static void rollbackQuietly(final Connection connection) {
+
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            LOG.debug("Cannot roll back the transaction", e);
+        }
+    }
+
+    /**
+     * Return a connection to its pool, ignoring any errors
+     *
+     * @param connection The connection
+     */
+    private static void closeQuietly(final Connection connection) {
+
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOG.warn("Cannot return the connection to the pool", e);
+        }
+    }
+
+    /**
+     * A row that has been submitted, and the future of its update count. The future is completed by the writer thread.
+     */
+    private static final class PendingWrite
+            implements Future<Integer> {
+
+        /**
+         * The state of a row that has not been written yet
+         */
+        private static final int PENDING = 0;
+
+        /**
+         * The state of a row that has been written
+         */
+        private static final int WRITTEN = 1;
+
+        /**
+         * The state of a row that has failed
+         */
+        private static final int FAILED = 2;
+
+        /**
+         * The state of a row whose future has been cancelled
+         */
+        private static final int CANCELLED = 3;
+
+        /**
+         * The parameters of the SQL statement for the row
+         */
+        private final Object[] parameters;
+
+        /**
+         * The state of the row, which changes only once
+         */
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        /**
+         * Released when the state has changed, after the outcome has been stored
+         */
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        /**
+         * The update count of the row (only read after {@link #finished} has been released)
+         */
+        private int updateCount;
+
+        /**
+         * The error of the row (only read after {@link #finished} has been released)
+         */
+        private Throwable failure;
+
+        /**
+         * Create a pending row write
+         *
+         * @param parameters The parameters of the SQL statement for the row
+         */
+        PendingWrite(final Object... parameters) {
+
+            // create a defensive copy of the parameters, as they are bound on the writer thread
+            this.parameters = parameters.clone();
+        }
+
+        /**
+         * Bind the parameters of the row to a statement
+         *
+         * @param statement The statement
+         * @throws SQLException When a parameter cannot be bound
+         */
+        private void bind(final PreparedStatement statement)
+                throws SQLException {
+
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+        }
+
+        /**
+         * Complete the row successfully, unless its future has been cancelled
+         *
+         * @param count The update count of the row
+         */
+        private void complete(final int count) {
+
+            if (state.compareAndSet(PENDING, WRITTEN)) {
+                updateCount = count;
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Complete the row with an error, unless its future has been cancelled
+         *
+         * @param throwable The error
+         */
+        private void fail(final Throwable throwable) {
+
+            if (state.compareAndSet(PENDING, FAILED)) {
+                failure = throwable;
+                finished.countDown();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p>
+         * The row is only removed if it has not been collected into a group yet.
+         */
+        @Override
+        public boolean cancel(final boolean mayInterrupt) {
+
+            if (state.compareAndSet(PENDING, CANCELLED)) {
+                finished.countDown();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isCancelled() {
+
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isDone() {
+
+            return state.get() != PENDING;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Integer get()
+                throws InterruptedException, ExecutionException {
+
+            finished.await();
+            return getOutcome();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Integer get(final long timeout, final TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+
+            if (!finished.await(timeout, unit)) {
+                throw new TimeoutException("The row has not been written within " + timeout + " " + unit);
+            }
+            return getOutcome();
+        }
+
+        /**
+         * @return The update count of the row
+         * @throws ExecutionException When the row has failed
+         */
+        private Integer getOutcome()
+                throws ExecutionException {
+
+            switch (state.get()) {
+                case WRITTEN:
+                    return updateCount;
+                case FAILED:
+                    throw new ExecutionException(failure);
+                default:
+                    throw new CancellationException("The row write has been cancelled");
+            }
+        }
+    }
+}
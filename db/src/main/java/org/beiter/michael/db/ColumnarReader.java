@@ -0,0 +1,550 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db;
+
+import org.apache.commons.lang3.Validate;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A reader that copies selected numeric columns of a {@link ResultSet} into primitive arrays, one batch of rows at a
+ * time, without boxing the values or creating an object per row.
+ * <p>
+ * The columns to read are registered with {@link #addIntColumn(int)}, {@link #addLongColumn(int)}, and
+ * {@link #addDoubleColumn(int)}, which return the position of the column in the reader. Every call of
+ * {@link #readBatch()} then reads up to <code>batchSize</code> rows into the arrays of the columns, which are returned
+ * by {@link #getInts(int)}, {@link #getLongs(int)}, and {@link #getDoubles(int)}. SQL <code>NULL</code> values are
+ * read as 0, and are recorded in a null bitmap per column ({@link #isNull(int, int)}):
+ * <pre>
+ * ColumnarReader reader = new ColumnarReader(resultSet, 4096);
+ * int id = reader.addLongColumn(1);
+ * int price = reader.addDoubleColumn(2);
+ * while (reader.readBatch() &gt; 0) {
+ *     long[] ids = reader.getLongs(id);
+ *     double[] prices = reader.getDoubles(price);
+ *     for (int row = 0; row &lt; reader.getRowCount(); row++) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * The arrays grow as needed up to the batch size, and are reused by every batch, so that the memory of the reader
+ * does not depend on the number of rows in the result set. The contents of the arrays are only valid until the next
+ * batch is read. The reader does not close the result set.
+ * <p>
+ * Instances of this class are not thread safe.
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about the number of methods (the reader has one add and one get method per column type)
+// suppress warnings about the package private scope (the columns are private classes of the reader)
+@SuppressWarnings({"PMD.TooManyMethods", "PMD.DefaultPackage"})
+// CHECKSTYLE:ON
+public final class ColumnarReader {
+
+    /**
+     * The initial capacity of the column arrays
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * The number of bits in an element of a null bitmap
+     */
+    private static final int BITS_PER_WORD = 64;
+
+    /**
+     * The result set to read
+     */
+    private final ResultSet resultSet;
+
+    /**
+     * The maximum number of rows in a batch
+     */
+    private final int batchSize;
+
+    /**
+     * The columns to read
+     */
+    private final List<AbstractColumn> columns = new ArrayList<>();
+
+    /**
+     * The capacity of the column arrays
+     */
+    private int capacity;
+
+    /**
+     * The number of rows in the current batch
+     */
+    private int rowCount;
+
+    /**
+     * {@code true} when the first batch has been read
+     */
+    private boolean started;
+
+    /**
+     * {@code true} when the last row of the result set has been read
+     */
+    private boolean exhausted;
+
+    /**
+     * Create a reader for a result set
+     *
+     * @param resultSet The result set to read, positioned before the first row that is read
+     * @param batchSize The maximum number of rows in a batch
+     * @throws NullPointerException     When {@code resultSet} is {@code null}
+     * @throws IllegalArgumentException When {@code batchSize} is not positive
+     */
+    public ColumnarReader(final ResultSet resultSet, final int batchSize) {
+
+        Validate.notNull(resultSet, "The validated object 'resultSet' is null");
+        Validate.inclusiveBetween(1, Integer.MAX_VALUE, batchSize);
+
+        this.resultSet = resultSet;
+        this.batchSize = batchSize;
+        this.capacity = Math.min(batchSize, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Read a column of the result set with {@link ResultSet#getInt(int)}
+     *
+     * @param columnIndex The index of the column in the result set (starting at 1)
+     * @return The position of the column in this reader
+     * @throws IllegalArgumentException When {@code columnIndex} is not positive
+     * @throws IllegalStateException    When a batch has already been read
+     */
+    public int addIntColumn(final int columnIndex) {
+
+        return addColumn(new IntColumn(columnIndex, capacity));
+    }
+
+    /**
+     * Read a column of the result set with {@link ResultSet#getLong(int)}
+     *
+     * @param columnIndex The index of the column in the result set (starting at 1)
+     * @return The position of the column in this reader
+     * @throws IllegalArgumentException When {@code columnIndex} is not positive
+     * @throws IllegalStateException    When a batch has already been read
+     */
+    public int addLongColumn(final int columnIndex) {
+
+        return addColumn(new LongColumn(columnIndex, capacity));
+    }
+
+    /**
+     * Read a column of the result set with {@link ResultSet#getDouble(int)}
+     *
+     * @param columnIndex The index of the column in the result set (starting at 1)
+     * @return The position of the column in this reader
+     * @throws IllegalArgumentException When {@code columnIndex} is not positive
+     * @throws IllegalStateException    When a batch has already been read
+     */
+    public int addDoubleColumn(final int columnIndex) {
+
+        return addColumn(new DoubleColumn(columnIndex, capacity));
+    }
+
+    /**
+     * Read the next batch of rows from the result set into the column arrays
+     *
+     * <p>
+     * Once the end of the result set has been reached, the result set is no longer accessed (some drivers close a
+     * result set when its last row has been read, or fail when {@link ResultSet#next()} is called again).
+     *
+     * @return The number of rows in the batch, or 0 if there are no more rows
+     * @throws SQLException When the rows cannot be read
+     */
+    public int readBatch()
+            throws SQLException {
+
+        started = true;
+        rowCount = 0;
+        while (rowCount < batchSize && !exhausted) {
+            if (resultSet.next()) {
+                if (rowCount == capacity) {
+                    grow();
+                }
+                for (final AbstractColumn column : columns) {
+                    column.read(resultSet, rowCount);
+                }
+                rowCount++;
+            } else {
+                exhausted = true;
+            }
+        }
+        return rowCount;
+    }
+
+    /**
+     * @return The number of rows in the current batch
+     */
+    public int getRowCount() {
+
+        return rowCount;
+    }
+
+    /**
+     * Return the values of an <code>int</code> column. Only the first {@link #getRowCount()} values belong to the
+     * current batch.
+     *
+     * @param column The position of the column in this reader
+     * @return The values of the column (not a copy)
+     * @throws IndexOutOfBoundsException When {@code column} is not a position of a column in this reader
+     * @throws IllegalArgumentException  When the column is not an <code>int</code> column
+     */
+    public int[] getInts(final int column) {
+
+        return getColumn(column, IntColumn.class).values;
+    }
+
+    /**
+     * Return the values of a <code>long</code> column. Only the first {@link #getRowCount()} values belong to the
+     * current batch.
+     *
+     * @param column The position of the column in this reader
+     * @return The values of the column (not a copy)
+     * @throws IndexOutOfBoundsException When {@code column} is not a position of a column in this reader
+     * @throws IllegalArgumentException  When the column is not a <code>long</code> column
+     */
+    public long[] getLongs(final int column) {
+
+        return getColumn(column, LongColumn.class).values;
+    }
+
+    /**
+     * Return the values of a <code>double</code> column. Only the first {@link #getRowCount()} values belong to the
+     * current batch.
+     *
+     * @param column The position of the column in this reader
+     * @return The values of the column (not a copy)
+     * @throws IndexOutOfBoundsException When {@code column} is not a position of a column in this reader
+     * @throws IllegalArgumentException  When the column is not a <code>double</code> column
+     */
+    public double[] getDoubles(final int column) {
+
+        return getColumn(column, DoubleColumn.class).values;
+    }
+
+    /**
+     * Check if a value of the current batch is SQL <code>NULL</code>
+     *
+     * @param column The position of the column in this reader
+     * @param row    The row in the current batch (starting at 0)
+     * @return {@code true} if the value is SQL <code>NULL</code>
+     * @throws IndexOutOfBoundsException When {@code column} is not a position of a column in this reader, or
+     *                                   {@code row} is not a row of the current batch
+     */
+    public boolean isNull(final int column, final int row) {
+
+        Validate.validIndex(columns, column);
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("The row is not in the current batch: " + row);
+        }
+
+        return columns.get(column).isNull(row);
+    }
+
+    /**
+     * Add a column to read
+     *
+     * @param column The column
+     * @return The position of the column in this reader
+     */
+    private int addColumn(final AbstractColumn column) {
+
+        Validate.validState(!started, "Columns cannot be added after a batch has been read");
+
+        columns.add(column);
+        return columns.size() - 1;
+    }
+
+    /**
+     * Return a column of the expected type
+     *
+     * @param column The position of the column in this reader
+     * @param type   The expected type of the column
+     * @param <C>    The expected type of the column
+     * @return The column
+     */
+    private <C extends AbstractColumn> C getColumn(final int column, final Class<C> type) {
+
+        Validate.validIndex(columns, column);
+        final AbstractColumn result = columns.get(column);
+        Validate.isInstanceOf(type, result, "The column at position %d is not a %s", column, type.getSimpleName());
+
+        return type.cast(result);
+    }
+
+    /**
+     * Double the capacity of the column arrays, up to the batch size
+     */
+    private void grow() {
+
+        // CHECKSTYLE:OFF
+        // this inline condition is easy to read :-)
+        capacity = capacity > batchSize / 2 ? batchSize : capacity * 2;
+        // CHECKSTYLE:ON
+        for (final AbstractColumn column : columns) {
+            column.grow(capacity);
+        }
+    }
+
+    /**
+     * A column of primitive values with a null bitmap
+     */
+    private abstract static class AbstractColumn {
+
+        /**
+         * The index of the column in the result set
+         */
+        private final int columnIndex;
+
+        /**
+         * The null bitmap of the column: the bit of a row is set if its value is SQL <code>NULL</code>
+         */
+        private long[] nulls;
+
+        /**
+         * Create a column
+         *
+         * @param columnIndex The index of the column in the result set (starting at 1)
+         * @param capacity    The initial capacity of the column
+         */
+        AbstractColumn(final int columnIndex, final int capacity) {
+
+            Validate.inclusiveBetween(1, Integer.MAX_VALUE, columnIndex);
+
+            this.columnIndex = columnIndex;
+            this.nulls = new long[getWords(capacity)];
+        }
+
+        /**
+         * Read the value of the current row of the result set
+         *
+         * @param resultSet The result set
+         * @param row       The row in the batch
+         * @throws SQLException When the value cannot be read
+         */
+        final void read(final ResultSet resultSet, final int row)
+                throws SQLException {
+
+            readValue(resultSet, columnIndex, row);
+
+            final long bit = 1L << (row % BITS_PER_WORD);
+            if (resultSet.wasNull()) {
+                nulls[row / BITS_PER_WORD] |= bit;
+            } else {
+                nulls[row / BITS_PER_WORD] &= ~bit;
+            }
+        }
+
+        /**
+         * @param row The row in the batch
+         * @return {@code true} if the value of the row is SQL <code>NULL</code>
+         */
+        final boolean isNull(final int row) {
+
+            return (nulls[row / BITS_PER_WORD] & (1L << (row % BITS_PER_WORD))) != 0;
+        }
+
+        /**
+         * Grow the column to a new capacity
+         *
+         * @param capacity The new capacity
+         */
+        final void grow(final int capacity) {
+
+            nulls = Arrays.copyOf(nulls, getWords(capacity));
+            growValues(capacity);
+        }
+
+        /**
+         * Read a value of the current row of the result set into the value array
+         *
+         * @param resultSet   The result set
+         * @param columnIndex The index of the column in the result set
+         * @param row         The row in the batch
+         * @throws SQLException When the value cannot be read
+         */
+        abstract void readValue(ResultSet resultSet, int columnIndex, int row)
+                throws SQLException;
+
+        /**
+         * Grow the value array to a new capacity
+         *
+         * @param capacity The new capacity
+         */
+        abstract void growValues(int capacity);
+
+        /**
+         * @param capacity The number of rows
+         * @return The number of bitmap elements for the rows
+         */
+        private static int getWords(final int capacity) {
+
+            return (capacity + BITS_PER_WORD - 1) / BITS_PER_WORD;
+        }
+    }
+
+    /**
+     * A column of <code>int</code> values
+     */
+    private static final class IntColumn
+            extends AbstractColumn {
+
+        /**
+         * The values of the column
+         */
+        private int[] values;
+
+        /**
+         * Create a column
+         *
+         * @param columnIndex The index of the column in the result set (starting at 1)
+         * @param capacity    The initial capacity of the column
+         */
+        IntColumn(final int columnIndex, final int capacity) {
+
+            super(columnIndex, capacity);
+            this.values = new int[capacity];
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void readValue(final ResultSet resultSet, final int columnIndex, final int row)
+                throws SQLException {
+
+            values[row] = resultSet.getInt(columnIndex);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void growValues(final int capacity) {
+
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+
+    /**
+     * A column of <code>long</code> values
+     */
+    private static final class LongColumn
+            extends AbstractColumn {
+
+        /**
+         * The values of the column
+         */
+        private long[] values;
+
+        /**
+         * Create a column
+         *
+         * @param columnIndex The index of the column in the result set (starting at 1)
+         * @param capacity    The initial capacity of the column
+         */
+        LongColumn(final int columnIndex, final int capacity) {
+
+            super(columnIndex, capacity);
+            this.values = new long[capacity];
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void readValue(final ResultSet resultSet, final int columnIndex, final int row)
+                throws SQLException {
+
+            values[row] = resultSet.getLong(columnIndex);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void growValues(final int capacity) {
+
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+
+    /**
+     * A column of <code>double</code> values
+     */
+    private static final class DoubleColumn
+            extends AbstractColumn {
+
+        /**
+         * The values of the column
+         */
+        private double[] values;
+
+        /**
+         * Create a column
+         *
+         * @param columnIndex The index of the column in the result set (starting at 1)
+         * @param capacity    The initial capacity of the column
+         */
+        DoubleColumn(final int columnIndex, final int capacity) {
+
+            super(columnIndex, capacity);
+            this.values = new double[capacity];
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void readValue(final ResultSet resultSet, final int columnIndex, final int row)
+                throws SQLException {
+
+            values[row] = resultSet.getDouble(columnIndex);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void growValues(final int capacity) {
+
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+}
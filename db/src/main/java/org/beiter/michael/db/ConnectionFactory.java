@@ -33,11 +33,22 @@
 package org.beiter.michael.db;
 
 import org.apache.commons.lang3.Validate;
+import org.beiter.michael.db.pool.BulkheadRejectedException;
+import org.beiter.michael.db.pool.CircuitOpenException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class creates and manages JDBC Connection instances either from:
@@ -46,6 +57,8 @@ import java.sql.SQLException;
  * <li>a connection pool that is maintained by the {@link DataSourceFactory} factory</li>
  * </ul>
  */
+// suppress warnings about the long (but descriptive) constant names
+@SuppressWarnings("PMD.LongVariable")
 public final class ConnectionFactory {
 
     /**
@@ -53,6 +66,31 @@ public final class ConnectionFactory {
      */
     private static final Logger LOG = LoggerFactory.getLogger(ConnectionFactory.class);
 
+    /**
+     * The maximum number of threads of the default executor for asynchronous connection requests
+     */
+    private static final int DEFAULT_ASYNC_MAX_THREADS = 32;
+
+    /**
+     * The maximum number of asynchronous connection requests that wait for a thread of the default executor
+     */
+    private static final int DEFAULT_ASYNC_QUEUE_CAPACITY = 1024;
+
+    /**
+     * The time after which an idle thread of the default executor for asynchronous connection requests terminates
+     */
+    private static final long DEFAULT_ASYNC_KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * Counts the threads of the default executor for asynchronous connection requests, to give them unique names
+     */
+    private static final AtomicInteger ASYNC_THREAD_COUNTER = new AtomicInteger();
+
+    /**
+     * The default executor for asynchronous connection requests
+     */
+    private static final ExecutorService DEFAULT_ASYNC_EXECUTOR = createDefaultAsyncExecutor();
+
     /**
      * A private constructor to prevent instantiation of this class
      */
@@ -95,7 +133,10 @@ public final class ConnectionFactory {
      * @param poolSpec A connection pool spec that has the driver and url configured as non-empty strings
      * @return a JDBC connection
      * @throws FactoryException         When the connection cannot be retrieved from the pool, or the pool cannot be
-     *                                  created
+     *                                  created. A {@link ConnectionRejectedException} is thrown when the bulkhead or
+     *                                  the open circuit breaker of the pool reject the request without waiting for a
+     *                                  connection (see {@link ConnectionProperties#setBulkheadMaxWaiters(int)} and
+     *                                  {@link ConnectionProperties#setCircuitBreakerFailureThreshold(int)})
      * @throws NullPointerException     When the {@code poolSpec}, {@code poolSpec.getDriver()}, or
      *                                  {@code poolSpec.getUrl()} are {@code null}
      * @throws IllegalArgumentException When {@code poolSpec.getDriver()} or {@code poolSpec.getUrl()} are empty
@@ -112,26 +153,198 @@ public final class ConnectionFactory {
 
         try {
             return DataSourceFactory.getDataSource(poolSpec).getConnection();
+        } catch (BulkheadRejectedException e) {
+            final String error = "JDBC connection request rejected by the bulkhead of pool: " + getPoolKey(poolSpec);
+            LOG.debug(error, e);
+            throw new ConnectionRejectedException(error, e);
+        } catch (CircuitOpenException e) {
+            final String error = "JDBC connection request rejected by the open circuit breaker of pool: "
+                    + getPoolKey(poolSpec);
+            LOG.debug(error, e);
+            throw new ConnectionRejectedException(error, e);
         } catch (SQLException e) {
-            // a connection is identified by the URL, the username, and the password
-            final String key = String.format("%s:%s", poolSpec.getUrl(), poolSpec.getUsername());
-            final String error = "Error retrieving JDBC connection from pool: " + key;
+            final String error = "Error retrieving JDBC connection from pool: " + getPoolKey(poolSpec);
             LOG.warn(error);
             throw new FactoryException(error, e);
         }
     }
 
+    /**
+     * Request a Connection instance for a JNDI managed JDBC connection without blocking the caller.
+     * <p>
+     * The connection is obtained on a thread of a shared default executor, which has a bounded number of threads and a
+     * bounded queue. If the queue is full, the returned future completes with a {@link FactoryException}. See
+     * {@link #getConnectionAsync(String, Executor)} for details.
+     *
+     * @param jndiName The JNDI connection name
+     * @return The pending connection request
+     * @throws NullPointerException     When {@code jndiName} is null
+     * @throws IllegalArgumentException When {@code jndiName} is empty
+     */
+    public static ConnectionFuture getConnectionAsync(final String jndiName) {
+
+        return getConnectionAsync(jndiName, DEFAULT_ASYNC_EXECUTOR);
+    }
+
+    /**
+     * Request a Connection instance for a JNDI managed JDBC connection without blocking the caller.
+     * <p>
+     * The connection is obtained with {@link #getConnection(String)} on a thread of the provided executor. If the
+     * connection cannot be obtained, the returned future completes with a {@link FactoryException}. Cancelling the
+     * request never leaks a connection, see {@link ConnectionFuture}.
+     *
+     * @param jndiName The JNDI connection name
+     * @param executor The executor that obtains the connection
+     * @return The pending connection request
+     * @throws NullPointerException     When {@code jndiName} or {@code executor} are null
+     * @throws IllegalArgumentException When {@code jndiName} is empty
+     */
+    public static ConnectionFuture getConnectionAsync(final String jndiName, final Executor executor) {
+
+        Validate.notBlank(jndiName, "The validated character sequence 'jndiName' is null or empty");
+        Validate.notNull(executor, "The validated object 'executor' is null");
+
+        // no need for defensive copies of Strings
+
+        return submit(new Callable<Connection>() {
+            @Override
+            public Connection call()
+                    throws FactoryException {
+
+                return getConnection(jndiName);
+            }
+        }, executor);
+    }
+
+    /**
+     * Request a Connection instance from a pool that manages JDBC driver based connections without blocking the
+     * caller.
+     * <p>
+     * The connection is obtained on a thread of a shared default executor, which has a bounded number of threads and a
+     * bounded queue. If the queue is full, the returned future completes with a {@link FactoryException}. See
+     * {@link #getConnectionAsync(ConnectionProperties, Executor)} for details.
+     *
+     * @param poolSpec A connection pool spec that has the driver and url configured as non-empty strings
+     * @return The pending connection request
+     * @throws NullPointerException     When the {@code poolSpec}, {@code poolSpec.getDriver()}, or
+     *                                  {@code poolSpec.getUrl()} are {@code null}
+     * @throws IllegalArgumentException When {@code poolSpec.getDriver()} or {@code poolSpec.getUrl()} are empty
+     */
+    public static ConnectionFuture getConnectionAsync(final ConnectionProperties poolSpec) {
+
+        return getConnectionAsync(poolSpec, DEFAULT_ASYNC_EXECUTOR);
+    }
+
+    /**
+     * Request a Connection instance from a pool that manages JDBC driver based connections without blocking the
+     * caller.
+     * <p>
+     * The connection is obtained with {@link #getConnection(ConnectionProperties)} on a thread of the provided
+     * executor, which waits up to {@link ConnectionProperties#getMaxWaitMillis()} for a connection to become free. If
+     * the connection cannot be obtained, the returned future completes with a {@link FactoryException}. Cancelling
+     * the request never leaks a connection, see {@link ConnectionFuture}.
+     *
+     * @param poolSpec A connection pool spec that has the driver and url configured as non-empty strings
+     * @param executor The executor that obtains the connection
+     * @return The pending connection request
+     * @throws NullPointerException     When the {@code poolSpec}, {@code poolSpec.getDriver()},
+     *                                  {@code poolSpec.getUrl()}, or {@code executor} are {@code null}
+     * @throws IllegalArgumentException When {@code poolSpec.getDriver()} or {@code poolSpec.getUrl()} are empty
+     */
+    public static ConnectionFuture getConnectionAsync(final ConnectionProperties poolSpec, final Executor executor) {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+        Validate.notBlank(poolSpec.getDriver(),
+                "The validated character sequence 'poolSpec.getDriver()' is null or empty");
+        Validate.notBlank(poolSpec.getUrl(), "The validated character sequence 'poolSpec.getUrl()' is null or empty");
+        Validate.notNull(executor, "The validated object 'executor' is null");
+
+        // the pool spec may be changed by the caller before the task runs
+        final ConnectionProperties poolSpecCopy = new ConnectionProperties(poolSpec);
+
+        return submit(new Callable<Connection>() {
+            @Override
+            public Connection call()
+                    throws FactoryException {
+
+                return getConnection(poolSpecCopy);
+            }
+        }, executor);
+    }
+
     /**
      * Resets the internal state of the {@link DataSourceFactory} that manages the data source pools exposed by this
-     * factory.
+     * factory, and shuts down the data source pools.
      * <p>
-     * <strong>This method does not release any resources that have been borrowed from the connection pools managed
-     * by this factory.</strong> To avoid resource leaks, you <strong>must</strong> close / return all connections to
-     * their pools before calling this method.
+     * Connections that have not been returned to their pools within the shutdown grace period of the pool are aborted
+     * (see {@link DataSourceFactory#reset()}).
      */
     public static void reset() {
 
         // Unset the cached connections
         DataSourceFactory.reset();
     }
+
+    /**
+     * Return the key of a pool for error messages
+     *
+     * @param poolSpec The connection pool spec
+     * @return The URL and the username of the pool
+     */
+    private static String getPoolKey(final ConnectionProperties poolSpec) {
+
+        // a connection is identified by the URL, the username, and the password
+        return String.format("%s:%s", poolSpec.getUrl(), poolSpec.getUsername());
+    }
+
+    /**
+     * Create the default executor for asynchronous connection requests. The executor has a bounded number of daemon
+     * threads that terminate when they are idle, and rejects requests when its queue is full, so that a burst of
+     * requests against an exhausted pool cannot create an unbounded number of blocked threads.
+     *
+     * @return The default executor
+     */
+    // suppress warnings about using threads (the default executor must create daemon threads, see above)
+    @SuppressWarnings("PMD.DoNotUseThreads")
+    private static ExecutorService createDefaultAsyncExecutor() {
+
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_ASYNC_MAX_THREADS,
+                DEFAULT_ASYNC_MAX_THREADS, DEFAULT_ASYNC_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(DEFAULT_ASYNC_QUEUE_CAPACITY), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+
+                final String name = "connection-factory-async-" + ASYNC_THREAD_COUNTER.incrementAndGet();
+                final Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Submit a connection request to an executor
+     *
+     * @param supplier The task that obtains the connection
+     * @param executor The executor that runs the task
+     * @return The pending connection request
+     */
+    private static ConnectionFuture submit(final Callable<Connection> supplier, final Executor executor) {
+
+        // assert in private method
+        assert supplier != null : "The connection supplier cannot be null";
+        assert executor != null : "The executor cannot be null";
+
+        final ConnectionFuture future = new ConnectionFuture(supplier);
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            final String error = "The executor rejected the connection request";
+            LOG.warn(error, e);
+            future.fail(new FactoryException(error, e));
+        }
+        return future;
+    }
 }
@@ -0,0 +1,242 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The result of an asynchronous connection request, see {@link ConnectionFactory#getConnectionAsync(String)} and
+ * {@link ConnectionFactory#getConnectionAsync(ConnectionProperties)}.
+ * <p>
+ * Callers that cannot block can register listeners with {@link #addListener(Runnable, Executor)}, which are run once
+ * the connection request has completed (successfully, with an error, or because it has been cancelled).
+ * <p>
+ * A connection request can be cancelled at any time without leaking the connection: if the connection is obtained
+ * after the request has been cancelled, it is closed (i.e. returned to its pool) immediately. A request that times out
+ * in {@link #get(long, TimeUnit)} is cancelled the same way. Once a connection has been handed out through
+ * {@link #get()}, the caller is responsible for closing it.
+ */
+// suppress warnings about using threads (a connection request runs on, and notifies, the executors of the caller)
+@SuppressWarnings("PMD.DoNotUseThreads")
+public final class ConnectionFuture
+        extends FutureTask<Connection> {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionFuture.class);
+
+    /**
+     * Guards the listeners and the completion flag
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The listeners to run on completion, wrapped with their executors
+     */
+    private final List<Runnable> listeners = new ArrayList<>();
+
+    /**
+     * {@code true} when the connection request has completed, and the listeners have been run
+     */
+    private boolean completed;
+
+    /**
+     * Create a connection request
+     *
+     * @param supplier The task that obtains the connection
+     */
+    ConnectionFuture(final Callable<Connection> supplier) {
+
+        super(supplier);
+    }
+
+    /**
+     * Register a listener that is run on the provided executor once the connection request has completed. If the
+     * request has already completed, the listener is run immediately.
+     *
+     * @param listener The listener to run
+     * @param executor The executor to run the listener on
+     * @throws NullPointerException When {@code listener} or {@code executor} are {@code null}
+     */
+    public void addListener(final Runnable listener, final Executor executor) {
+
+        Validate.notNull(listener, "The validated object 'listener' is null");
+        Validate.notNull(executor, "The validated object 'executor' is null");
+
+        final Runnable task = new ListenerTask(listener, executor);
+
+        lock.lock();
+        try {
+            if (!completed) {
+                listeners.add(task);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        task.run();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the connection is not available within the timeout, the connection request is cancelled, so that a
+     * connection that is obtained later is closed (i.e. returned to its pool) instead of being leaked.
+     */
+    @Override
+    public Connection get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+
+        try {
+            return super.get(timeout, unit);
+        } catch (TimeoutException e) {
+            // the request may have completed after the timeout, in which case the caller gets the connection
+            if (cancel(false) || isCancelled()) {
+                throw e;
+            }
+            return super.get();
+        }
+    }
+
+    /**
+     * Complete the connection request with an error, e.g. because the request could not be submitted to an executor.
+     *
+     * @param throwable The error
+     */
+    // suppress warnings about the package private scope (only the connection factory can fail a request)
+    @SuppressWarnings("PMD.DefaultPackage")
+    void fail(final Throwable throwable) {
+
+        setException(throwable);
+    }
+
+    /**
+     * Store the connection obtained by the connection request. If the request has been cancelled in the meantime, the
+     * connection is closed instead.
+     *
+     * @param connection The connection
+     */
+    @Override
+    protected void set(final Connection connection) {
+
+        super.set(connection);
+
+        if (connection != null && isCancelled()) {
+            LOG.debug("The connection request has been cancelled, returning the connection");
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOG.warn("Error closing the connection of a cancelled connection request", e);
+            }
+        }
+    }
+
+    /**
+     * Run the listeners once the connection request has completed
+     */
+    @Override
+    protected void done() {
+
+        final List<Runnable> toRun;
+        lock.lock();
+        try {
+            completed = true;
+            toRun = new ArrayList<>(listeners);
+            listeners.clear();
+        } finally {
+            lock.unlock();
+        }
+
+        for (final Runnable task : toRun) {
+            task.run();
+        }
+    }
+
+    /**
+     * Runs a listener on its executor
+     */
+    private static final class ListenerTask
+            implements Runnable {
+
+        /**
+         * The listener to run
+         */
+        private final Runnable listener;
+
+        /**
+         * The executor to run the listener on
+         */
+        private final Executor executor;
+
+        /**
+         * Create a task that runs a listener on its executor
+         *
+         * @param listener The listener to run
+         * @param executor The executor to run the listener on
+         */
+        ListenerTask(final Runnable listener, final Executor executor) {
+
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        /**
+         * Submit the listener to its executor
+         */
+        @Override
+        public void run() {
+
+            try {
+                executor.execute(listener);
+            } catch (RejectedExecutionException e) {
+                LOG.warn("The executor rejected a connection request listener", e);
+            }
+        }
+    }
+}
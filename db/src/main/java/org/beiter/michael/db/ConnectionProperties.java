@@ -32,9 +32,12 @@
  */
 package org.beiter.michael.db;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 
 import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -48,7 +51,8 @@ import java.util.concurrent.ConcurrentHashMap;
 // suppress warnings about the long variable names that are "inherited" from Apache DBCP (which I used as a blueprint)
 // suppress warnings about the excessive number of public elements (triggered by the many getters and setters)
 // suppress warnings about a potential God class (not the case, this is triggered by the many getters and setters)
-@SuppressWarnings({"PMD.UnnecessaryConstructor", "PMD.TooManyFields", "PMD.LongVariable", "PMD.ExcessivePublicCount", "PMD.GodClass"})
+// suppress warnings about the class length (triggered by the documentation of the many getters and setters)
+@SuppressWarnings({"PMD.UnnecessaryConstructor", "PMD.TooManyFields", "PMD.LongVariable", "PMD.ExcessivePublicCount", "PMD.GodClass", "PMD.ExcessiveClassLength"})
 // CHECKSTYLE:ON
 public class ConnectionProperties {
 
@@ -167,6 +171,156 @@ public class ConnectionProperties {
      */
     private long maxConnLifetimeMillis;
 
+    /**
+     * @see ConnectionProperties#setPoolEngine(String)
+     */
+    private String poolEngine;
+
+    /**
+     * @see ConnectionProperties#setAcquisitionMode(String)
+     */
+    private String acquisitionMode;
+
+    /**
+     * @see ConnectionProperties#setLeakDetectionThresholdMillis(long)
+     */
+    private long leakDetectionThresholdMillis;
+
+    /**
+     * @see ConnectionProperties#setLeakDetectionStackSampleRate(int)
+     */
+    private int leakDetectionStackSampleRate;
+
+    /**
+     * @see ConnectionProperties#setAbandonedTimeoutMillis(long)
+     */
+    private long abandonedTimeoutMillis;
+
+    /**
+     * @see ConnectionProperties#setPoolPreparedStatements(boolean)
+     */
+    private boolean poolPreparedStatements;
+
+    /**
+     * @see ConnectionProperties#setMaxOpenPreparedStatements(int)
+     */
+    private int maxOpenPreparedStatements;
+
+    /**
+     * @see ConnectionProperties#setDriverProperties(Map<String, String>)
+     */
+    private Map<String, String> driverProperties = new ConcurrentHashMap<>();
+
+    /**
+     * @see ConnectionProperties#setInitialSize(int)
+     */
+    private int initialSize;
+
+    /**
+     * @see ConnectionProperties#setWarmUpInBackground(boolean)
+     */
+    private boolean warmUpInBackground;
+
+    /**
+     * @see ConnectionProperties#setShutdownGracePeriodMillis(long)
+     */
+    private long shutdownGracePeriodMillis;
+
+    /**
+     * @see ConnectionProperties#setReplicaUrls(List)
+     */
+    private List<String> replicaUrls = new ArrayList<>();
+
+    /**
+     * @see ConnectionProperties#setReplicaRetryMillis(long)
+     */
+    private long replicaRetryMillis;
+
+    /**
+     * @see ConnectionProperties#setFailoverUrls(List)
+     */
+    private List<String> failoverUrls = new ArrayList<>();
+
+    /**
+     * @see ConnectionProperties#setHealthCheckIntervalMillis(long)
+     */
+    private long healthCheckIntervalMillis;
+
+    /**
+     * @see ConnectionProperties#setValidationIntervalMillis(long)
+     */
+    private long validationIntervalMillis;
+
+    /**
+     * @see ConnectionProperties#setIdleValidationIntervalMillis(long)
+     */
+    private long idleValidationIntervalMillis;
+
+    /**
+     * @see ConnectionProperties#setAutoSizeIntervalMillis(long)
+     */
+    private long autoSizeIntervalMillis;
+
+    /**
+     * @see ConnectionProperties#setAutoSizeMinTotal(int)
+     */
+    private int autoSizeMinTotal;
+
+    /**
+     * @see ConnectionProperties#setAutoSizeMaxTotal(int)
+     */
+    private int autoSizeMaxTotal;
+
+    /**
+     * @see ConnectionProperties#setAutoSizeWaitThresholdMillis(long)
+     */
+    private long autoSizeWaitThresholdMillis;
+
+    /**
+     * @see ConnectionProperties#setThreadAffinityMillis(long)
+     */
+    private long threadAffinityMillis;
+
+    /**
+     * @see ConnectionProperties#setBulkheadMaxWaiters(int)
+     */
+    private int bulkheadMaxWaiters;
+
+    /**
+     * @see ConnectionProperties#setBulkheadMaxQueueMillis(long)
+     */
+    private long bulkheadMaxQueueMillis;
+
+    /**
+     * @see ConnectionProperties#setCircuitBreakerFailureThreshold(int)
+     */
+    private int circuitBreakerFailureThreshold;
+
+    /**
+     * @see ConnectionProperties#setCircuitBreakerOpenMillis(long)
+     */
+    private long circuitBreakerOpenMillis;
+
+    /**
+     * @see ConnectionProperties#setCircuitBreakerHalfOpenProbes(int)
+     */
+    private int circuitBreakerHalfOpenProbes;
+
+    /**
+     * @see ConnectionProperties#setMaxConcurrentCreations(int)
+     */
+    private int maxConcurrentCreations;
+
+    /**
+     * @see ConnectionProperties#setGlobalMaxConcurrentCreations(int)
+     */
+    private int globalMaxConcurrentCreations;
+
+    /**
+     * @see ConnectionProperties#setCreationPacingMillis(long)
+     */
+    private long creationPacingMillis;
+
     /**
      * @see ConnectionProperties#setAdditionalProperties(Map<String, String>)
      */
@@ -226,6 +380,36 @@ public class ConnectionProperties {
         setCacheState(properties.isCacheState());
         setValidationQuery(properties.getValidationQuery());
         setMaxConnLifetimeMillis(properties.getMaxConnLifetimeMillis());
+        setPoolEngine(properties.getPoolEngine());
+        setAcquisitionMode(properties.getAcquisitionMode());
+        setLeakDetectionThresholdMillis(properties.getLeakDetectionThresholdMillis());
+        setLeakDetectionStackSampleRate(properties.getLeakDetectionStackSampleRate());
+        setAbandonedTimeoutMillis(properties.getAbandonedTimeoutMillis());
+        setPoolPreparedStatements(properties.isPoolPreparedStatements());
+        setMaxOpenPreparedStatements(properties.getMaxOpenPreparedStatements());
+        setDriverProperties(properties.getDriverProperties());
+        setInitialSize(properties.getInitialSize());
+        setWarmUpInBackground(properties.isWarmUpInBackground());
+        setShutdownGracePeriodMillis(properties.getShutdownGracePeriodMillis());
+        setReplicaUrls(properties.getReplicaUrls());
+        setReplicaRetryMillis(properties.getReplicaRetryMillis());
+        setFailoverUrls(properties.getFailoverUrls());
+        setHealthCheckIntervalMillis(properties.getHealthCheckIntervalMillis());
+        setValidationIntervalMillis(properties.getValidationIntervalMillis());
+        setIdleValidationIntervalMillis(properties.getIdleValidationIntervalMillis());
+        setAutoSizeIntervalMillis(properties.getAutoSizeIntervalMillis());
+        setAutoSizeMinTotal(properties.getAutoSizeMinTotal());
+        setAutoSizeMaxTotal(properties.getAutoSizeMaxTotal());
+        setAutoSizeWaitThresholdMillis(properties.getAutoSizeWaitThresholdMillis());
+        setThreadAffinityMillis(properties.getThreadAffinityMillis());
+        setBulkheadMaxWaiters(properties.getBulkheadMaxWaiters());
+        setBulkheadMaxQueueMillis(properties.getBulkheadMaxQueueMillis());
+        setCircuitBreakerFailureThreshold(properties.getCircuitBreakerFailureThreshold());
+        setCircuitBreakerOpenMillis(properties.getCircuitBreakerOpenMillis());
+        setCircuitBreakerHalfOpenProbes(properties.getCircuitBreakerHalfOpenProbes());
+        setMaxConcurrentCreations(properties.getMaxConcurrentCreations());
+        setGlobalMaxConcurrentCreations(properties.getGlobalMaxConcurrentCreations());
+        setCreationPacingMillis(properties.getCreationPacingMillis());
         setAdditionalProperties(properties.getAdditionalProperties());
     }
 
@@ -814,6 +998,11 @@ public class ConnectionProperties {
      * The SQL query that will be used to validate connections from the pool before returning them to the caller. If
      * specified, this query <strong>MUST</strong> be an SQL SELECT statement that returns at least one row. If not
      * specified (i.e. <code>null</code>), connections will be validation by calling the <code>isValid()</code> method.
+     * <p>
+     * <code>isValid()</code> lets the JDBC driver choose the cheapest way to check the connection, which often avoids
+     * parsing and executing a query on the server. When the connection properties are built from a map, the value
+     * {@link org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder#VALIDATION_QUERY_IS_VALID} selects this
+     * validation method.
      *
      * @param validationQuery The SQL query that will be used to validate connections from the pool before returning
      *                        them to the caller
@@ -854,6 +1043,971 @@ public class ConnectionProperties {
         this.maxConnLifetimeMillis = maxConnLifetimeMillis;
     }
 
+    /**
+     * @return The name of the pool engine that manages the connection pool
+     * @see ConnectionProperties#setPoolEngine(String)
+     */
+    public final String getPoolEngine() {
+
+        // no need for defensive copies of String
+
+        return poolEngine;
+    }
+
+    /**
+     * The name of the pool engine that manages the connection pool, e.g. <code>dbcp2</code> (Apache Commons DBCP2),
+     * <code>hikari</code> (HikariCP), or <code>builtin</code> (the lock-free pool engine of this library). If not
+     * specified (i.e. <code>null</code> or blank), the DBCP2 pool engine is used.
+     * <p>
+     * Pool engines are discovered through the {@link org.beiter.michael.db.pool.PoolProvider} service provider
+     * interface.
+     *
+     * @param poolEngine The name of the pool engine that manages the connection pool
+     */
+    public final void setPoolEngine(final String poolEngine) {
+
+        // no need for validation, as the available pool engines depend on the class path and null is allowed
+
+        // no need for defensive copies of String
+
+        this.poolEngine = poolEngine;
+    }
+
+    /**
+     * @return The mode in which threads wait for a connection from the pool
+     * @see ConnectionProperties#setAcquisitionMode(String)
+     */
+    public final String getAcquisitionMode() {
+
+        // no need for defensive copies of String
+
+        return acquisitionMode;
+    }
+
+    /**
+     * The mode in which threads wait for a connection from the pool: <code>pool</code> (threads wait inside the
+     * pool engine) or <code>semaphore</code> (threads queue on a fair semaphore with <code>maxTotal</code>
+     * permits in front of the pool engine, and only enter the pool engine when a connection is available). If
+     * not specified (i.e. <code>null</code> or blank), the <code>pool</code> mode is used.
+     * <p>
+     * The <code>semaphore</code> mode parks waiting threads instead of blocking them on a monitor, and is
+     * recommended when many threads (e.g. virtual threads) compete for a small pool. It has no effect if
+     * <code>maxTotal</code> is negative.
+     * <p>
+     * In the <code>semaphore</code> mode, <code>maxWaitMillis</code> bounds the wait for a permit and, separately,
+     * the wait inside the pool engine. A thread holding a permit normally finds a connection right away, but if the
+     * pool engine is slow to provide it (e.g. while <code>maxTotal</code> is being reduced), a borrow can take up
+     * to twice <code>maxWaitMillis</code> before it times out.
+     *
+     * @param acquisitionMode The mode in which threads wait for a connection from the pool
+     */
+    public final void setAcquisitionMode(final String acquisitionMode) {
+
+        // no need for validation, as unknown modes are rejected when the pool is created and null is allowed
+
+        // no need for defensive copies of String
+
+        this.acquisitionMode = acquisitionMode;
+    }
+
+    /**
+     * @return The time in milliseconds after which a borrowed connection is reported as a potential leak
+     * @see ConnectionProperties#setLeakDetectionThresholdMillis(long)
+     */
+    public final long getLeakDetectionThresholdMillis() {
+
+        // no need for defensive copies of long
+
+        return leakDetectionThresholdMillis;
+    }
+
+    /**
+     * The time in milliseconds that a connection can be borrowed from the pool before it is reported as a
+     * potential leak. The report is logged as a warning, and contains the stack trace of the borrowing thread. A
+     * value of zero or less disables leak detection.
+     * <p>
+     * Leak detection is independent of the pool engine, and adds no overhead to connections that are returned in
+     * time other than the optional capture of the borrower's stack trace on borrow (see
+     * {@link #setLeakDetectionStackSampleRate(int)}).
+     *
+     * @param leakDetectionThresholdMillis The time in milliseconds after which a borrowed connection is reported
+     *                                     as a potential leak
+     */
+    public final void setLeakDetectionThresholdMillis(final long leakDetectionThresholdMillis) {
+
+        // no need for validation, as long cannot be null and all possible values are allowed
+        // no need for defensive copies of long
+
+        this.leakDetectionThresholdMillis = leakDetectionThresholdMillis;
+    }
+
+    /**
+     * @return The rate at which the stack trace of the borrowing thread is captured when a connection is
+     * borrowed
+     * @see ConnectionProperties#setLeakDetectionStackSampleRate(int)
+     */
+    public final int getLeakDetectionStackSampleRate() {
+
+        // no need for defensive copies of int
+
+        return leakDetectionStackSampleRate;
+    }
+
+    /**
+     * The rate at which the stack trace of the borrowing thread is captured when a connection is borrowed from
+     * the pool, as one in <code>leakDetectionStackSampleRate</code> borrows (chosen at random). A value of 1
+     * captures the stack trace on every borrow, which shows exactly where a leaked connection has been borrowed,
+     * but makes every borrow noticeably more expensive. A value of zero or less (the default) never captures the
+     * stack trace on borrow, so that leak detection costs nothing on the borrow path.
+     * <p>
+     * If the stack trace has not been captured when a connection is borrowed, the leak report contains the stack
+     * trace of the borrowing thread at the time the leak is detected instead. This setting has no effect if leak
+     * detection and abandoned connection removal are disabled.
+     *
+     * @param leakDetectionStackSampleRate The rate at which the stack trace of the borrowing thread is captured
+     *                                     when a connection is borrowed
+     */
+    public final void setLeakDetectionStackSampleRate(final int leakDetectionStackSampleRate) {
+
+        // no need for validation, as int cannot be null and all possible values are allowed
+        // no need for defensive copies of int
+
+        this.leakDetectionStackSampleRate = leakDetectionStackSampleRate;
+    }
+
+    /**
+     * @return The time in milliseconds after which a borrowed connection is considered abandoned and reclaimed
+     * @see ConnectionProperties#setAbandonedTimeoutMillis(long)
+     */
+    public final long getAbandonedTimeoutMillis() {
+
+        // no need for defensive copies of long
+
+        return abandonedTimeoutMillis;
+    }
+
+    /**
+     * The time in milliseconds that a connection can be borrowed from the pool before it is considered
+     * abandoned. Abandoned connections are reclaimed: the statements created through them are cancelled and
+     * closed, and they are closed on behalf of the borrower (which rolls back any pending transaction and returns
+     * the connection to the pool). Any further use of the connection, or of its statements and result sets, by
+     * the borrower fails. A value of zero or less never reclaims abandoned connections.
+     * <p>
+     * Use this setting with care: a connection that is legitimately held for a long time (e.g. for a long
+     * running report) is reclaimed just like a leaked connection.
+     *
+     * @param abandonedTimeoutMillis The time in milliseconds after which a borrowed connection is considered
+     *                               abandoned and reclaimed
+     */
+    public final void setAbandonedTimeoutMillis(final long abandonedTimeoutMillis) {
+
+        // no need for validation, as long cannot be null and all possible values are allowed
+        // no need for defensive copies of long
+
+        this.abandonedTimeoutMillis = abandonedTimeoutMillis;
+    }
+
+    /**
+     * @return <code>true</code> if the prepared statements of the pooled connections are pooled
+     * @see ConnectionProperties#setPoolPreparedStatements(boolean)
+     */
+    public final boolean isPoolPreparedStatements() {
+
+        // no need for defensive copies of boolean
+
+        return poolPreparedStatements;
+    }
+
+    /**
+     * Enable pooling of the prepared statements of the pooled connections. When a pooled prepared statement is
+     * closed, it is kept open and cached with its connection, and a later <code>prepareStatement()</code> call
+     * with the same SQL and result set options on the same physical connection reuses the cached statement
+     * instead of having the database parse the SQL again.
+     * <p>
+     * Statement pooling is supported by the <code>dbcp2</code> and <code>builtin</code> pool engines. HikariCP
+     * does not pool statements, and relies on the statement cache of the JDBC driver instead.
+     *
+     * @param poolPreparedStatements <code>true</code> if the prepared statements of the pooled connections are
+     *                               pooled
+     */
+    public final void setPoolPreparedStatements(final boolean poolPreparedStatements) {
+
+        // no need for validation, as boolean cannot be null and all possible values are allowed
+        // no need for defensive copies of boolean
+
+        this.poolPreparedStatements = poolPreparedStatements;
+    }
+
+    /**
+     * @return The maximum number of pooled prepared statements per connection
+     * @see ConnectionProperties#setMaxOpenPreparedStatements(int)
+     */
+    public final int getMaxOpenPreparedStatements() {
+
+        // no need for defensive copies of int
+
+        return maxOpenPreparedStatements;
+    }
+
+    /**
+     * The maximum number of prepared statements that are kept open per connection when statement pooling is
+     * enabled. When the limit is reached, the least recently used idle statement is closed. A value of zero or
+     * less means no limit.
+     * <p>
+     * This setting has no effect if <code>poolPreparedStatements</code> is <code>false</code>.
+     *
+     * @param maxOpenPreparedStatements The maximum number of pooled prepared statements per connection
+     */
+    public final void setMaxOpenPreparedStatements(final int maxOpenPreparedStatements) {
+
+        // no need for validation, as int cannot be null and all possible values are allowed
+        // no need for defensive copies of int
+
+        this.maxOpenPreparedStatements = maxOpenPreparedStatements;
+    }
+
+    /**
+     * @return The properties that are passed to the JDBC driver when a physical connection is created
+     * @see ConnectionProperties#setDriverProperties(Map)
+     */
+    public final Map<String, String> getDriverProperties() {
+
+        // create a defensive copy of the map and all its properties
+        final Map<String, String> tempMap = new ConcurrentHashMap<>();
+        // putAll() is safe here, because we always apply it on a ConcurrentHashMap()
+        tempMap.putAll(driverProperties);
+
+        return tempMap;
+    }
+
+    /**
+     * The properties that are passed to the JDBC driver (in addition to the <code>user</code> and
+     * <code>password</code>) when a physical connection is created, e.g. to configure batch rewriting, socket buffer
+     * sizes, the default fetch size, or server-side prepare thresholds. The supported properties depend on the JDBC
+     * driver.
+     * <p>
+     * The <code>user</code> and <code>password</code> properties are always taken from
+     * {@link ConnectionProperties#getUsername()} and {@link ConnectionProperties#getPassword()}, and cannot be
+     * overridden with driver properties.
+     *
+     * @param driverProperties The properties that are passed to the JDBC driver
+     */
+    public final void setDriverProperties(final Map<String, String> driverProperties) {
+
+        // no need for validation, the method will create a new (empty) object if the provided parameter is null.
+
+        // create a defensive copy of the map and all its properties
+        // null values are skipped, because they are not supported by ConcurrentHashMap (nor by java.util.Properties)
+        this.driverProperties = new ConcurrentHashMap<>();
+        if (driverProperties != null) {
+            for (final Map.Entry<String, String> entry : driverProperties.entrySet()) {
+                if (entry.getKey() != null && entry.getValue() != null) {
+                    this.driverProperties.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The number of connections that are opened when the pool is created
+     * @see ConnectionProperties#setInitialSize(int)
+     */
+    public final int getInitialSize() {
+
+        // no need for defensive copies of int
+
+        return initialSize;
+    }
+
+    /**
+     * The number of connections that are opened (in parallel) when the pool is created, so that the first
+     * requests do not pay for the connection handshake. Set this to <code>minIdle</code> to warm the pool up to
+     * its minimum size. The number of connections is limited to <code>maxTotal</code> and <code>maxIdle</code>.
+     * A value of zero or less creates the pool empty.
+     * <p>
+     * Connections that cannot be opened are logged, and do not prevent the pool from being created.
+     *
+     * @param initialSize The number of connections that are opened when the pool is created
+     */
+    public final void setInitialSize(final int initialSize) {
+
+        // no need for validation, as int cannot be null and all possible values are allowed
+        // no need for defensive copies of int
+
+        this.initialSize = initialSize;
+    }
+
+    /**
+     * @return <code>true</code> if the pool warm-up runs in the background
+     * @see ConnectionProperties#setWarmUpInBackground(boolean)
+     */
+    public final boolean isWarmUpInBackground() {
+
+        // no need for defensive copies of boolean
+
+        return warmUpInBackground;
+    }
+
+    /**
+     * Run the warm-up of a new pool (see <code>initialSize</code>) in the background. If <code>false</code>, the
+     * thread that creates the pool waits until the warm-up has finished. If <code>true</code>, the pool is
+     * returned immediately, and {@link DataSourceFactory#awaitWarmUp(ConnectionProperties, long,
+     * java.util.concurrent.TimeUnit)} can be used to wait for the warm-up to finish (e.g. before a service
+     * reports that it is ready).
+     *
+     * @param warmUpInBackground <code>true</code> if the pool warm-up runs in the background
+     */
+    public final void setWarmUpInBackground(final boolean warmUpInBackground) {
+
+        // no need for validation, as boolean cannot be null and all possible values are allowed
+        // no need for defensive copies of boolean
+
+        this.warmUpInBackground = warmUpInBackground;
+    }
+
+    /**
+     * @return The time (in milliseconds) that borrowed connections are given to be returned when the pool is
+     * shut down
+     * @see ConnectionProperties#setShutdownGracePeriodMillis(long)
+     */
+    public final long getShutdownGracePeriodMillis() {
+
+        // no need for defensive copies of long
+
+        return shutdownGracePeriodMillis;
+    }
+
+    /**
+     * The time (in milliseconds) that borrowed connections are given to be returned when the pool is shut down,
+     * e.g. by {@link DataSourceFactory#reset()} or when the JVM exits. While the pool is shut down, no new
+     * connections are handed out. Connections that have not been returned when the grace period has elapsed are
+     * aborted with {@link java.sql.Connection#abort(java.util.concurrent.Executor)}, which also terminates statements
+     * that are still executing.
+     * <p>
+     * A value of zero or less aborts borrowed connections immediately.
+     *
+     * @param shutdownGracePeriodMillis The shutdown grace period in milliseconds
+     */
+    public final void setShutdownGracePeriodMillis(final long shutdownGracePeriodMillis) {
+
+        // no need for validation, as long cannot be null and all possible values are allowed
+        // no need for defensive copies of long
+
+        this.shutdownGracePeriodMillis = shutdownGracePeriodMillis;
+    }
+
+    /**
+     * @return The JDBC URLs of the read replicas of the database
+     * @see ConnectionProperties#setReplicaUrls(List)
+     */
+    public final List<String> getReplicaUrls() {
+
+        // create a defensive copy of the list (Strings do not need defensive copies)
+        return new ArrayList<>(replicaUrls);
+    }
+
+    /**
+     * The JDBC URLs of the read replicas of the database (see
+     * {@link DataSourceFactory#getRoutingDataSource(ConnectionProperties)}). Each replica gets its own pool, which
+     * uses the same settings and credentials as the pool of the primary database.
+     *
+     * @param replicaUrls The JDBC URLs of the read replicas
+     */
+    public final void setReplicaUrls(final List<String> replicaUrls) {
+
+        // no need for validation, the method will create a new (empty) object if the provided parameter is null.
+
+        // create a defensive copy of the list
+        // blank URLs are skipped
+        this.replicaUrls = new ArrayList<>();
+        if (replicaUrls != null) {
+            for (final String replicaUrl : replicaUrls) {
+                if (StringUtils.isNotBlank(replicaUrl)) {
+                    this.replicaUrls.add(replicaUrl.trim());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The time (in milliseconds) that a read replica is not used after it failed to provide a connection
+     * @see ConnectionProperties#setReplicaRetryMillis(long)
+     */
+    public final long getReplicaRetryMillis() {
+
+        // no need for defensive copies of long
+
+        return replicaRetryMillis;
+    }
+
+    /**
+     * The time (in milliseconds) that a read replica is not used after it failed to provide a connection (see
+     * {@link DataSourceFactory#getRoutingDataSource(ConnectionProperties)}). Read-only connections are routed to
+     * the other replicas, or to the primary database if no replica is available, until the replica is tried
+     * again.
+     *
+     * @param replicaRetryMillis The time that a failed read replica is not used in milliseconds
+     */
+    public final void setReplicaRetryMillis(final long replicaRetryMillis) {
+
+        // no need for validation, as long cannot be null and all possible values are allowed
+        // no need for defensive copies of long
+
+        this.replicaRetryMillis = replicaRetryMillis;
+    }
+
+    /**
+     * @return The JDBC URLs of the failover endpoints of the database
+     * @see ConnectionProperties#setFailoverUrls(List)
+     */
+    public final List<String> getFailoverUrls() {
+
+        // create a defensive copy of the list (Strings do not need defensive copies)
+        return new ArrayList<>(failoverUrls);
+    }
+
+    /**
+     * The JDBC URLs of the failover endpoints of the database, in the order of preference. If failover endpoints are
+     * configured, {@link DataSourceFactory#getDataSource(ConnectionProperties)} returns a {@link FailoverDataSource}
+     * that hands out connections from the first healthy endpoint, starting with the endpoint in
+     * {@link ConnectionProperties#getUrl()}. Each endpoint gets its own pool, which uses the same settings and
+     * credentials.
+     *
+     * @param failoverUrls The JDBC URLs of the failover endpoints
+     */
+    public final void setFailoverUrls(final List<String> failoverUrls) {
+
+        // no need for validation, the method will create a new (empty) object if the provided parameter is null.
+
+        // create a defensive copy of the list
+        // blank URLs are skipped
+        this.failoverUrls = new ArrayList<>();
+        if (failoverUrls != null) {
+            for (final String failoverUrl : failoverUrls) {
+                if (StringUtils.isNotBlank(failoverUrl)) {
+                    this.failoverUrls.add(failoverUrl.trim());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The interval (in milliseconds) in which the health of the failover endpoints is checked
+     * @see ConnectionProperties#setHealthCheckIntervalMillis(long)
+     */
+    public final long getHealthCheckIntervalMillis() {
+
+        // no need for defensive copies of long
+
+        return healthCheckIntervalMillis;
+    }
+
+    /**
+     * The interval (in milliseconds) in which a background thread checks the health of the endpoints of a {@link
+     * FailoverDataSource} (see {@link ConnectionProperties#setFailoverUrls(List)}) by opening a connection to
+     * each endpoint. Endpoints that are down are skipped, and are used again when they have recovered, so the
+     * time to fail over and to fail back is bounded by this interval.
+     * <p>
+     * A value of zero or less is replaced by {@link
+     * org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder#DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS}, because an
+     * endpoint that has been marked down would otherwise never be used again.
+     *
+     * @param healthCheckIntervalMillis The interval of the endpoint health checks in milliseconds
+     */
+    public final void setHealthCheckIntervalMillis(final long healthCheckIntervalMillis) {
+
+        // no need for validation, as long cannot be null and all possible values are allowed
+        // no need for defensive copies of long
+
+        this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+    }
+
+    /**
+     * @return The time in milliseconds after a successful validation or use of a connection during which the
+     * connection is not validated again
+     * @see ConnectionProperties#setValidationIntervalMillis(long)
+     */
+    public final long getValidationIntervalMillis() {
+
+        // no need for defensive copies of long
+
+        return validationIntervalMillis;
+    }
+
+    /**
+     * The time in milliseconds after a connection has last been validated or used without error during which the
+     * connection is not validated again when it is borrowed, returned, or tested while idle. This saves the
+     * validation round trip for connections that are known to work, at the risk of handing out a connection that
+     * broke within the interval.
+     * <p>
+     * A value of zero or less validates the connection every time a test is configured. The DBCP2 pool engine
+     * measures the interval from the last return of the connection to the pool. The HikariCP pool engine ignores
+     * this setting, as HikariCP skips the validation of recently used connections on its own.
+     *
+     * @param validationIntervalMillis The time in milliseconds after a successful validation or use of a
+     * connection during which the connection is not validated again
+     */
+    public final void setValidationIntervalMillis(final long validationIntervalMillis) {
+
+        // no need for validation, as long cannot be null and all possible values are allowed
+        // no need for defensive copies of long
+
+        this.validationIntervalMillis = validationIntervalMillis;
+    }
+
+    /**
+     * @return The time in milliseconds after which an idle connection is validated by the background validator
+     * @see ConnectionProperties#setIdleValidationIntervalMillis(long)
+     */
+    public final long getIdleValidationIntervalMillis() {
+
+        // no need for defensive copies of long
+
+        return idleValidationIntervalMillis;
+    }
+
+    /**
+     * The time in milliseconds after which an idle connection is validated in the background. The background
+     * validator of the builtin pool engine validates the idle connections that have not been validated or used
+     * within this time, evicts the connections that fail the validation before they can be borrowed, and
+     * schedules its next cycle for the time the next idle connection becomes due. With background validation,
+     * <code>testOnBorrow</code> can be turned off without handing out connections that died while idle.
+     * <p>
+     * When a borrower reports a failure (the connection is aborted, or cannot be reset when it is returned), the
+     * validator marks all idle connections for validation on their next borrow and validates them immediately,
+     * to repair the pool after e.g. a database restart.
+     * <p>
+     * A value of zero or less disables background validation.
+     * <p>
+     * The DBCP2 pool engine has no background validator. A positive value turns on <code>testWhileIdle</code>,
+     * makes its evictor check all idle connections in every run (<code>numTestsPerEvictionRun</code> = -1), and
+     * shortens <code>timeBetweenEvictionRunsMillis</code> to this interval if needed. Borrower failures do not
+     * trigger an immediate validation with DBCP2. The HikariCP pool engine ignores this setting, because HikariCP
+     * 2.4 has no keepalive validation of idle connections. It validates a connection on borrow instead, if the
+     * connection has been idle for more than half a second.
+     *
+     * @param idleValidationIntervalMillis The time in milliseconds after which an idle connection is validated
+     * by the background validator
+     */
+    public final void setIdleValidationIntervalMillis(final long idleValidationIntervalMillis) {
+
+        // no need for validation, as long cannot be null and all possible values are allowed
+        // no need for defensive copies of long
+
+        this.idleValidationIntervalMillis = idleValidationIntervalMillis;
+    }
+
+    /**
+     * @return The interval in milliseconds in which the size of the pool is adjusted to the observed load
+     * @see ConnectionProperties#setAutoSizeIntervalMillis(long)
+     */
+    public final long getAutoSizeIntervalMillis() {
+
+        // no need for defensive copies of long
+
+        return autoSizeIntervalMillis;
+    }
+
+    /**
+     * The interval in milliseconds in which the size of the pool is adjusted to the observed load. When this is
+     * set to a positive value, the pool is auto-sized: after every interval, <code>maxTotal</code>,
+     * <code>maxIdle</code>, and <code>minIdle</code> are adjusted between <code>autoSizeMinTotal</code> and
+     * <code>autoSizeMaxTotal</code>, based on the borrow wait times and the hold times that have been observed
+     * during the interval (see <code>PoolAutoSizer</code>). The <code>maxTotal</code>, <code>maxIdle</code>, and
+     * <code>minIdle</code> settings are only used as the initial size of the pool.
+     * <p>
+     * A value of zero or less disables auto-sizing. This setting is evaluated when the pool is created, and
+     * works with all pool engines.
+     *
+     * @param autoSizeIntervalMillis The interval in milliseconds in which the size of the pool is adjusted
+     */
+    public final void setAutoSizeIntervalMillis(final long autoSizeIntervalMillis) {
+
+        // no need for validation, as long cannot be null and all possible values are allowed
+        // no need for defensive copies of long
+
+        this.autoSizeIntervalMillis = autoSizeIntervalMillis;
+    }
+
+    /**
+     * @return The smallest <code>maxTotal</code> that the auto-sizing of the pool may choose
+     * @see ConnectionProperties#setAutoSizeMinTotal(int)
+     */
+    public final int getAutoSizeMinTotal() {
+
+        // no need for defensive copies of int
+
+        return autoSizeMinTotal;
+    }
+
+    /**
+     * The smallest <code>maxTotal</code> that the auto-sizing of the pool may choose (see
+     * <code>autoSizeIntervalMillis</code>). Values below 1 are treated as 1.
+     *
+     * @param autoSizeMinTotal The smallest <code>maxTotal</code> that the auto-sizing may choose
+     */
+    public final void setAutoSizeMinTotal(final int autoSizeMinTotal) {
+
+        // no need for validation, as int cannot be null and all possible values are allowed
+        // no need for defensive copies of int
+
+        this.autoSizeMinTotal = autoSizeMinTotal;
+    }
+
+    /**
+     * @return The largest <code>maxTotal</code> that the auto-sizing of the pool may choose
+     * @see ConnectionProperties#setAutoSizeMaxTotal(int)
+     */
+    public final int getAutoSizeMaxTotal() {
+
+        // no need for defensive copies of int
+
+        return autoSizeMaxTotal;
+    }
+
+    /**
+     * The largest <code>maxTotal</code> that the auto-sizing of the pool may choose (see
+     * <code>autoSizeIntervalMillis</code>). This should be chosen so that the database can serve this many
+     * connections from every instance of the application. Values below <code>autoSizeMinTotal</code> are treated
+     * as <code>autoSizeMinTotal</code>.
+     *
+     * @param autoSizeMaxTotal The largest <code>maxTotal</code> that the auto-sizing may choose
+     */
+    public final void setAutoSizeMaxTotal(final int autoSizeMaxTotal) {
+
+        // no need for validation, as int cannot be null and all possible values are allowed
+        // no need for defensive copies of int
+
+        this.autoSizeMaxTotal = autoSizeMaxTotal;
+    }
+
+    /**
+     * @return The 99th percentile of the borrow wait time in milliseconds above which the auto-sizing grows the
+     * pool
+     * @see ConnectionProperties#setAutoSizeWaitThresholdMillis(long)
+     */
+    public final long getAutoSizeWaitThresholdMillis() {
+
+        // no need for defensive copies of long
+
+        return autoSizeWaitThresholdMillis;
+    }
+
+    /**
+     * The 99th percentile of the borrow wait time in milliseconds above which the auto-sizing of the pool grows
+     * the pool (see <code>autoSizeIntervalMillis</code>). The pool is only shrunk when the 99th percentile of
+     * the borrow wait time is at or below this threshold.
+     *
+     * @param autoSizeWaitThresholdMillis The borrow wait time threshold in milliseconds
+     */
+    public final void setAutoSizeWaitThresholdMillis(final long autoSizeWaitThresholdMillis) {
+
+        // no need for validation, as long cannot be null and all possible values are allowed
+        // no need for defensive copies of long
+
+        this.autoSizeWaitThresholdMillis = autoSizeWaitThresholdMillis;
+    }
+
+    /**
+     * @return The time in milliseconds that a returned connection is kept for the thread that returned it
+     * @see ConnectionProperties#setThreadAffinityMillis(long)
+     */
+    public final long getThreadAffinityMillis() {
+
+        // no need for defensive copies of long
+
+        return threadAffinityMillis;
+    }
+
+    /**
+     * The time in milliseconds that a returned connection is kept for the thread that returned it. When this is
+     * set to a positive value, a connection that is returned to the pool is parked for the returning thread
+     * instead (see <code>ThreadAffineManagedPool</code>), and handed back to that thread on its next borrow
+     * without going through the pool engine. This speeds up threads that borrow and return a connection several
+     * times in a row, in particular with the DBCP2 pool engine (the builtin and HikariCP pool engines already
+     * prefer the connections that a thread has returned most recently).
+     * <p>
+     * Parked connections are not validated or reset by the pool engine, and are kept only for this time: a
+     * connection that has been parked for longer is returned to the pool engine on the next borrow. Connections
+     * whose auto-commit or read-only setting differs from the pool default are not parked. When the pool is
+     * under pressure (no idle connections left, or threads borrowing from the pool engine), other threads steal
+     * parked connections, and returned connections are not parked.
+     * <p>
+     * A value of zero or less disables thread affinity. This setting is evaluated when the pool is created, and
+     * works with all pool engines.
+     *
+     * @param threadAffinityMillis The time in milliseconds that a returned connection is kept for the returning
+     * thread
+     */
+    public final void setThreadAffinityMillis(final long threadAffinityMillis) {
+
+        // no need for validation, as long cannot be null and all possible values are allowed
+        // no need for defensive copies of long
+
+        this.threadAffinityMillis = threadAffinityMillis;
+    }
+
+    /**
+     * @return The maximum number of threads that may wait for a connection before the bulkhead rejects new
+     * borrowers
+     * @see ConnectionProperties#setBulkheadMaxWaiters(int)
+     */
+    public final int getBulkheadMaxWaiters() {
+
+        // no need for defensive copies of int
+
+        return bulkheadMaxWaiters;
+    }
+
+    /**
+     * The maximum number of threads that may wait for a connection at the same time. When this many threads are
+     * already borrowing from the pool, the bulkhead of the pool rejects new borrowers immediately (see
+     * <code>BulkheadManagedPool</code>), and <code>ConnectionFactory</code> throws a
+     * <code>ConnectionRejectedException</code>, so that callers shed load early instead of piling up for
+     * <code>maxWaitMillis</code>.
+     * <p>
+     * A value of zero or less does not limit the number of waiting threads. This setting is evaluated when the
+     * pool is created, and works with all pool engines.
+     *
+     * @param bulkheadMaxWaiters The maximum number of threads that may wait for a connection
+     */
+    public final void setBulkheadMaxWaiters(final int bulkheadMaxWaiters) {
+
+        // no need for validation, as int cannot be null and all possible values are allowed
+        // no need for defensive copies of int
+
+        this.bulkheadMaxWaiters = bulkheadMaxWaiters;
+    }
+
+    /**
+     * @return The longest recent borrow wait time in milliseconds that the bulkhead accepts before it rejects
+     * new borrowers
+     * @see ConnectionProperties#setBulkheadMaxQueueMillis(long)
+     */
+    public final long getBulkheadMaxQueueMillis() {
+
+        // no need for defensive copies of long
+
+        return bulkheadMaxQueueMillis;
+    }
+
+    /**
+     * The longest recent borrow wait time in milliseconds that the bulkhead of the pool accepts (see
+     * <code>BulkheadManagedPool</code>). The bulkhead keeps a moving average of the time that borrowers have
+     * recently waited for a connection. While this average exceeds this time and other threads are still
+     * waiting, new borrowers are rejected immediately (they would most likely wait too long), and
+     * <code>ConnectionFactory</code> throws a <code>ConnectionRejectedException</code>. As soon as no thread is
+     * waiting, borrowers are admitted again, and their wait times update the average.
+     * <p>
+     * A value of zero or less does not reject borrowers based on the recent wait times. This setting is
+     * evaluated when the pool is created, and works with all pool engines.
+     *
+     * @param bulkheadMaxQueueMillis The longest recent borrow wait time in milliseconds that the bulkhead
+     * accepts
+     */
+    public final void setBulkheadMaxQueueMillis(final long bulkheadMaxQueueMillis) {
+
+        // no need for validation, as long cannot be null and all possible values are allowed
+        // no need for defensive copies of long
+
+        this.bulkheadMaxQueueMillis = bulkheadMaxQueueMillis;
+    }
+
+    /**
+     * @return The number of consecutive failures to create a physical connection that open the circuit breaker
+     * of the pool, or zero or less if the pool does not use a circuit breaker
+     * @see ConnectionProperties#setCircuitBreakerFailureThreshold(int)
+     */
+    public final int getCircuitBreakerFailureThreshold() {
+
+        // no need for defensive copies of int
+
+        return circuitBreakerFailureThreshold;
+    }
+
+    /**
+     * The number of consecutive failures to create a physical connection that open the circuit breaker of the
+     * pool. While the circuit breaker is open, no physical connections are created, and borrowers that cannot be
+     * served with an idle connection are rejected immediately (see <code>CircuitBreakerManagedPool</code>):
+     * <code>ConnectionFactory</code> throws a <code>ConnectionRejectedException</code>, instead of letting every
+     * borrower retry a full connect against a database that refuses connections.
+     * <p>
+     * After <code>circuitBreakerOpenMillis</code>, the circuit breaker becomes half-open and lets up to
+     * <code>circuitBreakerHalfOpenProbes</code> probe connections through. The circuit breaker closes when a
+     * probe succeeds, and opens again when a probe fails.
+     * <p>
+     * A value of zero or less turns the circuit breaker off. This setting is evaluated when the pool is created,
+     * and works with all pool engines.
+     *
+     * @param circuitBreakerFailureThreshold The number of consecutive connection failures that open the circuit
+     * breaker
+     */
+    public final void setCircuitBreakerFailureThreshold(final int circuitBreakerFailureThreshold) {
+
+        // no need for validation, as int cannot be null and all possible values are allowed
+        // no need for defensive copies of int
+
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+    }
+
+    /**
+     * @return The time in milliseconds that the circuit breaker of the pool stays open before it lets probe
+     * connections through
+     * @see ConnectionProperties#setCircuitBreakerOpenMillis(long)
+     */
+    public final long getCircuitBreakerOpenMillis() {
+
+        // no need for defensive copies of long
+
+        return circuitBreakerOpenMillis;
+    }
+
+    /**
+     * The time in milliseconds that the circuit breaker of the pool stays open before it becomes half-open and
+     * lets probe connections through (see <code>circuitBreakerFailureThreshold</code>).
+     *
+     * @param circuitBreakerOpenMillis The time that the circuit breaker stays open
+     */
+    public final void setCircuitBreakerOpenMillis(final long circuitBreakerOpenMillis) {
+
+        // no need for validation, as long cannot be null and all possible values are allowed
+        // no need for defensive copies of long
+
+        this.circuitBreakerOpenMillis = circuitBreakerOpenMillis;
+    }
+
+    /**
+     * @return The number of probe connections that the half-open circuit breaker of the pool lets through at the
+     * same time
+     * @see ConnectionProperties#setCircuitBreakerHalfOpenProbes(int)
+     */
+    public final int getCircuitBreakerHalfOpenProbes() {
+
+        // no need for defensive copies of int
+
+        return circuitBreakerHalfOpenProbes;
+    }
+
+    /**
+     * The number of probe connections that the half-open circuit breaker of the pool lets through at the same
+     * time (see <code>circuitBreakerFailureThreshold</code>). Further borrowers are rejected until a probe has
+     * completed. Values of less than one are treated as one.
+     *
+     * @param circuitBreakerHalfOpenProbes The number of concurrent probe connections in the half-open state
+     */
+    public final void setCircuitBreakerHalfOpenProbes(final int circuitBreakerHalfOpenProbes) {
+
+        // no need for validation, as int cannot be null and all possible values are allowed
+        // no need for defensive copies of int
+
+        this.circuitBreakerHalfOpenProbes = circuitBreakerHalfOpenProbes;
+    }
+
+    /**
+     * @return The maximum number of physical connections that the pool creates at the same time, or zero or less
+     * for no limit
+     * @see ConnectionProperties#setMaxConcurrentCreations(int)
+     */
+    public final int getMaxConcurrentCreations() {
+
+        // no need for defensive copies of int
+
+        return maxConcurrentCreations;
+    }
+
+    /**
+     * The maximum number of physical connections that the pool creates at the same time (see
+     * <code>CreationThrottle</code>). Cold starts and failovers can make a pool open up to <code>maxTotal</code>
+     * connections at once, which becomes a login storm against the database: with this limit, further connection
+     * attempts wait for a creation slot (for at most <code>maxWaitMillis</code>). Borrowers of the builtin pool
+     * engine do not wait for a creation slot, but for whichever connection is returned to the pool or can be
+     * created first.
+     * <p>
+     * The other pool engines cannot do this. The DBCP2 engine creates a connection on the borrowing thread when the
+     * pool is below <code>maxTotal</code>, and offers no hook to hand that thread a returned connection instead: its
+     * borrower waits for the creation slot (for at most <code>maxWaitMillis</code>) even if another connection is
+     * returned in the meantime. The HikariCP engine creates its connections on a background thread, so its
+     * borrowers keep waiting for returned connections, but they get no new connection faster than the throttle
+     * allows.
+     * <p>
+     * A value of zero or less does not limit the concurrent connection creation. This setting is evaluated when
+     * the pool is created, and works with all pool engines.
+     *
+     * @param maxConcurrentCreations The maximum number of physical connections that the pool creates at the same
+     * time
+     */
+    public final void setMaxConcurrentCreations(final int maxConcurrentCreations) {
+
+        // no need for validation, as int cannot be null and all possible values are allowed
+        // no need for defensive copies of int
+
+        this.maxConcurrentCreations = maxConcurrentCreations;
+    }
+
+    /**
+     * @return The maximum number of physical connections that all pools which share the global creation limit
+     * create at the same time, or zero or less if the pool does not share the global creation limit
+     * @see ConnectionProperties#setGlobalMaxConcurrentCreations(int)
+     */
+    public final int getGlobalMaxConcurrentCreations() {
+
+        // no need for defensive copies of int
+
+        return globalMaxConcurrentCreations;
+    }
+
+    /**
+     * The maximum number of physical connections that all pools which share the global creation limit create at
+     * the same time (see <code>CreationThrottle</code>). This limit applies in addition to
+     * <code>maxConcurrentCreations</code>. A pool shares the global creation limit if this value is greater than
+     * zero. The global limit is the smallest value of the pools that currently share it: it is lowered when a pool
+     * with a smaller value is created, and raised again when that pool is shut down.
+     * <p>
+     * A value of zero or less does not make the pool share the global creation limit. This setting is evaluated
+     * when the pool is created, and works with all pool engines.
+     *
+     * @param globalMaxConcurrentCreations The maximum number of physical connections that all pools which share
+     * the global creation limit create at the same time
+     */
+    public final void setGlobalMaxConcurrentCreations(final int globalMaxConcurrentCreations) {
+
+        // no need for validation, as int cannot be null and all possible values are allowed
+        // no need for defensive copies of int
+
+        this.globalMaxConcurrentCreations = globalMaxConcurrentCreations;
+    }
+
+    /**
+     * @return The average time in milliseconds between the starts of two connection attempts of the pool, or
+     * zero or less if the connection creation is not paced
+     * @see ConnectionProperties#setCreationPacingMillis(long)
+     */
+    public final long getCreationPacingMillis() {
+
+        // no need for defensive copies of long
+
+        return creationPacingMillis;
+    }
+
+    /**
+     * The average time in milliseconds between the starts of two connection attempts of the pool (see
+     * <code>CreationThrottle</code>). The actual time is chosen randomly between 50% and 150% of this value, so
+     * that the pools of many hosts that start (or fail over) at the same time spread their logins instead of
+     * connecting in lockstep. A connection attempt after a quiet period is not delayed.
+     * <p>
+     * A value of zero or less does not pace the connection creation. This setting is evaluated when the pool is
+     * created, and works with all pool engines.
+     *
+     * @param creationPacingMillis The average time between the starts of two connection attempts
+     */
+    public final void setCreationPacingMillis(final long creationPacingMillis) {
+
+        // no need for validation, as long cannot be null and all possible values are allowed
+        // no need for defensive copies of long
+
+        this.creationPacingMillis = creationPacingMillis;
+    }
+
     /**
      * @return Any additional properties stored in this object that have not explicitly been parsed
      * @see ConnectionProperties#setAdditionalProperties(Map)
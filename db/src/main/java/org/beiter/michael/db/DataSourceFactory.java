@@ -32,13 +32,24 @@
  */
 package org.beiter.michael.db;
 
-import org.apache.commons.dbcp2.DriverManagerConnectionFactory;
-import org.apache.commons.dbcp2.PoolableConnection;
-import org.apache.commons.dbcp2.PoolableConnectionFactory;
-import org.apache.commons.dbcp2.PoolingDataSource;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
-import org.apache.commons.pool2.impl.GenericObjectPool;
-import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.beiter.michael.db.pool.BulkheadManagedPool;
+import org.beiter.michael.db.pool.CircuitBreaker;
+import org.beiter.michael.db.pool.CircuitBreakerManagedPool;
+import org.beiter.michael.db.pool.ConnectionCreator;
+import org.beiter.michael.db.pool.CreationThrottle;
+import org.beiter.michael.db.pool.Dbcp2PoolProvider;
+import org.beiter.michael.db.pool.LeakDetectingManagedPool;
+import org.beiter.michael.db.pool.ManagedPool;
+import org.beiter.michael.db.pool.MeteredManagedPool;
+import org.beiter.michael.db.pool.PoolAutoSizer;
+import org.beiter.michael.db.pool.PoolMetrics;
+import org.beiter.michael.db.pool.PoolProvider;
+import org.beiter.michael.db.pool.PoolWarmUp;
+import org.beiter.michael.db.pool.SemaphoreManagedPool;
+import org.beiter.michael.db.pool.ThreadAffineManagedPool;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,9 +57,21 @@ import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class creates and manages JDBC Data Source instances either from:
@@ -57,6 +80,12 @@ import java.util.concurrent.ConcurrentMap;
  * <li>a data source pool that is maintained by this factory</li>
  * </ul>
  */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about the long (but descriptive) constant names
+// suppress warnings about a potential God class (not the case, this is triggered by the many pool features it wires)
+@SuppressWarnings({"PMD.LongVariable", "PMD.GodClass"})
+// CHECKSTYLE:ON
 public final class DataSourceFactory {
 
     /**
@@ -68,8 +97,61 @@ public final class DataSourceFactory {
     /**
      * This hash map stores the generated data source pools per connection parameter set
      */
-    private static final ConcurrentHashMap<String, PoolingDataSource<PoolableConnection>> DS_POOLS =
-            new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, MeteredManagedPool> DS_POOLS = new ConcurrentHashMap<>();
+
+    /**
+     * This hash map stores the <code>defaultReadOnly</code> setting of the data source pools per connection parameter
+     * set, so that a read-only pool is not used as the primary database of a routing data source
+     */
+    private static final ConcurrentHashMap<String, Boolean> DEFAULT_READ_ONLY = new ConcurrentHashMap<>();
+
+    /**
+     * This hash map stores the routing data sources per connection parameter set
+     */
+    private static final ConcurrentHashMap<String, RoutingDataSource> ROUTERS = new ConcurrentHashMap<>();
+
+    /**
+     * This hash map stores the failover data sources per connection parameter set
+     */
+    private static final ConcurrentHashMap<String, FailoverDataSource> FAILOVER_GROUPS = new ConcurrentHashMap<>();
+
+    /**
+     * This hash map stores the warm-ups of the data source pools per connection parameter set
+     */
+    private static final ConcurrentHashMap<String, PoolWarmUp> WARM_UPS = new ConcurrentHashMap<>();
+
+    /**
+     * This hash map stores the auto-sizers of the data source pools per connection parameter set
+     */
+    private static final ConcurrentHashMap<String, PoolAutoSizer> AUTO_SIZERS = new ConcurrentHashMap<>();
+
+    /**
+     * This hash map stores the creation throttles of the data source pools per connection parameter set
+     */
+    private static final ConcurrentHashMap<String, CreationThrottle> THROTTLES = new ConcurrentHashMap<>();
+
+    /**
+     * The name of the default acquisition mode, in which threads wait for connections inside the pool engine
+     */
+    private static final String ACQUISITION_MODE_POOL = "pool";
+
+    /**
+     * Guards the creation of the data source pools.
+     * <p>
+     * This is a lock rather than a monitor, so that threads waiting for a pool to be created are parked and do not pin
+     * their carrier thread if they are virtual threads.
+     */
+    private static final ReentrantLock POOL_CREATION_LOCK = new ReentrantLock();
+
+    /**
+     * {@code true} when the JVM shutdown hook that shuts down the pools has been registered
+     */
+    private static final AtomicBoolean SHUTDOWN_HOOK_REGISTERED = new AtomicBoolean();
+
+    /**
+     * The counter used to name the pool shutdown threads
+     */
+    private static final AtomicInteger SHUTDOWN_THREAD_COUNTER = new AtomicInteger();
 
     /**
      * A private constructor to prevent instantiation of this class
@@ -125,6 +207,20 @@ public final class DataSourceFactory {
      * (based on the connection parameters, i.e. the URL and username), and can no longer be changed. Subsequent calls
      * to this method will return a data source from the cached pool, and changes in the pool spec (e.g. changes to the
      * size of the pool) will be ignored.
+     * <p>
+     * The pool is managed by the pool engine configured in {@link ConnectionProperties#getPoolEngine()}. If the
+     * acquisition mode configured in {@link ConnectionProperties#getAcquisitionMode()} is <code>semaphore</code>,
+     * threads queue on a fair semaphore in front of the pool engine. If a leak detection threshold or an abandoned
+     * timeout are configured, connections that are held too long are reported and reclaimed, respectively.
+     * <p>
+     * The physical connections are opened with the driver properties from
+     * {@link ConnectionProperties#getDriverProperties()}, plus the username and password. If an initial size is
+     * configured, the new pool is warmed up by opening the initial connections in parallel, either before this method
+     * returns or in the background (see {@link ConnectionProperties#isWarmUpInBackground()}).
+     * <p>
+     * If failover endpoints are configured in {@link ConnectionProperties#getFailoverUrls()}, a pool is created for
+     * each endpoint, and a {@link FailoverDataSource} that hands out connections from the first healthy endpoint is
+     * returned.
      *
      * @param poolSpec A connection pool spec that has the driver and url configured as non-empty strings
      * @return a JDBC connection
@@ -142,31 +238,30 @@ public final class DataSourceFactory {
                 "The validated character sequence 'poolSpec.getDriver()' is null or empty");
         Validate.notBlank(poolSpec.getUrl(), "The validated character sequence 'poolSpec.getUrl()' is null or empty");
 
+        // a group of endpoints is managed by a failover data source, which uses a pool per endpoint
+        if (!poolSpec.getFailoverUrls().isEmpty()) {
+            return getFailoverDataSource(poolSpec);
+        }
+
         // no need for defensive copies of Strings
 
         final String driver = poolSpec.getDriver();
         final String url = poolSpec.getUrl();
-        // CHECKSTYLE:OFF
-        // this particular set of inline conditions is easy to read :-)
-        final String username = poolSpec.getUsername() == null ? "" : poolSpec.getUsername();
-        final String password = poolSpec.getPassword() == null ? "" : poolSpec.getPassword();
-        // CHECKSTYLE:OFF
 
         // Load the database driver (if not already done)
         loadDriver(driver);
 
-        // create the hash map required for the connection pool username + password
-        final ConcurrentMap<String, String> properties = new ConcurrentHashMap<>();
-        properties.put("user", username);
-        properties.put("password", password);
+        final ConcurrentMap<String, String> properties = getConnectionArguments(poolSpec);
 
         // we keep a separate pool per connection
         // a connection is identified by the URL, the username, and the password
-        final String key = String.format("%s:%s", url, username);
+        final String key = getPoolKey(poolSpec);
 
         // avoid if possible to create the pool multiple times, and store the data source pool for later use
         if (!DS_POOLS.containsKey(key)) {
-            synchronized (DataSourceFactory.class) {
+            PoolWarmUp warmUp = null;
+            POOL_CREATION_LOCK.lock();
+            try {
                 if (!DS_POOLS.containsKey(key)) {
 
                     // this call is thread safe even without the double if check and extra synchronization. However, it
@@ -176,7 +271,32 @@ public final class DataSourceFactory {
                     // While this does not happen a lot (it only happens if there is not already an entry and multiple
                     // threads race this block and lose), it could still lead to a failure, and we must take this double
                     // sync workaround. There is a solution for Java 8 - see below.
-                    DS_POOLS.putIfAbsent(key, getPoolingDataSource(url, properties, poolSpec));
+                    final MeteredManagedPool pool = createPool(key, url, properties, poolSpec);
+                    DEFAULT_READ_ONLY.put(key, poolSpec.isDefaultReadOnly());
+                    DS_POOLS.put(key, pool);
+
+                    if (poolSpec.getAutoSizeIntervalMillis() > 0) {
+                        final PoolAutoSizer autoSizer = new PoolAutoSizer(pool, pool.getMetrics(), poolSpec);
+                        AUTO_SIZERS.put(key, autoSizer);
+                        autoSizer.start();
+                    }
+
+                    final int warmUpConnections = getWarmUpConnections(poolSpec);
+                    if (warmUpConnections > 0) {
+                        warmUp = new PoolWarmUp(pool, pool.getMetrics(), warmUpConnections);
+                        WARM_UPS.put(key, warmUp);
+                    }
+                }
+            } finally {
+                POOL_CREATION_LOCK.unlock();
+            }
+
+            // warm up the new pool outside of the lock, so that the creation of other pools is not delayed
+            if (warmUp != null) {
+                if (poolSpec.isWarmUpInBackground()) {
+                    warmUp.start();
+                } else {
+                    warmUp.run();
                 }
             }
         }
@@ -184,22 +304,339 @@ public final class DataSourceFactory {
         // does not work before Java 8 because the "computeIfAbsent()" method with the lambda function is not
         // available before Java 8:
         // TODO: add the pooled data source with the "computeIfAbsent()" method to improve performance in Java 8
-        //DS_POOLS.computeIfAbsent(key, k -> getPoolingDataSource(url, properties, poolSpec));
+        //DS_POOLS.computeIfAbsent(key, k -> createPool(url, properties, poolSpec));
+
+        return DS_POOLS.get(key).getDataSource();
+    }
+
+    /**
+     * Return a data source that borrows read-write connections from the pool of the primary database, and read-only
+     * connections from the pools of the read replicas configured in {@link ConnectionProperties#getReplicaUrls()}
+     * (see {@link RoutingDataSource}).
+     * <p>
+     * The pools are managed like the pool returned by {@link #getDataSource(ConnectionProperties)}: the pool of the
+     * primary database is created from {@code poolSpec} (with <code>defaultReadOnly</code> unset, so that it can
+     * serve writes), and the pool of each replica is created from a copy of {@code poolSpec} with the URL of the
+     * replica, and <code>defaultReadOnly</code> set. {@link RoutingDataSource#getConnection()} returns read-only
+     * connections if <code>defaultReadOnly</code> is set in {@code poolSpec}.
+     * <p>
+     * Like the pools, the routing data source is created only once per URL and username, and subsequent calls return
+     * the same instance. As the pool of the primary database is shared with
+     * {@link #getDataSource(ConnectionProperties)}, a routing data source cannot be created for a pool that has been
+     * created (or reconfigured) with <code>defaultReadOnly</code> set.
+     *
+     * @param poolSpec A connection pool spec
+     * @return A routing data source
+     * @throws FactoryException         When one of the pools cannot be created, or when the pool of the primary
+     *                                  database hands out read-only connections by default
+     * @throws NullPointerException     When the {@code poolSpec}, {@code poolSpec.getDriver()}, or
+     *                                  {@code poolSpec.getUrl()} are {@code null}
+     * @throws IllegalArgumentException When {@code poolSpec.getDriver()} or {@code poolSpec.getUrl()} are empty
+     */
+    // CHECKSTYLE:OFF
+    // this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+    // suppress warnings about the primary being created early (its pool must exist before its defaults can be checked)
+    // suppress warnings about creating objects in the loop (each replica has its own pool spec)
+    @SuppressWarnings({"PMD.PrematureDeclaration", "PMD.AvoidInstantiatingObjectsInLoops"})
+    // CHECKSTYLE:ON
+    public static RoutingDataSource getRoutingDataSource(final ConnectionProperties poolSpec)
+            throws FactoryException {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        final String key = getPoolKey(poolSpec);
+        final RoutingDataSource existing = ROUTERS.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        final ConnectionProperties primarySpec = new ConnectionProperties(poolSpec);
+        primarySpec.setDefaultReadOnly(false);
+        final DataSource primary = getDataSource(primarySpec);
 
-        return DS_POOLS.get(key);
+        // the primary pool is shared with getDataSource(), and may have been created (or reconfigured) read-only
+        if (Boolean.TRUE.equals(DEFAULT_READ_ONLY.get(key))) {
+            final String error = "The pool for '" + key + "' hands out read-only connections by default, and cannot"
+                    + " serve as the primary database of a routing data source";
+            LOG.warn(error);
+            throw new FactoryException(error);
+        }
+
+        final List<RoutingDataSource.Replica> replicas = new ArrayList<>();
+        for (final String replicaUrl : poolSpec.getReplicaUrls()) {
+            final ConnectionProperties replicaSpec = new ConnectionProperties(poolSpec);
+            replicaSpec.setUrl(replicaUrl);
+            replicaSpec.setReplicaUrls(null);
+            replicaSpec.setFailoverUrls(null);
+            replicaSpec.setDefaultReadOnly(true);
+            replicas.add(new RoutingDataSource.Replica(replicaUrl, getDataSource(replicaSpec),
+                    getPoolMetrics(replicaSpec)));
+        }
+
+        final RoutingDataSource router = new RoutingDataSource(primary, replicas, poolSpec.isDefaultReadOnly(),
+                poolSpec.getReplicaRetryMillis());
+        final RoutingDataSource previous = ROUTERS.putIfAbsent(key, router);
+
+        // CHECKSTYLE:OFF
+        // this inline condition is easy to read :-)
+        return previous == null ? router : previous;
+        // CHECKSTYLE:ON
+    }
+
+    /**
+     * Wait for the warm-up of the pool that manages the connections for the provided connection parameters to finish
+     * (see {@link ConnectionProperties#setInitialSize(int)}).
+     * <p>
+     * This method is typically used with {@link ConnectionProperties#isWarmUpInBackground()}, e.g. to delay the
+     * readiness of a service until its connection pools are warm.
+     *
+     * @param poolSpec A connection pool spec
+     * @param timeout  The maximum time to wait
+     * @param unit     The unit of {@code timeout}
+     * @return {@code true} if the warm-up has finished or no warm-up is running for the connection parameters,
+     * {@code false} if the timeout elapsed before the warm-up has finished
+     * @throws InterruptedException When the waiting thread is interrupted
+     * @throws NullPointerException When {@code poolSpec} or {@code unit} are {@code null}
+     */
+    public static boolean awaitWarmUp(final ConnectionProperties poolSpec, final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+        Validate.notNull(unit, "The validated object 'unit' is null");
+
+        final PoolWarmUp warmUp = WARM_UPS.get(getPoolKey(poolSpec));
+        return warmUp == null || warmUp.await(timeout, unit);
     }
 
     /**
-     * Resets the internal state of the factory.
+     * Apply new settings to the pool that manages the connections for the provided connection parameters, without
+     * recreating the pool.
      * <p>
-     * <strong>This method does not release any resources that have been borrowed from the connection pools managed
-     * by this factory.</strong> To avoid resource leaks, you <strong>must</strong> close / return all connections to
-     * their pools before calling this method.
+     * The pool is identified by the URL and the username of {@code poolSpec}. Its sizing, connection defaults,
+     * validation, eviction, and shutdown settings are replaced by the settings of {@code poolSpec}. The connections of
+     * the pool are kept: surplus connections (e.g. after <code>maxTotal</code> has been reduced) are retired gradually
+     * when they are returned or evicted, so that the pool does not have to reopen all of its connections at once. The
+     * pool engine, the acquisition mode, statement pooling, leak detection, and the throttling of the connection
+     * creation cannot be changed without recreating the pool (see {@link #reset()}). The bulkhead limits and the
+     * circuit breaker thresholds can be changed, but the bulkhead cannot be turned on or off, the circuit breaker can
+     * only be turned off, and thread affinity can only be turned off. Pool engines may not support all settings at
+     * runtime; see the documentation of the respective pool provider.
+     * <p>
+     * If the pool is auto-sized (see {@link ConnectionProperties#setAutoSizeIntervalMillis(long)}), the sizing chosen
+     * by the {@link PoolAutoSizer} is kept, and the auto-sizing bounds are replaced instead. Auto-sizing cannot be
+     * turned on or off without recreating the pool.
+     *
+     * @param poolSpec A connection pool spec
+     * @return {@code true} if the pool has been reconfigured, {@code false} if there is no pool for the connection
+     * parameters (in which case the settings are used when the pool is created)
+     * @throws FactoryException     When the pool cannot be reconfigured (e.g. to hand out read-only connections by
+     *                              default while it is the primary database of a routing data source)
+     * @throws NullPointerException When {@code poolSpec} is {@code null}
+     */
+    public static boolean reconfigure(final ConnectionProperties poolSpec)
+            throws FactoryException {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        final String key = getPoolKey(poolSpec);
+        final MeteredManagedPool pool = DS_POOLS.get(key);
+        if (pool == null) {
+            return false;
+        }
+
+        if (poolSpec.isDefaultReadOnly() && ROUTERS.containsKey(key)) {
+            final String error = "Cannot reconfigure pool '" + pool.getMetrics().getName()
+                    + "' to hand out read-only connections by default, because it is the primary database of a"
+                    + " routing data source";
+            LOG.warn(error);
+            throw new FactoryException(error);
+        }
+
+        try {
+            final PoolAutoSizer autoSizer = AUTO_SIZERS.get(key);
+            if (autoSizer == null) {
+                pool.reconfigure(poolSpec);
+            } else {
+                autoSizer.reconfigure(poolSpec);
+            }
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            final String error = "Cannot reconfigure pool '" + pool.getMetrics().getName() + "'";
+            LOG.warn(error, e);
+            throw new FactoryException(error, e);
+        }
+
+        DEFAULT_READ_ONLY.put(key, poolSpec.isDefaultReadOnly());
+        LOG.info("Reconfigured pool '" + pool.getMetrics().getName() + "'");
+        return true;
+    }
+
+    /**
+     * Return the metrics of the pool that manages the connections for the provided connection parameters.
+     *
+     * @param poolSpec A connection pool spec
+     * @return The metrics of the pool, or {@code null} if no pool has been created for the connection parameters
+     * @throws NullPointerException When {@code poolSpec} is {@code null}
+     */
+    public static PoolMetrics getPoolMetrics(final ConnectionProperties poolSpec) {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        final MeteredManagedPool pool = DS_POOLS.get(getPoolKey(poolSpec));
+        // CHECKSTYLE:OFF
+        // this inline condition is easy to read :-)
+        return pool == null ? null : pool.getMetrics();
+        // CHECKSTYLE:ON
+    }
+
+    /**
+     * Return the metrics of all pools managed by this factory.
+     *
+     * @return An unmodifiable map of the pool metrics, keyed by <code>&lt;url&gt;:&lt;username&gt;</code>
+     */
+    // suppress warnings about the HashMap (it is a local snapshot that is wrapped before it is returned)
+    @SuppressWarnings("PMD.UseConcurrentHashMap")
+    public static Map<String, PoolMetrics> getPoolMetrics() {
+
+        final Map<String, PoolMetrics> metrics = new HashMap<>();
+        for (final Map.Entry<String, MeteredManagedPool> entry : DS_POOLS.entrySet()) {
+            metrics.put(entry.getKey(), entry.getValue().getMetrics());
+        }
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * Resets the internal state of the factory, and shuts down all connection pools managed by this factory.
+     * <p>
+     * The pools are shut down in parallel: each pool stops handing out new connections, waits for its borrowed
+     * connections to be returned for the shutdown grace period of the pool (see
+     * {@link ConnectionProperties#setShutdownGracePeriodMillis(long)}), aborts the remaining connections,
+     * and releases all physical connections. This method returns when all pools have been shut down, so the time it
+     * takes is bounded by the longest shutdown grace period.
+     * <p>
+     * The same shutdown is performed by a JVM shutdown hook, which is registered when the first pool is created.
+     * The pools no longer count towards the global limit on concurrent connection creation (see
+     * {@link ConnectionProperties#setGlobalMaxConcurrentCreations(int)}).
      */
     public static void reset() {
 
-        // Unset the cached connections
-        DS_POOLS.clear();
+        // Unset the cached connections, and collect the pools to shut down
+        final List<MeteredManagedPool> pools = new ArrayList<>();
+        for (final Map.Entry<String, MeteredManagedPool> entry : DS_POOLS.entrySet()) {
+            if (DS_POOLS.remove(entry.getKey(), entry.getValue())) {
+                pools.add(entry.getValue());
+            }
+        }
+        WARM_UPS.clear();
+        for (final Map.Entry<String, PoolAutoSizer> entry : AUTO_SIZERS.entrySet()) {
+            if (AUTO_SIZERS.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().stop();
+            }
+        }
+        ROUTERS.clear();
+        DEFAULT_READ_ONLY.clear();
+        for (final Map.Entry<String, FailoverDataSource> entry : FAILOVER_GROUPS.entrySet()) {
+            if (FAILOVER_GROUPS.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().shutdown();
+            }
+        }
+
+        for (final Map.Entry<String, CreationThrottle> entry : THROTTLES.entrySet()) {
+            if (THROTTLES.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().close();
+            }
+        }
+
+        shutdownPools(pools);
+    }
+
+    /**
+     * Shut down a list of pools in parallel, and wait until all of them have been shut down.
+     *
+     * @param pools The pools to shut down
+     */
+    // CHECKSTYLE:OFF
+    // this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+    // suppress warnings about using threads (each pool is shut down on its own thread, unless there is only one pool)
+    @SuppressWarnings({"PMD.DoNotUseThreads", "PMD.AvoidInstantiatingObjectsInLoops", "PMD.AvoidLiteralsInIfCondition"})
+    // CHECKSTYLE:ON
+    private static void shutdownPools(final List<MeteredManagedPool> pools) {
+
+        // assert in private method
+        assert pools != null : "The pools cannot be null";
+
+        if (pools.isEmpty()) {
+            return;
+        } else if (pools.size() == 1) {
+            shutdownPool(pools.get(0));
+            return;
+        }
+
+        final List<Thread> threads = new ArrayList<>(pools.size());
+        for (final MeteredManagedPool pool : pools) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    shutdownPool(pool);
+                }
+            }, "pool-shutdown-" + SHUTDOWN_THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        try {
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted while waiting for the connection pools to shut down", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Shut down a pool, logging (instead of propagating) any failure, so that a failure does not prevent the other
+     * pools from being shut down.
+     *
+     * @param pool The pool to shut down
+     */
+    // suppress warnings about catching RuntimeException (a failure must not stop the other pools from shutting down)
+    @SuppressWarnings("PMD.AvoidCatchingGenericException")
+    private static void shutdownPool(final MeteredManagedPool pool) {
+
+        // assert in private method
+        assert pool != null : "The pool cannot be null";
+
+        try {
+            pool.shutdown();
+            LOG.debug("Shut down pool '" + pool.getMetrics().getName() + "'");
+        } catch (RuntimeException e) {
+            LOG.warn("Cannot shut down pool '" + pool.getMetrics().getName() + "'", e);
+        }
+    }
+
+    /**
+     * Register the JVM shutdown hook that shuts down all pools, if it has not already been registered.
+     */
+    // suppress warnings about using threads (a JVM shutdown hook is a thread)
+    @SuppressWarnings("PMD.DoNotUseThreads")
+    private static void registerShutdownHook() {
+
+        if (SHUTDOWN_HOOK_REGISTERED.compareAndSet(false, true)) {
+            try {
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+
+                        reset();
+                    }
+                }, "pool-shutdown-hook"));
+            } catch (IllegalStateException e) {
+                // the JVM is already shutting down
+                LOG.debug("Cannot register the pool shutdown hook", e);
+            }
+        }
     }
 
     /**
@@ -226,19 +663,155 @@ public final class DataSourceFactory {
     }
 
     /**
-     * Get a pooled data source for the provided connection parameters.
+     * Return the number of connections that the warm-up of a new pool opens, which is the initial size of the pool
+     * limited to the maximum number of (idle) connections.
+     *
+     * @param poolSpec A connection pool spec
+     * @return The number of connections to open, or zero or less if the pool is not warmed up
+     */
+    private static int getWarmUpConnections(final ConnectionProperties poolSpec) {
+
+        // assert in private method
+        assert poolSpec != null : "The pool spec cannot be null";
+
+        int connections = poolSpec.getInitialSize();
+        if (poolSpec.getMaxTotal() >= 0) {
+            connections = Math.min(connections, poolSpec.getMaxTotal());
+        }
+        if (poolSpec.getMaxIdle() >= 0) {
+            connections = Math.min(connections, poolSpec.getMaxIdle());
+        }
+        return connections;
+    }
+
+    /**
+     * Return the failover data source for a group of endpoints, and create the pools of the endpoints if necessary.
+     *
+     * @param poolSpec A connection pool spec with failover endpoints
+     * @return The failover data source
+     * @throws FactoryException When the pool of one of the endpoints cannot be created
+     */
+    // suppress warnings about creating objects in the loop (each endpoint has its own pool spec)
+    @SuppressWarnings("PMD.AvoidInstantiatingObjectsInLoops")
+    private static DataSource getFailoverDataSource(final ConnectionProperties poolSpec)
+            throws FactoryException {
+
+        // assert in private method
+        assert poolSpec != null : "The pool spec cannot be null";
+
+        final String key = getPoolKey(poolSpec);
+        final FailoverDataSource existing = FAILOVER_GROUPS.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        final List<String> urls = new ArrayList<>();
+        urls.add(poolSpec.getUrl());
+        urls.addAll(poolSpec.getFailoverUrls());
+
+        final List<FailoverDataSource.Endpoint> endpoints = new ArrayList<>();
+        for (final String endpointUrl : urls) {
+            final ConnectionProperties endpointSpec = new ConnectionProperties(poolSpec);
+            endpointSpec.setUrl(endpointUrl);
+            endpointSpec.setFailoverUrls(null);
+
+            final Properties props = new Properties();
+            props.putAll(getConnectionArguments(endpointSpec));
+            endpoints.add(new FailoverDataSource.Endpoint(endpointUrl, getDataSource(endpointSpec),
+                    new ConnectionCreator(endpointUrl, props)));
+        }
+
+        // an endpoint that has been marked down is only used again after a periodic health check has passed
+        long healthCheckIntervalMillis = poolSpec.getHealthCheckIntervalMillis();
+        if (healthCheckIntervalMillis <= 0) {
+            LOG.warn("The health check interval of the failover endpoints of '" + poolSpec.getUrl() + "' is not"
+                    + " positive, using the default of "
+                    + MapBasedConnPropsBuilder.DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS + "ms");
+            healthCheckIntervalMillis = MapBasedConnPropsBuilder.DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS;
+        }
+
+        final FailoverDataSource group = new FailoverDataSource(endpoints, healthCheckIntervalMillis);
+        final FailoverDataSource previous = FAILOVER_GROUPS.putIfAbsent(key, group);
+        if (previous != null) {
+            // another thread has created the group in the meantime
+            group.shutdown();
+            return previous;
+        }
+        return group;
+    }
+
+    /**
+     * Return the connection arguments for the JDBC driver, which are the driver properties plus the username and
+     * password.
+     *
+     * @param poolSpec A connection pool spec
+     * @return The connection arguments
+     */
+    private static ConcurrentMap<String, String> getConnectionArguments(final ConnectionProperties poolSpec) {
+
+        // assert in private method
+        assert poolSpec != null : "The pool spec cannot be null";
+
+        // CHECKSTYLE:OFF
+        // this particular set of inline conditions is easy to read :-)
+        final String username = poolSpec.getUsername() == null ? "" : poolSpec.getUsername();
+        final String password = poolSpec.getPassword() == null ? "" : poolSpec.getPassword();
+        // CHECKSTYLE:ON
+
+        // create the hash map required for the connection pool driver properties + username + password
+        // the username and password are added last, so that they cannot be overridden by the driver properties
+        final ConcurrentMap<String, String> properties = new ConcurrentHashMap<>(poolSpec.getDriverProperties());
+        properties.put("user", username);
+        properties.put("password", password);
+        return properties;
+    }
+
+    /**
+     * Return the key of the pool for the provided connection parameters
      *
+     * @param poolSpec A connection pool spec
+     * @return The key of the pool
+     */
+    private static String getPoolKey(final ConnectionProperties poolSpec) {
+
+        // assert in private method
+        assert poolSpec != null : "The pool spec cannot be null";
+
+        // CHECKSTYLE:OFF
+        // this inline condition is easy to read :-)
+        final String username = poolSpec.getUsername() == null ? "" : poolSpec.getUsername();
+        // CHECKSTYLE:ON
+
+        return String.format("%s:%s", poolSpec.getUrl(), username);
+    }
+
+    /**
+     * Create a connection pool for the provided connection parameters.
+     *
+     * @param key        The key of the pool
      * @param url        The JDBC database URL of the form <code>jdbc:subprotocol:subname</code>
      * @param properties A list of key/value configuration parameters to pass as connection arguments. Normally at
      *                   least a "user" and "password" property should be included
      * @param poolSpec   A connection pool spec
-     * @return A pooled database connection
+     * @return A connection pool
+     * @throws FactoryException When the pool engine or acquisition mode are not available, or the pool cannot be
+     *                          created
      */
-    private static PoolingDataSource<PoolableConnection> getPoolingDataSource(final String url,
-                                                                              final ConcurrentMap<String, String> properties,
-                                                                              final ConnectionProperties poolSpec) {
+    // CHECKSTYLE:OFF
+    // this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+    // suppress warnings about checking the acquisition mode early (an unknown mode must fail before any pool exists)
+    // suppress warnings about this method being too complex (it stacks the decorators of the configured features)
+    // suppress warnings about catching RuntimeException (the throttle must be closed whatever the provider throws)
+    @SuppressWarnings({"PMD.PrematureDeclaration", "PMD.NPathComplexity", "PMD.CyclomaticComplexity", "PMD.StdCyclomaticComplexity", "PMD.ModifiedCyclomaticComplexity", "PMD.AvoidCatchingGenericException"})
+    // CHECKSTYLE:ON
+    private static MeteredManagedPool createPool(final String key,
+                                                 final String url,
+                                                 final ConcurrentMap<String, String> properties,
+                                                 final ConnectionProperties poolSpec)
+            throws FactoryException {
 
         // assert in private method
+        assert key != null : "The key cannot be null";
         assert url != null : "The url cannot be null";
         assert properties != null : "The properties cannot be null";
         assert poolSpec != null : "The pol spec cannot be null";
@@ -249,36 +822,111 @@ public final class DataSourceFactory {
         final Properties props = new Properties();
         props.putAll(properties);
 
-        // create a Apache DBCP pool configuration from the pool spec
-        final GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
-        poolConfig.setMaxTotal(poolSpec.getMaxTotal());
-        poolConfig.setMaxIdle(poolSpec.getMaxIdle());
-        poolConfig.setMinIdle(poolSpec.getMinIdle());
-        poolConfig.setMaxWaitMillis(poolSpec.getMaxWaitMillis());
-        poolConfig.setTestOnCreate(poolSpec.isTestOnCreate());
-        poolConfig.setTestOnBorrow(poolSpec.isTestOnBorrow());
-        poolConfig.setTestOnReturn(poolSpec.isTestOnReturn());
-        poolConfig.setTestWhileIdle(poolSpec.isTestWhileIdle());
-        poolConfig.setTimeBetweenEvictionRunsMillis(poolSpec.getTimeBetweenEvictionRunsMillis());
-        poolConfig.setNumTestsPerEvictionRun(poolSpec.getNumTestsPerEvictionRun());
-        poolConfig.setMinEvictableIdleTimeMillis(poolSpec.getMinEvictableIdleTimeMillis());
-        poolConfig.setSoftMinEvictableIdleTimeMillis(poolSpec.getSoftMinEvictableIdleTimeMillis());
-        poolConfig.setLifo(poolSpec.isLifo());
-
-
-        // create the pool and assign the factory to the pool
-        final org.apache.commons.dbcp2.ConnectionFactory connFactory = new DriverManagerConnectionFactory(url, props);
-        final PoolableConnectionFactory poolConnFactory = new PoolableConnectionFactory(connFactory, null);
-        poolConnFactory.setDefaultAutoCommit(poolSpec.isDefaultAutoCommit());
-        poolConnFactory.setDefaultReadOnly(poolSpec.isDefaultReadOnly());
-        poolConnFactory.setDefaultTransactionIsolation(poolSpec.getDefaultTransactionIsolation());
-        poolConnFactory.setCacheState(poolSpec.isCacheState());
-        poolConnFactory.setValidationQuery(poolSpec.getValidationQuery());
-        poolConnFactory.setMaxConnLifetimeMillis(poolSpec.getMaxConnLifetimeMillis());
-        final GenericObjectPool<PoolableConnection> connPool = new GenericObjectPool<>(poolConnFactory, poolConfig);
-        poolConnFactory.setPool(connPool);
-
-        // create a new pooled data source
-        return new PoolingDataSource<>(connPool);
+        final boolean semaphoreMode = isSemaphoreAcquisitionMode(poolSpec.getAcquisitionMode());
+
+        // the pool engine creates the pool, but obtains the physical connections from the connection creator
+        final PoolMetrics metrics = new PoolMetrics(key);
+        final PoolProvider poolProvider = getPoolProvider(poolSpec.getPoolEngine());
+        CircuitBreaker circuitBreaker = null;
+        if (poolSpec.getCircuitBreakerFailureThreshold() > 0) {
+            circuitBreaker = new CircuitBreaker(metrics, poolSpec);
+        }
+        CreationThrottle throttle = null;
+        if (poolSpec.getMaxConcurrentCreations() > 0 || poolSpec.getGlobalMaxConcurrentCreations() > 0
+                || poolSpec.getCreationPacingMillis() > 0) {
+            throttle = new CreationThrottle(metrics, poolSpec);
+        }
+        ManagedPool pool;
+        try {
+            pool = poolProvider.createPool(
+                    new ConnectionCreator(url, props, metrics, circuitBreaker, throttle), poolSpec);
+        } catch (FactoryException | RuntimeException e) {
+            // the pool does not exist, so it must not hold back the global creation limit
+            if (throttle != null) {
+                throttle.close();
+            }
+            throw e;
+        }
+        if (throttle != null) {
+            THROTTLES.put(key, throttle);
+        }
+
+        if (poolSpec.getThreadAffinityMillis() > 0) {
+            pool = new ThreadAffineManagedPool(pool, metrics, poolSpec);
+        }
+        if (semaphoreMode && poolSpec.getMaxTotal() >= 0) {
+            pool = new SemaphoreManagedPool(pool, poolSpec.getMaxTotal(), poolSpec.getMaxWaitMillis());
+        }
+        if (poolSpec.getLeakDetectionThresholdMillis() > 0 || poolSpec.getAbandonedTimeoutMillis() > 0) {
+            pool = new LeakDetectingManagedPool(pool, metrics, poolSpec.getLeakDetectionThresholdMillis(),
+                    poolSpec.getAbandonedTimeoutMillis(), poolSpec.getLeakDetectionStackSampleRate());
+        }
+        if (poolSpec.getBulkheadMaxWaiters() > 0 || poolSpec.getBulkheadMaxQueueMillis() > 0) {
+            pool = new BulkheadManagedPool(pool, metrics, poolSpec);
+        }
+        if (circuitBreaker != null) {
+            pool = new CircuitBreakerManagedPool(pool, circuitBreaker);
+        }
+        registerShutdownHook();
+        return new MeteredManagedPool(pool, metrics, poolSpec.getShutdownGracePeriodMillis());
+    }
+
+    /**
+     * Check if an acquisition mode is the semaphore acquisition mode. If no acquisition mode is specified, the default
+     * (pool) acquisition mode is used.
+     *
+     * @param acquisitionMode The name of the acquisition mode
+     * @return {@code true} if threads should queue on a semaphore in front of the pool engine
+     * @throws FactoryException When the acquisition mode is not known
+     */
+    private static boolean isSemaphoreAcquisitionMode(final String acquisitionMode)
+            throws FactoryException {
+
+        if (StringUtils.isBlank(acquisitionMode) || ACQUISITION_MODE_POOL.equalsIgnoreCase(acquisitionMode.trim())) {
+            return false;
+        } else if (SemaphoreManagedPool.ACQUISITION_MODE.equalsIgnoreCase(acquisitionMode.trim())) {
+            return true;
+        }
+
+        final String error = "Unknown acquisition mode '" + acquisitionMode + "'. This is a configuration issue.";
+        LOG.warn(error);
+        throw new FactoryException(error);
+    }
+
+    /**
+     * Find the pool provider for a pool engine.
+     * <p>
+     * Pool providers are discovered with the {@link ServiceLoader} mechanism. If no pool engine is specified, the DBCP2
+     * pool engine is used.
+     *
+     * @param poolEngine The name of the pool engine
+     * @return The pool provider for the pool engine
+     * @throws FactoryException When no provider is available for the pool engine
+     */
+    private static PoolProvider getPoolProvider(final String poolEngine)
+            throws FactoryException {
+
+        // CHECKSTYLE:OFF
+        // this inline condition is easy to read :-)
+        final String name = StringUtils.isBlank(poolEngine) ? Dbcp2PoolProvider.NAME : poolEngine.trim();
+        // CHECKSTYLE:ON
+
+        final Iterator<PoolProvider> providers = ServiceLoader.load(PoolProvider.class).iterator();
+        while (providers.hasNext()) {
+            try {
+                final PoolProvider provider = providers.next();
+                if (name.equalsIgnoreCase(provider.getName())) {
+                    return provider;
+                }
+            } catch (ServiceConfigurationError e) {
+                // a provider that cannot be loaded (e.g. because of a missing optional dependency) is skipped
+                LOG.debug("Skipping pool provider that cannot be loaded", e);
+            }
+        }
+
+        final String error = "No pool provider available for pool engine '" + name + "'."
+                + " This is a configuration issue.";
+        LOG.warn(error);
+        throw new FactoryException(error);
     }
 }
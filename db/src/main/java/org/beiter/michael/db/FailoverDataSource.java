@@ -0,0 +1,318 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db;
+
+import org.apache.commons.lang3.Validate;
+import org.beiter.michael.db.pool.ConnectionCreator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A data source that hands out connections from the pools of several endpoints of one logical database (e.g. the
+ * nodes of a cluster), and fails over to the next endpoint when an endpoint goes down.
+ * <p>
+ * Connections are borrowed from the first endpoint (in the configured order) that is up. Background threads check
+ * the health of every endpoint in <code>healthCheckIntervalMillis</code> by opening (and validating) a physical
+ * connection. Each endpoint is checked on its own thread, so that an endpoint that does not respond (e.g. while a
+ * connection attempt waits for the TCP timeout) does not delay the checks of the other endpoints. Endpoints that fail
+ * the health check are marked down, and are skipped without any delay until they pass the health check again, at
+ * which point the traffic returns to them. If borrowing from an endpoint fails, the request is served by the next
+ * endpoint, and the failed endpoint is checked immediately. The time to fail over (and to fail back) is therefore
+ * bounded by the health check instead of the borrow timeout of the pools.
+ * <p>
+ * Instances are created by {@link DataSourceFactory#getDataSource(ConnectionProperties)} when failover endpoints are
+ * configured (see {@link ConnectionProperties#setFailoverUrls(List)}).
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about the long (but descriptive) variable names
+// suppress warnings about using threads (the health of each endpoint is checked on its own daemon thread)
+@SuppressWarnings({"PMD.LongVariable", "PMD.DoNotUseThreads", "PMD.AvoidInstantiatingObjectsInLoops"})
+// CHECKSTYLE:ON
+public final class FailoverDataSource
+        extends PoolGroupDataSource {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(FailoverDataSource.class);
+
+    /**
+     * The maximum time to wait for an endpoint to validate a connection in a health check
+     */
+    private static final int MAX_HEALTH_CHECK_TIMEOUT_SECONDS = 5;
+
+    /**
+     * Counter for the names of the health check threads
+     */
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    /**
+     * The endpoints in the order of preference
+     */
+    private final Endpoint[] endpoints;
+
+    /**
+     * The timeout of the validation in a health check in seconds
+     */
+    private final int healthCheckTimeoutSeconds;
+
+    /**
+     * The health check threads (one per endpoint)
+     */
+    private final ScheduledExecutorService healthChecker;
+
+    /**
+     * Create a failover data source, and start the health checks
+     *
+     * @param endpoints                 The endpoints in the order of preference
+     * @param healthCheckIntervalMillis The interval of the health checks in milliseconds
+     * @throws IllegalArgumentException When {@code healthCheckIntervalMillis} is not positive, as an endpoint that
+     *                                  is down would never be checked again
+     */
+    FailoverDataSource(final List<Endpoint> endpoints, final long healthCheckIntervalMillis) {
+
+        super(endpoints.get(0).dataSource);
+
+        Validate.inclusiveBetween(1, Long.MAX_VALUE, healthCheckIntervalMillis);
+
+        this.endpoints = endpoints.toArray(new Endpoint[endpoints.size()]);
+        this.healthCheckTimeoutSeconds = (int) Math.max(1,
+                Math.min(MAX_HEALTH_CHECK_TIMEOUT_SECONDS, TimeUnit.MILLISECONDS.toSeconds(healthCheckIntervalMillis)));
+        this.healthChecker = Executors.newScheduledThreadPool(this.endpoints.length, new HealthCheckThreadFactory());
+
+        for (final Endpoint endpoint : this.endpoints) {
+            healthChecker.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkHealth(endpoint);
+                }
+            }, healthCheckIntervalMillis, healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Borrow a connection from the first endpoint that is up.
+     *
+     * @return A connection
+     * @throws SQLException When no endpoint is up, or no endpoint can provide a connection
+     */
+    @Override
+    public Connection getConnection()
+            throws SQLException {
+
+        SQLException lastFailure = null;
+        for (final Endpoint endpoint : endpoints) {
+            if (!endpoint.available) {
+                continue;
+            }
+
+            try {
+                return endpoint.dataSource.getConnection();
+            } catch (SQLException e) {
+                LOG.debug("Endpoint '" + endpoint.url + "' failed to provide a connection", e);
+                lastFailure = e;
+                scheduleHealthCheck(endpoint);
+            }
+        }
+
+        throw new SQLTransientConnectionException("No endpoint is available (" + getHealthyEndpointCount() + " of "
+                + endpoints.length + " endpoints up)", lastFailure);
+    }
+
+    /**
+     * @return The number of endpoints
+     */
+    public int getEndpointCount() {
+
+        return endpoints.length;
+    }
+
+    /**
+     * @return The number of endpoints that are up
+     */
+    public int getHealthyEndpointCount() {
+
+        int healthy = 0;
+        for (final Endpoint endpoint : endpoints) {
+            if (endpoint.available) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * Stop the health checks. The pools of the endpoints are managed (and closed) by the {@link DataSourceFactory}.
+     */
+    // suppress warnings about the package private scope (only the factory can shut down a failover group)
+    @SuppressWarnings("PMD.DefaultPackage")
+    void shutdown() {
+
+        healthChecker.shutdownNow();
+    }
+
+    /**
+     * Check the health of an endpoint on a health check thread, unless a check of the endpoint is already pending.
+     *
+     * @param endpoint The endpoint to check
+     */
+    private void scheduleHealthCheck(final Endpoint endpoint) {
+
+        if (!endpoint.checkPending.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            healthChecker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    checkHealth(endpoint);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the data source has been shut down
+            endpoint.checkPending.set(false);
+        }
+    }
+
+    /**
+     * Check the health of an endpoint by opening and validating a physical connection, and mark it up or down.
+     *
+     * @param endpoint The endpoint to check
+     */
+    private void checkHealth(final Endpoint endpoint) {
+
+        endpoint.checkPending.set(false);
+
+        boolean healthy;
+        try {
+            final Connection connection = endpoint.connectionCreator.createConnection();
+            try {
+                healthy = connection.isValid(healthCheckTimeoutSeconds);
+            } finally {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            LOG.debug("Health check of endpoint '" + endpoint.url + "' failed", e);
+            healthy = false;
+        }
+
+        if (healthy && !endpoint.available) {
+            LOG.info("Endpoint '" + endpoint.url + "' is up again");
+        } else if (!healthy && endpoint.available) {
+            LOG.warn("Endpoint '" + endpoint.url + "' is down");
+        }
+        endpoint.available = healthy;
+    }
+
+    /**
+     * An endpoint of the logical database, and its health
+     */
+    static final class Endpoint {
+
+        /**
+         * The JDBC URL of the endpoint
+         */
+        private final String url;
+
+        /**
+         * The data source of the pool of the endpoint
+         */
+        private final DataSource dataSource;
+
+        /**
+         * The creator of the physical connections for the health checks
+         */
+        private final ConnectionCreator connectionCreator;
+
+        /**
+         * {@code true} if the endpoint is up
+         */
+        private volatile boolean available = true;
+
+        /**
+         * {@code true} if a health check of the endpoint has been requested, but has not started yet
+         */
+        private final AtomicBoolean checkPending = new AtomicBoolean();
+
+        /**
+         * Create an endpoint, which is considered up until it fails a health check
+         *
+         * @param url               The JDBC URL of the endpoint
+         * @param dataSource        The data source of the pool of the endpoint
+         * @param connectionCreator The creator of the physical connections for the health checks
+         */
+        Endpoint(final String url, final DataSource dataSource, final ConnectionCreator connectionCreator) {
+
+            Validate.notNull(url, "The validated object 'url' is null");
+            Validate.notNull(dataSource, "The validated object 'dataSource' is null");
+            Validate.notNull(connectionCreator, "The validated object 'connectionCreator' is null");
+
+            this.url = url;
+            this.dataSource = dataSource;
+            this.connectionCreator = connectionCreator;
+        }
+    }
+
+    /**
+     * A thread factory that creates daemon threads for the health checks
+     */
+    private static final class HealthCheckThreadFactory
+            implements ThreadFactory {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Thread newThread(final Runnable runnable) {
+
+            final Thread thread = new Thread(runnable, "pool-health-check-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+/**
+ * A data source that hands out connections from a group of pools (e.g. the pools of a primary database and its
+ * replicas).
+ * <p>
+ * Subclasses implement {@link #getConnection()} by selecting a pool of the group. All other calls are delegated to the
+ * data source of the primary pool of the group.
+ */
+// suppress warnings about the class name (the subclasses are named after the way they select a pool)
+@SuppressWarnings("PMD.AbstractNaming")
+abstract class PoolGroupDataSource
+        implements DataSource {
+
+    /**
+     * The data source of the primary pool of the group
+     */
+    private final DataSource primary;
+
+    /**
+     * Create a data source for a group of pools
+     *
+     * @param primary The data source of the primary pool of the group
+     */
+    PoolGroupDataSource(final DataSource primary) {
+
+        assert primary != null : "The primary data source cannot be null";
+
+        this.primary = primary;
+    }
+
+    /**
+     * @return The data source of the primary pool of the group
+     */
+    protected final DataSource getPrimary() {
+
+        return primary;
+    }
+
+    /**
+     * This operation is not supported, because the credentials are managed by the pools.
+     *
+     * @param username The username (ignored)
+     * @param password The password (ignored)
+     * @return never returns
+     * @throws SQLFeatureNotSupportedException always
+     */
+    @Override
+    public final Connection getConnection(final String username, final String password)
+            throws SQLFeatureNotSupportedException {
+
+        throw new SQLFeatureNotSupportedException("Connection credentials are managed by the pool");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final PrintWriter getLogWriter()
+            throws SQLException {
+
+        return primary.getLogWriter();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void setLogWriter(final PrintWriter writer)
+            throws SQLException {
+
+        primary.setLogWriter(writer);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void setLoginTimeout(final int seconds)
+            throws SQLException {
+
+        primary.setLoginTimeout(seconds);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final int getLoginTimeout()
+            throws SQLException {
+
+        return primary.getLoginTimeout();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final Logger getParentLogger()
+            throws SQLFeatureNotSupportedException {
+
+        return primary.getParentLogger();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final <T> T unwrap(final Class<T> iface)
+            throws SQLException {
+
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return primary.unwrap(iface);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final boolean isWrapperFor(final Class<?> iface)
+            throws SQLException {
+
+        return iface.isInstance(this) || primary.isWrapperFor(iface);
+    }
+}
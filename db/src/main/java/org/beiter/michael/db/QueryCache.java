@@ -0,0 +1,711 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An opt-in cache of query results, for queries that read the same (reference) data over and over.
+ * <p>
+ * Results are cached by SQL text and bound parameters, and are materialized as lists of rows (one
+ * <code>Object[]</code> of {@link ResultSet#getObject(int)} values per row). Every entry has its own time to live,
+ * and is tagged with the tables that the query reads. The cache holds at most <code>maxEntries</code> entries and an
+ * estimated <code>maxBytes</code> of results, and evicts the least recently used entries to stay within both bounds.
+ * <p>
+ * When several threads miss the same entry at the same time, only one of them runs the query, and the others wait
+ * for its result (single-flight loading). After a table has been changed, {@link #invalidate(String)} removes all
+ * entries that are tagged with it. A load that runs concurrently with an invalidation returns its result, but does
+ * not cache it, so that an invalidation never leaves a stale entry behind.
+ * <p>
+ * The queries run on connections from {@link ConnectionFactory#getConnection(ConnectionProperties)}. Every call
+ * returns a copy of the cached rows, including copies of mutable values (<code>byte[]</code> and dates), so that a
+ * caller that modifies its rows does not change the result of other callers. Other mutable values (e.g. LOBs) are
+ * shared. Parameters are compared with {@link Object#equals(Object)}, so array parameters (e.g. <code>byte[]</code>)
+ * only match the same instance. Instances of this class are thread safe.
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about a potential God class (not the case, the entries and their loading are one unit)
+// suppress warnings about the long (but descriptive) variable names
+@SuppressWarnings({"PMD.GodClass", "PMD.TooManyMethods", "PMD.LongVariable"})
+// CHECKSTYLE:ON
+public final class QueryCache {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(QueryCache.class);
+
+    /**
+     * The estimated size of an entry without its rows (key, entry, and LRU node)
+     */
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+    /**
+     * The estimated size of a row array without its values
+     */
+    private static final long ROW_OVERHEAD_BYTES = 16;
+
+    /**
+     * The estimated size of an object reference
+     */
+    private static final long REFERENCE_BYTES = 8;
+
+    /**
+     * The estimated size of a string without its characters
+     */
+    private static final long STRING_OVERHEAD_BYTES = 40;
+
+    /**
+     * The estimated size of an array without its elements
+     */
+    private static final long ARRAY_OVERHEAD_BYTES = 16;
+
+    /**
+     * The estimated size of a boxed primitive, or of a date or time value
+     */
+    private static final long BOXED_VALUE_BYTES = 24;
+
+    /**
+     * The estimated size of any other value
+     */
+    private static final long OTHER_VALUE_BYTES = 64;
+
+    /**
+     * The connection pool spec
+     */
+    private final ConnectionProperties poolSpec;
+
+    /**
+     * The maximum number of entries
+     */
+    private final int maxEntries;
+
+    /**
+     * The maximum estimated size of all entries in bytes
+     */
+    private final long maxBytes;
+
+    /**
+     * The cached entries in LRU order (guarded by itself)
+     */
+    // suppress warnings about the map type (the LRU order needs an access ordered map)
+    @SuppressWarnings("PMD.UseConcurrentHashMap")
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The estimated size of all entries in bytes (guarded by {@link #entries})
+     */
+    private long bytes;
+
+    /**
+     * The loads that are running, which concurrent misses of the same entry wait for
+     */
+    private final ConcurrentMap<Key, FutureTask<Entry>> loads = new ConcurrentHashMap<>();
+
+    /**
+     * Counts the invalidations, so that a load that overlaps with an invalidation does not cache its result
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * The number of lookups that have been served from the cache
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * The number of lookups that have not been served from the cache
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * The number of queries that have been run to load entries
+     */
+    private final AtomicLong loadCount = new AtomicLong();
+
+    /**
+     * The number of entries that have been evicted to stay within the bounds of the cache
+     */
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Create an empty query cache
+     *
+     * @param poolSpec   The spec of the connection pool that the queries run on
+     * @param maxEntries The maximum number of entries
+     * @param maxBytes   The maximum estimated size of all entries in bytes
+     * @throws NullPointerException     When {@code poolSpec} is {@code null}
+     * @throws IllegalArgumentException When {@code maxEntries} or {@code maxBytes} are not positive
+     */
+    public QueryCache(final ConnectionProperties poolSpec, final int maxEntries, final long maxBytes) {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+        Validate.inclusiveBetween(1, Integer.MAX_VALUE, maxEntries);
+        Validate.inclusiveBetween(1, Long.MAX_VALUE, maxBytes);
+
+        // the pool spec may be changed by the caller while the cache is in use
+        this.poolSpec = new ConnectionProperties(poolSpec);
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return the rows of a query from the cache, or run the query and cache its rows if there is no live entry.
+     *
+     * @param sql        The parameterized SQL query
+     * @param ttlMillis  The time to live of the entry in milliseconds, if the query needs to be run
+     * @param tables     The tables that the query reads, which are used to invalidate the entry
+     * @param parameters The parameters of the query, which are bound with
+     *                   {@link PreparedStatement#setObject(int, Object)}
+     * @return A copy of the rows of the query
+     * @throws FactoryException         When the connection cannot be obtained, or the query fails
+     * @throws NullPointerException     When {@code sql}, {@code tables}, or {@code parameters} are {@code null}
+     * @throws IllegalArgumentException When {@code sql} is empty, or {@code ttlMillis} is not positive
+     */
+    public List<Object[]> query(final String sql, final long ttlMillis, final Collection<String> tables,
+                                final Object... parameters)
+            throws FactoryException {
+
+        Validate.notBlank(sql, "The validated character sequence 'sql' is null or empty");
+        Validate.inclusiveBetween(1, Long.MAX_VALUE, ttlMillis);
+        Validate.notNull(tables, "The validated object 'tables' is null");
+        Validate.notNull(parameters, "The validated object 'parameters' is null");
+
+        final Key key = new Key(sql, parameters);
+        final Entry cached = get(key);
+        if (cached != null) {
+            hitCount.incrementAndGet();
+            return copyRows(cached.rows);
+        }
+        missCount.incrementAndGet();
+
+        final FutureTask<Entry> load = new FutureTask<>(new Callable<Entry>() {
+            @Override
+            public Entry call()
+                    throws FactoryException {
+
+                return load(key, ttlMillis, tables);
+            }
+        });
+        final FutureTask<Entry> runningLoad = loads.putIfAbsent(key, load);
+        if (runningLoad == null) {
+            try {
+                load.run();
+            } finally {
+                loads.remove(key, load);
+            }
+        }
+        // CHECKSTYLE:OFF
+        // this inline condition is easy to read :-)
+        return getRows(runningLoad == null ? load : runningLoad);
+        // CHECKSTYLE:ON
+    }
+
+    /**
+     * Remove all entries that are tagged with a table
+     *
+     * @param table The table (case insensitive)
+     * @throws NullPointerException When {@code table} is {@code null}
+     */
+    public void invalidate(final String table) {
+
+        Validate.notNull(table, "The validated object 'table' is null");
+
+        final String tag = table.toLowerCase(Locale.ENGLISH);
+        invalidations.incrementAndGet();
+        synchronized (entries) {
+            final Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                final Entry entry = iterator.next();
+                if (entry.tables.contains(tag)) {
+                    iterator.remove();
+                    bytes -= entry.bytes;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all entries
+     */
+    public void invalidateAll() {
+
+        invalidations.incrementAndGet();
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * @return The number of entries in the cache (including expired entries that have not been removed yet)
+     */
+    public int getEntryCount() {
+
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return The estimated size of all entries in bytes
+     */
+    public long getEstimatedBytes() {
+
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    /**
+     * @return The number of lookups that have been served from the cache
+     */
+    public long getHitCount() {
+
+        return hitCount.get();
+    }
+
+    /**
+     * @return The number of lookups that have not been served from the cache
+     */
+    public long getMissCount() {
+
+        return missCount.get();
+    }
+
+    /**
+     * @return The ratio of the lookups that have been served from the cache, or 0 if there have been no lookups
+     */
+    public double getHitRatio() {
+
+        final long hits = hitCount.get();
+        final long lookups = hits + missCount.get();
+        if (lookups == 0) {
+            return 0d;
+        }
+        return hits / (double) lookups;
+    }
+
+    /**
+     * @return The number of queries that have been run to load entries (concurrent misses of the same entry share one
+     * query)
+     */
+    public long getLoadCount() {
+
+        return loadCount.get();
+    }
+
+    /**
+     * @return The number of entries that have been evicted to stay within the bounds of the cache
+     */
+    public long getEvictionCount() {
+
+        return evictionCount.get();
+    }
+
+    /**
+     * Return a live entry from the cache. Expired entries are removed.
+     *
+     * @param key The key of the entry
+     * @return The entry, or {@code null} if there is no live entry
+     */
+    private Entry get(final Key key) {
+
+        synchronized (entries) {
+            final Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.expiresAtNanos >= 0) {
+                entries.remove(key);
+                bytes -= entry.bytes;
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Run a query, and cache its rows unless the cache has been invalidated while the query was running.
+     *
+     * @param key       The key of the entry
+     * @param ttlMillis The time to live of the entry in milliseconds
+     * @param tables    The tables that the query reads
+     * @return The entry
+     * @throws FactoryException When the connection cannot be obtained, or the query fails
+     */
+    private Entry load(final Key key, final long ttlMillis, final Collection<String> tables)
+            throws FactoryException {
+
+        final long invalidationsAtStart = invalidations.get();
+        loadCount.incrementAndGet();
+
+        final List<Object[]> rows = runQuery(key);
+        final Set<String> tags = new HashSet<>();
+        for (final String table : tables) {
+            tags.add(table.toLowerCase(Locale.ENGLISH));
+        }
+        final Entry entry = new Entry(Collections.unmodifiableList(rows), tags,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis), estimateBytes(key, rows));
+
+        synchronized (entries) {
+            if (invalidations.get() != invalidationsAtStart) {
+                LOG.debug("The cache has been invalidated while the query was running, not caching the result");
+                return entry;
+            }
+
+            if (entry.bytes > maxBytes) {
+                // caching the entry would evict all other entries, and then the entry itself
+                LOG.debug("The result of the query is larger than the cache, not caching the result");
+                return entry;
+            }
+
+            final Entry replaced = entries.put(key, entry);
+            if (replaced != null) {
+                bytes -= replaced.bytes;
+            }
+            bytes += entry.bytes;
+            evict();
+        }
+        return entry;
+    }
+
+    /**
+     * Evict the least recently used entries until the cache is within its bounds (must hold the lock of
+     * {@link #entries})
+     */
+    private void evict() {
+
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext() && (entries.size() > maxEntries || bytes > maxBytes)) {
+            final Entry eldest = iterator.next();
+            iterator.remove();
+            bytes -= eldest.bytes;
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Run a query, and materialize its rows
+     *
+     * @param key The SQL text and the parameters of the query
+     * @return The rows of the query
+     * @throws FactoryException When the connection cannot be obtained, or the query fails
+     */
+    // CHECKSTYLE:OFF
+    // this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+    // suppress warnings about the resource handling (closing the statement also closes the result set)
+    // suppress warnings about instantiating objects in loops (every row of the result set is materialized as an array)
+    @SuppressWarnings({"PMD.CloseResource", "PMD.AvoidInstantiatingObjectsInLoops"})
+    // CHECKSTYLE:ON
+    private List<Object[]> runQuery(final Key key)
+            throws FactoryException {
+
+        final Connection connection = ConnectionFactory.getConnection(poolSpec);
+        try {
+            final PreparedStatement statement = connection.prepareStatement(key.sql);
+            try {
+                for (int i = 0; i < key.parameters.length; i++) {
+                    statement.setObject(i + 1, key.parameters[i]);
+                }
+
+                final ResultSet resultSet = statement.executeQuery();
+                final int columns = resultSet.getMetaData().getColumnCount();
+                final List<Object[]> rows = new ArrayList<>();
+                while (resultSet.next()) {
+                    final Object[] row = new Object[columns];
+                    for (int i = 0; i < columns; i++) {
+                        row[i] = resultSet.getObject(i + 1);
+                    }
+                    rows.add(row);
+                }
+                resultSet.close();
+                return rows;
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            final String error = "Cannot execute the query '" + key.sql + "'";
+            LOG.warn(error, e);
+            throw new FactoryException(error, e);
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOG.warn("Cannot return the connection to the pool", e);
+            }
+        }
+    }
+
+    /**
+     * Wait for a load, and return its rows
+     *
+     * @param load The load
+     * @return The rows
+     * @throws FactoryException When the load has failed
+     */
+    // suppress warnings about the stack trace (the load failure is unwrapped, and its cause keeps the stack trace)
+    @SuppressWarnings("PMD.PreserveStackTrace")
+    private static List<Object[]> getRows(final FutureTask<Entry> load)
+            throws FactoryException {
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return copyRows(load.get().rows);
+                } catch (InterruptedException e) {
+                    // the load runs on another caller thread, and cannot be abandoned
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            throw toFactoryException(e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Unwrap the error of a failed load
+     *
+     * @param cause The cause of the {@link ExecutionException} of the load
+     * @return The {@link FactoryException} of the load, or a new {@link FactoryException} wrapping the cause
+     */
+    private static FactoryException toFactoryException(final Throwable cause) {
+
+        if (cause instanceof FactoryException) {
+            return (FactoryException) cause;
+        }
+        return new FactoryException("Cannot load the query result", cause);
+    }
+
+    /**
+     * Copy the rows of an entry, so that the caller can modify them without changing the entry
+     *
+     * @param rows The rows of the entry
+     * @return A copy of the rows, with copies of the <code>byte[]</code> and date values
+     */
+    private static List<Object[]> copyRows(final List<Object[]> rows) {
+
+        final List<Object[]> copy = new ArrayList<>(rows.size());
+        for (final Object[] row : rows) {
+            final Object[] rowCopy = row.clone();
+            for (int i = 0; i < rowCopy.length; i++) {
+                if (rowCopy[i] instanceof byte[]) {
+                    rowCopy[i] = ((byte[]) rowCopy[i]).clone();
+                } else if (rowCopy[i] instanceof java.util.Date) {
+                    // also copies java.sql.Date, Time, and Timestamp (including the nanoseconds)
+                    rowCopy[i] = ((java.util.Date) rowCopy[i]).clone();
+                }
+            }
+            copy.add(rowCopy);
+        }
+        return copy;
+    }
+
+    /**
+     * Estimate the memory that an entry occupies
+     *
+     * @param key  The key of the entry
+     * @param rows The rows of the entry
+     * @return The estimated size in bytes
+     */
+    private static long estimateBytes(final Key key, final List<Object[]> rows) {
+
+        long estimate = ENTRY_OVERHEAD_BYTES + estimateBytes(key.sql);
+        for (final Object parameter : key.parameters) {
+            estimate += REFERENCE_BYTES + estimateBytes(parameter);
+        }
+        for (final Object[] row : rows) {
+            estimate += REFERENCE_BYTES + ROW_OVERHEAD_BYTES;
+            for (final Object value : row) {
+                estimate += REFERENCE_BYTES + estimateBytes(value);
+            }
+        }
+        return estimate;
+    }
+
+    /**
+     * Estimate the memory that a value occupies
+     *
+     * @param value The value
+     * @return The estimated size in bytes
+     */
+    private static long estimateBytes(final Object value) {
+
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return STRING_OVERHEAD_BYTES + 2L * ((String) value).length();
+        } else if (value instanceof byte[]) {
+            return ARRAY_OVERHEAD_BYTES + ((byte[]) value).length;
+        } else if (value instanceof Number || value instanceof Boolean || value instanceof java.util.Date) {
+            return BOXED_VALUE_BYTES;
+        }
+        return OTHER_VALUE_BYTES;
+    }
+
+    /**
+     * The key of an entry: the SQL text and the parameters of the query
+     */
+    // suppress warnings about the short class name (the key of an entry)
+    @SuppressWarnings("PMD.ShortClassName")
+    private static final class Key {
+
+        /**
+         * The SQL text of the query
+         */
+        private final String sql;
+
+        /**
+         * The parameters of the query
+         */
+        private final Object[] parameters;
+
+        /**
+         * The hash code of the key
+         */
+        private final int hash;
+
+        /**
+         * Create a key
+         *
+         * @param sql        The SQL text of the query
+         * @param parameters The parameters of the query
+         */
+        Key(final String sql, final Object... parameters) {
+
+            this.sql = sql;
+            // create a defensive copy of the parameters, as the key outlives the call
+            this.parameters = parameters.clone();
+            this.hash = Objects.hash(sql, Arrays.hashCode(this.parameters));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(final Object other) {
+
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) other;
+            return hash == key.hash && sql.equals(key.sql) && Arrays.equals(parameters, key.parameters);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+
+            return hash;
+        }
+    }
+
+    /**
+     * A cached query result
+     */
+    private static final class Entry {
+
+        /**
+         * The rows of the query
+         */
+        private final List<Object[]> rows;
+
+        /**
+         * The tables that the query reads (in lower case)
+         */
+        private final Set<String> tables;
+
+        /**
+         * The time (in {@link System#nanoTime()}) when the entry expires
+         */
+        private final long expiresAtNanos;
+
+        /**
+         * The estimated size of the entry in bytes
+         */
+        private final long bytes;
+
+        /**
+         * Create an entry
+         *
+         * @param rows           The rows of the query
+         * @param tables         The tables that the query reads (in lower case)
+         * @param expiresAtNanos The time (in {@link System#nanoTime()}) when the entry expires
+         * @param bytes          The estimated size of the entry in bytes
+         */
+        Entry(final List<Object[]> rows, final Set<String> tables, final long expiresAtNanos,
+              final long bytes) {
+
+            this.rows = rows;
+            this.tables = tables;
+            this.expiresAtNanos = expiresAtNanos;
+            this.bytes = bytes;
+        }
+    }
+}
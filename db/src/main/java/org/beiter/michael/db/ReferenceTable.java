@@ -0,0 +1,425 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An immutable in-memory snapshot of a (small) reference table, which is kept up to date by polling a version.
+ * <p>
+ * The snapshot is loaded with a query that returns the rows of the table, which are mapped to keys and values with
+ * {@link RowMapper}s (if several rows map to the same key, the last row wins). A second query returns the current
+ * version of the data: a single value, typically a version counter or the latest modification time stamp of the table
+ * (e.g. <code>SELECT MAX(updated_at) FROM some_table</code>). This query should be cheap, as a background thread
+ * runs it every <code>pollIntervalMillis</code>. When the version has changed, the background thread loads a new
+ * snapshot and swaps it in atomically.
+ * <p>
+ * Readers access the current snapshot through a volatile reference: they never block, and never see a partially
+ * loaded snapshot. The version is read before the rows, so that a change that happens while a snapshot is being
+ * loaded is picked up by the next poll. When a poll fails, the current snapshot is kept and the failure is counted.
+ * <p>
+ * The queries run on connections from {@link DataSourceFactory#getDataSource(ConnectionProperties)}. The first
+ * snapshot is loaded by the constructor. {@link #close()} stops the background thread. Instances of this class are
+ * thread safe.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+// suppress warnings about using threads (the table runs its own poller thread, it is not a J2EE component)
+@SuppressWarnings("PMD.DoNotUseThreads")
+public final class ReferenceTable<K, V>
+        implements AutoCloseable {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ReferenceTable.class);
+
+    /**
+     * Counts the reference tables, to give their polling threads unique names
+     */
+    private static final AtomicInteger TABLE_COUNTER = new AtomicInteger();
+
+    /**
+     * The connection pool spec
+     */
+    private final ConnectionProperties poolSpec;
+
+    /**
+     * The query that returns the rows of the table
+     */
+    private final String loadSql;
+
+    /**
+     * The query that returns the version of the table
+     */
+    private final String versionSql;
+
+    /**
+     * Maps a row to its key
+     */
+    private final RowMapper<K> keyMapper;
+
+    /**
+     * Maps a row to its value
+     */
+    private final RowMapper<V> valueMapper;
+
+    /**
+     * The thread that polls the version, and loads new snapshots
+     */
+    private final ScheduledExecutorService poller =
+            Executors.newSingleThreadScheduledExecutor(new PollerThreadFactory());
+
+    /**
+     * The current snapshot
+     */
+    private volatile Snapshot<K, V> snapshot;
+
+    /**
+     * The number of snapshots that have been loaded
+     */
+    private final AtomicLong loadCount = new AtomicLong();
+
+    /**
+     * The number of polls that have failed
+     */
+    private final AtomicLong failedPollCount = new AtomicLong();
+
+    /**
+     * Load the first snapshot of a reference table, and start polling its version.
+     *
+     * @param poolSpec           The spec of the connection pool that the queries run on
+     * @param loadSql            The query that returns the rows of the table
+     * @param versionSql         The query that returns the version of the table (a single value)
+     * @param pollIntervalMillis The interval in milliseconds between two polls of the version
+     * @param keyMapper          Maps a row to its key
+     * @param valueMapper        Maps a row to its value
+     * @throws FactoryException         When the first snapshot cannot be loaded
+     * @throws NullPointerException     When {@code poolSpec}, {@code loadSql}, {@code versionSql}, {@code keyMapper},
+     *                                  or {@code valueMapper} are {@code null}
+     * @throws IllegalArgumentException When {@code loadSql} or {@code versionSql} are empty, or
+     *                                  {@code pollIntervalMillis} is not positive
+     */
+    // CHECKSTYLE:OFF
+    // this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+    // suppress warnings about the long (but descriptive) parameter names
+    // suppress warnings about catching RuntimeException (an unexpected error must not cancel the scheduled polls)
+    @SuppressWarnings({"PMD.LongVariable", "PMD.AvoidCatchingGenericException"})
+    // CHECKSTYLE:ON
+    public ReferenceTable(final ConnectionProperties poolSpec, final String loadSql, final String versionSql,
+                          final long pollIntervalMillis, final RowMapper<K> keyMapper,
+                          final RowMapper<V> valueMapper)
+            throws FactoryException {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+        Validate.notBlank(loadSql, "The validated character sequence 'loadSql' is null or empty");
+        Validate.notBlank(versionSql, "The validated character sequence 'versionSql' is null or empty");
+        Validate.inclusiveBetween(1, Long.MAX_VALUE, pollIntervalMillis);
+        Validate.notNull(keyMapper, "The validated object 'keyMapper' is null");
+        Validate.notNull(valueMapper, "The validated object 'valueMapper' is null");
+
+        // the pool spec may be changed by the caller while the table is in use
+        this.poolSpec = new ConnectionProperties(poolSpec);
+        this.loadSql = loadSql;
+        this.versionSql = versionSql;
+        this.keyMapper = keyMapper;
+        this.valueMapper = valueMapper;
+
+        try {
+            refresh();
+        } catch (FactoryException e) {
+            poller.shutdownNow();
+            throw e;
+        }
+
+        poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    refresh();
+                } catch (FactoryException | RuntimeException e) {
+                    failedPollCount.incrementAndGet();
+                    LOG.warn("Cannot refresh the reference table, keeping the current snapshot", e);
+                }
+            }
+        }, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return the value of a key in the current snapshot
+     *
+     * @param key The key
+     * @return The value, or {@code null} if the snapshot does not contain the key
+     */
+    public V get(final K key) {
+
+        return snapshot.map.get(key);
+    }
+
+    /**
+     * Return the current snapshot. The snapshot cannot be modified, and does not change when a new snapshot is loaded.
+     *
+     * @return The current snapshot
+     */
+    public Map<K, V> getSnapshot() {
+
+        return snapshot.map;
+    }
+
+    /**
+     * @return The version of the current snapshot
+     */
+    public Object getVersion() {
+
+        return snapshot.version;
+    }
+
+    /**
+     * @return The number of snapshots that have been loaded (including the first snapshot)
+     */
+    public long getLoadCount() {
+
+        return loadCount.get();
+    }
+
+    /**
+     * @return The number of polls that have failed
+     */
+    public long getFailedPollCount() {
+
+        return failedPollCount.get();
+    }
+
+    /**
+     * Poll the version now (instead of waiting for the next scheduled poll), and load a new snapshot if the version
+     * has changed.
+     *
+     * @return {@code true} if a new snapshot has been loaded
+     * @throws FactoryException When the version or the snapshot cannot be loaded
+     */
+    public boolean refresh()
+            throws FactoryException {
+
+        synchronized (this) {
+            final Snapshot<K, V> current = snapshot;
+            final Connection connection = getConnection();
+            try {
+                final Object version = queryVersion(connection);
+                if (current != null && isSameVersion(version, current.version)) {
+                    return false;
+                }
+
+                snapshot = new Snapshot<>(version, queryRows(connection));
+                loadCount.incrementAndGet();
+                LOG.debug("Loaded a new snapshot of the reference table with version '" + version + "'");
+                return true;
+            } catch (SQLException e) {
+                final String error = "Cannot load the reference table with '" + loadSql + "'";
+                LOG.warn(error, e);
+                throw new FactoryException(error, e);
+            } finally {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    LOG.warn("Cannot return the connection to the pool", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop polling the version. The current snapshot remains readable.
+     */
+    @Override
+    public void close() {
+
+        poller.shutdownNow();
+    }
+
+    /**
+     * Obtain a connection from the data source of the pool spec
+     *
+     * @return A connection
+     * @throws FactoryException When the connection cannot be obtained
+     */
+    private Connection getConnection()
+            throws FactoryException {
+
+        try {
+            return DataSourceFactory.getDataSource(poolSpec).getConnection();
+        } catch (SQLException e) {
+            final String error = "Cannot obtain a connection for the reference table";
+            LOG.warn(error, e);
+            throw new FactoryException(error, e);
+        }
+    }
+
+    /**
+     * Query the version of the table
+     *
+     * @param connection The connection to use
+     * @return The version (which may be {@code null}, e.g. for an empty table)
+     * @throws SQLException When the query fails
+     */
+    private Object queryVersion(final Connection connection)
+            throws SQLException {
+
+        final PreparedStatement statement = connection.prepareStatement(versionSql);
+        try {
+            final ResultSet resultSet = statement.executeQuery();
+            try {
+                if (resultSet.next()) {
+                    return resultSet.getObject(1);
+                }
+                return null;
+            } finally {
+                resultSet.close();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Query the rows of the table, and map them to an immutable map
+     *
+     * @param connection The connection to use
+     * @return The map
+     * @throws SQLException When the query fails
+     */
+    // suppress warnings about the map type (the map is filled by one thread, and published as an immutable map)
+    @SuppressWarnings("PMD.UseConcurrentHashMap")
+    private Map<K, V> queryRows(final Connection connection)
+            throws SQLException {
+
+        final Map<K, V> map = new HashMap<>();
+        final PreparedStatement statement = connection.prepareStatement(loadSql);
+        try {
+            final ResultSet resultSet = statement.executeQuery();
+            try {
+                while (resultSet.next()) {
+                    map.put(keyMapper.mapRow(resultSet), valueMapper.mapRow(resultSet));
+                }
+            } finally {
+                resultSet.close();
+            }
+        } finally {
+            statement.close();
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Compare two versions. Binary versions (e.g. a row version or a hash) are compared by their content.
+     *
+     * @param version  The version that has just been queried
+     * @param previous The version of the current snapshot
+     * @return {@code true} when both versions are equal
+     */
+    private static boolean isSameVersion(final Object version, final Object previous) {
+
+        if (version instanceof byte[] && previous instanceof byte[]) {
+            return Arrays.equals((byte[]) version, (byte[]) previous);
+        }
+        return Objects.equals(version, previous);
+    }
+
+    /**
+     * An immutable snapshot of the table
+     *
+     * @param <K> The type of the keys
+     * @param <V> The type of the values
+     */
+    private static final class Snapshot<K, V> {
+
+        /**
+         * The version of the snapshot
+         */
+        private final Object version;
+
+        /**
+         * The rows of the snapshot
+         */
+        private final Map<K, V> map;
+
+        /**
+         * Create a snapshot
+         *
+         * @param version The version of the snapshot
+         * @param map     The rows of the snapshot
+         */
+        Snapshot(final Object version, final Map<K, V> map) {
+
+            this.version = version;
+            this.map = map;
+        }
+    }
+
+    /**
+     * Creates the daemon threads that poll the versions
+     */
+    private static final class PollerThreadFactory
+            implements ThreadFactory {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Thread newThread(final Runnable runnable) {
+
+            final Thread thread = new Thread(runnable, "reference-table-poller-" + TABLE_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
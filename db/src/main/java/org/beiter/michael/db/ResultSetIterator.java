@@ -0,0 +1,291 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator that streams the rows of a query, without materializing the result set in memory.
+ * <p>
+ * The query runs on a connection from {@link ConnectionFactory#getConnection(ConnectionProperties)}, with a forward
+ * only, read only result set and the provided driver fetch size, so that the driver only holds one fetch of rows at a
+ * time. Auto-commit is turned off while the rows are read, because some drivers (e.g. PostgreSQL) only stream the
+ * rows through a cursor within a transaction. Rows are mapped lazily with a {@link RowMapper} when they are returned
+ * by {@link #next()}.
+ * <p>
+ * The connection is returned to its pool when the last row has been read, when reading a row fails, or when the
+ * iterator is closed, whichever happens first. Use the iterator in a try-with-resources statement to make sure that
+ * the connection is returned if the caller stops reading early:
+ * <pre>
+ * try (ResultSetIterator&lt;String&gt; rows = ResultSetIterator.query(poolSpec, sql, 1000, mapper)) {
+ *     while (rows.hasNext()) {
+ *         export(rows.next());
+ *     }
+ * }
+ * </pre>
+ * Errors while reading the rows are thrown as {@link IllegalStateException}s that wrap the {@link SQLException},
+ * because the {@link Iterator} methods cannot throw checked exceptions. Instances of this class are not thread safe.
+ *
+ * @param <T> The type of the mapped rows
+ */
+public final class ResultSetIterator<T>
+        implements Iterator<T>, AutoCloseable {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ResultSetIterator.class);
+
+    /**
+     * The connection that the query runs on
+     */
+    private final Connection connection;
+
+    /**
+     * The auto-commit setting of the connection before the query, which is restored when the iterator is closed
+     */
+    private final boolean autoCommit;
+
+    /**
+     * The statement of the query
+     */
+    private final PreparedStatement statement;
+
+    /**
+     * The result set of the query
+     */
+    private final ResultSet resultSet;
+
+    /**
+     * The mapper of the rows
+     */
+    private final RowMapper<T> rowMapper;
+
+    /**
+     * {@code true} when the cursor has been moved to a row that has not been returned yet
+     */
+    private boolean rowPending;
+
+    /**
+     * {@code true} when the iterator has been closed
+     */
+    private boolean closed;
+
+    /**
+     * Create an iterator over the result set of a query that has been executed
+     *
+     * @param connection The connection that the query runs on
+     * @param autoCommit The auto-commit setting of the connection before the query
+     * @param statement  The statement of the query
+     * @param resultSet  The result set of the query
+     * @param rowMapper  The mapper of the rows
+     */
+    private ResultSetIterator(final Connection connection, final boolean autoCommit,
+                              final PreparedStatement statement, final ResultSet resultSet,
+                              final RowMapper<T> rowMapper) {
+
+        this.connection = connection;
+        this.autoCommit = autoCommit;
+        this.statement = statement;
+        this.resultSet = resultSet;
+        this.rowMapper = rowMapper;
+    }
+
+    /**
+     * Run a query on a connection from a pool that manages JDBC driver based connections, and stream its rows.
+     *
+     * @param poolSpec   A connection pool spec that has the driver and url configured as non-empty strings
+     * @param sql        The parameterized SQL query
+     * @param fetchSize  The number of rows that the driver fetches from the database at a time (0 to use the driver
+     *                   default)
+     * @param rowMapper  The mapper of the rows
+     * @param parameters The parameters of the query, which are bound with
+     *                   {@link PreparedStatement#setObject(int, Object)}
+     * @param <T>        The type of the mapped rows
+     * @return The iterator over the mapped rows, which must be closed by the caller
+     * @throws FactoryException         When the connection cannot be obtained, or the query cannot be executed
+     * @throws NullPointerException     When {@code poolSpec}, {@code sql}, {@code rowMapper}, or {@code parameters}
+     *                                  are {@code null}
+     * @throws IllegalArgumentException When {@code sql} is empty, or {@code fetchSize} is negative
+     */
+    // suppress warnings about the resource handling (the returned iterator closes the result set)
+    @SuppressWarnings("PMD.CloseResource")
+    public static <T> ResultSetIterator<T> query(final ConnectionProperties poolSpec, final String sql,
+                                                 final int fetchSize, final RowMapper<T> rowMapper,
+                                                 final Object... parameters)
+            throws FactoryException {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+        Validate.notBlank(sql, "The validated character sequence 'sql' is null or empty");
+        Validate.inclusiveBetween(0, Integer.MAX_VALUE, fetchSize);
+        Validate.notNull(rowMapper, "The validated object 'rowMapper' is null");
+        Validate.notNull(parameters, "The validated object 'parameters' is null");
+
+        final Connection connection = ConnectionFactory.getConnection(poolSpec);
+        try {
+            final boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+
+            final PreparedStatement statement =
+                    connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            try {
+                statement.setFetchSize(fetchSize);
+                for (int i = 0; i < parameters.length; i++) {
+                    statement.setObject(i + 1, parameters[i]);
+                }
+                final ResultSet resultSet = statement.executeQuery();
+                return new ResultSetIterator<>(connection, autoCommit, statement, resultSet, rowMapper);
+            } catch (SQLException e) {
+                statement.close();
+                throw e;
+            }
+        } catch (SQLException e) {
+            closeQuietly(connection);
+            final String error = "Cannot execute the query '" + sql + "'";
+            LOG.warn(error, e);
+            throw new FactoryException(error, e);
+        }
+    }
+
+    /**
+     * Check if there is another row. The connection is returned to its pool after the last row.
+     *
+     * @return {@code true} if there is another row
+     * @throws IllegalStateException When the next row cannot be read
+     */
+    @Override
+    public boolean hasNext() {
+
+        if (rowPending) {
+            return true;
+        }
+        if (closed) {
+            return false;
+        }
+
+        try {
+            rowPending = resultSet.next();
+        } catch (SQLException e) {
+            close();
+            throw new IllegalStateException("Cannot read the next row", e);
+        }
+        if (!rowPending) {
+            close();
+        }
+        return rowPending;
+    }
+
+    /**
+     * Map and return the next row.
+     *
+     * @return The mapped row
+     * @throws NoSuchElementException When there are no more rows
+     * @throws IllegalStateException  When the next row cannot be read or mapped
+     */
+    @Override
+    public T next() {
+
+        if (!hasNext()) {
+            throw new NoSuchElementException("There are no more rows");
+        }
+        rowPending = false;
+
+        try {
+            return rowMapper.mapRow(resultSet);
+        } catch (SQLException e) {
+            close();
+            throw new IllegalStateException("Cannot map the row", e);
+        }
+    }
+
+    /**
+     * This operation is not supported, because the rows are read only.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void remove() {
+
+        throw new UnsupportedOperationException("The rows of a query cannot be removed");
+    }
+
+    /**
+     * Close the result set and the statement, and return the connection to its pool. Rows that have not been read
+     * are discarded. Errors are logged, and closing an iterator more than once has no effect.
+     */
+    @Override
+    public void close() {
+
+        if (closed) {
+            return;
+        }
+        closed = true;
+        rowPending = false;
+
+        try {
+            resultSet.close();
+            statement.close();
+
+            // the transaction only read rows
+            connection.rollback();
+            connection.setAutoCommit(autoCommit);
+        } catch (SQLException e) {
+            LOG.warn("Cannot close the result set of the query", e);
+        } finally {
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Return a connection to its pool, ignoring any errors
+     *
+     * @param connection The connection
+     */
+    private static void closeQuietly(final Connection connection) {
+
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOG.warn("Cannot return the connection to the pool", e);
+        }
+    }
+}
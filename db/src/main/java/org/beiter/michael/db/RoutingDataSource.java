@@ -0,0 +1,290 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db;
+
+import org.apache.commons.lang3.Validate;
+import org.beiter.michael.db.pool.PoolMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A data source that splits reads and writes between the pool of a primary database and the pools of its read
+ * replicas.
+ * <p>
+ * Read-write connections are always borrowed from the primary database. Read-only connections are borrowed from a
+ * replica, which is selected with the "power of two choices": two replicas are picked at random, and the one with
+ * fewer borrowed connections is used. This spreads the load almost as well as always picking the least loaded replica,
+ * without having to compare all replicas, and without sending all requests to the same replica in a burst.
+ * <p>
+ * A replica that fails to provide a connection is not used for <code>replicaRetryMillis</code>. If no replica is
+ * available, read-only connections are borrowed from the primary database (and marked read-only).
+ * <p>
+ * Instances are created by {@link DataSourceFactory#getRoutingDataSource(ConnectionProperties)}.
+ */
+public final class RoutingDataSource
+        extends PoolGroupDataSource {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(RoutingDataSource.class);
+
+    /**
+     * The read replicas
+     */
+    private final Replica[] replicas;
+
+    /**
+     * {@code true} if {@link #getConnection()} returns read-only connections
+     */
+    private final boolean defaultReadOnly;
+
+    /**
+     * The time (in nanoseconds) that a failed replica is not used
+     */
+    private final long retryNanos;
+
+    /**
+     * Create a routing data source
+     *
+     * @param primary         The data source of the primary database
+     * @param replicas        The read replicas
+     * @param defaultReadOnly {@code true} if {@link #getConnection()} returns read-only connections
+     * @param retryMillis     The time (in milliseconds) that a failed replica is not used
+     */
+    RoutingDataSource(final DataSource primary, final List<Replica> replicas, final boolean defaultReadOnly,
+                      final long retryMillis) {
+
+        super(primary);
+
+        assert replicas != null : "The replicas cannot be null";
+
+        this.replicas = replicas.toArray(new Replica[replicas.size()]);
+        this.defaultReadOnly = defaultReadOnly;
+        this.retryNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, retryMillis));
+    }
+
+    /**
+     * Borrow a connection, which is read-only if <code>defaultReadOnly</code> is set in the connection pool spec of
+     * this data source.
+     *
+     * @return A connection
+     * @throws SQLException When no connection can be obtained
+     * @see #getConnection(boolean)
+     */
+    @Override
+    public Connection getConnection()
+            throws SQLException {
+
+        return getConnection(defaultReadOnly);
+    }
+
+    /**
+     * Borrow a connection from the primary database, or a read-only connection from a replica.
+     *
+     * @param readOnly {@code true} to borrow a read-only connection, which is usually served by a replica
+     * @return A connection
+     * @throws SQLException When no connection can be obtained
+     */
+    public Connection getConnection(final boolean readOnly)
+            throws SQLException {
+
+        if (!readOnly) {
+            return getPrimary().getConnection();
+        }
+
+        // every failed replica is excluded for the retry period, so each replica is tried at most once
+        for (int attempt = 0; attempt < replicas.length; attempt++) {
+            final Replica replica = selectReplica();
+            if (replica == null) {
+                break;
+            }
+
+            try {
+                return replica.dataSource.getConnection();
+            } catch (SQLException e) {
+                replica.retryAtNanos = System.nanoTime() + retryNanos;
+                replica.failed = true;
+                LOG.warn("Read replica '" + replica.url + "' failed to provide a connection, not using it for "
+                        + TimeUnit.NANOSECONDS.toMillis(retryNanos) + "ms", e);
+            }
+        }
+
+        LOG.debug("No read replica available, using the primary database for a read-only connection");
+        final Connection connection = getPrimary().getConnection();
+        try {
+            connection.setReadOnly(true);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * @return The number of read replicas
+     */
+    public int getReplicaCount() {
+
+        return replicas.length;
+    }
+
+    /**
+     * @return The number of read replicas that are currently used for read-only connections
+     */
+    public int getAvailableReplicaCount() {
+
+        final long now = System.nanoTime();
+        int available = 0;
+        for (final Replica replica : replicas) {
+            if (replica.isAvailable(now)) {
+                available++;
+            }
+        }
+        return available;
+    }
+
+    /**
+     * Select a replica with the "power of two choices"
+     *
+     * @return The selected replica, or {@code null} if no replica is available
+     */
+    // suppress warnings about the literal (there is no second choice when there is only one replica)
+    @SuppressWarnings("PMD.AvoidLiteralsInIfCondition")
+    private Replica selectReplica() {
+
+        if (replicas.length == 0) {
+            return null;
+        }
+
+        final long now = System.nanoTime();
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int first = findAvailable(random.nextInt(replicas.length), now);
+        if (first < 0) {
+            return null;
+        } else if (replicas.length == 1) {
+            return replicas[first];
+        }
+
+        // start the search for the second replica at a different position than the first one
+        // the search finds at least the first replica, which is available
+        final int second = findAvailable((first + 1 + random.nextInt(replicas.length - 1)) % replicas.length, now);
+        if (replicas[second].metrics.getNumActive() < replicas[first].metrics.getNumActive()) {
+            return replicas[second];
+        }
+        return replicas[first];
+    }
+
+    /**
+     * Find the first available replica, starting at a position in the list of replicas
+     *
+     * @param start The position to start at
+     * @param now   The current time in nanoseconds
+     * @return The position of the first available replica, or -1 if no replica is available
+     */
+    private int findAvailable(final int start, final long now) {
+
+        for (int i = 0; i < replicas.length; i++) {
+            final int index = (start + i) % replicas.length;
+            if (replicas[index].isAvailable(now)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A read replica and the state of its pool
+     */
+    static final class Replica {
+
+        /**
+         * The JDBC URL of the replica
+         */
+        private final String url;
+
+        /**
+         * The data source of the pool of the replica
+         */
+        private final DataSource dataSource;
+
+        /**
+         * The metrics of the pool of the replica
+         */
+        private final PoolMetrics metrics;
+
+        /**
+         * {@code true} if the replica has failed to provide a connection
+         */
+        private volatile boolean failed;
+
+        /**
+         * The time (in nanoseconds) when a failed replica is tried again
+         */
+        private volatile long retryAtNanos;
+
+        /**
+         * Create a read replica
+         *
+         * @param url        The JDBC URL of the replica
+         * @param dataSource The data source of the pool of the replica
+         * @param metrics    The metrics of the pool of the replica
+         */
+        Replica(final String url, final DataSource dataSource, final PoolMetrics metrics) {
+
+            Validate.notNull(url, "The validated object 'url' is null");
+            Validate.notNull(dataSource, "The validated object 'dataSource' is null");
+            Validate.notNull(metrics, "The validated object 'metrics' is null");
+
+            this.url = url;
+            this.dataSource = dataSource;
+            this.metrics = metrics;
+        }
+
+        /**
+         * @param now The current time in nanoseconds
+         * @return {@code true} if the replica can be used
+         */
+        private boolean isAvailable(final long now) {
+
+            return !failed || now - retryAtNanos >= 0;
+        }
+    }
+}
@@ -0,0 +1,1105 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.beiter.michael.db.ConnectionProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection pool that keeps its connections in a {@link ConcurrentBag}.
+ * <p>
+ * Borrowing a connection first tries to claim an idle connection from the bag. If there is none and the pool is
+ * below {@code maxTotal}, a new physical connection is created on the borrowing thread. Otherwise, the thread waits
+ * up to {@code maxWaitMillis} for a connection to be handed off by a returning thread. While all creation slots of
+ * the {@link CreationThrottle} are busy, the thread does not wait for a slot, but takes whichever comes first: a
+ * connection that is returned to the pool, or a creation slot that becomes available (the throttle wakes the thread
+ * up through the bag when a slot is released).
+ * <p>
+ * Idle connections are evicted, validated, and replenished to {@code minIdle} by a house keeping thread, which only
+ * runs if {@code timeBetweenEvictionRunsMillis} is positive.
+ * <p>
+ * If {@code idleValidationIntervalMillis} is positive, the same thread also validates the idle connections that have
+ * not been validated or used within the interval, and evicts the connections that fail. Instead of running at a fixed
+ * rate, each validation cycle is scheduled for the time when the next idle connection becomes due. When a borrower
+ * reports a failure, all idle connections are marked for validation on borrow, and are validated right away.
+ * <p>
+ * When the pool is reconfigured, the new settings replace the pool spec as a whole. If the pool has more connections
+ * than the new {@code maxTotal}, the surplus connections are destroyed one by one as they are returned, or by the
+ * house keeping if they are idle.
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about a potential God class and the complexity of borrowing (the pool is one state machine)
+// suppress warnings about the class length (the pool, its house keeping, and its idle validation are one unit)
+// suppress warnings about the long (but descriptive) constant names
+// suppress warnings about the package private scope (the pool is used by the pooled connections in this package)
+// suppress warnings about using threads (the pool runs its own house keeping, it is not a J2EE component)
+@SuppressWarnings({"PMD.GodClass", "PMD.ExcessiveClassLength", "PMD.TooManyMethods", "PMD.CyclomaticComplexity", "PMD.StdCyclomaticComplexity", "PMD.ModifiedCyclomaticComplexity", "PMD.NPathComplexity", "PMD.LongVariable", "PMD.DefaultPackage", "PMD.DoNotUseThreads"})
+// CHECKSTYLE:ON
+final class BuiltinManagedPool
+        implements ReconfigurableManagedPool {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(BuiltinManagedPool.class);
+
+    /**
+     * The timeout for validating a connection with {@link Connection#isValid(int)}
+     */
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    /**
+     * Counts the pools, to give the house keeping threads unique names
+     */
+    private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+    /**
+     * The creator of physical database connections
+     */
+    private final ConnectionCreator connectionCreator;
+
+    /**
+     * The connection pool spec (replaced as a whole when the pool is reconfigured, and never modified)
+     */
+    private volatile ConnectionProperties poolSpec;
+
+    /**
+     * The connections in the pool
+     */
+    private final ConcurrentBag<PoolEntry> bag = new ConcurrentBag<>();
+
+    /**
+     * The number of physical connections, including the connections that are currently being created
+     */
+    private final AtomicInteger totalConnections = new AtomicInteger();
+
+    /**
+     * {@code true} when {@code maxIdle} can be exceeded, and must be checked whenever a connection is returned
+     */
+    private volatile boolean maxIdleEnforced;
+
+    /**
+     * The pooled data source
+     */
+    private final DataSource dataSource = new PoolDataSource();
+
+    /**
+     * The executor of the house keeping (which only starts a thread once the house keeping is scheduled)
+     */
+    private final ScheduledExecutorService houseKeeper =
+            Executors.newSingleThreadScheduledExecutor(new HouseKeeperThreadFactory());
+
+    /**
+     * The scheduled house keeping, or {@code null} if the pool has no house keeping
+     */
+    private ScheduledFuture<?> houseKeeping;
+
+    /**
+     * The next scheduled cycle of the background validation of idle connections, or {@code null} if the idle
+     * connections are not validated in the background
+     */
+    private ScheduledFuture<?> idleValidation;
+
+    /**
+     * Identifies the current schedule of the background validation, so that a cycle that is still running when the
+     * schedule is replaced does not schedule a follow-up cycle
+     */
+    private int idleValidationGeneration;
+
+    /**
+     * {@code true} when an immediate validation of the idle connections has been requested, but has not started yet
+     */
+    private final AtomicBoolean repairPending = new AtomicBoolean();
+
+    /**
+     * {@code true} when new connections for the waiting threads have been requested, but their creation has not
+     * started yet
+     */
+    private final AtomicBoolean refillPending = new AtomicBoolean();
+
+    /**
+     * {@code true} when the pool has been closed
+     */
+    private volatile boolean closed;
+
+    /**
+     * Create a new pool. No connections are opened until they are needed.
+     *
+     * @param connectionCreator The creator of physical database connections
+     * @param poolSpec          The connection pool spec
+     */
+    BuiltinManagedPool(final ConnectionCreator connectionCreator, final ConnectionProperties poolSpec) {
+
+        assert connectionCreator != null : "The connection creator cannot be null";
+        assert poolSpec != null : "The pool spec cannot be null";
+
+        this.connectionCreator = connectionCreator;
+        applyPoolSpec(poolSpec);
+
+        // wake up a borrower that waits for a returned connection while the connection creation is throttled
+        connectionCreator.addCreationSlotListener(new Runnable() {
+            @Override
+            public void run() {
+                bag.wakeUp();
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DataSource getDataSource() {
+
+        return dataSource;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumActive() {
+
+        return bag.getCount(ConcurrentBag.STATE_IN_USE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumIdle() {
+
+        return bag.getCount(ConcurrentBag.STATE_NOT_IN_USE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+
+        synchronized (this) {
+            closed = true;
+            houseKeeper.shutdownNow();
+        }
+        // release the threads that are waiting for a connection, they fail with "pool is closed"
+        bag.close();
+        for (final PoolEntry entry : bag.values(ConcurrentBag.STATE_NOT_IN_USE)) {
+            if (bag.reserve(entry)) {
+                destroy(entry);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reconfigure(final ConnectionProperties spec) {
+
+        Validate.notNull(spec, "The validated object 'spec' is null");
+
+        applyPoolSpec(spec);
+
+        // hand off new connections to the threads that are waiting, if the pool has grown
+        refill();
+    }
+
+    /**
+     * Replace the pool spec, and (re)schedule the house keeping if its period has changed.
+     *
+     * @param spec The connection pool spec
+     */
+    private void applyPoolSpec(final ConnectionProperties spec) {
+
+        synchronized (this) {
+            final ConnectionProperties oldSpec = poolSpec;
+            final ConnectionProperties newSpec = new ConnectionProperties(spec);
+            if (oldSpec != null) {
+                // the statement caches of the connections are only set up when the pool is created
+                newSpec.setPoolPreparedStatements(oldSpec.isPoolPreparedStatements());
+                newSpec.setMaxOpenPreparedStatements(oldSpec.getMaxOpenPreparedStatements());
+            }
+            maxIdleEnforced = newSpec.getMaxIdle() >= 0
+                    && (newSpec.getMaxTotal() < 0 || newSpec.getMaxIdle() < newSpec.getMaxTotal());
+            poolSpec = newSpec;
+
+            if (!closed) {
+                scheduleHouseKeeping(oldSpec, newSpec);
+                scheduleIdleValidation(oldSpec, newSpec);
+            }
+        }
+    }
+
+    /**
+     * (Re)schedule the house keeping if its period has changed.
+     *
+     * @param oldSpec The previous connection pool spec, or {@code null} if the pool is being created
+     * @param newSpec The new connection pool spec
+     */
+    // suppress warnings about clearing the schedule (it marks the house keeping as not scheduled)
+    @SuppressWarnings("PMD.NullAssignment")
+    private void scheduleHouseKeeping(final ConnectionProperties oldSpec,
+                                                   final ConnectionProperties newSpec) {
+
+        synchronized (this) {
+            final long period = newSpec.getTimeBetweenEvictionRunsMillis();
+            // the old spec is set whenever the house keeping has been scheduled
+            if (houseKeeping != null && period == oldSpec.getTimeBetweenEvictionRunsMillis()) {
+                return;
+            }
+            if (houseKeeping != null) {
+                houseKeeping.cancel(false);
+                houseKeeping = null;
+            }
+            if (period > 0) {
+                houseKeeping = houseKeeper.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        houseKeep();
+                    }
+                }, period, period, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * (Re)schedule the background validation of idle connections if its interval has changed.
+     *
+     * @param oldSpec The previous connection pool spec, or {@code null} if the pool is being created
+     * @param newSpec The new connection pool spec
+     */
+    // suppress warnings about clearing the schedule (it marks the idle validation as not scheduled)
+    @SuppressWarnings("PMD.NullAssignment")
+    private void scheduleIdleValidation(final ConnectionProperties oldSpec,
+                                                     final ConnectionProperties newSpec) {
+
+        synchronized (this) {
+            final long interval = newSpec.getIdleValidationIntervalMillis();
+            // the old spec is set whenever the idle validation has been scheduled
+            if (idleValidation != null && interval == oldSpec.getIdleValidationIntervalMillis()) {
+                return;
+            }
+            if (idleValidation != null) {
+                idleValidation.cancel(false);
+                idleValidation = null;
+            }
+            idleValidationGeneration++;
+            if (interval > 0) {
+                scheduleIdleValidation(idleValidationGeneration, interval);
+            }
+        }
+    }
+
+    /**
+     * Schedule the next cycle of the background validation of idle connections, unless the pool has been closed or
+     * the schedule has been replaced in the meantime.
+     *
+     * @param generation  The schedule that the cycle belongs to
+     * @param delayMillis The delay until the cycle runs
+     */
+    private void scheduleIdleValidation(final int generation, final long delayMillis) {
+
+        synchronized (this) {
+            if (closed || generation != idleValidationGeneration) {
+                return;
+            }
+            idleValidation = houseKeeper.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    scheduleIdleValidation(generation, validateIdle());
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Handle a connection failure that a borrower has reported: mark all idle connections for validation on their
+     * next borrow, and validate them right away in the background (if background validation is enabled).
+     */
+    private void repair() {
+
+        connectionCreator.getMetrics().recordReportedFailure();
+        if (poolSpec.getIdleValidationIntervalMillis() <= 0) {
+            return;
+        }
+
+        for (final PoolEntry entry : bag.values(ConcurrentBag.STATE_NOT_IN_USE)) {
+            entry.markSuspect();
+        }
+
+        // one pending repair covers all failures that are reported until it starts
+        if (!repairPending.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            houseKeeper.execute(new Runnable() {
+                @Override
+                public void run() {
+                    repairPending.set(false);
+                    validateIdle();
+                }
+            });
+        }
+    }
+
+    /**
+     * Create new connections for the threads that are waiting for a connection in the background, so that the thread
+     * that triggered the refill (e.g. by returning a broken connection) does not have to wait for the database.
+     */
+    private void refill() {
+
+        if (bag.getWaitingThreadCount() == 0) {
+            return;
+        }
+
+        // one pending refill serves all threads that are waiting when it starts
+        if (!refillPending.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            houseKeeper.execute(new Runnable() {
+                @Override
+                public void run() {
+                    refillPending.set(false);
+                    while (!closed && bag.getWaitingThreadCount() > 0 && addIdleEntry()) {
+                        LOG.debug("Added a connection for a waiting thread for '" + connectionCreator.getUrl() + "'");
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The default auto-commit setting of the connections
+     */
+    boolean isDefaultAutoCommit() {
+
+        return poolSpec.isDefaultAutoCommit();
+    }
+
+    /**
+     * @return The default read-only setting of the connections
+     */
+    boolean isDefaultReadOnly() {
+
+        return poolSpec.isDefaultReadOnly();
+    }
+
+    /**
+     * @return The default transaction isolation level of the connections
+     */
+    int getDefaultTransactionIsolation() {
+
+        return poolSpec.getDefaultTransactionIsolation();
+    }
+
+    /**
+     * Borrow a connection from the pool.
+     *
+     * @return A pooled connection
+     * @throws SQLException When no connection can be obtained within {@code maxWaitMillis}, or when a new connection
+     *                      cannot be created
+     */
+    // suppress warnings about the return at the end of the retry loop (it repeats only to replace a bad connection)
+    @SuppressWarnings("PMD.AvoidBranchingStatementAsLastInLoop")
+    Connection borrow()
+            throws SQLException {
+
+        final long maxWaitMillis = poolSpec.getMaxWaitMillis();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMillis));
+
+        while (true) {
+            if (closed) {
+                throw new SQLException("The connection pool is closed");
+            }
+
+            // read the wake-up count before checking the throttle, so that a slot released afterwards is not missed
+            final long wakeUpCount = bag.getWakeUpCount();
+            boolean created = false;
+            PoolEntry entry = borrowEntry(0, wakeUpCount);
+            if (entry == null && !connectionCreator.isCreationThrottled()) {
+                entry = createEntry();
+                created = entry != null;
+            }
+            if (entry == null) {
+                // the pool is at maxTotal, or all creation slots are busy: take whichever comes first, a returned
+                // connection or a free slot
+                long waitNanos = -1;
+                if (maxWaitMillis >= 0) {
+                    waitNanos = deadline - System.nanoTime();
+                    if (waitNanos <= 0) {
+                        throw timeout(maxWaitMillis);
+                    }
+                }
+                entry = borrowEntry(waitNanos, wakeUpCount);
+                if (entry == null && bag.getWakeUpCount() != wakeUpCount) {
+                    continue;
+                }
+            }
+            if (entry == null && closed) {
+                throw new SQLException("The connection pool is closed");
+            }
+            if (entry == null) {
+                throw timeout(maxWaitMillis);
+            }
+
+            if (isExpired(entry, System.currentTimeMillis()) || !isValidOnBorrow(entry, created)) {
+                destroy(entry);
+                continue;
+            }
+
+            entry.touch();
+            return new BuiltinPooledConnection(this, entry);
+        }
+    }
+
+    /**
+     * Create the exception for a borrower that did not get a connection in time
+     *
+     * @param maxWaitMillis The maximum time to wait for a connection
+     * @return The exception to throw
+     */
+    private SQLTransientConnectionException timeout(final long maxWaitMillis) {
+
+        return new SQLTransientConnectionException("Timeout waiting for an idle connection after "
+                + maxWaitMillis + "ms (" + getNumActive() + " active, " + totalConnections.get() + " total)");
+    }
+
+    /**
+     * Return a borrowed connection to the pool.
+     *
+     * @param entry  The pool entry of the borrowed connection
+     * @param broken {@code true} if the connection must not be reused
+     */
+    void release(final PoolEntry entry, final boolean broken) {
+
+        if (broken && !closed) {
+            repair();
+        }
+        if (broken || closed || isSurplus() || isExpired(entry, System.currentTimeMillis())
+                || !isValidOnReturn(entry)) {
+            destroy(entry);
+            return;
+        }
+
+        if (maxIdleEnforced && bag.getWaitingThreadCount() == 0
+                && bag.getCount(ConcurrentBag.STATE_NOT_IN_USE) >= poolSpec.getMaxIdle()) {
+            destroy(entry);
+            return;
+        }
+
+        entry.touch();
+        bag.requite(entry);
+    }
+
+    /**
+     * Borrow an idle connection from the bag.
+     *
+     * @param timeoutNanos The maximum time to wait, 0 to not wait at all, or negative to wait indefinitely
+     * @param wakeUpCount  The wake-up count of the bag that has been read before deciding to wait
+     * @return The borrowed pool entry, or {@code null} if no entry became available within the timeout, or the bag
+     * has been closed or woken up
+     * @throws SQLException When the thread is interrupted while waiting
+     */
+    private PoolEntry borrowEntry(final long timeoutNanos, final long wakeUpCount)
+            throws SQLException {
+
+        try {
+            return bag.borrow(timeoutNanos, TimeUnit.NANOSECONDS, wakeUpCount);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+    }
+
+    /**
+     * Create a new physical connection on the calling thread, if the pool is below {@code maxTotal}. The new
+     * connection is added to the pool as borrowed.
+     *
+     * @return The pool entry of the new connection, or {@code null} if the pool is already at {@code maxTotal}
+     * @throws SQLException When the connection cannot be created
+     */
+    private PoolEntry createEntry()
+            throws SQLException {
+
+        if (!reserveSlot()) {
+            return null;
+        }
+
+        final PoolEntry entry;
+        try {
+            entry = new PoolEntry(openConnection(), ConcurrentBag.STATE_IN_USE, createStatementCache());
+        } catch (SQLException e) {
+            totalConnections.decrementAndGet();
+            throw e;
+        }
+        bag.add(entry);
+        return entry;
+    }
+
+    /**
+     * @return A new cache for the prepared statements of a physical connection, or {@code null} if statements are not
+     * pooled
+     */
+    private StatementCache createStatementCache() {
+
+        if (poolSpec.isPoolPreparedStatements()) {
+            return new StatementCache(poolSpec.getMaxOpenPreparedStatements());
+        }
+        return null;
+    }
+
+    /**
+     * Create a new idle physical connection, if the pool is below {@code maxTotal}. The new connection is handed off
+     * to a waiting thread, if there is one.
+     *
+     * @return {@code true} if a connection has been added
+     */
+    private boolean addIdleEntry() {
+
+        if (!reserveSlot()) {
+            return false;
+        }
+
+        final PoolEntry entry;
+        try {
+            entry = new PoolEntry(openConnection(), ConcurrentBag.STATE_NOT_IN_USE, createStatementCache());
+        } catch (SQLException e) {
+            totalConnections.decrementAndGet();
+            LOG.warn("Cannot create a new connection for '" + connectionCreator.getUrl() + "'", e);
+            return false;
+        }
+        bag.add(entry);
+
+        // the pool may have been closed while the connection was created
+        if (closed && bag.reserve(entry)) {
+            destroy(entry);
+        }
+        return true;
+    }
+
+    /**
+     * Reserve a slot for a new physical connection, if the pool is below {@code maxTotal}.
+     *
+     * @return {@code true} if a slot has been reserved
+     */
+    private boolean reserveSlot() {
+
+        final int maxTotal = poolSpec.getMaxTotal();
+        if (maxTotal < 0) {
+            totalConnections.incrementAndGet();
+            return true;
+        }
+
+        int total;
+        do {
+            total = totalConnections.get();
+            if (total >= maxTotal) {
+                return false;
+            }
+        } while (!totalConnections.compareAndSet(total, total + 1));
+        return true;
+    }
+
+    /**
+     * Open a new physical connection, and apply the connection defaults.
+     *
+     * @return The physical connection
+     * @throws SQLException When the connection cannot be created, or fails the validation on create
+     */
+    private Connection openConnection()
+            throws SQLException {
+
+        final Connection connection = connectionCreator.createConnection();
+        try {
+            connection.setAutoCommit(poolSpec.isDefaultAutoCommit());
+            connection.setReadOnly(poolSpec.isDefaultReadOnly());
+            connection.setTransactionIsolation(poolSpec.getDefaultTransactionIsolation());
+            if (poolSpec.isTestOnCreate() && !validate(connection)) {
+                throw new SQLException("The new connection failed validation");
+            }
+        } catch (SQLException e) {
+            closeQuietly(connection);
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * Remove a connection from the pool, and close the physical connection. If there are threads waiting for a
+     * connection, a replacement connection is created in the background.
+     *
+     * @param entry The pool entry to remove (must be borrowed or reserved)
+     */
+    private void destroy(final PoolEntry entry) {
+
+        if (bag.remove(entry)) {
+            totalConnections.decrementAndGet();
+        }
+        closeQuietly(entry.getConnection());
+
+        if (!closed) {
+            refill();
+        }
+    }
+
+    /**
+     * Check if the pool has more connections than {@code maxTotal}, which happens when {@code maxTotal} has been
+     * reduced while the pool is in use.
+     *
+     * @return {@code true} if a connection should be retired
+     */
+    private boolean isSurplus() {
+
+        final int maxTotal = poolSpec.getMaxTotal();
+        return maxTotal >= 0 && totalConnections.get() > maxTotal;
+    }
+
+    /**
+     * Check if the lifetime of a connection has exceeded {@code maxConnLifetimeMillis}.
+     *
+     * @param entry The pool entry to check
+     * @param now   The current time in milliseconds since the epoch
+     * @return {@code true} if the connection has expired
+     */
+    private boolean isExpired(final PoolEntry entry, final long now) {
+
+        final long maxLifetime = poolSpec.getMaxConnLifetimeMillis();
+        return maxLifetime > 0 && now - entry.getCreatedMillis() > maxLifetime;
+    }
+
+    /**
+     * Validate a pooled connection, unless it has been validated or used within the validation interval
+     *
+     * @param entry The pool entry to validate
+     * @return {@code true} if the connection is valid
+     */
+    private boolean validate(final PoolEntry entry) {
+
+        // skip the round trip for connections that are known to have worked a moment ago
+        final long validationIntervalMillis = poolSpec.getValidationIntervalMillis();
+        if (validationIntervalMillis > 0 && !entry.isSuspect()) {
+            final long lastKnownGoodMillis = Math.max(entry.getLastAccessedMillis(), entry.getLastValidatedMillis());
+            if (System.currentTimeMillis() - lastKnownGoodMillis < validationIntervalMillis) {
+                return true;
+            }
+        }
+
+        return revalidate(entry);
+    }
+
+    /**
+     * Validate a pooled connection, and record the successful validation
+     *
+     * @param entry The pool entry to validate
+     * @return {@code true} if the connection is valid
+     */
+    private boolean revalidate(final PoolEntry entry) {
+
+        if (validate(entry.getConnection())) {
+            entry.markValidated();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Validate a physical connection with the validation query, or with {@link Connection#isValid(int)} if no
+     * validation query is configured.
+     *
+     * @param connection The physical connection to validate
+     * @return {@code true} if the connection is valid
+     */
+    // suppress warnings about the unchecked result set (the result of next() is the result of the validation)
+    @SuppressWarnings("PMD.CheckResultSet")
+    private boolean validate(final Connection connection) {
+
+        final String validationQuery = poolSpec.getValidationQuery();
+        try {
+            if (StringUtils.isBlank(validationQuery)) {
+                return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+            }
+
+            final Statement statement = connection.createStatement();
+            try {
+                final ResultSet resultSet = statement.executeQuery(validationQuery);
+                try {
+                    return resultSet.next();
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            LOG.debug("Connection validation failed", e);
+            return false;
+        }
+    }
+
+    /**
+     * Evict expired and idle connections, validate idle connections if {@code testWhileIdle} is set, and replenish
+     * the pool to {@code minIdle}.
+     */
+    // suppress warnings about catching RuntimeException (an error must not cancel the scheduled house keeping)
+    @SuppressWarnings("PMD.AvoidCatchingGenericException")
+    private void houseKeep() {
+
+        try {
+            final long now = System.currentTimeMillis();
+            final List<PoolEntry> idleEntries = bag.values(ConcurrentBag.STATE_NOT_IN_USE);
+            int idle = idleEntries.size();
+            int tests = getNumTests(idle);
+
+            for (final PoolEntry entry : idleEntries) {
+                if (!bag.reserve(entry)) {
+                    continue;
+                }
+
+                final long idleMillis = now - entry.getLastAccessedMillis();
+                boolean evict = isSurplus() || isExpired(entry, now) || isEvictableIdle(idleMillis, idle);
+                if (!evict && poolSpec.isTestWhileIdle() && tests > 0) {
+                    tests--;
+                    evict = !validate(entry);
+                }
+
+                if (evict) {
+                    idle--;
+                    destroy(entry);
+                } else {
+                    bag.unreserve(entry);
+                }
+            }
+
+            while (!closed && getNumIdle() < poolSpec.getMinIdle() && addIdleEntry()) {
+                LOG.debug("Added an idle connection for '" + connectionCreator.getUrl() + "'");
+            }
+        } catch (RuntimeException e) {
+            // do not let an unexpected error cancel the scheduled house keeping
+            LOG.warn("House keeping failed for '" + connectionCreator.getUrl() + "'", e);
+        }
+    }
+
+    /**
+     * Check if a borrowed connection passes the validation on borrow. A connection that has just been created, or is
+     * not suspect while the validation on borrow is disabled, is not validated.
+     *
+     * @param entry   The pool entry of the borrowed connection
+     * @param created {@code true} if the connection has just been created for this borrower
+     * @return {@code true} if the connection is valid, or does not need to be validated
+     */
+    private boolean isValidOnBorrow(final PoolEntry entry, final boolean created) {
+
+        if (created) {
+            return true;
+        }
+        if (poolSpec.isTestOnBorrow() || entry.isSuspect()) {
+            return validate(entry);
+        }
+        return true;
+    }
+
+    /**
+     * Check if a returned connection passes the validation on return
+     *
+     * @param entry The pool entry of the returned connection
+     * @return {@code true} if the connection is valid, or if returned connections are not validated
+     */
+    private boolean isValidOnReturn(final PoolEntry entry) {
+
+        return !poolSpec.isTestOnReturn() || validate(entry);
+    }
+
+    /**
+     * Check if an idle connection has been idle long enough to be evicted
+     *
+     * @param idleMillis The time the connection has been idle
+     * @param idle       The number of idle connections in the pool
+     * @return {@code true} if the connection can be evicted
+     */
+    private boolean isEvictableIdle(final long idleMillis, final int idle) {
+
+        final long minEvictableIdleTime = poolSpec.getMinEvictableIdleTimeMillis();
+        if (minEvictableIdleTime > 0 && idleMillis > minEvictableIdleTime) {
+            return true;
+        }
+
+        final long softMinEvictableIdleTime = poolSpec.getSoftMinEvictableIdleTimeMillis();
+        return softMinEvictableIdleTime > 0 && idleMillis > softMinEvictableIdleTime && idle > poolSpec.getMinIdle();
+    }
+
+    /**
+     * Validate the idle connections that are marked for validation, or that have not been validated or used within
+     * {@code idleValidationIntervalMillis}. Connections that fail the validation are evicted, and the pool is
+     * replenished to {@code minIdle}.
+     *
+     * @return The delay in milliseconds until the next cycle: the time when the next idle connection becomes due, but
+     * at least the interval divided by the number of idle connections (plus one), so that connections that become due
+     * at about the same time are validated in the same cycle
+     */
+    // suppress warnings about catching RuntimeException (an error must not cancel the scheduled validation)
+    @SuppressWarnings("PMD.AvoidCatchingGenericException")
+    private long validateIdle() {
+
+        final long start = System.nanoTime();
+        final long interval = poolSpec.getIdleValidationIntervalMillis();
+        final List<PoolEntry> idleEntries = bag.values(ConcurrentBag.STATE_NOT_IN_USE);
+        long nextDueMillis = Long.MAX_VALUE;
+        int validated = 0;
+        int failed = 0;
+
+        try {
+            for (final PoolEntry entry : idleEntries) {
+                final long dueMillis = Math.max(entry.getLastAccessedMillis(), entry.getLastValidatedMillis())
+                        + interval;
+                if (!entry.isSuspect() && dueMillis > System.currentTimeMillis()) {
+                    nextDueMillis = Math.min(nextDueMillis, dueMillis);
+                    continue;
+                }
+
+                // the connection may have been borrowed in the meantime
+                if (!bag.reserve(entry)) {
+                    continue;
+                }
+                validated++;
+                if (revalidate(entry)) {
+                    bag.unreserve(entry);
+                } else {
+                    failed++;
+                    destroy(entry);
+                }
+            }
+
+            while (!closed && getNumIdle() < poolSpec.getMinIdle() && addIdleEntry()) {
+                LOG.debug("Added an idle connection for '" + connectionCreator.getUrl() + "'");
+            }
+        } catch (RuntimeException e) {
+            // do not let an unexpected error cancel the scheduled validation
+            LOG.warn("Background validation failed for '" + connectionCreator.getUrl() + "'", e);
+        }
+
+        connectionCreator.getMetrics().recordIdleValidation(System.nanoTime() - start, validated, failed);
+        if (failed > 0) {
+            LOG.info("Evicted " + failed + " of " + validated + " validated idle connections for '"
+                    + connectionCreator.getUrl() + "'");
+        }
+
+        final long untilNextDue = nextDueMillis - System.currentTimeMillis();
+        return Math.max(1, Math.max(Math.min(interval, untilNextDue), interval / (idleEntries.size() + 1)));
+    }
+
+    /**
+     * Return the number of idle connections to validate in a house keeping run
+     *
+     * @param idle The number of idle connections
+     * @return The number of connections to validate
+     */
+    private int getNumTests(final int idle) {
+
+        final int numTests = poolSpec.getNumTestsPerEvictionRun();
+        if (numTests >= 0) {
+            return Math.min(numTests, idle);
+        }
+        return (int) Math.ceil(idle / (double) Math.abs(numTests));
+    }
+
+    /**
+     * Close a physical connection, ignoring any errors
+     *
+     * @param connection The physical connection to close
+     */
+    private static void closeQuietly(final Connection connection) {
+
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOG.debug("Cannot close the physical connection", e);
+        }
+    }
+
+    /**
+     * Creates the daemon threads for house keeping
+     */
+    private static final class HouseKeeperThreadFactory
+            implements ThreadFactory {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Thread newThread(final Runnable runnable) {
+
+            final Thread thread = new Thread(runnable, "builtin-pool-housekeeper-" + POOL_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * The data source that hands out connections from this pool
+     */
+    private final class PoolDataSource
+            implements DataSource {
+
+        /**
+         * The log writer (not used by this data source, but part of the data source contract)
+         */
+        private volatile PrintWriter logWriter;
+
+        /**
+         * The login timeout (not used by this data source, but part of the data source contract)
+         */
+        private volatile int loginTimeout;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Connection getConnection()
+                throws SQLException {
+
+            return borrow();
+        }
+
+        /**
+         * This operation is not supported, because the credentials are managed by the {@link ConnectionCreator}.
+         *
+         * @param username The username (ignored)
+         * @param password The password (ignored)
+         * @return never returns
+         * @throws SQLFeatureNotSupportedException always
+         */
+        @Override
+        public Connection getConnection(final String username, final String password)
+                throws SQLFeatureNotSupportedException {
+
+            throw new SQLFeatureNotSupportedException("Connection credentials are managed by the pool");
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public PrintWriter getLogWriter() {
+
+            return logWriter;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setLogWriter(final PrintWriter writer) {
+
+            this.logWriter = writer;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setLoginTimeout(final int seconds) {
+
+            this.loginTimeout = seconds;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int getLoginTimeout() {
+
+            return loginTimeout;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public java.util.logging.Logger getParentLogger()
+                throws SQLFeatureNotSupportedException {
+
+            throw new SQLFeatureNotSupportedException("This data source does not use java.util.logging");
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public <T> T unwrap(final Class<T> iface)
+                throws SQLException {
+
+            if (iface.isInstance(this)) {
+                return iface.cast(this);
+            }
+            throw new SQLException("This data source does not wrap an instance of " + iface.getName());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isWrapperFor(final Class<?> iface) {
+
+            return iface.isInstance(this);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.lang3.Validate;
+import org.beiter.michael.db.ConnectionProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This pool provider creates connection pools based on a lock-free {@link ConcurrentBag}, without any dependency on
+ * an external pool library.
+ * <p>
+ * The pool engine is optimized for high borrow / return rates: a thread that returns a connection is likely to get
+ * the same connection again on its next borrow (thread-local affinity), idle connections are claimed with CAS
+ * operations instead of locks, and threads that wait for a connection receive returned connections through a direct
+ * hand-off.
+ * <p>
+ * The sizing (<code>maxTotal</code>, <code>maxIdle</code>, <code>minIdle</code>, <code>maxWaitMillis</code>),
+ * validation (<code>testOnCreate</code>, <code>testOnBorrow</code>, <code>testOnReturn</code>,
+ * <code>testWhileIdle</code>, <code>validationQuery</code>, <code>validationIntervalMillis</code>),
+ * eviction, lifetime, and connection default settings in {@link ConnectionProperties} are supported.
+ * <code>lifo</code> and <code>cacheState</code> are ignored. If no validation query is configured, connections are
+ * validated with <code>Connection.isValid()</code>.
+ * <p>
+ * Idle connections can also be validated in the background (<code>idleValidationIntervalMillis</code>), which allows
+ * to turn off <code>testOnBorrow</code> without handing out connections that died while idle.
+ */
+public final class BuiltinPoolProvider
+        implements PoolProvider {
+
+    /**
+     * The name of this pool engine
+     */
+    public static final String NAME = "builtin";
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(BuiltinPoolProvider.class);
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+
+        return NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ManagedPool createPool(final ConnectionCreator connectionCreator, final ConnectionProperties poolSpec) {
+
+        Validate.notNull(connectionCreator, "The validated object 'connectionCreator' is null");
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        LOG.debug("Creating new builtin pooled data source for '" + connectionCreator.getUrl() + "'");
+
+        return new BuiltinManagedPool(connectionCreator, poolSpec);
+    }
+}
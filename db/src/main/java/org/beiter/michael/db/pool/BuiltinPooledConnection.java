@@ -0,0 +1,545 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * A connection borrowed from a {@link BuiltinManagedPool}.
+ * <p>
+ * Closing this connection returns the physical connection to the pool. Changes to the auto-commit, read-only,
+ * transaction isolation, and catalog settings are tracked, so that only the settings that have actually been changed
+ * are reset when the connection is returned.
+ * <p>
+ * If statement pooling is enabled, prepared statements are taken from the {@link StatementCache} of the physical
+ * connection, and are put back into the cache when they are closed (or when this connection is closed).
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about a potential God class (not the case, this is triggered by the many methods of the Connection interface)
+// suppress warnings about the long (but descriptive) constant names, and the parameter names defined by Connection
+@SuppressWarnings({"PMD.GodClass", "PMD.TooManyMethods", "PMD.LongVariable"})
+// CHECKSTYLE:ON
+final class BuiltinPooledConnection
+        extends ConnectionWrapper {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(BuiltinPooledConnection.class);
+
+    /**
+     * The names of the methods that change the properties of a statement, which would carry over to the next borrower
+     * if the statement was cached
+     */
+    private static final Set<String> STATEMENT_PROPERTY_SETTERS = Collections.unmodifiableSet(new HashSet<>(
+            Arrays.asList("setMaxRows", "setLargeMaxRows", "setMaxFieldSize", "setQueryTimeout", "setFetchSize",
+                    "setFetchDirection", "setEscapeProcessing", "setCursorName", "setPoolable", "closeOnCompletion")));
+
+    /**
+     * The pool that this connection has been borrowed from
+     */
+    private final BuiltinManagedPool pool;
+
+    /**
+     * The pool entry holding the physical connection
+     */
+    private final PoolEntry entry;
+
+    /**
+     * {@code true} when this connection has been closed (i.e. returned to the pool)
+     */
+    private volatile boolean closed;
+
+    /**
+     * The current auto-commit setting of the physical connection
+     */
+    private boolean autoCommit;
+
+    /**
+     * {@code true} when the auto-commit setting has been changed
+     */
+    private boolean autoCommitDirty;
+
+    /**
+     * {@code true} when the read-only setting has been changed
+     */
+    private boolean readOnlyDirty;
+
+    /**
+     * {@code true} when the transaction isolation level has been changed
+     */
+    private boolean isolationDirty;
+
+    /**
+     * The catalog of the physical connection when it has been borrowed, if the catalog has been changed
+     */
+    private String originalCatalog;
+
+    /**
+     * {@code true} when the catalog has been changed
+     */
+    private boolean catalogDirty;
+
+    /**
+     * The pooled prepared statements that have been handed out and not yet been closed
+     */
+    private final List<CachedStatementHandler> openStatements = new ArrayList<>();
+
+    /**
+     * Create a pooled connection
+     *
+     * @param pool  The pool that this connection has been borrowed from
+     * @param entry The pool entry holding the physical connection
+     */
+    BuiltinPooledConnection(final BuiltinManagedPool pool, final PoolEntry entry) {
+
+        super();
+
+        assert pool != null : "The pool cannot be null";
+        assert entry != null : "The pool entry cannot be null";
+
+        this.pool = pool;
+        this.entry = entry;
+        this.autoCommit = pool.isDefaultAutoCommit();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Connection getDelegate()
+            throws SQLException {
+
+        if (closed) {
+            throw new SQLException("Connection is closed");
+        }
+        return entry.getConnection();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PreparedStatement prepareStatement(final String sql)
+            throws SQLException {
+
+        return prepareStatement(StatementCache.Key.of(sql));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final int resultSetType, final int resultSetConcurrency)
+            throws SQLException {
+
+        return prepareStatement(StatementCache.Key.of(sql, resultSetType, resultSetConcurrency));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final int resultSetType, final int resultSetConcurrency,
+                                              final int resultSetHoldability)
+            throws SQLException {
+
+        return prepareStatement(StatementCache.Key.of(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final int autoGeneratedKeys)
+            throws SQLException {
+
+        return prepareStatement(StatementCache.Key.ofGeneratedKeys(sql, autoGeneratedKeys));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setAutoCommit(final boolean autoCommit)
+            throws SQLException {
+
+        getDelegate().setAutoCommit(autoCommit);
+        this.autoCommit = autoCommit;
+        autoCommitDirty = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setReadOnly(final boolean readOnly)
+            throws SQLException {
+
+        getDelegate().setReadOnly(readOnly);
+        readOnlyDirty = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setTransactionIsolation(final int level)
+            throws SQLException {
+
+        getDelegate().setTransactionIsolation(level);
+        isolationDirty = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    // suppress warnings about not closing the delegate (it is closed when the connection is returned to the pool)
+    @SuppressWarnings("PMD.CloseResource")
+    @Override
+    public void setCatalog(final String catalog)
+            throws SQLException {
+
+        final Connection delegate = getDelegate();
+        if (!catalogDirty) {
+            originalCatalog = delegate.getCatalog();
+        }
+        delegate.setCatalog(catalog);
+        catalogDirty = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isValid(final int timeout)
+            throws SQLException {
+
+        return !closed && entry.getConnection().isValid(timeout);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isClosed() {
+
+        return closed;
+    }
+
+    /**
+     * Return the connection to the pool. Uncommitted work is rolled back, and the connection settings that have been
+     * changed are reset to the pool defaults.
+     * <p>
+     * If the connection cannot be reset, the physical connection is closed and removed from the pool.
+     */
+    @Override
+    public void close() {
+
+        if (closed) {
+            return;
+        }
+        closed = true;
+        returnOpenStatements();
+
+        boolean broken = false;
+        try {
+            reset(entry.getConnection());
+        } catch (SQLException e) {
+            LOG.warn("Cannot reset the connection state, discarding the connection", e);
+            broken = true;
+        }
+        pool.release(entry, broken);
+    }
+
+    /**
+     * Abort the physical connection, and remove it from the pool.
+     *
+     * @param executor The executor used by the physical connection to abort
+     * @throws SQLException When the physical connection cannot be aborted
+     */
+    @Override
+    public void abort(final Executor executor)
+            throws SQLException {
+
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            entry.getConnection().abort(executor);
+        } finally {
+            pool.release(entry, true);
+        }
+    }
+
+    /**
+     * Reset the state of the physical connection to the pool defaults
+     *
+     * @param connection The physical connection
+     * @throws SQLException When the connection state cannot be reset
+     */
+    private void reset(final Connection connection)
+            throws SQLException {
+
+        if (!autoCommit) {
+            connection.rollback();
+        }
+        if (autoCommitDirty) {
+            connection.setAutoCommit(pool.isDefaultAutoCommit());
+        }
+        if (readOnlyDirty) {
+            connection.setReadOnly(pool.isDefaultReadOnly());
+        }
+        if (isolationDirty) {
+            connection.setTransactionIsolation(pool.getDefaultTransactionIsolation());
+        }
+        if (catalogDirty) {
+            connection.setCatalog(originalCatalog);
+        }
+        connection.clearWarnings();
+    }
+
+    /**
+     * Prepare a statement, using the statement cache of the physical connection if statement pooling is enabled
+     *
+     * @param key The key of the statement
+     * @return The prepared statement
+     * @throws SQLException When the statement cannot be prepared
+     */
+    // suppress warnings about not closing the delegate (it is closed when the connection is returned to the pool)
+    @SuppressWarnings("PMD.CloseResource")
+    private PreparedStatement prepareStatement(final StatementCache.Key key)
+            throws SQLException {
+
+        final Connection delegate = getDelegate();
+        final StatementCache cache = entry.getStatementCache();
+        if (cache == null) {
+            return wrap(PreparedStatement.class, key.prepare(delegate));
+        }
+
+        PreparedStatement statement = cache.take(key);
+        if (statement == null) {
+            statement = key.prepare(delegate);
+        }
+
+        final CachedStatementHandler handler = new CachedStatementHandler(key, statement);
+        openStatements.add(handler);
+        try {
+            return (PreparedStatement) StatementProxy.CONSTRUCTOR.newInstance(handler);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create a pooled prepared statement", e);
+        }
+    }
+
+    /**
+     * Return the pooled prepared statements that the borrower has not closed to the statement cache
+     */
+    private void returnOpenStatements() {
+
+        // iterate over a copy, as returning a statement removes it from the list
+        for (final CachedStatementHandler handler : new ArrayList<>(openStatements)) {
+            handler.returnToCache();
+        }
+    }
+
+    /**
+     * Holds the constructor of the dynamic proxy class for pooled prepared statements. The constructor is looked up
+     * once (see {@link DelegatingHandler#getProxyConstructor(Class)}), and only when the first pooled statement is
+     * prepared, so that generating the proxy class does not slow down the first borrow from the pool.
+     */
+    private static final class StatementProxy {
+
+        /**
+         * The constructor of the dynamic proxy class for pooled prepared statements
+         */
+        private static final Constructor<?> CONSTRUCTOR =
+                DelegatingHandler.getProxyConstructor(PreparedStatement.class);
+
+        /**
+         * A private constructor to prevent instantiation of this class
+         */
+        private StatementProxy() {
+        }
+    }
+
+    /**
+     * Handles the calls to a pooled prepared statement. Closing the statement puts it back into the statement cache,
+     * all other calls are delegated to the statement.
+     * <p>
+     * A dynamic proxy is used instead of a delegating class because {@link PreparedStatement} has a large number of
+     * methods, of which only {@code close()}, {@code isClosed()}, {@code getConnection()}, and the {@code Wrapper}
+     * methods change their behavior.
+     */
+    // CHECKSTYLE:OFF
+    // this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+    // suppress warnings about the complexity of invoke() and its literals (it dispatches on the method name and arity)
+    // suppress warnings about the method signatures (they are defined by the InvocationHandler interface)
+    @SuppressWarnings({"PMD.CyclomaticComplexity", "PMD.StdCyclomaticComplexity", "PMD.ModifiedCyclomaticComplexity", "PMD.NPathComplexity", "PMD.AvoidLiteralsInIfCondition", "PMD.UseVarargs"})
+    // CHECKSTYLE:ON
+    private final class CachedStatementHandler
+            implements InvocationHandler {
+
+        /**
+         * The key of the statement in the cache
+         */
+        private final StatementCache.Key key;
+
+        /**
+         * The physical statement
+         */
+        private final PreparedStatement statement;
+
+        /**
+         * {@code true} when the statement has been returned to the cache
+         */
+        private boolean returned;
+
+        /**
+         * {@code true} when the borrower has changed a property of the statement that is not reset when the statement
+         * is returned (e.g. the maximum number of rows or the query timeout)
+         */
+        private boolean propertiesChanged;
+
+        /**
+         * Create a handler for a pooled prepared statement
+         *
+         * @param key       The key of the statement in the cache
+         * @param statement The physical statement
+         */
+        CachedStatementHandler(final StatementCache.Key key, final PreparedStatement statement) {
+
+            this.key = key;
+            this.statement = statement;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws Throwable {
+
+            final String name = method.getName();
+            final int parameters = method.getParameterTypes().length;
+            if ("close".equals(name) && parameters == 0) {
+                returnToCache();
+                return null;
+            } else if ("isClosed".equals(name) && parameters == 0) {
+                return returned;
+            } else if ("equals".equals(name) && parameters == 1) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name) && parameters == 0) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name) && parameters == 0) {
+                return "Pooled " + statement;
+            }
+
+            if (returned) {
+                throw new SQLException("Statement is closed");
+            }
+            if (STATEMENT_PROPERTY_SETTERS.contains(name)) {
+                propertiesChanged = true;
+            } else if ("getConnection".equals(name) && parameters == 0) {
+                return BuiltinPooledConnection.this;
+            } else if ("unwrap".equals(name) && ((Class<?>) args[0]).isInstance(statement)) {
+                return statement;
+            } else if ("isWrapperFor".equals(name) && ((Class<?>) args[0]).isInstance(statement)) {
+                return true;
+            }
+
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Reset the statement, and put it back into the statement cache. If the statement cannot be reset, or the
+         * borrower has changed its properties, it is closed instead.
+         */
+        // suppress warnings about the result set (it is closed if there is one)
+        @SuppressWarnings("PMD.CloseResource")
+        private void returnToCache() {
+
+            if (returned) {
+                return;
+            }
+            returned = true;
+            openStatements.remove(this);
+
+            try {
+                final ResultSet resultSet = statement.getResultSet();
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+                // rows that have been added to the batch, but not executed, must not be executed by the next borrower
+                statement.clearBatch();
+                statement.clearParameters();
+                statement.clearWarnings();
+                if (propertiesChanged) {
+                    statement.close();
+                } else {
+                    entry.getStatementCache().put(key, statement);
+                }
+            } catch (SQLException e) {
+                LOG.debug("Cannot reset a pooled prepared statement, closing the statement", e);
+                try {
+                    statement.close();
+                } catch (SQLException e2) {
+                    LOG.debug("Cannot close the pooled prepared statement", e2);
+                }
+            }
+        }
+    }
+}
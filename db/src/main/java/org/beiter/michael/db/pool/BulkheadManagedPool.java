@@ -0,0 +1,282 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.lang3.Validate;
+import org.beiter.michael.db.ConnectionProperties;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A connection pool that sheds load when another pool cannot keep up, instead of letting borrowers pile up for
+ * {@code maxWaitMillis}.
+ * <p>
+ * The bulkhead counts the threads that are currently borrowing from the underlying pool, and keeps a moving average
+ * of the time that these borrows took (including borrows that failed, e.g. with a timeout). A new borrower is rejected
+ * immediately with a {@link BulkheadRejectedException} when:
+ * <ul>
+ * <li>{@code bulkheadMaxWaiters} threads are already borrowing from the underlying pool, or</li>
+ * <li>other threads are borrowing from the underlying pool, and the average recent wait time exceeds
+ * {@code bulkheadMaxQueueMillis} (the borrower would most likely wait too long).</li>
+ * </ul>
+ * While no other thread is borrowing, borrowers are always admitted, so that their wait times can bring the average
+ * down again when the database has recovered. Returned connections are not affected by the bulkhead.
+ */
+public final class BulkheadManagedPool
+        implements ReconfigurableManagedPool {
+
+    /**
+     * The weight of a new wait time in the moving average is one divided by this value
+     */
+    // suppress warnings about the long (but descriptive) constant name
+    @SuppressWarnings("PMD.LongVariable")
+    private static final int AVERAGE_WEIGHT_DIVISOR = 4;
+
+    /**
+     * The underlying pool
+     */
+    private final ManagedPool pool;
+
+    /**
+     * The metrics of the pool
+     */
+    private final PoolMetrics metrics;
+
+    /**
+     * The maximum number of threads borrowing at the same time, or zero or less for no limit
+     */
+    private volatile int maxWaiters;
+
+    /**
+     * The longest average recent wait time in nanoseconds, or zero or less to not reject on wait times
+     */
+    private volatile long maxQueueNanos;
+
+    /**
+     * The number of threads that are currently borrowing from the underlying pool
+     */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * The moving average of the recent wait times in nanoseconds
+     */
+    private final AtomicLong recentWaitNanos = new AtomicLong();
+
+    /**
+     * The data source that hands out connections through the bulkhead
+     */
+    private final DataSource dataSource;
+
+    /**
+     * Create a bulkhead in front of a connection pool
+     *
+     * @param pool     The underlying pool
+     * @param metrics  The metrics of the pool, which count the rejected borrowers
+     * @param poolSpec The settings of the pool (the bulkhead limits)
+     * @throws NullPointerException When {@code pool}, {@code metrics}, or {@code poolSpec} are {@code null}
+     */
+    public BulkheadManagedPool(final ManagedPool pool, final PoolMetrics metrics, final ConnectionProperties poolSpec) {
+
+        Validate.notNull(pool, "The validated object 'pool' is null");
+        Validate.notNull(metrics, "The validated object 'metrics' is null");
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        this.pool = pool;
+        this.metrics = metrics;
+        this.maxWaiters = poolSpec.getBulkheadMaxWaiters();
+        this.maxQueueNanos = TimeUnit.MILLISECONDS.toNanos(poolSpec.getBulkheadMaxQueueMillis());
+        this.dataSource = new BulkheadDataSource();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DataSource getDataSource() {
+
+        return dataSource;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumActive() {
+
+        return pool.getNumActive();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumIdle() {
+
+        return pool.getNumIdle();
+    }
+
+    /**
+     * @return The number of threads that are currently borrowing from the underlying pool
+     */
+    public int getNumWaiters() {
+
+        return waiters.get();
+    }
+
+    /**
+     * @return The moving average of the recent wait times in milliseconds
+     */
+    public long getRecentWaitMillis() {
+
+        return TimeUnit.NANOSECONDS.toMillis(recentWaitNanos.get());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The bulkhead limits are replaced.
+     */
+    @Override
+    public void reconfigure(final ConnectionProperties poolSpec) {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        if (!(pool instanceof ReconfigurableManagedPool)) {
+            throw new UnsupportedOperationException("The underlying pool cannot be reconfigured");
+        }
+        ((ReconfigurableManagedPool) pool).reconfigure(poolSpec);
+
+        maxWaiters = poolSpec.getBulkheadMaxWaiters();
+        maxQueueNanos = TimeUnit.MILLISECONDS.toNanos(poolSpec.getBulkheadMaxQueueMillis());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+
+        pool.close();
+    }
+
+    /**
+     * Admit the borrower, and borrow a connection from the underlying pool.
+     *
+     * @return A connection from the underlying pool
+     * @throws SQLException When the borrower is rejected (with a {@link BulkheadRejectedException}), or the underlying
+     *                      pool cannot provide a connection
+     */
+    private Connection borrow()
+            throws SQLException {
+
+        final int borrowing = waiters.incrementAndGet();
+        try {
+            final int waiterLimit = maxWaiters;
+            if (waiterLimit > 0 && borrowing > waiterLimit) {
+                throw reject("Rejected by the bulkhead: " + (borrowing - 1) + " threads are already waiting for a"
+                        + " connection (limit " + waiterLimit + ")");
+            }
+            final long queueLimit = maxQueueNanos;
+            final long recentWait = recentWaitNanos.get();
+            if (queueLimit > 0 && borrowing > 1 && recentWait > queueLimit) {
+                throw reject("Rejected by the bulkhead: the recent wait time of "
+                        + TimeUnit.NANOSECONDS.toMillis(recentWait) + "ms exceeds the limit of "
+                        + TimeUnit.NANOSECONDS.toMillis(queueLimit) + "ms");
+            }
+
+            final long start = System.nanoTime();
+            try {
+                return pool.getDataSource().getConnection();
+            } finally {
+                recordWait(System.nanoTime() - start);
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Count a rejected borrower, and create the exception for the borrower
+     *
+     * @param reason The reason for the rejection
+     * @return The exception to throw
+     */
+    private BulkheadRejectedException reject(final String reason) {
+
+        metrics.recordBulkheadRejected();
+        return new BulkheadRejectedException(reason);
+    }
+
+    /**
+     * Add a wait time to the moving average
+     *
+     * @param nanos The wait time in nanoseconds
+     */
+    private void recordWait(final long nanos) {
+
+        long current = recentWaitNanos.get();
+        while (!recentWaitNanos.compareAndSet(current, current + (nanos - current) / AVERAGE_WEIGHT_DIVISOR)) {
+            current = recentWaitNanos.get();
+        }
+    }
+
+    /**
+     * The data source that hands out connections through the bulkhead
+     */
+    private final class BulkheadDataSource
+            extends DelegatingDataSource {
+
+        /**
+         * Create a data source that hands out connections through the bulkhead
+         */
+        BulkheadDataSource() {
+
+            super(pool.getDataSource());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Connection getConnection()
+                throws SQLException {
+
+            return borrow();
+        }
+    }
+}
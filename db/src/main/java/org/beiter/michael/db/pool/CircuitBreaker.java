@@ -0,0 +1,377 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.lang3.Validate;
+import org.beiter.michael.db.ConnectionProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A circuit breaker around the creation of physical connections, which stops a pool from hammering a database that
+ * refuses connections.
+ * <p>
+ * The circuit breaker has three states:
+ * <ul>
+ * <li><code>CLOSED</code>: connection attempts are let through. After {@code circuitBreakerFailureThreshold}
+ * consecutive failures, the circuit breaker opens.</li>
+ * <li><code>OPEN</code>: connection attempts are rejected immediately with a {@link CircuitOpenException}. After
+ * {@code circuitBreakerOpenMillis}, the next connection attempt makes the circuit breaker half-open.</li>
+ * <li><code>HALF_OPEN</code>: up to {@code circuitBreakerHalfOpenProbes} probe connection attempts are let through
+ * at the same time, and all other attempts are rejected. The circuit breaker closes when a probe succeeds, and opens
+ * again when a probe fails.</li>
+ * </ul>
+ * A successful connection attempt always closes the circuit breaker, because it proves that the database accepts
+ * connections again. The state changes are recorded in the {@link PoolMetrics} of the pool.
+ * <p>
+ * This class is thread safe. While the circuit breaker is closed, a connection attempt only reads a volatile field.
+ * State changes are made while holding a {@link ReentrantLock}, so that threads waiting for it are parked instead of
+ * blocked on a monitor.
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about the long (but descriptive) variable names
+// suppress warnings about the package private scope (only the pools in this package report their connection attempts)
+@SuppressWarnings({"PMD.LongVariable", "PMD.DefaultPackage"})
+// CHECKSTYLE:ON
+public final class CircuitBreaker {
+
+    /**
+     * The states of a circuit breaker
+     */
+    public enum State {
+
+        /**
+         * Connection attempts are let through
+         */
+        CLOSED,
+
+        /**
+         * Connection attempts are rejected
+         */
+        OPEN,
+
+        /**
+         * A limited number of probe connection attempts are let through
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /**
+     * The metrics of the pool
+     */
+    private final PoolMetrics metrics;
+
+    /**
+     * The number of consecutive failures that open the circuit breaker, or zero or less to never open it
+     */
+    private volatile int failureThreshold;
+
+    /**
+     * The time in nanoseconds that the circuit breaker stays open
+     */
+    private volatile long openNanos;
+
+    /**
+     * The number of probe connection attempts that are let through at the same time in the half-open state
+     */
+    private volatile int halfOpenProbes;
+
+    /**
+     * The current state
+     */
+    private volatile State state = State.CLOSED;
+
+    /**
+     * The number of consecutive failed connection attempts (modified while holding the lock, and read without it)
+     */
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    /**
+     * The lock for the state changes
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The {@link System#nanoTime()} at which the open circuit breaker becomes half-open
+     */
+    private long halfOpenAt;
+
+    /**
+     * The number of probe connection attempts that are in progress
+     */
+    private int probesInProgress;
+
+    /**
+     * Create a closed circuit breaker
+     *
+     * @param metrics  The metrics of the pool, which record the state changes and the rejected attempts
+     * @param poolSpec The settings of the pool (the circuit breaker thresholds)
+     * @throws NullPointerException When {@code metrics} or {@code poolSpec} are {@code null}
+     */
+    public CircuitBreaker(final PoolMetrics metrics, final ConnectionProperties poolSpec) {
+
+        Validate.notNull(metrics, "The validated object 'metrics' is null");
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        this.metrics = metrics;
+        configure(poolSpec);
+    }
+
+    /**
+     * @return The current state of the circuit breaker. An open circuit breaker becomes half-open when the next
+     * connection attempt is made after the open time has passed.
+     */
+    public State getState() {
+
+        return state;
+    }
+
+    /**
+     * Replace the thresholds of the circuit breaker. A circuit breaker that has been turned off (with a failure
+     * threshold of zero or less) is closed.
+     *
+     * @param poolSpec The settings of the pool (the circuit breaker thresholds)
+     * @throws NullPointerException When {@code poolSpec} is {@code null}
+     */
+    public void reconfigure(final ConnectionProperties poolSpec) {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        configure(poolSpec);
+        if (failureThreshold <= 0) {
+            lock.lock();
+            try {
+                consecutiveFailures.set(0);
+                if (state != State.CLOSED) {
+                    changeState(State.CLOSED);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Reject a connection attempt if the circuit breaker is open, or all probes of the half-open circuit breaker are
+     * in progress, without starting a probe otherwise.
+     *
+     * @throws CircuitOpenException When connection attempts are currently rejected
+     */
+    void rejectIfOpen()
+            throws CircuitOpenException {
+
+        if (state == State.CLOSED) {
+            return;
+        }
+        lock.lock();
+        try {
+            checkOpen();
+            if (state == State.HALF_OPEN) {
+                checkProbes();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ask the circuit breaker to let a connection attempt through. The caller must report the outcome of an admitted
+     * attempt with {@link #recordSuccess()} or {@link #recordFailure(boolean)}.
+     *
+     * @return {@code true} if the attempt is a probe of the half-open circuit breaker
+     * @throws CircuitOpenException When the circuit breaker is open, or all probes of the half-open circuit breaker are
+     *                              in progress
+     */
+    boolean acquire()
+            throws CircuitOpenException {
+
+        if (state == State.CLOSED) {
+            return false;
+        }
+        lock.lock();
+        try {
+            checkOpen();
+            if (state == State.OPEN) {
+                changeState(State.HALF_OPEN);
+            }
+            if (state == State.HALF_OPEN) {
+                checkProbes();
+                probesInProgress++;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Report a successful connection attempt, which closes the circuit breaker
+     */
+    void recordSuccess() {
+
+        if (state == State.CLOSED && consecutiveFailures.get() == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            consecutiveFailures.set(0);
+            if (state != State.CLOSED) {
+                LOG.info("Connections can be created again, closing the circuit breaker");
+                changeState(State.CLOSED);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Report a failed connection attempt, which opens the circuit breaker when the failure threshold is reached, or
+     * when a probe of the half-open circuit breaker fails
+     *
+     * @param probe {@code true} if the attempt was a probe of the half-open circuit breaker
+     */
+    void recordFailure(final boolean probe) {
+
+        final int threshold = failureThreshold;
+        if (threshold <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            final int failures = consecutiveFailures.incrementAndGet();
+            if (state == State.CLOSED && failures >= threshold || state == State.HALF_OPEN && probe) {
+                LOG.warn(failures + " consecutive connection attempts failed, opening the circuit breaker for "
+                        + TimeUnit.NANOSECONDS.toMillis(openNanos) + "ms");
+                halfOpenAt = System.nanoTime() + openNanos;
+                changeState(State.OPEN);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reject a connection attempt if the circuit breaker is open, and the open time has not passed yet (must be called
+     * while holding the lock)
+     *
+     * @throws CircuitOpenException When the circuit breaker is open
+     */
+    private void checkOpen()
+            throws CircuitOpenException {
+
+        // assert in private method
+        assert lock.isHeldByCurrentThread() : "The lock must be held";
+
+        if (state == State.OPEN) {
+            final long remainingNanos = halfOpenAt - System.nanoTime();
+            if (remainingNanos > 0) {
+                throw reject("Rejected by the circuit breaker: connection attempts are suspended for another "
+                        + TimeUnit.NANOSECONDS.toMillis(remainingNanos) + "ms after " + consecutiveFailures.get()
+                        + " consecutive failures");
+            }
+        }
+    }
+
+    /**
+     * Reject a connection attempt if all probes of the half-open circuit breaker are in progress (must be called while
+     * holding the lock)
+     *
+     * @throws CircuitOpenException When all probes are in progress
+     */
+    private void checkProbes()
+            throws CircuitOpenException {
+
+        // assert in private method
+        assert lock.isHeldByCurrentThread() : "The lock must be held";
+
+        if (probesInProgress >= Math.max(1, halfOpenProbes)) {
+            throw reject("Rejected by the circuit breaker: " + probesInProgress
+                    + " probe connection attempts are already in progress");
+        }
+    }
+
+    /**
+     * Apply the thresholds of the circuit breaker
+     *
+     * @param poolSpec The settings of the pool
+     */
+    private void configure(final ConnectionProperties poolSpec) {
+
+        // assert in private method
+        assert poolSpec != null : "The pool spec cannot be null";
+
+        failureThreshold = poolSpec.getCircuitBreakerFailureThreshold();
+        openNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, poolSpec.getCircuitBreakerOpenMillis()));
+        halfOpenProbes = poolSpec.getCircuitBreakerHalfOpenProbes();
+    }
+
+    /**
+     * Change the state, and record the change in the metrics (must be called while holding the lock)
+     *
+     * @param newState The new state
+     */
+    private void changeState(final State newState) {
+
+        // assert in private method
+        assert lock.isHeldByCurrentThread() : "The lock must be held";
+
+        if (newState != State.HALF_OPEN) {
+            probesInProgress = 0;
+        }
+        state = newState;
+        metrics.recordCircuitBreakerState(newState, newState == State.OPEN);
+    }
+
+    /**
+     * Count a rejected connection attempt, and create the exception for the caller
+     *
+     * @param reason The reason for the rejection
+     * @return The exception to throw
+     */
+    private CircuitOpenException reject(final String reason) {
+
+        metrics.recordCircuitBreakerRejected();
+        return new CircuitOpenException(reason);
+    }
+}
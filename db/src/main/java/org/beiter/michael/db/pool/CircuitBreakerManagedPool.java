@@ -0,0 +1,189 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.lang3.Validate;
+import org.beiter.michael.db.ConnectionProperties;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A connection pool that rejects borrowers immediately while the {@link CircuitBreaker} around the connection creation
+ * of another pool is open, instead of letting them wait for a connection that cannot be created.
+ * <p>
+ * The {@link ConnectionCreator} of the underlying pool must use the same circuit breaker. Borrowers are only
+ * rejected (with a {@link CircuitOpenException}) when the underlying pool has no idle connection, so that the
+ * connections that are still open keep being used. This makes borrowers fail fast with all pool engines, including
+ * the engines that create connections on a background thread (e.g. HikariCP).
+ */
+public final class CircuitBreakerManagedPool
+        implements ReconfigurableManagedPool {
+
+    /**
+     * The underlying pool
+     */
+    private final ManagedPool pool;
+
+    /**
+     * The circuit breaker around the connection creation of the underlying pool
+     */
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * The data source that hands out connections through the circuit breaker
+     */
+    private final DataSource dataSource;
+
+    /**
+     * Create a circuit breaker in front of a connection pool
+     *
+     * @param pool           The underlying pool
+     * @param circuitBreaker The circuit breaker around the connection creation of the underlying pool
+     * @throws NullPointerException When {@code pool} or {@code circuitBreaker} are {@code null}
+     */
+    public CircuitBreakerManagedPool(final ManagedPool pool, final CircuitBreaker circuitBreaker) {
+
+        Validate.notNull(pool, "The validated object 'pool' is null");
+        Validate.notNull(circuitBreaker, "The validated object 'circuitBreaker' is null");
+
+        this.pool = pool;
+        this.circuitBreaker = circuitBreaker;
+        this.dataSource = new CircuitBreakerDataSource();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DataSource getDataSource() {
+
+        return dataSource;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumActive() {
+
+        return pool.getNumActive();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumIdle() {
+
+        return pool.getNumIdle();
+    }
+
+    /**
+     * @return The circuit breaker around the connection creation of the underlying pool
+     */
+    public CircuitBreaker getCircuitBreaker() {
+
+        return circuitBreaker;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The circuit breaker thresholds are replaced.
+     */
+    @Override
+    public void reconfigure(final ConnectionProperties poolSpec) {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        if (!(pool instanceof ReconfigurableManagedPool)) {
+            throw new UnsupportedOperationException("The underlying pool cannot be reconfigured");
+        }
+        ((ReconfigurableManagedPool) pool).reconfigure(poolSpec);
+
+        circuitBreaker.reconfigure(poolSpec);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+
+        pool.close();
+    }
+
+    /**
+     * Reject the borrower if the circuit breaker is open and the underlying pool has no idle connection, or borrow a
+     * connection from the underlying pool.
+     *
+     * @return A connection from the underlying pool
+     * @throws SQLException When the borrower is rejected (with a {@link CircuitOpenException}), or the underlying pool
+     *                      cannot provide a connection
+     */
+    private Connection borrow()
+            throws SQLException {
+
+        if (circuitBreaker.getState() != CircuitBreaker.State.CLOSED && pool.getNumIdle() == 0) {
+            circuitBreaker.rejectIfOpen();
+        }
+        return pool.getDataSource().getConnection();
+    }
+
+    /**
+     * The data source that hands out connections through the circuit breaker
+     */
+    private final class CircuitBreakerDataSource
+            extends DelegatingDataSource {
+
+        /**
+         * Create a data source that hands out connections through the circuit breaker
+         */
+        CircuitBreakerDataSource() {
+
+            super(pool.getDataSource());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Connection getConnection()
+                throws SQLException {
+
+            return borrow();
+        }
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.lang3.Validate;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free collection of pooled objects, optimized for high borrow / return rates.
+ * <p>
+ * The bag hands out its entries with the following strategy:
+ * <ol>
+ * <li>The entries that the current thread has returned most recently are tried first (thread-local affinity). This
+ * path does not touch any shared data structure except for the state of the entry itself.</li>
+ * <li>If none of these entries is available, the shared list of all entries is scanned, and the first entry that is
+ * not in use is claimed.</li>
+ * <li>If no entry is available at all, the borrowing thread waits on a hand-off queue until another thread returns an
+ * entry, or adds a new one.</li>
+ * </ol>
+ * A waiting thread can also be woken up without an entry (see {@link #wakeUp()}), e.g. to let it create a new entry
+ * when this has become possible.
+ * All state transitions of an entry are made with a CAS operation, so an entry can be found by several threads (e.g.
+ * in the thread-local list of one thread and the shared list scan of another thread), but only one thread can claim it.
+ *
+ * @param <T> The type of the entries in the bag
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about a potential God class and the complexity of borrowing (the bag is one lock-free state machine)
+// suppress warnings about the long (but descriptive) constant names
+// suppress warnings about the package private scope (the bag is only used by the builtin pool in this package)
+@SuppressWarnings({"PMD.GodClass", "PMD.TooManyMethods", "PMD.CyclomaticComplexity", "PMD.StdCyclomaticComplexity", "PMD.ModifiedCyclomaticComplexity", "PMD.LongVariable", "PMD.DefaultPackage"})
+// CHECKSTYLE:ON
+final class ConcurrentBag<T extends ConcurrentBag.Entry> {
+
+    /**
+     * The entry is idle, and can be borrowed
+     */
+    static final int STATE_NOT_IN_USE = 0;
+
+    /**
+     * The entry is borrowed
+     */
+    static final int STATE_IN_USE = 1;
+
+    /**
+     * The entry has been removed from the bag
+     */
+    static final int STATE_REMOVED = -1;
+
+    /**
+     * The entry has been reserved (e.g. for eviction), and cannot be borrowed
+     */
+    static final int STATE_RESERVED = -2;
+
+    /**
+     * The maximum number of entries that are remembered per thread
+     */
+    private static final int MAX_THREAD_LOCAL_ENTRIES = 16;
+
+    /**
+     * The number of failed hand-off attempts after which a returning thread parks instead of yielding
+     */
+    private static final int HANDOFF_SPINS_BEFORE_PARK = 0xff;
+
+    /**
+     * The time a returning thread parks when the hand-off to a waiting thread does not succeed
+     */
+    private static final long HANDOFF_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    /**
+     * The signal that is handed off to the waiting threads when the bag is closed
+     */
+    private static final Object CLOSE_SIGNAL = new Object();
+
+    /**
+     * The signal that is handed off to a waiting thread when the bag is woken up
+     */
+    private static final Object WAKE_UP_SIGNAL = new Object();
+
+    /**
+     * All entries in the bag
+     */
+    private final CopyOnWriteArrayList<T> sharedList = new CopyOnWriteArrayList<>();
+
+    /**
+     * The entries that have been returned by the current thread, most recent last
+     */
+    private final ThreadLocal<List<WeakReference<T>>> threadList = new ThreadLocal<List<WeakReference<T>>>() {
+        @Override
+        protected List<WeakReference<T>> initialValue() {
+            return new ArrayList<>(MAX_THREAD_LOCAL_ENTRIES);
+        }
+    };
+
+    /**
+     * The number of threads that are currently waiting for an entry
+     */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * The queue used to hand off entries directly to waiting threads
+     */
+    private final SynchronousQueue<Object> handoffQueue = new SynchronousQueue<>(true);
+
+    /**
+     * {@code true} when the bag has been closed, and threads must no longer wait for an entry
+     */
+    private volatile boolean closed;
+
+    /**
+     * The number of times the bag has been woken up
+     */
+    private final AtomicLong wakeUps = new AtomicLong();
+
+    /**
+     * Borrow an entry from the bag, waiting up to the provided timeout if no entry is available.
+     *
+     * @param timeout The maximum time to wait, 0 to not wait at all, or negative to wait indefinitely
+     * @param unit    The unit of the {@code timeout}
+     * @return The borrowed entry, or {@code null} if no entry became available within the timeout, or the bag has been
+     * closed or woken up while waiting
+     * @throws InterruptedException When the thread is interrupted while waiting
+     */
+    T borrow(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+
+        return borrow(timeout, unit, wakeUps.get());
+    }
+
+    /**
+     * Borrow an entry from the bag, waiting up to the provided timeout if no entry is available. The thread does not
+     * wait if the bag has been woken up since {@code wakeUpCount} has been read with {@link #getWakeUpCount()}, so
+     * that a caller which decides to wait after reading the count cannot miss a wake-up.
+     *
+     * @param timeout     The maximum time to wait, 0 to not wait at all, or negative to wait indefinitely
+     * @param unit        The unit of the {@code timeout}
+     * @param wakeUpCount The wake-up count that the caller has read before deciding to wait
+     * @return The borrowed entry, or {@code null} if no entry became available within the timeout, or the bag has been
+     * closed or woken up
+     * @throws InterruptedException When the thread is interrupted while waiting
+     */
+    // CHECKSTYLE:OFF
+    // this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+    // suppress warnings about the start time being taken early (it must be taken before waiting for a hand-off)
+    // suppress warnings about the complexity of borrowing (the three steps of the strategy are one loop)
+    // suppress warnings about comparing object references (the signals are sentinel instances)
+    @SuppressWarnings({"PMD.PrematureDeclaration", "PMD.NPathComplexity", "PMD.CompareObjectsWithEquals"})
+    // CHECKSTYLE:ON
+    T borrow(final long timeout, final TimeUnit unit, final long wakeUpCount)
+            throws InterruptedException {
+
+        // try the entries this thread has used most recently first
+        final List<WeakReference<T>> list = threadList.get();
+        for (int i = list.size() - 1; i >= 0; i--) {
+            final T entry = list.remove(i).get();
+            if (entry != null && entry.compareAndSetState(STATE_NOT_IN_USE, STATE_IN_USE)) {
+                return entry;
+            }
+        }
+
+        waiters.incrementAndGet();
+        try {
+            // scan the shared list
+            for (final T entry : sharedList) {
+                if (entry.compareAndSetState(STATE_NOT_IN_USE, STATE_IN_USE)) {
+                    return entry;
+                }
+            }
+
+            if (timeout == 0) {
+                return null;
+            }
+
+            // wait for an entry to be handed off by another thread
+            final boolean forever = timeout < 0;
+            long remaining = unit.toNanos(timeout);
+            do {
+                // the waiter count is raised before this check, so close() and wakeUp() keep signalling until this
+                // thread takes a signal or leaves
+                if (closed || wakeUps.get() != wakeUpCount) {
+                    return null;
+                }
+                final long start = System.nanoTime();
+                // CHECKSTYLE:OFF
+                // this inline condition is easy to read :-)
+                final Object next = forever ? handoffQueue.take() : handoffQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                // CHECKSTYLE:ON
+                if (next == null || next == CLOSE_SIGNAL || next == WAKE_UP_SIGNAL) {
+                    return null;
+                }
+                @SuppressWarnings("unchecked")
+                final T entry = (T) next;
+                if (entry.compareAndSetState(STATE_NOT_IN_USE, STATE_IN_USE)) {
+                    return entry;
+                }
+                remaining -= System.nanoTime() - start;
+            } while (forever || remaining > 0);
+
+            return null;
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Return a borrowed entry to the bag. If other threads are waiting for an entry, the entry is handed off to one of
+     * them directly.
+     *
+     * @param entry The entry to return
+     */
+    void requite(final T entry) {
+
+        entry.setState(STATE_NOT_IN_USE);
+
+        for (int i = 0; waiters.get() > 0; i++) {
+            if (entry.getState() != STATE_NOT_IN_USE || handoffQueue.offer(entry)) {
+                return;
+            } else if ((i & HANDOFF_SPINS_BEFORE_PARK) == HANDOFF_SPINS_BEFORE_PARK) {
+                LockSupport.parkNanos(HANDOFF_PARK_NANOS);
+            } else {
+                Thread.yield();
+            }
+        }
+
+        final List<WeakReference<T>> list = threadList.get();
+        if (list.size() < MAX_THREAD_LOCAL_ENTRIES) {
+            list.add(new WeakReference<>(entry));
+        }
+    }
+
+    /**
+     * Add a new entry to the bag. An entry that is added in state {@link #STATE_NOT_IN_USE} is handed off to a waiting
+     * thread (if any), an entry that is added in state {@link #STATE_IN_USE} is considered borrowed by the caller.
+     *
+     * @param entry The entry to add
+     * @throws NullPointerException When {@code entry} is {@code null}
+     */
+    void add(final T entry) {
+
+        Validate.notNull(entry, "The validated object 'entry' is null");
+
+        sharedList.add(entry);
+
+        // spin until a waiting thread takes the new entry, or the entry is claimed by some other thread
+        while (waiters.get() > 0 && entry.getState() == STATE_NOT_IN_USE && !handoffQueue.offer(entry)) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Remove an entry from the bag. Only entries that are borrowed or reserved can be removed.
+     *
+     * @param entry The entry to remove
+     * @return {@code true} if the entry has been removed, {@code false} if the entry was not borrowed or reserved
+     */
+    boolean remove(final T entry) {
+
+        if (!entry.compareAndSetState(STATE_IN_USE, STATE_REMOVED)
+                && !entry.compareAndSetState(STATE_RESERVED, STATE_REMOVED)) {
+            return false;
+        }
+
+        return sharedList.remove(entry);
+    }
+
+    /**
+     * Reserve an idle entry, which prevents it from being borrowed (e.g. while it is being evicted or validated).
+     *
+     * @param entry The entry to reserve
+     * @return {@code true} if the entry has been reserved, {@code false} if the entry was not idle
+     */
+    boolean reserve(final T entry) {
+
+        return entry.compareAndSetState(STATE_NOT_IN_USE, STATE_RESERVED);
+    }
+
+    /**
+     * Make a reserved entry available for borrowing again.
+     *
+     * @param entry The entry to release
+     */
+    void unreserve(final T entry) {
+
+        if (entry.compareAndSetState(STATE_RESERVED, STATE_NOT_IN_USE)) {
+            // spin until a waiting thread takes the entry, or the entry is claimed by some other thread
+            while (waiters.get() > 0 && entry.getState() == STATE_NOT_IN_USE && !handoffQueue.offer(entry)) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Close the bag: release all threads that are waiting for an entry (their {@link #borrow(long, TimeUnit)} returns
+     * {@code null}), and do not let any thread wait from now on. Entries can still be borrowed, returned and removed.
+     */
+    void close() {
+
+        closed = true;
+
+        // spin until all waiting threads have received the signal, or have left for some other reason
+        while (waiters.get() > 0) {
+            if (!handoffQueue.offer(CLOSE_SIGNAL)) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Wake up a thread that is waiting for an entry (its {@link #borrow(long, TimeUnit)} returns {@code null}). The
+     * threads that are about to wait when this method is called return {@code null} as well, if they have read the
+     * wake-up count before.
+     */
+    void wakeUp() {
+
+        wakeUps.incrementAndGet();
+
+        // spin until a waiting thread takes the signal, or no thread is waiting anymore
+        while (waiters.get() > 0 && !handoffQueue.offer(WAKE_UP_SIGNAL)) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * @return The number of times the bag has been woken up (see {@link #borrow(long, TimeUnit, long)})
+     */
+    long getWakeUpCount() {
+
+        return wakeUps.get();
+    }
+
+    /**
+     * Return a snapshot of the entries in the bag that are in the provided state.
+     *
+     * @param state The state of the entries to return
+     * @return The entries that are in the provided state at the time of the call
+     */
+    List<T> values(final int state) {
+
+        final List<T> result = new ArrayList<>(sharedList.size());
+        for (final T entry : sharedList) {
+            if (entry.getState() == state) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return a snapshot of all entries in the bag, regardless of their state.
+     *
+     * @return All entries in the bag at the time of the call
+     */
+    List<T> values() {
+
+        return new ArrayList<>(sharedList);
+    }
+
+    /**
+     * Return the number of entries that are in the provided state.
+     *
+     * @param state The state of the entries to count
+     * @return The number of entries in the provided state
+     */
+    int getCount(final int state) {
+
+        int count = 0;
+        for (final T entry : sharedList) {
+            if (entry.getState() == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of entries in the bag, regardless of their state
+     */
+    int size() {
+
+        return sharedList.size();
+    }
+
+    /**
+     * @return The number of threads that are currently waiting for an entry
+     */
+    int getWaitingThreadCount() {
+
+        return waiters.get();
+    }
+
+    /**
+     * An entry that can be managed by a {@link ConcurrentBag}.
+     */
+    interface Entry {
+
+        /**
+         * Atomically set the state of the entry, if the current state is the expected state.
+         *
+         * @param expect The expected current state
+         * @param update The new state
+         * @return {@code true} if the state has been changed
+         */
+        boolean compareAndSetState(int expect, int update);
+
+        /**
+         * @param state The new state of the entry
+         */
+        void setState(int state);
+
+        /**
+         * @return The current state of the entry
+         */
+        int getState();
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class creates the physical JDBC connections that are managed by a connection pool.
+ * <p>
+ * All pool engines obtain their physical connections from an instance of this class, which allows the
+ * {@link org.beiter.michael.db.DataSourceFactory} to control connection creation independently of the pool engine.
+ */
+// suppress warnings about the package private scope (the pools in this package query the metrics and throttle)
+@SuppressWarnings("PMD.DefaultPackage")
+public final class ConnectionCreator {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionCreator.class);
+
+    /**
+     * The JDBC database URL
+     */
+    private final String url;
+
+    /**
+     * The connection arguments that are passed to the driver
+     */
+    private final Properties properties;
+
+    /**
+     * The metrics of the pool that the connections are created for
+     */
+    private final PoolMetrics metrics;
+
+    /**
+     * The circuit breaker around the connection creation, or {@code null} if connection attempts are not guarded
+     */
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * The throttle of the connection creation, or {@code null} if the connection creation is not throttled
+     */
+    private final CreationThrottle throttle;
+
+    /**
+     * Create a connection creator for the provided URL and driver properties.
+     * <p>
+     * The connection creation is recorded in metrics that are not exposed. Use
+     * {@link #ConnectionCreator(String, Properties, PoolMetrics)} to record the creation in the metrics of a pool.
+     *
+     * @param url        The JDBC database URL of the form <code>jdbc:subprotocol:subname</code>
+     * @param properties A list of key/value configuration parameters to pass as connection arguments. Normally at
+     *                   least a "user" and "password" property should be included
+     * @throws NullPointerException     When {@code url} or {@code properties} are {@code null}
+     * @throws IllegalArgumentException When {@code url} is empty
+     */
+    public ConnectionCreator(final String url, final Properties properties) {
+
+        this(url, properties, new PoolMetrics(url));
+    }
+
+    /**
+     * Create a connection creator for the provided URL and driver properties, which records the creation time and
+     * the number of created and closed physical connections in the provided pool metrics.
+     *
+     * @param url        The JDBC database URL of the form <code>jdbc:subprotocol:subname</code>
+     * @param properties A list of key/value configuration parameters to pass as connection arguments. Normally at
+     *                   least a "user" and "password" property should be included
+     * @param metrics    The metrics of the pool that the connections are created for
+     * @throws NullPointerException     When {@code url}, {@code properties}, or {@code metrics} are {@code null}
+     * @throws IllegalArgumentException When {@code url} is empty
+     */
+    public ConnectionCreator(final String url, final Properties properties, final PoolMetrics metrics) {
+
+        this(url, properties, metrics, null);
+    }
+
+    /**
+     * Create a connection creator for the provided URL and driver properties, which records the creation in the
+     * provided pool metrics, and guards the connection attempts with a circuit breaker. While the circuit breaker is
+     * open, {@link #createConnection()} fails immediately without connecting to the database.
+     *
+     * @param url            The JDBC database URL of the form <code>jdbc:subprotocol:subname</code>
+     * @param properties     A list of key/value configuration parameters to pass as connection arguments. Normally at
+     *                       least a "user" and "password" property should be included
+     * @param metrics        The metrics of the pool that the connections are created for
+     * @param circuitBreaker The circuit breaker around the connection creation, or {@code null} to not guard the
+     *                       connection attempts
+     * @throws NullPointerException     When {@code url}, {@code properties}, or {@code metrics} are {@code null}
+     * @throws IllegalArgumentException When {@code url} is empty
+     */
+    public ConnectionCreator(final String url, final Properties properties, final PoolMetrics metrics,
+                             final CircuitBreaker circuitBreaker) {
+
+        this(url, properties, metrics, circuitBreaker, null);
+    }
+
+    /**
+     * Create a connection creator for the provided URL and driver properties, which records the creation in the
+     * provided pool metrics, guards the connection attempts with a circuit breaker, and limits the number of
+     * connection attempts at the same time with a throttle.
+     *
+     * @param url            The JDBC database URL of the form <code>jdbc:subprotocol:subname</code>
+     * @param properties     A list of key/value configuration parameters to pass as connection arguments. Normally at
+     *                       least a "user" and "password" property should be included
+     * @param metrics        The metrics of the pool that the connections are created for
+     * @param circuitBreaker The circuit breaker around the connection creation, or {@code null} to not guard the
+     *                       connection attempts
+     * @param throttle       The throttle of the connection creation, or {@code null} to not throttle the connection
+     *                       attempts
+     * @throws NullPointerException     When {@code url}, {@code properties}, or {@code metrics} are {@code null}
+     * @throws IllegalArgumentException When {@code url} is empty
+     */
+    public ConnectionCreator(final String url, final Properties properties, final PoolMetrics metrics,
+                             final CircuitBreaker circuitBreaker, final CreationThrottle throttle) {
+
+        Validate.notBlank(url, "The validated character sequence 'url' is null or empty");
+        Validate.notNull(properties, "The validated object 'properties' is null");
+        Validate.notNull(metrics, "The validated object 'metrics' is null");
+
+        // no need for defensive copies of Strings
+
+        this.url = url;
+
+        // create a defensive copy of the properties
+        this.properties = new Properties();
+        this.properties.putAll(properties);
+
+        this.metrics = metrics;
+        this.circuitBreaker = circuitBreaker;
+        this.throttle = throttle;
+    }
+
+    /**
+     * @return The JDBC database URL of the form <code>jdbc:subprotocol:subname</code>
+     */
+    public String getUrl() {
+
+        // no need for defensive copies of String
+
+        return url;
+    }
+
+    /**
+     * @return The metrics of the pool that the connections are created for
+     */
+    PoolMetrics getMetrics() {
+
+        return metrics;
+    }
+
+    /**
+     * @return {@code true} if a connection attempt would currently have to wait for a creation slot of the throttle
+     */
+    boolean isCreationThrottled() {
+
+        return throttle != null && throttle.isSaturated();
+    }
+
+    /**
+     * Register a listener that is notified when a creation slot of the throttle has been released (see
+     * {@link CreationThrottle#addSlotListener(Runnable)}). The listener is never called if the connection creation is
+     * not throttled.
+     *
+     * @param listener The listener to register
+     * @throws NullPointerException When {@code listener} is {@code null}
+     */
+    // suppress warnings about using threads (the listener is a Runnable, it is not run on a thread of its own)
+    @SuppressWarnings("PMD.DoNotUseThreads")
+    void addCreationSlotListener(final Runnable listener) {
+
+        Validate.notNull(listener, "The validated object 'listener' is null");
+
+        if (throttle != null) {
+            throttle.addSlotListener(listener);
+        }
+    }
+
+    /**
+     * Create a new physical connection to the database.
+     *
+     * @return A new JDBC connection
+     * @throws SQLException When the connection cannot be established. A {@link CircuitOpenException} is thrown when
+     *                      the circuit breaker rejects the attempt without connecting to the database, and a
+     *                      {@code SQLTransientConnectionException} is thrown when the throttle does not provide a
+     *                      creation slot within {@code maxWaitMillis}
+     */
+    public Connection createConnection()
+            throws SQLException {
+
+        if (circuitBreaker != null) {
+            // fail fast instead of waiting for a creation slot
+            circuitBreaker.rejectIfOpen();
+        }
+
+        if (throttle == null) {
+            return connect();
+        }
+        throttle.acquire();
+        try {
+            return connect();
+        } finally {
+            throttle.release();
+        }
+    }
+
+    /**
+     * Connect to the database, and report the outcome to the circuit breaker.
+     *
+     * @return A new JDBC connection
+     * @throws SQLException When the connection cannot be established, or the circuit breaker rejects the attempt
+     */
+    // CHECKSTYLE:OFF
+    // this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+    // suppress warnings about taking the start time early (it must be taken right before connecting)
+    // suppress warnings about catching RuntimeException (every failed attempt is reported to the circuit breaker)
+    @SuppressWarnings({"PMD.PrematureDeclaration", "PMD.AvoidCatchingGenericException"})
+    // CHECKSTYLE:ON
+    private Connection connect()
+            throws SQLException {
+
+        final boolean probe = circuitBreaker != null && circuitBreaker.acquire();
+
+        LOG.debug("Creating new physical connection to '" + url + "'");
+
+        final long start = System.nanoTime();
+        final Connection connection;
+        try {
+            connection = DriverManager.getConnection(url, properties);
+        } catch (SQLException | RuntimeException e) {
+            metrics.recordCreateFailed();
+            if (circuitBreaker != null) {
+                circuitBreaker.recordFailure(probe);
+            }
+            throw e;
+        }
+        metrics.recordCreated(System.nanoTime() - start);
+        if (circuitBreaker != null) {
+            circuitBreaker.recordSuccess();
+        }
+
+        return new PhysicalConnection(connection);
+    }
+
+    /**
+     * A physical connection that records in the pool metrics when it is closed
+     */
+    private final class PhysicalConnection
+            extends ConnectionWrapper {
+
+        /**
+         * The connection created by the driver
+         */
+        private final Connection delegate;
+
+        /**
+         * {@code true} when the connection has been closed
+         */
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        /**
+         * Create a physical connection
+         *
+         * @param delegate The connection created by the driver
+         */
+        PhysicalConnection(final Connection delegate) {
+
+            super();
+            this.delegate = delegate;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected Connection getDelegate() {
+
+            return delegate;
+        }
+
+        /**
+         * Hand out the statements and the database metadata of the driver as they are. A physical connection is only
+         * handed out by a pool, which wraps the statements and the metadata itself.
+         *
+         * @param type   The JDBC interface of the object
+         * @param object The statement or database metadata, or {@code null}
+         * @param <T>    The type of the object
+         * @return The object
+         */
+        @Override
+        protected <T> T wrap(final Class<T> type, final T object) {
+
+            return object;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isClosed()
+                throws SQLException {
+
+            return delegate.isClosed();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close()
+                throws SQLException {
+
+            if (closed.compareAndSet(false, true)) {
+                metrics.recordDestroyed();
+            }
+            delegate.close();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void abort(final Executor executor)
+                throws SQLException {
+
+            if (closed.compareAndSet(false, true)) {
+                metrics.recordDestroyed();
+            }
+            delegate.abort(executor);
+        }
+    }
+}
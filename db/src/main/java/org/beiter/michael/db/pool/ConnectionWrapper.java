@@ -0,0 +1,661 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.ClientInfoStatus;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * A connection that delegates all calls to another connection.
+ * <p>
+ * Subclasses provide the delegate with {@link #getDelegate()}, and override the methods whose behavior they change
+ * (e.g. {@link #close()} to return the connection to a pool instead of closing it).
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about a potential God class (not the case, this is triggered by the many methods of the Connection interface)
+// suppress warnings about the class name, and the method and parameter names (they are defined by the Connection interface)
+// suppress warnings about not closing the statements (they are returned to the caller)
+@SuppressWarnings({"PMD.ExcessivePublicCount", "PMD.GodClass", "PMD.TooManyMethods", "PMD.AbstractNaming", "PMD.BooleanGetMethodName", "PMD.LongVariable", "PMD.UseVarargs", "PMD.CloseResource"})
+// CHECKSTYLE:ON
+abstract class ConnectionWrapper
+        implements Connection {
+
+    /**
+     * Return the connection to delegate to.
+     *
+     * @return The delegate connection
+     * @throws SQLException When the delegate is not available (e.g. because this connection has been closed)
+     */
+    protected abstract Connection getDelegate()
+            throws SQLException;
+
+    /**
+     * Return the connection to delegate to, for the client info setters (which can only throw a
+     * {@link SQLClientInfoException}).
+     *
+     * @return The delegate connection
+     * @throws SQLClientInfoException When the delegate is not available
+     */
+    private Connection getClientInfoDelegate()
+            throws SQLClientInfoException {
+
+        try {
+            return getDelegate();
+        } catch (SQLException e) {
+            throw new SQLClientInfoException(e.getMessage(), Collections.<String, ClientInfoStatus>emptyMap(), e);
+        }
+    }
+
+    /**
+     * Called with every statement that is created through this connection, before it is handed out. Subclasses can
+     * override this method to keep track of the statements (e.g. to close them when the connection is taken away from
+     * its borrower).
+     *
+     * @param statement The new statement
+     * @param <T>       The type of the statement
+     * @return The statement to hand out
+     * @throws SQLException When the statement must not be handed out
+     */
+    protected <T extends Statement> T track(final T statement)
+            throws SQLException {
+
+        return statement;
+    }
+
+    /**
+     * Wrap a statement or the database metadata created through this connection, so that its
+     * {@code getConnection()} returns this connection instead of the delegate.
+     *
+     * @param type   The JDBC interface of the object
+     * @param object The statement or database metadata, or {@code null}
+     * @param <T>    The type of the object
+     * @return The wrapped object
+     */
+    protected <T> T wrap(final Class<T> type, final T object) {
+
+        return DelegatingHandler.wrap(type, object, this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Statement createStatement()
+            throws SQLException {
+
+        return track(wrap(Statement.class, getDelegate().createStatement()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PreparedStatement prepareStatement(final String sql)
+            throws SQLException {
+
+        return track(wrap(PreparedStatement.class, getDelegate().prepareStatement(sql)));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CallableStatement prepareCall(final String sql)
+            throws SQLException {
+
+        return track(wrap(CallableStatement.class, getDelegate().prepareCall(sql)));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String nativeSQL(final String sql)
+            throws SQLException {
+
+        return getDelegate().nativeSQL(sql);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setAutoCommit(final boolean autoCommit)
+            throws SQLException {
+
+        getDelegate().setAutoCommit(autoCommit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean getAutoCommit()
+            throws SQLException {
+
+        return getDelegate().getAutoCommit();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void commit()
+            throws SQLException {
+
+        getDelegate().commit();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void rollback()
+            throws SQLException {
+
+        getDelegate().rollback();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DatabaseMetaData getMetaData()
+            throws SQLException {
+
+        return wrap(DatabaseMetaData.class, getDelegate().getMetaData());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setReadOnly(final boolean readOnly)
+            throws SQLException {
+
+        getDelegate().setReadOnly(readOnly);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isReadOnly()
+            throws SQLException {
+
+        return getDelegate().isReadOnly();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setCatalog(final String catalog)
+            throws SQLException {
+
+        getDelegate().setCatalog(catalog);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getCatalog()
+            throws SQLException {
+
+        return getDelegate().getCatalog();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setTransactionIsolation(final int level)
+            throws SQLException {
+
+        getDelegate().setTransactionIsolation(level);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getTransactionIsolation()
+            throws SQLException {
+
+        return getDelegate().getTransactionIsolation();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SQLWarning getWarnings()
+            throws SQLException {
+
+        return getDelegate().getWarnings();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearWarnings()
+            throws SQLException {
+
+        getDelegate().clearWarnings();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Statement createStatement(final int resultSetType, final int resultSetConcurrency)
+            throws SQLException {
+
+        return track(wrap(Statement.class, getDelegate().createStatement(resultSetType, resultSetConcurrency)));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final int resultSetType, final int resultSetConcurrency)
+            throws SQLException {
+
+        final PreparedStatement statement = getDelegate().prepareStatement(sql, resultSetType, resultSetConcurrency);
+        return track(wrap(PreparedStatement.class, statement));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CallableStatement prepareCall(final String sql, final int resultSetType, final int resultSetConcurrency)
+            throws SQLException {
+
+        final CallableStatement statement = getDelegate().prepareCall(sql, resultSetType, resultSetConcurrency);
+        return track(wrap(CallableStatement.class, statement));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Class<?>> getTypeMap()
+            throws SQLException {
+
+        return getDelegate().getTypeMap();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setTypeMap(final Map<String, Class<?>> map)
+            throws SQLException {
+
+        getDelegate().setTypeMap(map);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setHoldability(final int holdability)
+            throws SQLException {
+
+        getDelegate().setHoldability(holdability);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getHoldability()
+            throws SQLException {
+
+        return getDelegate().getHoldability();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Savepoint setSavepoint()
+            throws SQLException {
+
+        return getDelegate().setSavepoint();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Savepoint setSavepoint(final String name)
+            throws SQLException {
+
+        return getDelegate().setSavepoint(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void rollback(final Savepoint savepoint)
+            throws SQLException {
+
+        getDelegate().rollback(savepoint);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void releaseSavepoint(final Savepoint savepoint)
+            throws SQLException {
+
+        getDelegate().releaseSavepoint(savepoint);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Statement createStatement(final int resultSetType, final int resultSetConcurrency,
+                                     final int resultSetHoldability)
+            throws SQLException {
+
+        final Statement statement = getDelegate().createStatement(resultSetType, resultSetConcurrency,
+                                                                  resultSetHoldability);
+        return track(wrap(Statement.class, statement));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final int resultSetType, final int resultSetConcurrency,
+                                              final int resultSetHoldability)
+            throws SQLException {
+
+        final PreparedStatement statement = getDelegate().prepareStatement(sql, resultSetType, resultSetConcurrency,
+                                                                           resultSetHoldability);
+        return track(wrap(PreparedStatement.class, statement));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CallableStatement prepareCall(final String sql, final int resultSetType, final int resultSetConcurrency,
+                                         final int resultSetHoldability)
+            throws SQLException {
+
+        final CallableStatement statement = getDelegate().prepareCall(sql, resultSetType, resultSetConcurrency,
+                                                                      resultSetHoldability);
+        return track(wrap(CallableStatement.class, statement));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final int autoGeneratedKeys)
+            throws SQLException {
+
+        return track(wrap(PreparedStatement.class, getDelegate().prepareStatement(sql, autoGeneratedKeys)));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final int[] columnIndexes)
+            throws SQLException {
+
+        return track(wrap(PreparedStatement.class, getDelegate().prepareStatement(sql, columnIndexes)));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PreparedStatement prepareStatement(final String sql, final String[] columnNames)
+            throws SQLException {
+
+        return track(wrap(PreparedStatement.class, getDelegate().prepareStatement(sql, columnNames)));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Clob createClob()
+            throws SQLException {
+
+        return getDelegate().createClob();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Blob createBlob()
+            throws SQLException {
+
+        return getDelegate().createBlob();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NClob createNClob()
+            throws SQLException {
+
+        return getDelegate().createNClob();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SQLXML createSQLXML()
+            throws SQLException {
+
+        return getDelegate().createSQLXML();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isValid(final int timeout)
+            throws SQLException {
+
+        return getDelegate().isValid(timeout);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setClientInfo(final String name, final String value)
+            throws SQLClientInfoException {
+
+        getClientInfoDelegate().setClientInfo(name, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setClientInfo(final Properties properties)
+            throws SQLClientInfoException {
+
+        getClientInfoDelegate().setClientInfo(properties);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getClientInfo(final String name)
+            throws SQLException {
+
+        return getDelegate().getClientInfo(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Properties getClientInfo()
+            throws SQLException {
+
+        return getDelegate().getClientInfo();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Array createArrayOf(final String typeName, final Object[] elements)
+            throws SQLException {
+
+        return getDelegate().createArrayOf(typeName, elements);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Struct createStruct(final String typeName, final Object[] attributes)
+            throws SQLException {
+
+        return getDelegate().createStruct(typeName, attributes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setSchema(final String schema)
+            throws SQLException {
+
+        getDelegate().setSchema(schema);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getSchema()
+            throws SQLException {
+
+        return getDelegate().getSchema();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setNetworkTimeout(final Executor executor, final int milliseconds)
+            throws SQLException {
+
+        getDelegate().setNetworkTimeout(executor, milliseconds);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNetworkTimeout()
+            throws SQLException {
+
+        return getDelegate().getNetworkTimeout();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void abort(final Executor executor)
+            throws SQLException {
+
+        getDelegate().abort(executor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T> T unwrap(final Class<T> iface)
+            throws SQLException {
+
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return getDelegate().unwrap(iface);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isWrapperFor(final Class<?> iface)
+            throws SQLException {
+
+        return iface.isInstance(this) || getDelegate().isWrapperFor(iface);
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.lang3.Validate;
+import org.beiter.michael.db.ConnectionProperties;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A throttle for the creation of physical connections, which prevents a pool (or a fleet of pools) from opening all
+ * of its connections at once when it starts or fails over.
+ * <p>
+ * The throttle combines three limits:
+ * <ul>
+ * <li>{@code maxConcurrentCreations} limits the number of connections that the pool creates at the same time</li>
+ * <li>{@code globalMaxConcurrentCreations} limits the number of connections that all pools which share the global
+ * creation limit create at the same time. The global limit is shared by all throttles in the JVM, and is the smallest
+ * {@code globalMaxConcurrentCreations} of the throttles that share it and have not been closed.</li>
+ * <li>{@code creationPacingMillis} spaces the starts of the connection attempts of the pool. Each interval is chosen
+ * randomly between 50% and 150% of the configured value, so that many hosts do not connect in lockstep.</li>
+ * </ul>
+ * A connection attempt waits for a creation slot for at most {@code maxWaitMillis}. A pool that does not want to
+ * block its borrowers on a busy throttle can register a slot listener, which is notified whenever a creation slot
+ * of the throttle (or of the global limit that it shares) is released. This class is thread safe.
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about the long (but descriptive) variable names
+// suppress warnings about the package private scope (only the connection creator in this package uses the throttle)
+// suppress warnings about using threads (the slot listeners are Runnables, they do not run on threads of their own)
+@SuppressWarnings({"PMD.LongVariable", "PMD.DefaultPackage", "PMD.DoNotUseThreads"})
+// CHECKSTYLE:ON
+public final class CreationThrottle {
+
+    /**
+     * The global creation limit, which is shared by all throttles that have a {@code globalMaxConcurrentCreations}
+     */
+    private static final Limit GLOBAL_LIMIT = new Limit();
+
+    /**
+     * The {@code globalMaxConcurrentCreations} of each open throttle that shares the global creation limit (modified
+     * while holding {@link #GLOBAL_SHARES_LOCK}, so that the global limit always matches its smallest value)
+     */
+    private static final Map<CreationThrottle, Integer> GLOBAL_SHARES = new ConcurrentHashMap<>();
+
+    /**
+     * The lock for modifying {@link #GLOBAL_SHARES}
+     */
+    private static final ReentrantLock GLOBAL_SHARES_LOCK = new ReentrantLock();
+
+    /**
+     * The metrics of the pool
+     */
+    private final PoolMetrics metrics;
+
+    /**
+     * The creation limit of the pool
+     */
+    private final Limit poolLimit = new Limit();
+
+    /**
+     * {@code true} if the pool shares the global creation limit
+     */
+    private final boolean global;
+
+    /**
+     * The maximum time in milliseconds to wait for a creation slot, or a negative value to wait indefinitely
+     */
+    private final long maxWaitMillis;
+
+    /**
+     * The average time in nanoseconds between the starts of two connection attempts, or zero or less to not pace the
+     * connection creation
+     */
+    private final long pacingNanos;
+
+    /**
+     * The {@link System#nanoTime()} at which the next connection attempt may start
+     */
+    private final AtomicLong nextCreationNanos = new AtomicLong(System.nanoTime());
+
+    /**
+     * The listeners that are notified when a creation slot has been released
+     */
+    private final CopyOnWriteArrayList<Runnable> slotListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Create a creation throttle for a pool. If the pool shares the global creation limit, the throttle registers its
+     * {@code globalMaxConcurrentCreations}, which lowers the global limit if it is smaller than the current limit.
+     *
+     * @param metrics  The metrics of the pool, which count the connection attempts that had to wait for a slot
+     * @param poolSpec The settings of the pool (the creation limits, the pacing, and {@code maxWaitMillis})
+     * @throws NullPointerException When {@code metrics} or {@code poolSpec} are {@code null}
+     */
+    public CreationThrottle(final PoolMetrics metrics, final ConnectionProperties poolSpec) {
+
+        Validate.notNull(metrics, "The validated object 'metrics' is null");
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        this.metrics = metrics;
+        this.poolLimit.setMax(poolSpec.getMaxConcurrentCreations());
+        this.global = poolSpec.getGlobalMaxConcurrentCreations() > 0;
+        this.maxWaitMillis = poolSpec.getMaxWaitMillis();
+        this.pacingNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, poolSpec.getCreationPacingMillis()));
+
+        if (global) {
+            GLOBAL_SHARES_LOCK.lock();
+            try {
+                GLOBAL_SHARES.put(this, poolSpec.getGlobalMaxConcurrentCreations());
+                updateGlobalLimit();
+            } finally {
+                GLOBAL_SHARES_LOCK.unlock();
+            }
+        }
+    }
+
+    /**
+     * Withdraw the {@code globalMaxConcurrentCreations} of this throttle from the global creation limit, which is
+     * raised to the smallest value of the remaining throttles that share it (or removed if there are none). Call this
+     * method when the pool of the throttle is shut down.
+     * <p>
+     * Connection attempts that are still made through a closed throttle are throttled as before, and count towards
+     * the global limit. Closing a throttle more than once has no effect.
+     */
+    public void close() {
+
+        if (!global) {
+            return;
+        }
+        GLOBAL_SHARES_LOCK.lock();
+        try {
+            if (GLOBAL_SHARES.remove(this) != null) {
+                updateGlobalLimit();
+            }
+        } finally {
+            GLOBAL_SHARES_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Set the global creation limit to the smallest value of the throttles that share it, or remove it if no throttle
+     * shares it. Must be called while holding {@link #GLOBAL_SHARES_LOCK}.
+     */
+    private static void updateGlobalLimit() {
+
+        int min = 0;
+        for (final int share : GLOBAL_SHARES.values()) {
+            if (min == 0 || share < min) {
+                min = share;
+            }
+        }
+        GLOBAL_LIMIT.setMax(min);
+    }
+
+    /**
+     * @return {@code true} if a connection attempt would currently have to wait for a creation slot
+     */
+    boolean isSaturated() {
+
+        return !poolLimit.isAvailable() || global && !GLOBAL_LIMIT.isAvailable();
+    }
+
+    /**
+     * Wait for a creation slot, and for the paced start of the connection attempt. The slot must be released with
+     * {@link #release()} when the connection attempt has completed.
+     *
+     * @throws SQLException When no creation slot became available within {@code maxWaitMillis} (with a
+     *                      {@code SQLTransientConnectionException}), or the thread has been interrupted
+     */
+    void acquire()
+            throws SQLException {
+
+        if (isSaturated()) {
+            metrics.recordCreationThrottled();
+        }
+
+        final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        final long deadline = System.nanoTime() + timeoutNanos;
+        try {
+            if (!poolLimit.acquire(timeoutNanos)) {
+                throw timeout();
+            }
+            // CHECKSTYLE:OFF
+            // this inline condition is easy to read :-)
+            final long globalTimeoutNanos = timeoutNanos < 0 ? timeoutNanos : Math.max(0, deadline - System.nanoTime());
+            // CHECKSTYLE:ON
+            if (global && !GLOBAL_LIMIT.acquire(globalTimeoutNanos)) {
+                poolLimit.release();
+                throw timeout();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection creation slot", e);
+        }
+
+        try {
+            pace();
+        } catch (InterruptedException e) {
+            release();
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection creation slot", e);
+        }
+    }
+
+    /**
+     * Release a creation slot that has been acquired with {@link #acquire()}, and notify the slot listeners of this
+     * throttle. If the throttle shares the global creation limit, the slot listeners of all other throttles that
+     * share it are notified as well.
+     */
+    void release() {
+
+        if (global) {
+            GLOBAL_LIMIT.release();
+        }
+        poolLimit.release();
+
+        notifySlotListeners();
+        if (global) {
+            for (final CreationThrottle other : GLOBAL_SHARES.keySet()) {
+                if (other != this) {
+                    other.notifySlotListeners();
+                }
+            }
+        }
+    }
+
+    /**
+     * Register a listener that is notified when a creation slot has been released. The listener is called on the
+     * thread that releases the slot, and must return quickly.
+     *
+     * @param listener The listener to register
+     * @throws NullPointerException When {@code listener} is {@code null}
+     */
+    void addSlotListener(final Runnable listener) {
+
+        Validate.notNull(listener, "The validated object 'listener' is null");
+
+        slotListeners.add(listener);
+    }
+
+    /**
+     * Notify the slot listeners of this throttle that a creation slot has been released
+     */
+    private void notifySlotListeners() {
+
+        for (final Runnable listener : slotListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Reserve the next start time for a connection attempt, and wait until it has come. The interval to the following
+     * connection attempt is chosen randomly between 50% and 150% of the pacing interval.
+     *
+     * @throws InterruptedException When the thread is interrupted while waiting
+     */
+    private void pace()
+            throws InterruptedException {
+
+        if (pacingNanos <= 0) {
+            return;
+        }
+
+        final long interval = pacingNanos / 2 + (long) (ThreadLocalRandom.current().nextDouble() * pacingNanos);
+        final long now = System.nanoTime();
+        long reserved;
+        long start;
+        do {
+            reserved = nextCreationNanos.get();
+            start = Math.max(now, reserved);
+        } while (!nextCreationNanos.compareAndSet(reserved, start + interval));
+
+        TimeUnit.NANOSECONDS.sleep(start - now);
+    }
+
+    /**
+     * @return The exception for a connection attempt that did not get a creation slot in time
+     */
+    private SQLTransientConnectionException timeout() {
+
+        return new SQLTransientConnectionException("Timeout waiting for a connection creation slot after "
+                + maxWaitMillis + "ms");
+    }
+
+    /**
+     * A limit on the number of connection attempts at the same time, which can be changed while it is in use.
+     * <p>
+     * Waiting threads are parked on a {@link Condition} and never block on a monitor, like the threads waiting for a
+     * connection in the pool engines.
+     */
+    private static final class Limit {
+
+        /**
+         * Guards the maximum and the number of connection attempts in progress
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Signalled when a connection attempt completes, or the maximum is changed
+         */
+        private final Condition available = lock.newCondition();
+
+        /**
+         * The maximum number of connection attempts at the same time, or zero or less for no limit
+         */
+        private int max;
+
+        /**
+         * The number of connection attempts that are in progress
+         */
+        private int inUse;
+
+        /**
+         * Change the maximum number of connection attempts at the same time
+         *
+         * @param newMax The new maximum, or zero or less for no limit
+         */
+        private void setMax(final int newMax) {
+
+            lock.lock();
+            try {
+                max = newMax;
+                available.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return {@code true} if a connection attempt can start without waiting
+         */
+        private boolean isAvailable() {
+
+            lock.lock();
+            try {
+                return max <= 0 || inUse < max;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Wait until a connection attempt can start, and count it as in progress.
+         *
+         * @param timeoutNanos The maximum time to wait, or a negative value to wait indefinitely
+         * @return {@code true} if the connection attempt can start, {@code false} if the timeout has elapsed
+         * @throws InterruptedException When the thread is interrupted while waiting
+         */
+        private boolean acquire(final long timeoutNanos)
+                throws InterruptedException {
+
+            lock.lockInterruptibly();
+            try {
+                long remainingNanos = timeoutNanos;
+                while (max > 0 && inUse >= max) {
+                    if (timeoutNanos < 0) {
+                        available.await();
+                    } else if (remainingNanos <= 0) {
+                        return false;
+                    } else {
+                        remainingNanos = available.awaitNanos(remainingNanos);
+                    }
+                }
+                inUse++;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Count a connection attempt as completed
+         */
+        private void release() {
+
+            lock.lock();
+            try {
+                inUse--;
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+/**
+ * A non-pooling data source that obtains its connections from a {@link ConnectionCreator}.
+ * <p>
+ * This data source is used to plug a {@link ConnectionCreator} into pool engines that expect a {@link DataSource} as
+ * the source of their physical connections.
+ */
+final class CreatorDataSource
+        implements DataSource {
+
+    /**
+     * The creator of physical database connections
+     */
+    private final ConnectionCreator connectionCreator;
+
+    /**
+     * The log writer (not used by this data source, but part of the data source contract)
+     */
+    private volatile PrintWriter logWriter;
+
+    /**
+     * The login timeout (not used by this data source, but part of the data source contract)
+     */
+    private volatile int loginTimeout;
+
+    /**
+     * Create a data source for the provided connection creator
+     *
+     * @param connectionCreator The creator of physical database connections
+     */
+    CreatorDataSource(final ConnectionCreator connectionCreator) {
+
+        assert connectionCreator != null : "The connection creator cannot be null";
+
+        this.connectionCreator = connectionCreator;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Connection getConnection()
+            throws SQLException {
+
+        return connectionCreator.createConnection();
+    }
+
+    /**
+     * This operation is not supported, because the credentials are managed by the {@link ConnectionCreator}.
+     *
+     * @param username The username (ignored)
+     * @param password The password (ignored)
+     * @return never returns
+     * @throws SQLFeatureNotSupportedException always
+     */
+    @Override
+    public Connection getConnection(final String username, final String password)
+            throws SQLFeatureNotSupportedException {
+
+        throw new SQLFeatureNotSupportedException("Connection credentials are managed by the connection creator");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PrintWriter getLogWriter() {
+
+        return logWriter;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setLogWriter(final PrintWriter writer) {
+
+        this.logWriter = writer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setLoginTimeout(final int seconds) {
+
+        this.loginTimeout = seconds;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getLoginTimeout() {
+
+        return loginTimeout;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Logger getParentLogger()
+            throws SQLFeatureNotSupportedException {
+
+        throw new SQLFeatureNotSupportedException("This data source does not use java.util.logging");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T> T unwrap(final Class<T> iface)
+            throws SQLException {
+
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("This data source does not wrap an instance of " + iface.getName());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isWrapperFor(final Class<?> iface) {
+
+        return iface.isInstance(this);
+    }
+}
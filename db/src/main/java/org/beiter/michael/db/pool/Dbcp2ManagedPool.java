@@ -0,0 +1,134 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.dbcp2.PoolableConnection;
+import org.apache.commons.dbcp2.PoolingDataSource;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.beiter.michael.db.ConnectionProperties;
+
+import javax.sql.DataSource;
+
+/**
+ * A connection pool backed by an Apache Commons Pool2 {@link GenericObjectPool}.
+ * <p>
+ * When the pool is reconfigured, Commons Pool2 destroys surplus connections when they are returned (if there are
+ * more idle connections than {@code maxIdle}) or when they are evicted. Changed connection defaults and validation
+ * settings apply to connections as they are borrowed, validated, or returned.
+ */
+final class Dbcp2ManagedPool
+        implements ReconfigurableManagedPool {
+
+    /**
+     * The underlying object pool
+     */
+    private final GenericObjectPool<PoolableConnection> pool;
+
+    /**
+     * The data source that hands out connections from the pool
+     */
+    private final PoolingDataSource<PoolableConnection> dataSource;
+
+    /**
+     * The factory that creates, validates, and passivates the pooled connections
+     */
+    private final Dbcp2PoolProvider.IntervalValidatingConnectionFactory poolConnFactory;
+
+    /**
+     * Create a managed pool from a DBCP2 object pool
+     *
+     * @param pool            The object pool
+     * @param poolConnFactory The factory of the object pool
+     */
+    Dbcp2ManagedPool(final GenericObjectPool<PoolableConnection> pool,
+                     final Dbcp2PoolProvider.IntervalValidatingConnectionFactory poolConnFactory) {
+
+        assert pool != null : "The pool cannot be null";
+        assert poolConnFactory != null : "The poolable connection factory cannot be null";
+
+        this.pool = pool;
+        this.poolConnFactory = poolConnFactory;
+        this.dataSource = new PoolingDataSource<>(pool);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DataSource getDataSource() {
+
+        return dataSource;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumActive() {
+
+        return pool.getNumActive();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumIdle() {
+
+        return pool.getNumIdle();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reconfigure(final ConnectionProperties poolSpec) {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        synchronized (this) {
+            Dbcp2PoolProvider.configureConnectionFactory(poolConnFactory, poolSpec);
+            pool.setConfig(Dbcp2PoolProvider.getPoolConfig(poolSpec));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+
+        pool.close();
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.dbcp2.PoolableConnection;
+import org.apache.commons.dbcp2.PoolableConnectionFactory;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.beiter.michael.db.ConnectionProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * This pool provider creates connection pools based on Apache Commons DBCP2 and Apache Commons Pool2.
+ * <p>
+ * This is the default pool engine.
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about the package private scope (the DBCP2 pool uses the same helpers when it is reconfigured)
+// suppress warnings about the long variable names (they are named after the settings of the pool spec)
+@SuppressWarnings({"PMD.DefaultPackage", "PMD.LongVariable"})
+// CHECKSTYLE:ON
+public final class Dbcp2PoolProvider
+        implements PoolProvider {
+
+    /**
+     * The name of this pool engine
+     */
+    public static final String NAME = "dbcp2";
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(Dbcp2PoolProvider.class);
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+
+        return NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ManagedPool createPool(final ConnectionCreator connectionCreator, final ConnectionProperties poolSpec) {
+
+        Validate.notNull(connectionCreator, "The validated object 'connectionCreator' is null");
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        LOG.debug("Creating new DBCP2 pooled data source for '" + connectionCreator.getUrl() + "'");
+
+        // create a Apache DBCP pool configuration from the pool spec
+        final GenericObjectPoolConfig poolConfig = getPoolConfig(poolSpec);
+
+        // create the pool and assign the factory to the pool
+        final org.apache.commons.dbcp2.ConnectionFactory connFactory = new CreatorConnectionFactory(connectionCreator);
+        final IntervalValidatingConnectionFactory poolConnFactory =
+                new IntervalValidatingConnectionFactory(connFactory);
+        configureConnectionFactory(poolConnFactory, poolSpec);
+        poolConnFactory.setCacheState(poolSpec.isCacheState());
+        poolConnFactory.setPoolStatements(poolSpec.isPoolPreparedStatements());
+        if (poolSpec.getMaxOpenPreparedStatements() > 0) {
+            poolConnFactory.setMaxOpenPrepatedStatements(poolSpec.getMaxOpenPreparedStatements());
+        } else {
+            // DBCP2 uses a negative value (not zero) for "no limit"
+            poolConnFactory.setMaxOpenPrepatedStatements(-1);
+        }
+        final GenericObjectPool<PoolableConnection> connPool = new GenericObjectPool<>(poolConnFactory, poolConfig);
+        poolConnFactory.setPool(connPool);
+
+        return new Dbcp2ManagedPool(connPool, poolConnFactory);
+    }
+
+    /**
+     * Create an Apache Commons Pool2 configuration from a connection pool spec
+     *
+     * @param poolSpec A connection pool spec
+     * @return The pool configuration
+     */
+    static GenericObjectPoolConfig getPoolConfig(final ConnectionProperties poolSpec) {
+
+        // assert in package private method
+        assert poolSpec != null : "The pool spec cannot be null";
+
+        final GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+        poolConfig.setMaxTotal(poolSpec.getMaxTotal());
+        poolConfig.setMaxIdle(poolSpec.getMaxIdle());
+        poolConfig.setMinIdle(poolSpec.getMinIdle());
+        poolConfig.setMaxWaitMillis(poolSpec.getMaxWaitMillis());
+        poolConfig.setTestOnCreate(poolSpec.isTestOnCreate());
+        poolConfig.setTestOnBorrow(poolSpec.isTestOnBorrow());
+        poolConfig.setTestOnReturn(poolSpec.isTestOnReturn());
+        poolConfig.setTestWhileIdle(poolSpec.isTestWhileIdle());
+        poolConfig.setTimeBetweenEvictionRunsMillis(poolSpec.getTimeBetweenEvictionRunsMillis());
+        poolConfig.setNumTestsPerEvictionRun(poolSpec.getNumTestsPerEvictionRun());
+        poolConfig.setMinEvictableIdleTimeMillis(poolSpec.getMinEvictableIdleTimeMillis());
+        poolConfig.setSoftMinEvictableIdleTimeMillis(poolSpec.getSoftMinEvictableIdleTimeMillis());
+        poolConfig.setLifo(poolSpec.isLifo());
+
+        // DBCP2 has no background validator: let the evictor validate all idle connections at least once per interval
+        final long idleValidationIntervalMillis = poolSpec.getIdleValidationIntervalMillis();
+        if (idleValidationIntervalMillis > 0) {
+            poolConfig.setTestWhileIdle(true);
+            poolConfig.setNumTestsPerEvictionRun(-1);
+            final long evictionPeriodMillis = poolSpec.getTimeBetweenEvictionRunsMillis();
+            if (evictionPeriodMillis <= 0 || evictionPeriodMillis > idleValidationIntervalMillis) {
+                poolConfig.setTimeBetweenEvictionRunsMillis(idleValidationIntervalMillis);
+            }
+        }
+        return poolConfig;
+    }
+
+    /**
+     * Apply the connection defaults, the validation query and interval, and the maximum connection lifetime of a
+     * connection pool spec to a DBCP2 poolable connection factory
+     *
+     * @param poolConnFactory The poolable connection factory
+     * @param poolSpec        A connection pool spec
+     */
+    static void configureConnectionFactory(final IntervalValidatingConnectionFactory poolConnFactory,
+                                           final ConnectionProperties poolSpec) {
+
+        // assert in package private method
+        assert poolConnFactory != null : "The poolable connection factory cannot be null";
+        assert poolSpec != null : "The pool spec cannot be null";
+
+        poolConnFactory.setDefaultAutoCommit(poolSpec.isDefaultAutoCommit());
+        poolConnFactory.setDefaultReadOnly(poolSpec.isDefaultReadOnly());
+        poolConnFactory.setDefaultTransactionIsolation(poolSpec.getDefaultTransactionIsolation());
+        poolConnFactory.setValidationQuery(poolSpec.getValidationQuery());
+        poolConnFactory.setMaxConnLifetimeMillis(poolSpec.getMaxConnLifetimeMillis());
+        poolConnFactory.setValidationIntervalMillis(poolSpec.getValidationIntervalMillis());
+    }
+
+    /**
+     * A DBCP2 connection factory that obtains its physical connections from a {@link ConnectionCreator}.
+     */
+    private static final class CreatorConnectionFactory
+            implements org.apache.commons.dbcp2.ConnectionFactory {
+
+        /**
+         * The creator of physical database connections
+         */
+        private final ConnectionCreator connectionCreator;
+
+        /**
+         * Create a DBCP2 connection factory
+         *
+         * @param connectionCreator The creator of physical database connections
+         */
+        CreatorConnectionFactory(final ConnectionCreator connectionCreator) {
+
+            this.connectionCreator = connectionCreator;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Connection createConnection()
+                throws SQLException {
+
+            return connectionCreator.createConnection();
+        }
+    }
+
+    /**
+     * A DBCP2 poolable connection factory that does not validate connections that have been returned to the pool
+     * within the validation interval.
+     * <p>
+     * DBCP2 does not record when a connection has last been validated, so the interval is measured from the last
+     * return of the connection to the pool (or from its creation).
+     */
+    static final class IntervalValidatingConnectionFactory
+            extends PoolableConnectionFactory {
+
+        /**
+         * The time in milliseconds after the last return of a connection during which it is not validated again
+         */
+        private volatile long validationIntervalMillis;
+
+        /**
+         * The maximum lifetime in milliseconds of a connection, which must be enforced even if the validation is
+         * skipped
+         */
+        private volatile long maxConnLifetimeMillis;
+
+        /**
+         * Create a poolable connection factory
+         *
+         * @param connFactory The factory of physical database connections
+         */
+        IntervalValidatingConnectionFactory(final org.apache.commons.dbcp2.ConnectionFactory connFactory) {
+
+            super(connFactory, null);
+        }
+
+        /**
+         * @param validationIntervalMillis The time in milliseconds after the last return of a connection during which
+         *                                 it is not validated again
+         */
+        void setValidationIntervalMillis(final long validationIntervalMillis) {
+
+            this.validationIntervalMillis = validationIntervalMillis;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setMaxConnLifetimeMillis(final long maxConnLifetimeMillis) {
+
+            super.setMaxConnLifetimeMillis(maxConnLifetimeMillis);
+            this.maxConnLifetimeMillis = maxConnLifetimeMillis;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean validateObject(final PooledObject<PoolableConnection> pooledObject) {
+
+            final long now = System.currentTimeMillis();
+            final boolean recentlyUsed = validationIntervalMillis > 0
+                    && now - pooledObject.getLastReturnTime() < validationIntervalMillis;
+            final boolean expired = maxConnLifetimeMillis > 0
+                    && now - pooledObject.getCreateTime() > maxConnLifetimeMillis;
+            if (recentlyUsed && !expired) {
+                return true;
+            }
+
+            // the superclass also rejects expired connections
+            return super.validateObject(pooledObject);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+/**
+ * Handles the calls to a statement or to the database metadata that has been created through a
+ * {@link ConnectionWrapper}. {@code getConnection()} returns the wrapper instead of the connection that has created the
+ * object (so that the borrower cannot reach, and close, the pooled connection behind the wrapper), and all other calls
+ * are delegated to the object.
+ * <p>
+ * When connection wrappers are stacked, the object is wrapped only once: the outer wrappers re-bind the existing
+ * proxy to themselves, so that a call to the object passes through a single proxy.
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about the complexity of invoke() and the literals in its conditions (it dispatches on the method name and arity)
+// suppress warnings about the method signatures (they are defined by the InvocationHandler interface)
+// suppress warnings about the long (but descriptive) constant names
+// suppress warnings about the package private scope (the handler is only used by the connection wrappers in this package)
+@SuppressWarnings({"PMD.CyclomaticComplexity", "PMD.AvoidLiteralsInIfCondition", "PMD.UseVarargs", "PMD.LongVariable", "PMD.DefaultPackage"})
+// CHECKSTYLE:ON
+final class DelegatingHandler
+        implements InvocationHandler {
+
+    /**
+     * The wrapped statement or database metadata
+     */
+    private final Object delegate;
+
+    /**
+     * The connection returned by {@code getConnection()}. Only changed by the thread that creates the object, before
+     * it is handed out.
+     */
+    private Connection connection;
+
+    /**
+     * Create a handler for a statement or the database metadata
+     *
+     * @param delegate   The wrapped statement or database metadata
+     * @param connection The connection returned by {@code getConnection()}
+     */
+    private DelegatingHandler(final Object delegate, final Connection connection) {
+
+        this.delegate = delegate;
+        this.connection = connection;
+    }
+
+    /**
+     * Wrap a statement or the database metadata, so that its {@code getConnection()} returns a connection wrapper
+     *
+     * @param type       The interface of the object ({@link Statement}, {@link PreparedStatement},
+     *                   {@link CallableStatement}, or {@link DatabaseMetaData})
+     * @param object     The statement or database metadata, or {@code null}
+     * @param connection The connection wrapper
+     * @param <T>        The type of the object
+     * @return The wrapped object, or {@code null} if {@code object} is {@code null}
+     */
+    static <T> T wrap(final Class<T> type, final T object, final Connection connection) {
+
+        assert type != null : "The type cannot be null";
+        assert connection != null : "The connection cannot be null";
+
+        if (object == null) {
+            return null;
+        }
+
+        if (Proxy.isProxyClass(object.getClass())) {
+            final InvocationHandler handler = Proxy.getInvocationHandler(object);
+            if (handler instanceof DelegatingHandler) {
+                ((DelegatingHandler) handler).rebind(connection);
+                return object;
+            }
+        }
+
+        try {
+            return type.cast(Proxies.getConstructor(type).newInstance(new DelegatingHandler(object, connection)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot wrap an object of type " + type.getName(), e);
+        }
+    }
+
+    /**
+     * Change the connection returned by {@code getConnection()}
+     *
+     * @param wrapper The connection wrapper
+     */
+    private void rebind(final Connection wrapper) {
+
+        this.connection = wrapper;
+    }
+
+    /**
+     * Look up the constructor of the dynamic proxy class for an interface. The constructor is looked up once for each
+     * interface, because {@link Proxy#newProxyInstance(ClassLoader, Class[], InvocationHandler)} looks up the proxy
+     * class on every call.
+     *
+     * @param type The JDBC interface
+     * @return The constructor of the dynamic proxy class, which takes an {@link InvocationHandler}
+     */
+    static Constructor<?> getProxyConstructor(final Class<?> type) {
+
+        // Proxy.getProxyClass() is deprecated, so the proxy class is taken from a throwaway instance instead
+        final Object prototype = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        throw new UnsupportedOperationException("The prototype object cannot be used");
+                    }
+                });
+        try {
+            return prototype.getClass().getConstructor(InvocationHandler.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Cannot create the proxy class for " + type.getName(), e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args)
+            throws Throwable {
+
+        final String name = method.getName();
+        final int parameters = method.getParameterTypes().length;
+        if ("getConnection".equals(name) && parameters == 0) {
+            return connection;
+        } else if ("equals".equals(name) && parameters == 1) {
+            return proxy == args[0];
+        } else if ("hashCode".equals(name) && parameters == 0) {
+            return System.identityHashCode(proxy);
+        } else if ("toString".equals(name) && parameters == 0) {
+            return delegate.toString();
+        } else if ("unwrap".equals(name) && ((Class<?>) args[0]).isInstance(proxy)) {
+            return proxy;
+        } else if ("isWrapperFor".equals(name) && ((Class<?>) args[0]).isInstance(proxy)) {
+            return true;
+        }
+
+        try {
+            return method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Holds the constructors of the dynamic proxy classes. The proxy classes are only generated when the first object
+     * is wrapped.
+     */
+    private static final class Proxies {
+
+        /**
+         * The constructor of the dynamic proxy class for statements
+         */
+        private static final Constructor<?> STATEMENT = getProxyConstructor(Statement.class);
+
+        /**
+         * The constructor of the dynamic proxy class for prepared statements
+         */
+        private static final Constructor<?> PREPARED_STATEMENT = getProxyConstructor(PreparedStatement.class);
+
+        /**
+         * The constructor of the dynamic proxy class for callable statements
+         */
+        private static final Constructor<?> CALLABLE_STATEMENT = getProxyConstructor(CallableStatement.class);
+
+        /**
+         * The constructor of the dynamic proxy class for database metadata
+         */
+        private static final Constructor<?> DATABASE_META_DATA = getProxyConstructor(DatabaseMetaData.class);
+
+        /**
+         * A private constructor to prevent instantiation of this class
+         */
+        private Proxies() {
+        }
+
+        /**
+         * @param type The JDBC interface
+         * @return The constructor of the dynamic proxy class for the interface
+         */
+        private static Constructor<?> getConstructor(final Class<?> type) {
+
+            if (type == Statement.class) {
+                return STATEMENT;
+            } else if (type == PreparedStatement.class) {
+                return PREPARED_STATEMENT;
+            } else if (type == CallableStatement.class) {
+                return CALLABLE_STATEMENT;
+            } else if (type == DatabaseMetaData.class) {
+                return DATABASE_META_DATA;
+            }
+            throw new IllegalArgumentException("Cannot wrap an object of type " + type.getName());
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariConfigMXBean;
+import com.zaxxer.hikari.HikariDataSource;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.FactoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+
+/**
+ * This pool provider creates connection pools based on HikariCP.
+ * <p>
+ * HikariCP is an optional dependency of this library, and must be added to the class path to use this pool engine.
+ * The settings in {@link ConnectionProperties} are mapped onto the HikariCP configuration as follows:
+ * <ul>
+ * <li><code>maxTotal</code> is used as <code>maximumPoolSize</code> (a negative value means no limit)</li>
+ * <li><code>minIdle</code> is used as <code>minimumIdle</code></li>
+ * <li><code>maxWaitMillis</code> is used as <code>connectionTimeout</code> (-1 means wait indefinitely, values below
+ * the HikariCP minimum of 250ms are raised to 250ms)</li>
+ * <li><code>minEvictableIdleTimeMillis</code> is used as <code>idleTimeout</code></li>
+ * <li><code>maxConnLifetimeMillis</code> is used as <code>maxLifetime</code></li>
+ * <li><code>validationQuery</code> is used as <code>connectionTestQuery</code> (<code>Connection.isValid()</code> is
+ * used if no query is configured)</li>
+ * <li><code>defaultAutoCommit</code>, <code>defaultReadOnly</code>, and <code>defaultTransactionIsolation</code> are
+ * used as the respective connection defaults</li>
+ * </ul>
+ * All other settings are not supported by HikariCP and are ignored. In particular, HikariCP always validates idle
+ * connections on borrow (except for connections that have been used within the last 500ms, which takes the place
+ * of <code>validationIntervalMillis</code>), and manages idle connections with its own house keeping thread.
+ * HikariCP does not pool prepared statements, so <code>poolPreparedStatements</code> is ignored as well: use the
+ * statement cache of the JDBC driver (if available) instead.
+ * <p>
+ * When the pool is reconfigured, only the sizing and the timeouts are changed. The validation query and the connection
+ * defaults of a running HikariCP pool cannot be changed.
+ */
+// suppress warnings about the long (but descriptive) constant names
+@SuppressWarnings("PMD.LongVariable")
+public final class HikariPoolProvider
+        implements PoolProvider {
+
+    /**
+     * The name of this pool engine
+     */
+    public static final String NAME = "hikari";
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(HikariPoolProvider.class);
+
+    /**
+     * The smallest connection timeout accepted by HikariCP
+     */
+    private static final long MIN_CONNECTION_TIMEOUT_MILLIS = 250;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+
+        return NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ManagedPool createPool(final ConnectionCreator connectionCreator, final ConnectionProperties poolSpec)
+            throws FactoryException {
+
+        Validate.notNull(connectionCreator, "The validated object 'connectionCreator' is null");
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        LOG.debug("Creating new HikariCP pooled data source for '" + connectionCreator.getUrl() + "'");
+
+        try {
+            return new HikariManagedPool(new HikariDataSource(getConfig(connectionCreator, poolSpec)));
+        } catch (IllegalArgumentException e) {
+            final String error = "Invalid HikariCP pool configuration for '" + connectionCreator.getUrl() + "'";
+            LOG.warn(error, e);
+            throw new FactoryException(error, e);
+        }
+    }
+
+    /**
+     * Map a connection pool spec onto a HikariCP configuration.
+     *
+     * @param connectionCreator The creator of physical database connections
+     * @param poolSpec          A connection pool spec
+     * @return The HikariCP configuration
+     * @throws IllegalArgumentException When HikariCP does not accept one of the configuration values
+     */
+    private static HikariConfig getConfig(final ConnectionCreator connectionCreator,
+                                          final ConnectionProperties poolSpec) {
+
+        final HikariConfig config = new HikariConfig();
+        config.setDataSource(new CreatorDataSource(connectionCreator));
+
+        // do not open a connection when the pool is created (consistent with the other pool engines)
+        config.setInitializationFailTimeout(-1);
+
+        configure(config, poolSpec);
+        if (StringUtils.isNotBlank(poolSpec.getValidationQuery())) {
+            config.setConnectionTestQuery(poolSpec.getValidationQuery());
+        }
+        config.setAutoCommit(poolSpec.isDefaultAutoCommit());
+        config.setReadOnly(poolSpec.isDefaultReadOnly());
+        config.setTransactionIsolation(getIsolationLevelName(poolSpec.getDefaultTransactionIsolation()));
+
+        return config;
+    }
+
+    /**
+     * Apply the settings of a connection pool spec that HikariCP can change at runtime (sizing and timeouts) to a
+     * HikariCP configuration.
+     *
+     * @param config   The HikariCP configuration, or the configuration of a running HikariCP pool
+     * @param poolSpec A connection pool spec
+     * @throws IllegalArgumentException When HikariCP does not accept one of the configuration values
+     */
+    // suppress warnings about the package private scope (the HikariCP pool uses this method when it is reconfigured)
+    @SuppressWarnings("PMD.DefaultPackage")
+    static void configure(final HikariConfigMXBean config, final ConnectionProperties poolSpec) {
+
+        // assert in package private method
+        assert config != null : "The config cannot be null";
+        assert poolSpec != null : "The pool spec cannot be null";
+
+        if (poolSpec.getMaxTotal() < 0) {
+            config.setMaximumPoolSize(Integer.MAX_VALUE);
+        } else {
+            config.setMaximumPoolSize(poolSpec.getMaxTotal());
+        }
+        config.setMinimumIdle(poolSpec.getMinIdle());
+
+        if (poolSpec.getMaxWaitMillis() < 0) {
+            config.setConnectionTimeout(0); // 0 means "wait indefinitely" in HikariCP
+        } else {
+            config.setConnectionTimeout(Math.max(MIN_CONNECTION_TIMEOUT_MILLIS, poolSpec.getMaxWaitMillis()));
+        }
+
+        config.setIdleTimeout(Math.max(0, poolSpec.getMinEvictableIdleTimeMillis()));
+        config.setMaxLifetime(Math.max(0, poolSpec.getMaxConnLifetimeMillis()));
+    }
+
+    /**
+     * Return the name of the {@link Connection} constant for a transaction isolation level, which is the format
+     * expected by HikariCP.
+     *
+     * @param level The transaction isolation level
+     * @return The name of the transaction isolation level
+     * @throws IllegalArgumentException When the transaction isolation level is not one of the JDBC levels
+     */
+    // suppress warnings about the package private scope (the method is package private to allow testing)
+    @SuppressWarnings("PMD.DefaultPackage")
+    static String getIsolationLevelName(final int level) {
+
+        switch (level) {
+            case Connection.TRANSACTION_NONE:
+                return "TRANSACTION_NONE";
+            case Connection.TRANSACTION_READ_UNCOMMITTED:
+                return "TRANSACTION_READ_UNCOMMITTED";
+            case Connection.TRANSACTION_READ_COMMITTED:
+                return "TRANSACTION_READ_COMMITTED";
+            case Connection.TRANSACTION_SERIALIZABLE:
+                return "TRANSACTION_SERIALIZABLE";
+            case Connection.TRANSACTION_REPEATABLE_READ:
+                return "TRANSACTION_REPEATABLE_READ";
+            default:
+                throw new IllegalArgumentException("Unsupported transaction isolation level: " + level);
+        }
+    }
+}
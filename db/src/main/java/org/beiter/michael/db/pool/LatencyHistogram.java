@@ -0,0 +1,329 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations, with a bounded relative error.
+ * <p>
+ * Durations are counted in logarithmic buckets: each power of two is split into {@value #SUB_BUCKETS} linear
+ * sub-buckets, which bounds the relative error of the reported percentiles to 12.5%. Recording a duration is a single
+ * atomic increment of a bucket, plus an atomic addition to the sum, and an update of the maximum only when the duration
+ * exceeds it. The buckets and sums are striped by thread, and the sums of the stripes are padded to separate cache
+ * lines, so that threads recording at the same time rarely update the same counter or cache line.
+ * <p>
+ * The reported values are a consistent-enough view of a histogram that is concurrently updated: a percentile may
+ * include or exclude durations that are recorded while it is being computed.
+ */
+// suppress warnings about the package private scope (the bucket helpers are package private to allow testing)
+@SuppressWarnings("PMD.DefaultPackage")
+public final class LatencyHistogram {
+
+    /**
+     * The number of linear sub-buckets per power of two
+     */
+    static final int SUB_BUCKETS = 8;
+
+    /**
+     * The number of bits of a duration that select the sub-bucket
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * Durations below this value are counted in linear buckets of width 1
+     */
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+
+    /**
+     * The exponent of {@link #LINEAR_LIMIT}
+     */
+    private static final int LINEAR_LIMIT_BITS = 4;
+
+    /**
+     * The number of buckets, which covers all positive {@code long} values
+     */
+    private static final int BUCKETS = LINEAR_LIMIT + (Long.SIZE - 1 - LINEAR_LIMIT_BITS) * SUB_BUCKETS;
+
+    /**
+     * The number of stripes (must be a power of two)
+     */
+    private static final int STRIPES = 4;
+
+    /**
+     * The distance between the sums of two stripes, in longs (two 64 byte cache lines, so that neither the sums nor
+     * the cache lines that are prefetched along with them are shared between stripes)
+     */
+    private static final int SUM_PADDING = 16;
+
+    /**
+     * The largest percentile
+     */
+    private static final double MAX_PERCENTILE = 100d;
+
+    /**
+     * The bucket counts, one row of {@link #BUCKETS} counts per stripe
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+
+    /**
+     * The sum of all durations in nanoseconds, per stripe, at index {@code (stripe + 1) * SUM_PADDING} (the leading
+     * padding separates the first sum from the array header)
+     */
+    private final AtomicLongArray sums = new AtomicLongArray((STRIPES + 2) * SUM_PADDING);
+
+    /**
+     * The largest recorded duration in nanoseconds
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration
+     *
+     * @param nanos The duration in nanoseconds (negative durations are recorded as 0)
+     */
+    public void record(final long nanos) {
+
+        final long value = Math.max(0, nanos);
+        final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+
+        counts.incrementAndGet(stripe * BUCKETS + getBucket(value));
+        sums.addAndGet((stripe + 1) * SUM_PADDING, value);
+
+        // plain read first: once the maximum has settled, hardly any duration exceeds it, and no CAS is attempted
+        long current = max.get();
+        while (value > current) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return The number of recorded durations
+     */
+    public long getCount() {
+
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return The mean of the recorded durations in nanoseconds, or 0 if no duration has been recorded
+     */
+    public long getMean() {
+
+        final long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        return getSum() / count;
+    }
+
+    /**
+     * @return The largest recorded duration in nanoseconds, or 0 if no duration has been recorded
+     */
+    public long getMax() {
+
+        return max.get();
+    }
+
+    /**
+     * Return a percentile of the recorded durations.
+     * <p>
+     * The returned value is the upper bound of the bucket that contains the percentile (capped by the largest
+     * recorded duration), i.e. it is at most 12.5% larger than the exact percentile.
+     *
+     * @param percentile The percentile, between 0 and 100 (inclusive)
+     * @return The percentile in nanoseconds, or 0 if no duration has been recorded
+     * @throws IllegalArgumentException When {@code percentile} is not between 0 and 100
+     */
+    public long getPercentile(final double percentile) {
+
+        Validate.inclusiveBetween(0d, MAX_PERCENTILE, percentile);
+
+        final long[] merged = getBucketCounts();
+        long count = 0;
+        for (final long bucketCount : merged) {
+            count += bucketCount;
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / MAX_PERCENTILE));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += merged[bucket];
+            if (seen >= rank) {
+                return Math.min(getUpperBound(bucket), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Return a percentile of the recorded durations in the provided unit.
+     *
+     * @param percentile The percentile, between 0 and 100 (inclusive)
+     * @param unit       The unit of the returned value
+     * @return The percentile in the provided unit
+     * @throws IllegalArgumentException When {@code percentile} is not between 0 and 100
+     * @see #getPercentile(double)
+     */
+    public long getPercentile(final double percentile, final TimeUnit unit) {
+
+        return unit.convert(getPercentile(percentile), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Clear all recorded durations.
+     * <p>
+     * Durations that are recorded while the histogram is being cleared may or may not be cleared.
+     */
+    public void reset() {
+
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            sums.set((stripe + 1) * SUM_PADDING, 0);
+        }
+        max.set(0);
+    }
+
+    /**
+     * @return The sum of the recorded durations in nanoseconds
+     */
+    long getSum() {
+
+        long sum = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            sum += sums.get((stripe + 1) * SUM_PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * @return The counts of the buckets, merged over all stripes
+     */
+    long[] getBucketCounts() {
+
+        final long[] merged = new long[BUCKETS];
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                merged[bucket] += counts.get(stripe * BUCKETS + bucket);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Return a percentile of the durations that have been recorded between two snapshots of the bucket counts.
+     * <p>
+     * The returned value is the upper bound of the bucket that contains the percentile.
+     *
+     * @param before     The bucket counts at the start of the window (see {@link #getBucketCounts()})
+     * @param after      The bucket counts at the end of the window
+     * @param percentile The percentile, between 0 and 100 (inclusive)
+     * @return The percentile in nanoseconds, or 0 if no duration has been recorded in the window
+     */
+    static long getPercentile(final long[] before, final long[] after, final double percentile) {
+
+        // assert in package private method
+        assert before != null && before.length == BUCKETS : "The bucket counts before must be a snapshot";
+        assert after != null && after.length == BUCKETS : "The bucket counts after must be a snapshot";
+
+        long count = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            count += after[bucket] - before[bucket];
+        }
+        if (count <= 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / MAX_PERCENTILE));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += after[bucket] - before[bucket];
+            if (seen >= rank) {
+                return getUpperBound(bucket);
+            }
+        }
+        return getUpperBound(BUCKETS - 1);
+    }
+
+    /**
+     * Return the bucket of a duration
+     *
+     * @param value The duration (not negative)
+     * @return The bucket index
+     */
+    static int getBucket(final long value) {
+
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - LINEAR_LIMIT_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Return the largest duration that is counted in a bucket
+     *
+     * @param bucket The bucket index
+     * @return The upper bound of the bucket (inclusive)
+     */
+    static long getUpperBound(final int bucket) {
+
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+
+        final int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_LIMIT_BITS;
+        final long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        final long lowerBound = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        final long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (width - 1);
+    }
+}
@@ -0,0 +1,557 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.lang3.Validate;
+import org.beiter.michael.db.ConnectionProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection pool that watches the connections borrowed from another pool, reports connections that are held longer
+ * than the leak detection threshold, and optionally reclaims connections that are held longer than the abandoned
+ * timeout.
+ * <p>
+ * Borrowed connections are checked by a background thread, so returning a connection in time costs no more than
+ * removing it from a concurrent set. The stack trace of the borrowing thread is captured on borrow for a random sample
+ * of one in {@code stackSampleRate} borrows. For connections borrowed without a captured stack trace, the report
+ * contains the stack trace of the borrowing thread at the time the leak is detected instead, which usually still shows
+ * the code that holds on to the connection.
+ * <p>
+ * Before an abandoned connection is returned to the underlying pool, the statements that have been created through it
+ * (and with them their result sets) are cancelled and closed, so that the borrower cannot keep using the physical
+ * connection after it has been handed out to another thread.
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about the number of methods (most of them belong to the tracked connection)
+// suppress warnings about the long (but descriptive) variable names
+// suppress warnings about using threads (the sweeper runs on its own daemon thread, and reports the borrowing thread)
+@SuppressWarnings({"PMD.TooManyMethods", "PMD.LongVariable", "PMD.DoNotUseThreads"})
+// CHECKSTYLE:ON
+public final class LeakDetectingManagedPool
+        implements ReconfigurableManagedPool {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(LeakDetectingManagedPool.class);
+
+    /**
+     * The shortest period of the leak detection thread in milliseconds
+     */
+    private static final long MIN_SWEEP_PERIOD_MILLIS = 10;
+
+    /**
+     * Counter for the names of the leak detection threads
+     */
+    private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+    /**
+     * The underlying pool
+     */
+    private final ManagedPool pool;
+
+    /**
+     * The metrics of the pool
+     */
+    private final PoolMetrics metrics;
+
+    /**
+     * The time in milliseconds after which a borrowed connection is reported as a potential leak, or zero or less to
+     * not report leaks
+     */
+    private final long leakThresholdMillis;
+
+    /**
+     * The time in milliseconds after which a borrowed connection is reclaimed, or zero or less to never reclaim
+     * connections
+     */
+    private final long abandonedTimeoutMillis;
+
+    /**
+     * The stack trace of the borrowing thread is captured for one in {@code stackSampleRate} borrows
+     */
+    private final int stackSampleRate;
+
+    /**
+     * The connections that are currently borrowed
+     */
+    private final Set<TrackedConnection> borrowed =
+            Collections.newSetFromMap(new ConcurrentHashMap<TrackedConnection, Boolean>());
+
+    /**
+     * The thread that checks the borrowed connections
+     */
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * The tracking data source
+     */
+    private final DataSource dataSource;
+
+    /**
+     * Create a leak detector in front of a connection pool
+     *
+     * @param pool                   The underlying pool
+     * @param metrics                The metrics of the pool, which count the reported and reclaimed connections
+     * @param leakThresholdMillis    The time in milliseconds after which a borrowed connection is reported as a
+     *                               potential leak, or zero or less to not report leaks
+     * @param abandonedTimeoutMillis The time in milliseconds after which a borrowed connection is reclaimed, or zero
+     *                               or less to never reclaim connections
+     * @param stackSampleRate        The stack trace of the borrowing thread is captured for one in
+     *                               {@code stackSampleRate} borrows, or never if zero or less
+     * @throws NullPointerException     When {@code pool} or {@code metrics} are {@code null}
+     * @throws IllegalArgumentException When neither {@code leakThresholdMillis} nor {@code abandonedTimeoutMillis}
+     *                                  are positive
+     */
+    public LeakDetectingManagedPool(final ManagedPool pool, final PoolMetrics metrics, final long leakThresholdMillis,
+                                    final long abandonedTimeoutMillis, final int stackSampleRate) {
+
+        Validate.notNull(pool, "The validated object 'pool' is null");
+        Validate.notNull(metrics, "The validated object 'metrics' is null");
+        Validate.isTrue(leakThresholdMillis > 0 || abandonedTimeoutMillis > 0,
+                "Either the leak threshold or the abandoned timeout must be positive");
+
+        this.pool = pool;
+        this.metrics = metrics;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.abandonedTimeoutMillis = abandonedTimeoutMillis;
+        this.stackSampleRate = stackSampleRate;
+        this.dataSource = new TrackingDataSource();
+
+        final long period = Math.max(MIN_SWEEP_PERIOD_MILLIS, getShortestTimeout() / 2);
+        sweeper = Executors.newSingleThreadScheduledExecutor(new SweeperThreadFactory());
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DataSource getDataSource() {
+
+        return dataSource;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumActive() {
+
+        return pool.getNumActive();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumIdle() {
+
+        return pool.getNumIdle();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The leak threshold and the abandoned timeout are not changed.
+     */
+    @Override
+    public void reconfigure(final ConnectionProperties poolSpec) {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        if (!(pool instanceof ReconfigurableManagedPool)) {
+            throw new UnsupportedOperationException("The underlying pool cannot be reconfigured");
+        }
+        ((ReconfigurableManagedPool) pool).reconfigure(poolSpec);
+    }
+
+    /**
+     * Stop the leak detection, and close the underlying pool.
+     */
+    @Override
+    public void close() {
+
+        sweeper.shutdownNow();
+        borrowed.clear();
+        pool.close();
+    }
+
+    /**
+     * @return The shortest positive timeout of the leak threshold and the abandoned timeout
+     */
+    private long getShortestTimeout() {
+
+        if (leakThresholdMillis <= 0) {
+            return abandonedTimeoutMillis;
+        } else if (abandonedTimeoutMillis <= 0) {
+            return leakThresholdMillis;
+        } else {
+            return Math.min(leakThresholdMillis, abandonedTimeoutMillis);
+        }
+    }
+
+    /**
+     * Report the borrowed connections that exceed the leak threshold, and reclaim the connections that exceed the
+     * abandoned timeout.
+     */
+    private void sweep() {
+
+        final long now = System.nanoTime();
+        for (final TrackedConnection connection : borrowed) {
+            final long heldMillis = TimeUnit.NANOSECONDS.toMillis(now - connection.borrowedNanos);
+
+            if (abandonedTimeoutMillis > 0 && heldMillis >= abandonedTimeoutMillis) {
+                connection.reclaim(heldMillis);
+            } else if (leakThresholdMillis > 0 && heldMillis >= leakThresholdMillis && !connection.reported) {
+                connection.report(heldMillis);
+            }
+        }
+    }
+
+    /**
+     * A borrowed connection that is watched by the leak detection thread
+     */
+    private final class TrackedConnection
+            extends ConnectionWrapper {
+
+        /**
+         * The pooled connection
+         */
+        private final Connection delegate;
+
+        /**
+         * The time (in nanoseconds) when the connection has been borrowed
+         */
+        private final long borrowedNanos;
+
+        /**
+         * The thread that has borrowed the connection
+         */
+        private final Thread borrower;
+
+        /**
+         * The stack trace of the borrowing thread at the time of the borrow, or {@code null} if it has not been
+         * captured
+         */
+        private final Exception borrowTrace;
+
+        /**
+         * {@code true} when the connection has been returned or reclaimed
+         */
+        private final AtomicBoolean returned = new AtomicBoolean();
+
+        /**
+         * {@code true} when the connection has been reported as a potential leak
+         */
+        private volatile boolean reported;
+
+        /**
+         * {@code true} when the connection has been reclaimed
+         */
+        private volatile boolean reclaimed;
+
+        /**
+         * The statements that have been created through the connection (weakly referenced, so that statements that
+         * the borrower has discarded can be garbage collected), guarded by itself
+         */
+        private final Set<Statement> statements = Collections.newSetFromMap(new WeakHashMap<Statement, Boolean>());
+
+        /**
+         * Create a tracked connection
+         *
+         * @param delegate The pooled connection
+         */
+        // suppress warnings about the null stack trace (most connections are not sampled)
+        @SuppressWarnings("PMD.NullAssignment")
+        TrackedConnection(final Connection delegate) {
+
+            super();
+            this.delegate = delegate;
+            this.borrowedNanos = System.nanoTime();
+            this.borrower = Thread.currentThread();
+
+            if (stackSampleRate > 0 && ThreadLocalRandom.current().nextInt(stackSampleRate) == 0) {
+                this.borrowTrace = new Exception("Stack trace of the thread that has borrowed the connection");
+            } else {
+                this.borrowTrace = null;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * @throws SQLException When the connection has been reclaimed
+         */
+        @Override
+        protected Connection getDelegate()
+                throws SQLException {
+
+            if (reclaimed) {
+                throw reclaimedException();
+            }
+            return delegate;
+        }
+
+        /**
+         * @return The exception for a borrower that uses the connection after it has been reclaimed
+         */
+        private SQLException reclaimedException() {
+
+            return new SQLException("The connection has been reclaimed because it was borrowed for more than "
+                    + abandonedTimeoutMillis + "ms");
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isClosed()
+                throws SQLException {
+
+            return returned.get() || delegate.isClosed();
+        }
+
+        /**
+         * Remember a statement, so that it can be closed when the connection is reclaimed.
+         *
+         * @param statement The new statement
+         * @param <T>       The type of the statement
+         * @return The statement
+         * @throws SQLException When the connection has been reclaimed while the statement was created
+         */
+        @Override
+        protected <T extends Statement> T track(final T statement)
+                throws SQLException {
+
+            synchronized (statements) {
+                if (!reclaimed) {
+                    statements.add(statement);
+                    return statement;
+                }
+            }
+            closeQuietly(statement);
+            throw reclaimedException();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close()
+                throws SQLException {
+
+            if (returned.compareAndSet(false, true)) {
+                borrowed.remove(this);
+                if (reported) {
+                    LOG.info("Connection of pool '" + metrics.getName() + "' that has been reported as a potential"
+                            + " leak has been returned after "
+                            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - borrowedNanos) + "ms");
+                }
+                delegate.close();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void abort(final Executor executor)
+                throws SQLException {
+
+            if (returned.compareAndSet(false, true)) {
+                borrowed.remove(this);
+                delegate.abort(executor);
+            }
+        }
+
+        /**
+         * Report the connection as a potential leak
+         *
+         * @param heldMillis The time in milliseconds that the connection has been borrowed
+         */
+        private void report(final long heldMillis) {
+
+            reported = true;
+            metrics.recordLeak();
+            LOG.warn("Connection of pool '" + metrics.getName() + "' has been borrowed by thread '"
+                    + borrower.getName() + "' for " + heldMillis + "ms, and may have leaked", getTrace());
+        }
+
+        /**
+         * Reclaim the connection on behalf of the borrower: cancel and close the statements that the borrower has
+         * created, and return the connection to the underlying pool.
+         *
+         * @param heldMillis The time in milliseconds that the connection has been borrowed
+         */
+        // CHECKSTYLE:OFF
+        // this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+        // suppress warnings about not closing the statements here (they are closed quietly, see below)
+        // suppress warnings about catching RuntimeException (a reclaimed connection must be returned whatever happens)
+        @SuppressWarnings({"PMD.CloseResource", "PMD.AvoidCatchingGenericException"})
+        // CHECKSTYLE:ON
+        private void reclaim(final long heldMillis) {
+
+            if (!returned.compareAndSet(false, true)) {
+                return;
+            }
+            final List<Statement> toClose;
+            synchronized (statements) {
+                reclaimed = true;
+                toClose = new ArrayList<>(statements);
+                statements.clear();
+            }
+            borrowed.remove(this);
+            LOG.warn("Reclaiming connection of pool '" + metrics.getName() + "' that has been borrowed by thread '"
+                    + borrower.getName() + "' for " + heldMillis + "ms", getTrace());
+
+            // the borrower may still hold (or even run) statements, which must not reach the next borrower
+            for (final Statement statement : toClose) {
+                try {
+                    statement.cancel();
+                } catch (SQLException | RuntimeException e) {
+                    LOG.debug("Cannot cancel a statement of a reclaimed connection", e);
+                }
+                closeQuietly(statement);
+            }
+
+            try {
+                delegate.close();
+            } catch (SQLException | RuntimeException e) {
+                LOG.warn("Cannot return the reclaimed connection of pool '" + metrics.getName() + "'", e);
+            }
+            metrics.recordAbandoned();
+        }
+
+        /**
+         * @return The stack trace captured on borrow, or the current stack trace of the borrowing thread
+         */
+        private Exception getTrace() {
+
+            if (borrowTrace != null) {
+                return borrowTrace;
+            }
+
+            final Exception trace = new Exception("Current stack trace of the thread that has borrowed the connection");
+            trace.setStackTrace(borrower.getStackTrace());
+            return trace;
+        }
+    }
+
+    /**
+     * Close a statement, ignoring any errors
+     *
+     * @param statement The statement to close
+     */
+    // suppress warnings about catching RuntimeException (the errors are ignored, see above)
+    @SuppressWarnings("PMD.AvoidCatchingGenericException")
+    private static void closeQuietly(final Statement statement) {
+
+        try {
+            statement.close();
+        } catch (SQLException | RuntimeException e) {
+            LOG.debug("Cannot close a statement of a reclaimed connection", e);
+        }
+    }
+
+    /**
+     * The data source that tracks the borrowed connections
+     */
+    private final class TrackingDataSource
+            extends DelegatingDataSource {
+
+        /**
+         * Create a tracking data source
+         */
+        TrackingDataSource() {
+
+            super(pool.getDataSource());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Connection getConnection()
+                throws SQLException {
+
+            final TrackedConnection connection = new TrackedConnection(getDelegate().getConnection());
+            borrowed.add(connection);
+            return connection;
+        }
+    }
+
+    /**
+     * Creates the daemon threads that check the borrowed connections
+     */
+    private static final class SweeperThreadFactory
+            implements ThreadFactory {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Thread newThread(final Runnable runnable) {
+
+            final Thread thread = new Thread(runnable, "pool-leak-detector-" + POOL_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.lang3.Validate;
+import org.beiter.michael.db.ConnectionProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection pool that records the borrow wait time, the hold time, and the number of waiting threads of another
+ * pool in its {@link PoolMetrics}, and exposes the metrics with JMX while the pool is open.
+ * <p>
+ * The pool keeps track of the borrowed connections, so that it can be shut down gracefully: see
+ * {@link #shutdown()}.
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about the long (but descriptive) variable names
+// suppress warnings about using threads (the connections still borrowed at shutdown are aborted on daemon threads)
+@SuppressWarnings({"PMD.LongVariable", "PMD.DoNotUseThreads"})
+// CHECKSTYLE:ON
+public final class MeteredManagedPool
+        implements ReconfigurableManagedPool {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(MeteredManagedPool.class);
+
+    /**
+     * The interval (in milliseconds) in which a shutdown checks if the borrowed connections have been returned
+     */
+    private static final long DRAIN_POLL_INTERVAL_MILLIS = 10;
+
+    /**
+     * The counter for the names of the threads that abort borrowed connections
+     */
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    /**
+     * The underlying pool
+     */
+    private final ManagedPool pool;
+
+    /**
+     * The metrics of the pool
+     */
+    private final PoolMetrics metrics;
+
+    /**
+     * The metered data source
+     */
+    private final DataSource dataSource;
+
+    /**
+     * The time (in milliseconds) that borrowed connections are given to be returned when the pool is shut down
+     */
+    private volatile long shutdownGracePeriodMillis;
+
+    /**
+     * The connections that are currently borrowed from the pool
+     */
+    private final Set<MeteredConnection> borrowed =
+            Collections.newSetFromMap(new ConcurrentHashMap<MeteredConnection, Boolean>());
+
+    /**
+     * {@code true} when the pool is shut down, and does not hand out new connections
+     */
+    private volatile boolean shuttingDown;
+
+    /**
+     * Create a metered pool that closes borrowed connections immediately when it is shut down, and register its
+     * metrics with JMX
+     *
+     * @param pool    The underlying pool
+     * @param metrics The metrics of the pool (usually shared with the {@link ConnectionCreator} of the pool)
+     * @throws NullPointerException When {@code pool} or {@code metrics} are {@code null}
+     */
+    public MeteredManagedPool(final ManagedPool pool, final PoolMetrics metrics) {
+
+        this(pool, metrics, 0);
+    }
+
+    /**
+     * Create a metered pool, and register its metrics with JMX
+     *
+     * @param pool                      The underlying pool
+     * @param metrics                   The metrics of the pool (usually shared with the {@link ConnectionCreator}
+     *                                  of the pool)
+     * @param shutdownGracePeriodMillis The time (in milliseconds) that borrowed connections are given to be returned
+     *                                  when the pool is shut down
+     * @throws NullPointerException When {@code pool} or {@code metrics} are {@code null}
+     */
+    public MeteredManagedPool(final ManagedPool pool, final PoolMetrics metrics, final long shutdownGracePeriodMillis) {
+
+        Validate.notNull(pool, "The validated object 'pool' is null");
+        Validate.notNull(metrics, "The validated object 'metrics' is null");
+
+        this.pool = pool;
+        this.metrics = metrics;
+        this.dataSource = new MeteredDataSource();
+        this.shutdownGracePeriodMillis = shutdownGracePeriodMillis;
+
+        metrics.bind(pool);
+        metrics.registerMBean();
+    }
+
+    /**
+     * @return The metrics of the pool
+     */
+    public PoolMetrics getMetrics() {
+
+        return metrics;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DataSource getDataSource() {
+
+        return dataSource;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumActive() {
+
+        return pool.getNumActive();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumIdle() {
+
+        return pool.getNumIdle();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The shutdown grace period is changed as well.
+     */
+    @Override
+    public void reconfigure(final ConnectionProperties poolSpec) {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        if (!(pool instanceof ReconfigurableManagedPool)) {
+            throw new UnsupportedOperationException("The underlying pool cannot be reconfigured");
+        }
+        ((ReconfigurableManagedPool) pool).reconfigure(poolSpec);
+        shutdownGracePeriodMillis = poolSpec.getShutdownGracePeriodMillis();
+    }
+
+    /**
+     * Close the underlying pool, and unregister the metrics from JMX.
+     * <p>
+     * Connections that are still borrowed from the pool are closed when they are returned. Use {@link #shutdown()}
+     * to close them if they are not returned in time.
+     */
+    @Override
+    public void close() {
+
+        metrics.unregisterMBean();
+        pool.close();
+    }
+
+    /**
+     * Shut down the pool gracefully.
+     * <p>
+     * The pool stops handing out new connections, and waits until all borrowed connections have been returned, or
+     * until the shutdown grace period has elapsed. Connections that have not been returned by then are aborted (and
+     * can no longer be used by their borrowers, even while they are executing a statement), and the pool is closed.
+     * The time this method takes is therefore bounded by the shutdown grace period.
+     *
+     * @return The number of borrowed connections that have been aborted
+     */
+    public int shutdown() {
+
+        shuttingDown = true;
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownGracePeriodMillis);
+        try {
+            while (!borrowed.isEmpty() && System.nanoTime() - deadline < 0) {
+                Thread.sleep(DRAIN_POLL_INTERVAL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            // stop waiting, and abort the remaining connections
+            Thread.currentThread().interrupt();
+        }
+
+        final List<MeteredConnection> remaining = new ArrayList<>(borrowed);
+        if (!remaining.isEmpty()) {
+            abort(remaining);
+            LOG.warn("Aborted " + remaining.size() + " borrowed connection(s) of pool '" + metrics.getName()
+                    + "' that have not been returned within the shutdown grace period of "
+                    + shutdownGracePeriodMillis + "ms");
+        }
+
+        close();
+        return remaining.size();
+    }
+
+    /**
+     * Abort borrowed connections.
+     * <p>
+     * Unlike {@link Connection#close()}, which waits for a statement that is still executing on the connection,
+     * {@link Connection#abort(Executor)} terminates the connection right away and releases its resources in the
+     * background.
+     *
+     * @param connections The borrowed connections
+     */
+    private void abort(final List<MeteredConnection> connections) {
+
+        final ExecutorService executor = Executors.newCachedThreadPool(new AbortThreadFactory());
+        try {
+            for (final MeteredConnection connection : connections) {
+                try {
+                    connection.abort(executor);
+                } catch (SQLException e) {
+                    LOG.debug("Cannot abort a borrowed connection of pool '" + metrics.getName() + "'", e);
+                }
+            }
+        } finally {
+            // the threads finish the pending aborts, and then terminate
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A borrowed connection that records its hold time when it is closed
+     */
+    private final class MeteredConnection
+            extends ConnectionWrapper {
+
+        /**
+         * The pooled connection
+         */
+        private final Connection delegate;
+
+        /**
+         * The time (in nanoseconds) when the connection has been borrowed
+         */
+        private final long borrowedNanos;
+
+        /**
+         * {@code true} when the connection has been returned
+         */
+        private final AtomicBoolean returned = new AtomicBoolean();
+
+        /**
+         * Create a metered connection
+         *
+         * @param delegate      The pooled connection
+         * @param borrowedNanos The time (in nanoseconds) when the connection has been borrowed
+         */
+        MeteredConnection(final Connection delegate, final long borrowedNanos) {
+
+            super();
+            this.delegate = delegate;
+            this.borrowedNanos = borrowedNanos;
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * @throws SQLException When the connection has been returned (or aborted by a shutdown)
+         */
+        @Override
+        protected Connection getDelegate()
+                throws SQLException {
+
+            if (returned.get()) {
+                throw new SQLException("The connection has been returned to pool '" + metrics.getName() + "'");
+            }
+            return delegate;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isClosed()
+                throws SQLException {
+
+            return returned.get() || delegate.isClosed();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close()
+                throws SQLException {
+
+            if (returned.compareAndSet(false, true)) {
+                metrics.recordHold(System.nanoTime() - borrowedNanos);
+                borrowed.remove(this);
+            }
+            delegate.close();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void abort(final Executor executor)
+                throws SQLException {
+
+            if (returned.compareAndSet(false, true)) {
+                metrics.recordHold(System.nanoTime() - borrowedNanos);
+                borrowed.remove(this);
+            }
+            delegate.abort(executor);
+        }
+    }
+
+    /**
+     * The data source that records the borrow wait time
+     */
+    private final class MeteredDataSource
+            extends DelegatingDataSource {
+
+        /**
+         * Create a metered data source
+         */
+        MeteredDataSource() {
+
+            super(pool.getDataSource());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        // suppress warnings about not closing the connection (it is returned to the caller)
+        @SuppressWarnings("PMD.CloseResource")
+        @Override
+        public Connection getConnection()
+                throws SQLException {
+
+            if (shuttingDown) {
+                throw new SQLException("The connection pool '" + metrics.getName() + "' is shutting down");
+            }
+
+            metrics.waitStarted();
+            final long start = System.nanoTime();
+            final Connection connection;
+            try {
+                connection = getDelegate().getConnection();
+            } finally {
+                metrics.waitFinished(System.nanoTime() - start);
+            }
+            final MeteredConnection metered = new MeteredConnection(connection, System.nanoTime());
+            borrowed.add(metered);
+
+            // the pool may have been shut down while the connection was borrowed
+            if (shuttingDown) {
+                metered.close();
+                throw new SQLException("The connection pool '" + metrics.getName() + "' is shutting down");
+            }
+            return metered;
+        }
+    }
+
+    /**
+     * Creates the daemon threads that abort borrowed connections when the pool is shut down
+     */
+    private static final class AbortThreadFactory
+            implements ThreadFactory {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Thread newThread(final Runnable runnable) {
+
+            final Thread thread = new Thread(runnable, "pool-abort-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
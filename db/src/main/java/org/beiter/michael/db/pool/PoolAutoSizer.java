@@ -0,0 +1,333 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.lang3.Validate;
+import org.beiter.michael.db.ConnectionProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adjusts the size of a pool to the observed load, so that <code>maxTotal</code> and <code>minIdle</code> do not have
+ * to be picked by hand.
+ * <p>
+ * After every <code>autoSizeIntervalMillis</code>, the auto-sizer looks at the borrow wait times and the hold times
+ * that the {@link PoolMetrics} of the pool have recorded during the interval:
+ * <ul>
+ * <li>The concurrency that the pool has served is estimated from the hold times (the total time that connections have
+ * been held during the interval, divided by the length of the interval), but is at least the number of connections
+ * that are currently borrowed.</li>
+ * <li>When the 99th percentile of the borrow wait time exceeds <code>autoSizeWaitThresholdMillis</code>, or threads
+ * are waiting for a connection while all connections are borrowed, the pool is grown by a quarter (at least by one
+ * connection), or to the estimated concurrency plus headroom if that is larger.</li>
+ * <li>Otherwise, when the estimated concurrency plus headroom is smaller than the pool, the pool is shrunk by half of
+ * the difference (at least by one connection), so that a short lull does not drain the pool.</li>
+ * </ul>
+ * The new <code>maxTotal</code> stays between <code>autoSizeMinTotal</code> and <code>autoSizeMaxTotal</code>, and is
+ * also used as <code>maxIdle</code>. <code>minIdle</code> is set to the estimated concurrency (but at least to the
+ * configured <code>minIdle</code>), so that the pool keeps enough warm connections for the observed load. The pool is
+ * resized with {@link ReconfigurableManagedPool#reconfigure(ConnectionProperties)}, which retires surplus connections
+ * gradually.
+ * <p>
+ * Every decision is recorded in the {@link PoolMetrics} of the pool, and every change of the pool size is logged.
+ */
+// suppress warnings about using threads (the auto-sizer runs its own thread, it is not a J2EE component)
+@SuppressWarnings("PMD.DoNotUseThreads")
+public final class PoolAutoSizer {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(PoolAutoSizer.class);
+
+    /**
+     * Counter for the names of the auto-sizer threads
+     */
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    /**
+     * The percentile of the borrow wait time that is compared to the threshold
+     */
+    private static final double P99 = 99d;
+
+    /**
+     * The headroom on top of the estimated concurrency
+     */
+    private static final double HEADROOM = 1.25d;
+
+    /**
+     * The pool is grown by its size divided by this value
+     */
+    private static final int GROWTH_DIVISOR = 4;
+
+    /**
+     * The pool is shrunk by the surplus divided by this value
+     */
+    private static final int SHRINK_DIVISOR = 2;
+
+    /**
+     * The pool to resize
+     */
+    private final ReconfigurableManagedPool pool;
+
+    /**
+     * The metrics of the pool
+     */
+    private final PoolMetrics metrics;
+
+    /**
+     * The thread that runs the decisions
+     */
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new AutoSizerThreadFactory());
+
+    /**
+     * The configured settings of the pool, which the auto-sized settings are applied to (guarded by this)
+     */
+    private ConnectionProperties poolSpec;
+
+    /**
+     * The current <code>maxTotal</code> of the pool (guarded by this)
+     */
+    private int maxTotal;
+
+    /**
+     * The current <code>minIdle</code> of the pool (guarded by this)
+     */
+    private int minIdle;
+
+    /**
+     * The bucket counts of the borrow wait time at the start of the interval (guarded by this)
+     */
+    private long[] lastWaitCounts;
+
+    /**
+     * The sum of the hold times at the start of the interval (guarded by this)
+     */
+    private long lastHoldSum;
+
+    /**
+     * The start of the interval in {@link System#nanoTime()} (guarded by this)
+     */
+    private long lastNanos;
+
+    /**
+     * Create an auto-sizer for a pool
+     *
+     * @param pool     The pool to resize
+     * @param metrics  The metrics of the pool
+     * @param poolSpec The settings of the pool (including the auto-sizing settings)
+     * @throws NullPointerException     When {@code pool}, {@code metrics}, or {@code poolSpec} are {@code null}
+     * @throws IllegalArgumentException When {@code poolSpec.getAutoSizeIntervalMillis()} is not positive
+     */
+    public PoolAutoSizer(final ReconfigurableManagedPool pool, final PoolMetrics metrics,
+                         final ConnectionProperties poolSpec) {
+
+        Validate.notNull(pool, "The validated object 'pool' is null");
+        Validate.notNull(metrics, "The validated object 'metrics' is null");
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+        Validate.inclusiveBetween(1, Long.MAX_VALUE, poolSpec.getAutoSizeIntervalMillis());
+
+        this.pool = pool;
+        this.metrics = metrics;
+        this.poolSpec = new ConnectionProperties(poolSpec);
+
+        // start from the configured size
+        // CHECKSTYLE:OFF
+        // this inline condition is easy to read :-)
+        this.maxTotal = clamp(poolSpec.getMaxTotal() < 0 ? Integer.MAX_VALUE : poolSpec.getMaxTotal());
+        // CHECKSTYLE:ON
+        this.minIdle = Math.min(maxTotal, Math.max(0, poolSpec.getMinIdle()));
+        this.lastWaitCounts = metrics.getBorrowWaitTime().getBucketCounts();
+        this.lastHoldSum = metrics.getHoldTime().getSum();
+        this.lastNanos = System.nanoTime();
+    }
+
+    /**
+     * Apply the initial size to the pool, and start adjusting it on a background (daemon) thread.
+     */
+    // suppress warnings about catching RuntimeException (an unexpected error must not cancel the scheduled adjustments)
+    @SuppressWarnings("PMD.AvoidCatchingGenericException")
+    public void start() {
+
+        synchronized (this) {
+            apply();
+            metrics.recordAutoSize(maxTotal, minIdle, 0);
+
+            final long interval = poolSpec.getAutoSizeIntervalMillis();
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        adjust();
+                    } catch (RuntimeException e) {
+                        LOG.warn("Cannot auto-size pool '" + metrics.getName() + "'", e);
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop adjusting the size of the pool.
+     */
+    public void stop() {
+
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Replace the settings of the pool, and apply them with the current auto-sized settings. The auto-sizing
+     * settings (interval, bounds, and threshold) are taken from the new settings as well, except for the interval,
+     * which cannot be changed.
+     *
+     * @param newPoolSpec The new settings of the pool
+     * @throws UnsupportedOperationException When the pool cannot be reconfigured
+     * @throws NullPointerException          When {@code newPoolSpec} is {@code null}
+     */
+    public void reconfigure(final ConnectionProperties newPoolSpec) {
+
+        Validate.notNull(newPoolSpec, "The validated object 'newPoolSpec' is null");
+
+        synchronized (this) {
+            poolSpec = new ConnectionProperties(newPoolSpec);
+            maxTotal = clamp(maxTotal);
+            minIdle = Math.min(maxTotal, Math.max(minIdle, poolSpec.getMinIdle()));
+            apply();
+        }
+    }
+
+    /**
+     * Evaluate the last interval, and resize the pool if needed.
+     */
+    // suppress warnings about the package private scope (the adjustments are triggered by the tests in this package)
+    @SuppressWarnings("PMD.DefaultPackage")
+    void adjust() {
+
+        synchronized (this) {
+            final long now = System.nanoTime();
+            final long[] waitCounts = metrics.getBorrowWaitTime().getBucketCounts();
+            final long holdSum = metrics.getHoldTime().getSum();
+
+            final long waitP99Nanos = LatencyHistogram.getPercentile(lastWaitCounts, waitCounts, P99);
+            final int active = metrics.getNumActive();
+            final double concurrency =
+                    Math.max(active, (holdSum - lastHoldSum) / (double) Math.max(1, now - lastNanos));
+            final int target = (int) Math.ceil(concurrency * HEADROOM) + 1;
+            final boolean waiting = metrics.getNumWaiters() > 0 && active >= maxTotal
+                    || waitP99Nanos > TimeUnit.MILLISECONDS.toNanos(poolSpec.getAutoSizeWaitThresholdMillis());
+
+            lastWaitCounts = waitCounts;
+            lastHoldSum = holdSum;
+            lastNanos = now;
+
+            int newMaxTotal = maxTotal;
+            if (waiting) {
+                newMaxTotal = Math.max(maxTotal + Math.max(1, maxTotal / GROWTH_DIVISOR), target);
+            } else if (target < maxTotal) {
+                newMaxTotal = maxTotal - Math.max(1, (maxTotal - target) / SHRINK_DIVISOR);
+            }
+            newMaxTotal = clamp(newMaxTotal);
+            final int newMinIdle = Math.min(newMaxTotal, Math.max(poolSpec.getMinIdle(), (int) Math.ceil(concurrency)));
+
+            final int change = newMaxTotal - maxTotal;
+            if (newMaxTotal == maxTotal && newMinIdle == minIdle) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Keeping the size of pool '" + metrics.getName() + "' at maxTotal " + maxTotal
+                            + " / minIdle " + minIdle + " (borrow wait p99: "
+                            + TimeUnit.NANOSECONDS.toMicros(waitP99Nanos) + "us, estimated concurrency: "
+                            + String.format("%.2f", concurrency) + ")");
+                }
+            } else {
+                LOG.info("Auto-sizing pool '" + metrics.getName() + "' from maxTotal " + maxTotal + " / minIdle "
+                        + minIdle + " to maxTotal " + newMaxTotal + " / minIdle " + newMinIdle + " (borrow wait p99: "
+                        + TimeUnit.NANOSECONDS.toMicros(waitP99Nanos) + "us, estimated concurrency: "
+                        + String.format("%.2f", concurrency) + ")");
+                maxTotal = newMaxTotal;
+                minIdle = newMinIdle;
+                apply();
+            }
+            metrics.recordAutoSize(maxTotal, minIdle, change);
+        }
+    }
+
+    /**
+     * Apply the current auto-sized settings to the pool (must hold the lock of this auto-sizer)
+     */
+    private void apply() {
+
+        final ConnectionProperties sized = new ConnectionProperties(poolSpec);
+        sized.setMaxTotal(maxTotal);
+        sized.setMaxIdle(maxTotal);
+        sized.setMinIdle(minIdle);
+        pool.reconfigure(sized);
+    }
+
+    /**
+     * Limit a pool size to the configured bounds (must hold the lock of this auto-sizer)
+     *
+     * @param size The pool size
+     * @return The pool size within the bounds
+     */
+    private int clamp(final int size) {
+
+        final int min = Math.max(1, poolSpec.getAutoSizeMinTotal());
+        final int max = Math.max(min, poolSpec.getAutoSizeMaxTotal());
+        return Math.min(max, Math.max(min, size));
+    }
+
+    /**
+     * Creates the daemon threads of the auto-sizers
+     */
+    private static final class AutoSizerThreadFactory
+            implements ThreadFactory {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Thread newThread(final Runnable runnable) {
+
+            final Thread thread = new Thread(runnable, "pool-autosizer-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
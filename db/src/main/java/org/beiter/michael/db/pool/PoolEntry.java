@@ -0,0 +1,211 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A physical database connection managed by a {@link BuiltinManagedPool}.
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about the long (but descriptive) variable names
+// suppress warnings about the package private scope (the entry is only used by the builtin pool in this package)
+@SuppressWarnings({"PMD.LongVariable", "PMD.DefaultPackage"})
+// CHECKSTYLE:ON
+final class PoolEntry
+        implements ConcurrentBag.Entry {
+
+    /**
+     * Updates the state of an entry atomically, without the memory overhead of an {@code AtomicInteger} per entry
+     */
+    private static final AtomicIntegerFieldUpdater<PoolEntry> STATE_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(PoolEntry.class, "state");
+
+    /**
+     * The physical database connection
+     */
+    private final Connection connection;
+
+    /**
+     * The time (in milliseconds since the epoch) when the physical connection has been created
+     */
+    private final long createdMillis;
+
+    /**
+     * The cache of the idle prepared statements of the physical connection, or {@code null} if statements are not
+     * pooled
+     */
+    private final StatementCache statementCache;
+
+    /**
+     * The state of the entry in the {@link ConcurrentBag}
+     */
+    private volatile int state;
+
+    /**
+     * The time (in milliseconds since the epoch) when the connection has last been borrowed or returned
+     */
+    private volatile long lastAccessedMillis;
+
+    /**
+     * The time (in milliseconds since the epoch) when the connection has last been validated successfully
+     */
+    private volatile long lastValidatedMillis;
+
+    /**
+     * {@code true} when the connection must be validated before it is borrowed again
+     */
+    private volatile boolean suspect;
+
+    /**
+     * Create a new pool entry for a physical connection
+     *
+     * @param connection     The physical database connection
+     * @param state          The initial state of the entry in the {@link ConcurrentBag}
+     * @param statementCache The cache of the prepared statements of the connection, or {@code null} if statements are
+     *                       not pooled
+     */
+    PoolEntry(final Connection connection, final int state, final StatementCache statementCache) {
+
+        assert connection != null : "The connection cannot be null";
+
+        this.connection = connection;
+        this.statementCache = statementCache;
+        this.createdMillis = System.currentTimeMillis();
+        this.lastAccessedMillis = createdMillis;
+        this.state = state;
+    }
+
+    /**
+     * @return The physical database connection
+     */
+    Connection getConnection() {
+
+        return connection;
+    }
+
+    /**
+     * @return The cache of the prepared statements of the connection, or {@code null} if statements are not pooled
+     */
+    StatementCache getStatementCache() {
+
+        return statementCache;
+    }
+
+    /**
+     * @return The time (in milliseconds since the epoch) when the physical connection has been created
+     */
+    long getCreatedMillis() {
+
+        return createdMillis;
+    }
+
+    /**
+     * @return The time (in milliseconds since the epoch) when the connection has last been borrowed or returned
+     */
+    long getLastAccessedMillis() {
+
+        return lastAccessedMillis;
+    }
+
+    /**
+     * Record that the connection has been borrowed or returned
+     */
+    void touch() {
+
+        lastAccessedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @return The time (in milliseconds since the epoch) when the connection has last been validated successfully, or
+     * 0 if the connection has never been validated
+     */
+    long getLastValidatedMillis() {
+
+        return lastValidatedMillis;
+    }
+
+    /**
+     * Record that the connection has been validated successfully
+     */
+    void markValidated() {
+
+        lastValidatedMillis = System.currentTimeMillis();
+        suspect = false;
+    }
+
+    /**
+     * @return {@code true} if the connection must be validated before it is borrowed again
+     */
+    boolean isSuspect() {
+
+        return suspect;
+    }
+
+    /**
+     * Record that the connection must be validated before it is borrowed again
+     */
+    void markSuspect() {
+
+        suspect = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean compareAndSetState(final int expect, final int update) {
+
+        return STATE_UPDATER.compareAndSet(this, expect, update);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setState(final int state) {
+
+        STATE_UPDATER.set(this, state);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getState() {
+
+        return state;
+    }
+}
@@ -0,0 +1,892 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The metrics of a connection pool: the current number of active, idle, and waiting connections, the number of
+ * created and destroyed physical connections, and histograms of the borrow wait time, the hold time, and the creation
+ * time of connections.
+ * <p>
+ * The metrics are recorded with atomic counters and {@link LatencyHistogram}s, and are cheap enough to be always on.
+ * Instances of this class are thread safe.
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about a potential God class (not the case, this is triggered by the many counters)
+// suppress warnings about the package private scope (only the pools in this package can record metrics)
+// suppress warnings about long variables (the counters are named after the metric they record)
+@SuppressWarnings({"PMD.GodClass", "PMD.TooManyFields", "PMD.TooManyMethods", "PMD.DefaultPackage", "PMD.LongVariable"})
+// CHECKSTYLE:ON
+public final class PoolMetrics
+        implements PoolMetricsMXBean {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(PoolMetrics.class);
+
+    /**
+     * The JMX domain of the pool MBeans
+     */
+    private static final String JMX_DOMAIN = "org.beiter.michael.db";
+
+    /**
+     * The percentile reported as median
+     */
+    private static final double P50 = 50d;
+
+    /**
+     * The percentile reported as tail latency
+     */
+    private static final double P99 = 99d;
+
+    /**
+     * The metrics that are currently registered with JMX, by name
+     */
+    private static final ConcurrentHashMap<ObjectName, PoolMetrics> REGISTERED = new ConcurrentHashMap<>();
+
+    /**
+     * The name of the pool
+     */
+    private final String name;
+
+    /**
+     * The number of threads that are currently waiting for a connection
+     */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * The number of physical connections that have been created
+     */
+    private final AtomicLong created = new AtomicLong();
+
+    /**
+     * The number of physical connections that could not be created
+     */
+    private final AtomicLong createFailed = new AtomicLong();
+
+    /**
+     * The number of physical connections that have been closed
+     */
+    private final AtomicLong destroyed = new AtomicLong();
+
+    /**
+     * The number of borrowed connections that have been reported as potential leaks
+     */
+    private final AtomicLong leaked = new AtomicLong();
+
+    /**
+     * The number of abandoned connections that have been reclaimed
+     */
+    private final AtomicLong abandoned = new AtomicLong();
+
+    /**
+     * The time that threads have waited for a connection
+     */
+    private final LatencyHistogram borrowWaitTime = new LatencyHistogram();
+
+    /**
+     * The time that borrowed connections have been held
+     */
+    private final LatencyHistogram holdTime = new LatencyHistogram();
+
+    /**
+     * The time that it took to create physical connections
+     */
+    private final LatencyHistogram creationTime = new LatencyHistogram();
+
+    /**
+     * The time that the cycles of the background validation of idle connections took
+     */
+    private final LatencyHistogram idleValidationCycleTime = new LatencyHistogram();
+
+    /**
+     * The number of idle connections that have been validated in the background
+     */
+    private final AtomicLong idleValidated = new AtomicLong();
+
+    /**
+     * The number of idle connections that have failed the background validation
+     */
+    private final AtomicLong idleValidationFailed = new AtomicLong();
+
+    /**
+     * The number of connection failures that have been reported by borrowers
+     */
+    private final AtomicLong reportedFailures = new AtomicLong();
+
+    /**
+     * The number of intervals that the auto-sizing has evaluated
+     */
+    private final AtomicLong autoSizeDecisions = new AtomicLong();
+
+    /**
+     * The number of times that the auto-sizing has grown the pool
+     */
+    private final AtomicLong autoSizeGrows = new AtomicLong();
+
+    /**
+     * The number of times that the auto-sizing has shrunk the pool
+     */
+    private final AtomicLong autoSizeShrinks = new AtomicLong();
+
+    /**
+     * The number of borrows that have been served with the connection that the borrowing thread returned last
+     */
+    private final AtomicLong affinityHits = new AtomicLong();
+
+    /**
+     * The number of borrows that have been served with a connection that another thread returned last
+     */
+    private final AtomicLong affinitySteals = new AtomicLong();
+
+    /**
+     * The number of borrowers that have been rejected by the bulkhead
+     */
+    private final AtomicLong bulkheadRejected = new AtomicLong();
+
+    /**
+     * The current state of the circuit breaker around the connection creation
+     */
+    private volatile String circuitBreakerState = CircuitBreaker.State.CLOSED.name();
+
+    /**
+     * The number of times that the circuit breaker has opened
+     */
+    private final AtomicLong circuitBreakerOpened = new AtomicLong();
+
+    /**
+     * The number of borrowers and connection attempts that have been rejected by the open circuit breaker
+     */
+    private final AtomicLong circuitBreakerRejected = new AtomicLong();
+
+    /**
+     * The number of connection attempts that had to wait for a creation slot
+     */
+    private final AtomicLong throttledCreations = new AtomicLong();
+
+    /**
+     * The <code>maxTotal</code> chosen by the auto-sizing, or -1 if the pool is not auto-sized
+     */
+    private volatile int autoSizedMaxTotal = -1;
+
+    /**
+     * The <code>minIdle</code> chosen by the auto-sizing, or -1 if the pool is not auto-sized
+     */
+    private volatile int autoSizedMinIdle = -1;
+
+    /**
+     * The duration of the pool warm-up in nanoseconds, or -1 if the pool has not been warmed up (yet)
+     */
+    private volatile long warmUpNanos = -1;
+
+    /**
+     * The number of connections that have been opened by the pool warm-up
+     */
+    private volatile int warmUpConnections;
+
+    /**
+     * The pool that provides the active and idle counts, or {@code null} if the metrics are not bound to a pool
+     */
+    private volatile ManagedPool pool;
+
+    /**
+     * The name under which the metrics are registered with JMX, or {@code null} if they are not registered
+     */
+    private volatile ObjectName objectName;
+
+    /**
+     * Create the metrics for a pool
+     *
+     * @param name The name of the pool
+     * @throws NullPointerException     When {@code name} is {@code null}
+     * @throws IllegalArgumentException When {@code name} is empty
+     */
+    public PoolMetrics(final String name) {
+
+        Validate.notBlank(name, "The validated character sequence 'name' is null or empty");
+
+        // no need for defensive copies of Strings
+
+        this.name = name;
+    }
+
+    /**
+     * @return The name of the pool
+     */
+    public String getName() {
+
+        // no need for defensive copies of String
+
+        return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumActive() {
+
+        final ManagedPool boundPool = pool;
+        // CHECKSTYLE:OFF
+        // this inline condition is easy to read :-)
+        return boundPool == null ? 0 : boundPool.getNumActive();
+        // CHECKSTYLE:ON
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumIdle() {
+
+        final ManagedPool boundPool = pool;
+        // CHECKSTYLE:OFF
+        // this inline condition is easy to read :-)
+        return boundPool == null ? 0 : boundPool.getNumIdle();
+        // CHECKSTYLE:ON
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumWaiters() {
+
+        return waiters.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCreatedCount() {
+
+        return created.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCreateFailedCount() {
+
+        return createFailed.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDestroyedCount() {
+
+        return destroyed.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLeakCount() {
+
+        return leaked.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAbandonedCount() {
+
+        return abandoned.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBorrowCount() {
+
+        return borrowWaitTime.getCount();
+    }
+
+    /**
+     * @return The histogram of the time that threads have waited for a connection
+     */
+    public LatencyHistogram getBorrowWaitTime() {
+
+        return borrowWaitTime;
+    }
+
+    /**
+     * @return The histogram of the time that borrowed connections have been held before they were returned
+     */
+    public LatencyHistogram getHoldTime() {
+
+        return holdTime;
+    }
+
+    /**
+     * @return The histogram of the time that it took to create physical connections
+     */
+    public LatencyHistogram getCreationTime() {
+
+        return creationTime;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBorrowWaitP50Micros() {
+
+        return borrowWaitTime.getPercentile(P50, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBorrowWaitP99Micros() {
+
+        return borrowWaitTime.getPercentile(P99, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBorrowWaitMaxMicros() {
+
+        return TimeUnit.NANOSECONDS.toMicros(borrowWaitTime.getMax());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getHoldTimeP50Micros() {
+
+        return holdTime.getPercentile(P50, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getHoldTimeP99Micros() {
+
+        return holdTime.getPercentile(P99, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getHoldTimeMaxMicros() {
+
+        return TimeUnit.NANOSECONDS.toMicros(holdTime.getMax());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCreationTimeP50Micros() {
+
+        return creationTime.getPercentile(P50, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCreationTimeP99Micros() {
+
+        return creationTime.getPercentile(P99, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCreationTimeMaxMicros() {
+
+        return TimeUnit.NANOSECONDS.toMicros(creationTime.getMax());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getWarmUpMicros() {
+
+        // CHECKSTYLE:OFF
+        // this inline condition is easy to read :-)
+        return warmUpNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(warmUpNanos);
+        // CHECKSTYLE:ON
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getWarmUpConnections() {
+
+        return warmUpConnections;
+    }
+
+    /**
+     * @return The histogram of the time that the cycles of the background validation of idle connections took
+     */
+    public LatencyHistogram getIdleValidationCycleTime() {
+
+        return idleValidationCycleTime;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getIdleValidationCycleCount() {
+
+        return idleValidationCycleTime.getCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getIdleValidationCycleP99Micros() {
+
+        return idleValidationCycleTime.getPercentile(P99, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getIdleValidationCycleMaxMicros() {
+
+        return TimeUnit.NANOSECONDS.toMicros(idleValidationCycleTime.getMax());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getIdleValidatedCount() {
+
+        return idleValidated.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getIdleValidationFailedCount() {
+
+        return idleValidationFailed.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getReportedFailureCount() {
+
+        return reportedFailures.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getAutoSizedMaxTotal() {
+
+        return autoSizedMaxTotal;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getAutoSizedMinIdle() {
+
+        return autoSizedMinIdle;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAutoSizeDecisionCount() {
+
+        return autoSizeDecisions.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAutoSizeGrowCount() {
+
+        return autoSizeGrows.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAutoSizeShrinkCount() {
+
+        return autoSizeShrinks.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAffinityHitCount() {
+
+        return affinityHits.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getAffinityStealCount() {
+
+        return affinitySteals.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getBulkheadRejectedCount() {
+
+        return bulkheadRejected.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getCircuitBreakerState() {
+
+        return circuitBreakerState;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCircuitBreakerOpenCount() {
+
+        return circuitBreakerOpened.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCircuitBreakerRejectedCount() {
+
+        return circuitBreakerRejected.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getThrottledCreationCount() {
+
+        return throttledCreations.get();
+    }
+
+    /**
+     * Bind the metrics to the pool that provides the active and idle counts
+     *
+     * @param managedPool The pool
+     */
+    void bind(final ManagedPool managedPool) {
+
+        this.pool = managedPool;
+    }
+
+    /**
+     * Record that a thread starts waiting for a connection
+     */
+    void waitStarted() {
+
+        waiters.incrementAndGet();
+    }
+
+    /**
+     * Record that a thread stopped waiting for a connection (with or without a connection)
+     *
+     * @param nanos The time the thread has waited
+     */
+    void waitFinished(final long nanos) {
+
+        waiters.decrementAndGet();
+        borrowWaitTime.record(nanos);
+    }
+
+    /**
+     * Record that a borrowed connection has been returned
+     *
+     * @param nanos The time the connection has been held
+     */
+    void recordHold(final long nanos) {
+
+        holdTime.record(nanos);
+    }
+
+    /**
+     * Record that a physical connection has been created
+     *
+     * @param nanos The time it took to create the connection
+     */
+    void recordCreated(final long nanos) {
+
+        created.incrementAndGet();
+        creationTime.record(nanos);
+    }
+
+    /**
+     * Record the result of the pool warm-up
+     *
+     * @param nanos       The duration of the warm-up in nanoseconds
+     * @param connections The number of connections that have been opened
+     */
+    void recordWarmUp(final long nanos, final int connections) {
+
+        warmUpConnections = connections;
+        warmUpNanos = nanos;
+    }
+
+    /**
+     * Record a cycle of the background validation of idle connections
+     *
+     * @param nanos     The duration of the cycle in nanoseconds
+     * @param validated The number of idle connections that have been validated
+     * @param failed    The number of idle connections that have failed the validation
+     */
+    void recordIdleValidation(final long nanos, final int validated, final int failed) {
+
+        idleValidated.addAndGet(validated);
+        idleValidationFailed.addAndGet(failed);
+        idleValidationCycleTime.record(nanos);
+    }
+
+    /**
+     * Record that a borrower has reported a connection failure
+     */
+    void recordReportedFailure() {
+
+        reportedFailures.incrementAndGet();
+    }
+
+    /**
+     * Record a decision of the auto-sizing
+     *
+     * @param maxTotal The <code>maxTotal</code> chosen by the auto-sizing
+     * @param minIdle  The <code>minIdle</code> chosen by the auto-sizing
+     * @param change   The change of <code>maxTotal</code> (positive if the pool has been grown, negative if it has been
+     *                 shrunk, zero if the size has been kept)
+     */
+    void recordAutoSize(final int maxTotal, final int minIdle, final int change) {
+
+        autoSizedMaxTotal = maxTotal;
+        autoSizedMinIdle = minIdle;
+        autoSizeDecisions.incrementAndGet();
+        if (change > 0) {
+            autoSizeGrows.incrementAndGet();
+        } else if (change < 0) {
+            autoSizeShrinks.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record that a borrow has been served with the connection that the borrowing thread returned last
+     */
+    void recordAffinityHit() {
+
+        affinityHits.incrementAndGet();
+    }
+
+    /**
+     * Record that a borrow has been served with a connection that another thread returned last
+     */
+    void recordAffinitySteal() {
+
+        affinitySteals.incrementAndGet();
+    }
+
+    /**
+     * Record that a borrower has been rejected by the bulkhead
+     */
+    void recordBulkheadRejected() {
+
+        bulkheadRejected.incrementAndGet();
+    }
+
+    /**
+     * Record a state change of the circuit breaker
+     *
+     * @param state  The new state of the circuit breaker
+     * @param opened {@code true} if the circuit breaker has opened
+     */
+    void recordCircuitBreakerState(final CircuitBreaker.State state, final boolean opened) {
+
+        circuitBreakerState = state.name();
+        if (opened) {
+            circuitBreakerOpened.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record that a borrower or connection attempt has been rejected by the open circuit breaker
+     */
+    void recordCircuitBreakerRejected() {
+
+        circuitBreakerRejected.incrementAndGet();
+    }
+
+    /**
+     * Record that a connection attempt had to wait for a creation slot
+     */
+    void recordCreationThrottled() {
+
+        throttledCreations.incrementAndGet();
+    }
+
+    /**
+     * Record that a physical connection could not be created
+     */
+    void recordCreateFailed() {
+
+        createFailed.incrementAndGet();
+    }
+
+    /**
+     * Record that a physical connection has been closed
+     */
+    void recordDestroyed() {
+
+        destroyed.incrementAndGet();
+    }
+
+    /**
+     * Record that a borrowed connection has been reported as a potential leak
+     */
+    void recordLeak() {
+
+        leaked.incrementAndGet();
+    }
+
+    /**
+     * Record that an abandoned connection has been reclaimed
+     */
+    void recordAbandoned() {
+
+        abandoned.incrementAndGet();
+    }
+
+    /**
+     * Register the metrics with the platform MBean server. A previously registered MBean with the same name (e.g. of
+     * a pool that has been discarded without being closed) is replaced.
+     * <p>
+     * Registration errors are logged, but do not prevent the pool from working.
+     */
+    void registerMBean() {
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName newName =
+                    new ObjectName(JMX_DOMAIN + ":type=ConnectionPool,name=" + ObjectName.quote(name));
+            REGISTERED.put(newName, this);
+            try {
+                server.registerMBean(this, newName);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(newName);
+                server.registerMBean(this, newName);
+            }
+            objectName = newName;
+        } catch (JMException e) {
+            LOG.warn("Cannot register the metrics MBean for pool '" + name + "'", e);
+        }
+    }
+
+    /**
+     * Unregister the metrics from the platform MBean server, if they have been registered
+     */
+    // suppress warnings about clearing the object name (it marks the metrics as unregistered)
+    @SuppressWarnings("PMD.NullAssignment")
+    void unregisterMBean() {
+
+        final ObjectName registeredName = objectName;
+        objectName = null;
+
+        // do not unregister an MBean that has replaced this one
+        if (registeredName == null || !REGISTERED.remove(registeredName, this)) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (InstanceNotFoundException e) {
+            LOG.debug("The metrics MBean for pool '" + name + "' has already been unregistered", e);
+        } catch (JMException e) {
+            LOG.warn("Cannot unregister the metrics MBean for pool '" + name + "'", e);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+/**
+ * The JMX view of the {@link PoolMetrics} of a connection pool.
+ * <p>
+ * The pools created by the {@link org.beiter.michael.db.DataSourceFactory} are registered with the platform MBean
+ * server under the name <code>org.beiter.michael.db:type=ConnectionPool,name="&lt;url&gt;:&lt;username&gt;"</code>.
+ * All durations are reported in microseconds.
+ */
+public interface PoolMetricsMXBean {
+
+    /**
+     * @return The number of connections that are currently borrowed from the pool
+     */
+    int getNumActive();
+
+    /**
+     * @return The number of connections that are currently idle in the pool
+     */
+    int getNumIdle();
+
+    /**
+     * @return The number of threads that are currently waiting for a connection
+     */
+    int getNumWaiters();
+
+    /**
+     * @return The number of physical connections that have been created
+     */
+    long getCreatedCount();
+
+    /**
+     * @return The number of physical connections that could not be created
+     */
+    long getCreateFailedCount();
+
+    /**
+     * @return The number of physical connections that have been closed
+     */
+    long getDestroyedCount();
+
+    /**
+     * @return The number of borrowed connections that have been reported as potential leaks
+     */
+    long getLeakCount();
+
+    /**
+     * @return The number of abandoned connections that have been reclaimed
+     */
+    long getAbandonedCount();
+
+    /**
+     * @return The number of connections that have been borrowed
+     */
+    long getBorrowCount();
+
+    /**
+     * @return The median time that threads have waited for a connection
+     */
+    long getBorrowWaitP50Micros();
+
+    /**
+     * @return The 99th percentile of the time that threads have waited for a connection
+     */
+    long getBorrowWaitP99Micros();
+
+    /**
+     * @return The longest time that a thread has waited for a connection
+     */
+    long getBorrowWaitMaxMicros();
+
+    /**
+     * @return The median time that borrowed connections have been held before they were returned
+     */
+    long getHoldTimeP50Micros();
+
+    /**
+     * @return The 99th percentile of the time that borrowed connections have been held before they were returned
+     */
+    long getHoldTimeP99Micros();
+
+    /**
+     * @return The longest time that a borrowed connection has been held before it was returned
+     */
+    long getHoldTimeMaxMicros();
+
+    /**
+     * @return The median time that it took to create a physical connection
+     */
+    long getCreationTimeP50Micros();
+
+    /**
+     * @return The 99th percentile of the time that it took to create a physical connection
+     */
+    long getCreationTimeP99Micros();
+
+    /**
+     * @return The longest time that it took to create a physical connection
+     */
+    long getCreationTimeMaxMicros();
+
+    /**
+     * @return The time that it took to warm up the pool when it was created, or -1 if the pool has not been warmed up
+     * (yet)
+     */
+    long getWarmUpMicros();
+
+    /**
+     * @return The number of connections that have been opened by the pool warm-up
+     */
+    int getWarmUpConnections();
+
+    /**
+     * @return The number of cycles of the background validation of idle connections
+     */
+    long getIdleValidationCycleCount();
+
+    /**
+     * @return The 99th percentile of the time that a cycle of the background validation of idle connections took
+     */
+    long getIdleValidationCycleP99Micros();
+
+    /**
+     * @return The longest time that a cycle of the background validation of idle connections took
+     */
+    long getIdleValidationCycleMaxMicros();
+
+    /**
+     * @return The number of idle connections that have been validated in the background
+     */
+    long getIdleValidatedCount();
+
+    /**
+     * @return The number of idle connections that have failed the background validation, and have been evicted
+     */
+    long getIdleValidationFailedCount();
+
+    /**
+     * @return The number of connection failures that have been reported by borrowers
+     */
+    long getReportedFailureCount();
+
+    /**
+     * @return The <code>maxTotal</code> that the auto-sizing has chosen for the pool, or -1 if the pool is not
+     * auto-sized
+     */
+    int getAutoSizedMaxTotal();
+
+    /**
+     * @return The <code>minIdle</code> that the auto-sizing has chosen for the pool, or -1 if the pool is not
+     * auto-sized
+     */
+    int getAutoSizedMinIdle();
+
+    /**
+     * @return The number of intervals that the auto-sizing has evaluated
+     */
+    long getAutoSizeDecisionCount();
+
+    /**
+     * @return The number of times that the auto-sizing has grown the pool
+     */
+    long getAutoSizeGrowCount();
+
+    /**
+     * @return The number of times that the auto-sizing has shrunk the pool
+     */
+    long getAutoSizeShrinkCount();
+
+    /**
+     * @return The number of borrows that have been served with the connection that the borrowing thread returned last
+     */
+    long getAffinityHitCount();
+
+    /**
+     * @return The number of borrows that have been served with a connection that another thread returned last
+     */
+    long getAffinityStealCount();
+
+    /**
+     * @return The number of borrowers that have been rejected by the bulkhead of the pool
+     */
+    long getBulkheadRejectedCount();
+
+    /**
+     * @return The state of the circuit breaker around the connection creation (<code>CLOSED</code>,
+     * <code>OPEN</code>, or <code>HALF_OPEN</code>). The circuit breaker becomes half-open when the next connection
+     * attempt is made after the open time has passed. Pools without a circuit breaker are always
+     * <code>CLOSED</code>
+     */
+    String getCircuitBreakerState();
+
+    /**
+     * @return The number of times that the circuit breaker around the connection creation has opened
+     */
+    long getCircuitBreakerOpenCount();
+
+    /**
+     * @return The number of borrowers and connection attempts that have been rejected by the open circuit breaker
+     */
+    long getCircuitBreakerRejectedCount();
+
+    /**
+     * @return The number of connection attempts that had to wait for a creation slot, because the pool or all pools
+     * that share the global creation limit were already creating the maximum number of connections
+     */
+    long getThrottledCreationCount();
+}
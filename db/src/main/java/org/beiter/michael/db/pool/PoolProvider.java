@@ -0,0 +1,73 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.FactoryException;
+
+/**
+ * A pool provider creates connection pools of a specific pool engine (e.g. Apache DBCP2 or HikariCP).
+ * <p>
+ * Pool providers are discovered with the {@link java.util.ServiceLoader} mechanism: implementations must have a public
+ * no-arg constructor, and must be listed in a <code>META-INF/services/org.beiter.michael.db.pool.PoolProvider</code>
+ * file on the class path. The {@link org.beiter.michael.db.DataSourceFactory} selects the provider whose name matches
+ * {@link ConnectionProperties#getPoolEngine()}.
+ * <p>
+ * Implementations must be thread safe.
+ */
+public interface PoolProvider {
+
+    /**
+     * Return the name of the pool engine provided by this provider. The name is matched (case insensitive) against the
+     * pool engine configured in {@link ConnectionProperties#getPoolEngine()}.
+     *
+     * @return The name of the pool engine
+     */
+    String getName();
+
+    /**
+     * Create a new connection pool.
+     * <p>
+     * The physical connections managed by the pool <strong>must</strong> be obtained from the provided
+     * {@code connectionCreator}. All other settings (sizing, validation, eviction, connection defaults) are taken from
+     * the provided {@code poolSpec}. Settings that are not supported by the pool engine should be ignored.
+     *
+     * @param connectionCreator The creator of physical database connections
+     * @param poolSpec          A connection pool spec
+     * @return A new connection pool
+     * @throws FactoryException     When the pool cannot be created
+     * @throws NullPointerException When {@code connectionCreator} or {@code poolSpec} are {@code null}
+     */
+    ManagedPool createPool(ConnectionCreator connectionCreator, ConnectionProperties poolSpec)
+            throws FactoryException;
+}
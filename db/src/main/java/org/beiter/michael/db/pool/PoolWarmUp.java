@@ -0,0 +1,286 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens a number of connections of a new pool in parallel, so that the first requests do not pay for the connection
+ * handshake.
+ * <p>
+ * The warm-up works with any pool engine: it borrows the connections from the pool on up to
+ * {@value #MAX_THREADS} threads, holds them until all connections have been borrowed (so that the pool has to open a
+ * new physical connection for every borrow), and then returns them to the pool as idle connections. Connections that
+ * cannot be opened are logged, and do not fail the warm-up.
+ * <p>
+ * The duration of the warm-up and the number of opened connections are recorded in the {@link PoolMetrics} of the
+ * pool.
+ */
+// suppress warnings about using threads (the warm-up opens the connections in parallel on its own daemon threads)
+@SuppressWarnings("PMD.DoNotUseThreads")
+public final class PoolWarmUp
+        implements Runnable {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(PoolWarmUp.class);
+
+    /**
+     * The maximum number of threads that open connections in parallel
+     */
+    private static final int MAX_THREADS = 16;
+
+    /**
+     * Counter for the names of the warm-up threads
+     */
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    /**
+     * The pool to warm up
+     */
+    private final ManagedPool pool;
+
+    /**
+     * The metrics of the pool
+     */
+    private final PoolMetrics metrics;
+
+    /**
+     * The number of connections to open
+     */
+    private final int connections;
+
+    /**
+     * Counted down when the warm-up has finished
+     */
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    /**
+     * The connections that have been borrowed and not yet been returned
+     */
+    private final Queue<Connection> borrowed = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of connections that have been borrowed
+     */
+    private final AtomicInteger opened = new AtomicInteger();
+
+    /**
+     * {@code true} when the borrowed connections are being returned to the pool
+     */
+    private volatile boolean returning;
+
+    /**
+     * Create a warm-up for a pool
+     *
+     * @param pool        The pool to warm up
+     * @param metrics     The metrics of the pool
+     * @param connections The number of connections to open
+     * @throws NullPointerException     When {@code pool} or {@code metrics} are {@code null}
+     * @throws IllegalArgumentException When {@code connections} is negative
+     */
+    public PoolWarmUp(final ManagedPool pool, final PoolMetrics metrics, final int connections) {
+
+        Validate.notNull(pool, "The validated object 'pool' is null");
+        Validate.notNull(metrics, "The validated object 'metrics' is null");
+        Validate.inclusiveBetween(0, Integer.MAX_VALUE, connections);
+
+        this.pool = pool;
+        this.metrics = metrics;
+        this.connections = connections;
+    }
+
+    /**
+     * Start the warm-up on a background (daemon) thread, and return immediately.
+     */
+    public void start() {
+
+        final Thread thread = new Thread(this, "pool-warm-up-" + THREAD_COUNTER.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Open the connections in parallel, and return them to the pool. This method returns when the warm-up has
+     * finished.
+     */
+    @Override
+    public void run() {
+
+        final long start = System.nanoTime();
+        try {
+            if (connections > 0) {
+                openConnections();
+            }
+        } finally {
+            returning = true;
+            returnConnections();
+
+            final long duration = System.nanoTime() - start;
+            metrics.recordWarmUp(duration, opened.get());
+            finished.countDown();
+            LOG.info("Warmed up pool '" + metrics.getName() + "' with " + opened.get() + " of " + connections
+                    + " connections in " + TimeUnit.NANOSECONDS.toMillis(duration) + "ms");
+        }
+    }
+
+    /**
+     * Wait for the warm-up to finish
+     *
+     * @param timeout The maximum time to wait
+     * @param unit    The unit of {@code timeout}
+     * @return {@code true} if the warm-up has finished, {@code false} if the timeout elapsed before
+     * @throws InterruptedException When the waiting thread is interrupted
+     */
+    public boolean await(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+
+        Validate.notNull(unit, "The validated object 'unit' is null");
+
+        return finished.await(timeout, unit);
+    }
+
+    /**
+     * @return {@code true} if the warm-up has finished
+     */
+    public boolean isFinished() {
+
+        return finished.getCount() == 0;
+    }
+
+    /**
+     * Borrow the connections on up to {@link #MAX_THREADS} threads, and keep them borrowed.
+     */
+    // suppress warnings about creating objects in the loop (each warm-up thread needs its own task)
+    @SuppressWarnings("PMD.AvoidInstantiatingObjectsInLoops")
+    private void openConnections() {
+
+        final int threads = Math.min(connections, MAX_THREADS);
+        final DataSource dataSource = pool.getDataSource();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new WarmUpThreadFactory());
+        try {
+            final List<Future<?>> results = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++) {
+                // distribute the connections evenly across the threads
+                final int count = (connections - i + threads - 1) / threads;
+                results.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < count && !returning; j++) {
+                            try {
+                                borrowed.add(dataSource.getConnection());
+                                opened.incrementAndGet();
+                            } catch (SQLException e) {
+                                LOG.warn("Cannot open a connection during the warm-up of pool '"
+                                        + metrics.getName() + "'", e);
+                                return;
+                            }
+                        }
+
+                        // the warm-up may have been interrupted while this thread was borrowing a connection
+                        if (returning) {
+                            returnConnections();
+                        }
+                    }
+                }));
+            }
+
+            for (final Future<?> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted during the warm-up of pool '" + metrics.getName() + "'", e);
+        } catch (ExecutionException e) {
+            LOG.warn("The warm-up of pool '" + metrics.getName() + "' failed", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Return the borrowed connections to the pool
+     */
+    // suppress warnings about the connections not being closed (each connection is closed when it is taken)
+    @SuppressWarnings("PMD.CloseResource")
+    private void returnConnections() {
+
+        Connection connection = borrowed.poll();
+        while (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOG.warn("Cannot return a connection opened by the warm-up of pool '" + metrics.getName() + "'", e);
+            }
+            connection = borrowed.poll();
+        }
+    }
+
+    /**
+     * Creates the daemon threads that open connections in parallel
+     */
+    private static final class WarmUpThreadFactory
+            implements ThreadFactory {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Thread newThread(final Runnable runnable) {
+
+            final Thread thread = new Thread(runnable, "pool-warm-up-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
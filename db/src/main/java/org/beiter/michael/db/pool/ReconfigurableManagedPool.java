@@ -0,0 +1,60 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionProperties;
+
+/**
+ * A connection pool whose settings can be changed while it is in use, without recreating the pool and dropping its
+ * connections.
+ * <p>
+ * Implementations must be thread safe.
+ */
+public interface ReconfigurableManagedPool
+        extends ManagedPool {
+
+    /**
+     * Apply the sizing, validation, and eviction settings of a connection pool spec to this pool.
+     * <p>
+     * Surplus connections (e.g. after {@code maxTotal} or {@code maxIdle} have been reduced) are retired gradually: a
+     * connection that is borrowed is never closed, but destroyed when it is returned, and surplus idle connections are
+     * evicted by the regular house keeping of the pool. Settings that define the identity of the pool (URL,
+     * credentials, driver properties) and settings that are only evaluated when the pool is created (pool engine,
+     * acquisition mode, statement pooling, leak detection) are ignored.
+     *
+     * @param poolSpec A connection pool spec
+     * @throws UnsupportedOperationException When this pool is layered on top of a pool that cannot be reconfigured
+     * @throws NullPointerException          When {@code poolSpec} is {@code null}
+     */
+    void reconfigure(ConnectionProperties poolSpec);
+}
@@ -0,0 +1,381 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.lang3.Validate;
+import org.beiter.michael.db.ConnectionProperties;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection pool that gates the access to another pool with a fair {@link Semaphore}.
+ * <p>
+ * The semaphore has as many permits as the pool has connections. A thread that borrows a connection first acquires a
+ * permit (waiting up to {@code maxWaitMillis}), and only then borrows from the underlying pool, which therefore always
+ * has a connection available. The permit is released when the connection is closed.
+ * <p>
+ * Threads waiting for a permit are parked with {@link java.util.concurrent.locks.LockSupport} and never block on a
+ * monitor, which makes this acquisition mode suitable for large numbers of waiting threads (in particular virtual
+ * threads, which would otherwise pin their carrier thread while blocked on a monitor). Waiting threads are served in
+ * FIFO order.
+ * <p>
+ * The {@code maxWaitMillis} of this gate and the {@code maxWaitMillis} of the underlying pool are separate budgets,
+ * because the pool engines do not accept a per-borrow timeout. A thread that holds a permit normally gets a connection
+ * from the underlying pool without waiting, but in the worst case (e.g. while {@code maxTotal} is being reduced) a
+ * borrow takes up to twice {@code maxWaitMillis} before it times out.
+ */
+public final class SemaphoreManagedPool
+        implements ReconfigurableManagedPool {
+
+    /**
+     * The name of this acquisition mode
+     */
+    public static final String ACQUISITION_MODE = "semaphore";
+
+    /**
+     * The number of permits of an unlimited gate (leaves headroom so that releasing permits never overflows)
+     */
+    private static final int UNLIMITED_PERMITS = Integer.MAX_VALUE / 2;
+
+    /**
+     * The underlying pool
+     */
+    private final ManagedPool pool;
+
+    /**
+     * The permits for borrowing connections from the underlying pool
+     */
+    private final ResizableSemaphore permits;
+
+    /**
+     * The number of permits (the maximum number of connections in the underlying pool, or {@link #UNLIMITED_PERMITS})
+     */
+    private int maxTotal;
+
+    /**
+     * The maximum time to wait for a permit in milliseconds, or negative to wait indefinitely
+     */
+    private volatile long maxWaitMillis;
+
+    /**
+     * The gated data source
+     */
+    private final DataSource dataSource;
+
+    /**
+     * Create a semaphore gate in front of a connection pool
+     *
+     * @param pool          The underlying pool
+     * @param maxTotal      The maximum number of connections in the underlying pool
+     * @param maxWaitMillis The maximum time to wait for a connection in milliseconds, or negative to wait indefinitely
+     * @throws NullPointerException     When {@code pool} is {@code null}
+     * @throws IllegalArgumentException When {@code maxTotal} is negative
+     */
+    public SemaphoreManagedPool(final ManagedPool pool, final int maxTotal, final long maxWaitMillis) {
+
+        Validate.notNull(pool, "The validated object 'pool' is null");
+        Validate.inclusiveBetween(0, Integer.MAX_VALUE, maxTotal);
+
+        this.pool = pool;
+        this.permits = new ResizableSemaphore(maxTotal);
+        this.maxTotal = maxTotal;
+        this.maxWaitMillis = maxWaitMillis;
+        this.dataSource = new SemaphoreDataSource();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DataSource getDataSource() {
+
+        return dataSource;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumActive() {
+
+        return pool.getNumActive();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumIdle() {
+
+        return pool.getNumIdle();
+    }
+
+    /**
+     * @return The (estimated) number of threads waiting for a permit to borrow a connection
+     */
+    public int getNumWaiters() {
+
+        return permits.getQueueLength();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The number of permits follows {@code maxTotal}. A negative {@code maxTotal} opens the gate, i.e. threads no
+     * longer wait for a permit. When the number of permits is reduced, connections that are borrowed beyond the new
+     * limit remain valid, but their permits are not handed out again when they are returned.
+     *
+     * @throws UnsupportedOperationException When the underlying pool cannot be reconfigured, in which case neither the
+     *                                       gate nor the underlying pool are changed
+     */
+    @Override
+    public void reconfigure(final ConnectionProperties poolSpec) {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        if (!(pool instanceof ReconfigurableManagedPool)) {
+            throw new UnsupportedOperationException("The underlying pool cannot be reconfigured");
+        }
+
+        synchronized (this) {
+            // CHECKSTYLE:OFF
+            // this inline condition is easy to read :-)
+            final int newMaxTotal = poolSpec.getMaxTotal() < 0 ? UNLIMITED_PERMITS : poolSpec.getMaxTotal();
+            // CHECKSTYLE:ON
+            if (newMaxTotal < maxTotal) {
+                // shrink the gate before the pool, so that the pool always has a connection for a permit
+                permits.reducePermits(maxTotal - newMaxTotal);
+                maxTotal = newMaxTotal;
+            }
+
+            ((ReconfigurableManagedPool) pool).reconfigure(poolSpec);
+
+            if (newMaxTotal > maxTotal) {
+                permits.release(newMaxTotal - maxTotal);
+                maxTotal = newMaxTotal;
+            }
+            maxWaitMillis = poolSpec.getMaxWaitMillis();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+
+        pool.close();
+    }
+
+    /**
+     * Acquire a permit, and borrow a connection from the underlying pool. The underlying pool applies its own
+     * {@code maxWaitMillis}, independently of the time spent waiting for the permit.
+     *
+     * @return A connection that releases the permit when it is closed
+     * @throws SQLException When no permit can be acquired within {@code maxWaitMillis}, or when the underlying pool
+     *                      cannot provide a connection
+     */
+    // suppress warnings about catching RuntimeException (the permit must be released whatever the pool throws)
+    @SuppressWarnings("PMD.AvoidCatchingGenericException")
+    private Connection borrow()
+            throws SQLException {
+
+        try {
+            if (maxWaitMillis < 0) {
+                permits.acquire();
+            } else if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLTransientConnectionException("Timeout waiting for a connection after "
+                        + maxWaitMillis + "ms (" + permits.getQueueLength() + " threads waiting)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+
+        try {
+            return new PermitConnection(pool.getDataSource().getConnection());
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * A connection that releases its permit when it is closed
+     */
+    final class PermitConnection
+            extends ConnectionWrapper {
+
+        /**
+         * The pooled connection
+         */
+        private final Connection delegate;
+
+        /**
+         * {@code true} when the permit has been released
+         */
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        /**
+         * Create a connection that holds a permit
+         *
+         * @param delegate The pooled connection
+         */
+        PermitConnection(final Connection delegate) {
+
+            super();
+            this.delegate = delegate;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected Connection getDelegate() {
+
+            return delegate;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isClosed()
+                throws SQLException {
+
+            return released.get() || delegate.isClosed();
+        }
+
+        /**
+         * Return the connection to the underlying pool, and release the permit.
+         *
+         * @throws SQLException When the underlying pool cannot take the connection back
+         */
+        @Override
+        public void close()
+                throws SQLException {
+
+            if (released.compareAndSet(false, true)) {
+                try {
+                    delegate.close();
+                } finally {
+                    permits.release();
+                }
+            }
+        }
+
+        /**
+         * Abort the connection, and release the permit.
+         *
+         * @param executor The executor used by the connection to abort
+         * @throws SQLException When the connection cannot be aborted
+         */
+        @Override
+        public void abort(final Executor executor)
+                throws SQLException {
+
+            if (released.compareAndSet(false, true)) {
+                try {
+                    delegate.abort(executor);
+                } finally {
+                    permits.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * A fair semaphore whose number of permits can be reduced
+     */
+    private static final class ResizableSemaphore
+            extends Semaphore {
+
+        /**
+         * The serial version UID
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Create a fair semaphore
+         *
+         * @param permits The initial number of permits
+         */
+        ResizableSemaphore(final int permits) {
+
+            super(permits, true);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        // suppress warnings about the override (it makes the protected method available to the gate)
+        @SuppressWarnings("PMD.UselessOverridingMethod")
+        @Override
+        protected void reducePermits(final int reduction) {
+
+            super.reducePermits(reduction);
+        }
+    }
+
+    /**
+     * The data source that hands out connections through the semaphore
+     */
+    private final class SemaphoreDataSource
+            extends DelegatingDataSource {
+
+        /**
+         * Create a data source that hands out connections through the semaphore
+         */
+        SemaphoreDataSource() {
+
+            super(pool.getDataSource());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Connection getConnection()
+                throws SQLException {
+
+            return borrow();
+        }
+    }
+}
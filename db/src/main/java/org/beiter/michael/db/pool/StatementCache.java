@@ -0,0 +1,306 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the idle prepared statements of a physical connection, used by the builtin pool engine.
+ * <p>
+ * Statements are taken out of the cache while they are in use, and put back when they are closed by the borrower.
+ * When the cache is full, the least recently used statement is closed.
+ * <p>
+ * This class is not thread safe. Like the physical connection, the cache is only used by the thread that has borrowed
+ * the connection.
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about the HashMap (the cache is only used by the thread that has borrowed the connection)
+// suppress warnings about the package private scope (the cache is only used by the builtin pool in this package)
+@SuppressWarnings({"PMD.TooManyMethods", "PMD.UseConcurrentHashMap", "PMD.DefaultPackage"})
+// CHECKSTYLE:ON
+final class StatementCache {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(StatementCache.class);
+
+    /**
+     * The maximum number of cached statements, or zero or less for no limit
+     */
+    private final int maxStatements;
+
+    /**
+     * The idle statements, in the order in which they have been returned (least recently used first)
+     */
+    private final Map<Key, PreparedStatement> statements = new LinkedHashMap<>();
+
+    /**
+     * Create a statement cache
+     *
+     * @param maxStatements The maximum number of cached statements, or zero or less for no limit
+     */
+    StatementCache(final int maxStatements) {
+
+        this.maxStatements = maxStatements;
+    }
+
+    /**
+     * Take an idle statement out of the cache
+     *
+     * @param key The key of the statement
+     * @return The cached statement, or {@code null} if there is no idle statement for the key
+     */
+    PreparedStatement take(final Key key) {
+
+        return statements.remove(key);
+    }
+
+    /**
+     * Put a statement that is no longer in use back into the cache. If the cache is full, the least recently used
+     * statement is closed.
+     *
+     * @param key       The key of the statement
+     * @param statement The statement
+     */
+    void put(final Key key, final PreparedStatement statement) {
+
+        final PreparedStatement previous = statements.put(key, statement);
+        if (previous != null) {
+            // the same statement had been prepared twice, keep only the most recent one
+            closeQuietly(previous);
+        }
+
+        if (maxStatements > 0 && statements.size() > maxStatements) {
+            final Iterator<PreparedStatement> eldest = statements.values().iterator();
+            closeQuietly(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * @return The number of idle statements in the cache
+     */
+    int size() {
+
+        return statements.size();
+    }
+
+    /**
+     * Close a statement, and log a failure
+     *
+     * @param statement The statement
+     */
+    private static void closeQuietly(final PreparedStatement statement) {
+
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            LOG.debug("Cannot close an evicted prepared statement", e);
+        }
+    }
+
+    /**
+     * The key of a cached statement, consisting of the SQL and the options that it has been prepared with
+     */
+    // CHECKSTYLE:OFF
+    // this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+    // suppress warnings about the short class and method names (they read as StatementCache.Key.of(sql))
+    // suppress warnings about the parameter names (they are defined by Connection.prepareStatement())
+    @SuppressWarnings({"PMD.ShortClassName", "PMD.ShortMethodName", "PMD.LongVariable"})
+    // CHECKSTYLE:ON
+    static final class Key {
+
+        /**
+         * The marker for an option that has not been provided
+         */
+        private static final int NONE = Integer.MIN_VALUE;
+
+        /**
+         * The multiplier used to combine the hash codes of the fields
+         */
+        private static final int HASH_MULTIPLIER = 31;
+
+        /**
+         * The SQL of the statement
+         */
+        private final String sql;
+
+        /**
+         * The result set type, or {@link #NONE}
+         */
+        private final int resultSetType;
+
+        /**
+         * The result set concurrency, or {@link #NONE}
+         */
+        private final int resultSetConcurrency;
+
+        /**
+         * The result set holdability, or {@link #NONE}
+         */
+        private final int resultSetHoldability;
+
+        /**
+         * The auto-generated keys flag, or {@link #NONE}
+         */
+        private final int autoGeneratedKeys;
+
+        /**
+         * Create a statement key
+         *
+         * @param sql                  The SQL of the statement
+         * @param resultSetType        The result set type, or {@link #NONE}
+         * @param resultSetConcurrency The result set concurrency, or {@link #NONE}
+         * @param resultSetHoldability The result set holdability, or {@link #NONE}
+         * @param autoGeneratedKeys    The auto-generated keys flag, or {@link #NONE}
+         */
+        private Key(final String sql, final int resultSetType, final int resultSetConcurrency,
+                    final int resultSetHoldability, final int autoGeneratedKeys) {
+
+            this.sql = sql;
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+            this.resultSetHoldability = resultSetHoldability;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+        }
+
+        /**
+         * @param sql The SQL of the statement
+         * @return The key of a statement prepared with {@link Connection#prepareStatement(String)}
+         */
+        static Key of(final String sql) {
+
+            return new Key(sql, NONE, NONE, NONE, NONE);
+        }
+
+        /**
+         * @param sql                  The SQL of the statement
+         * @param resultSetType        The result set type
+         * @param resultSetConcurrency The result set concurrency
+         * @return The key of a statement prepared with {@link Connection#prepareStatement(String, int, int)}
+         */
+        static Key of(final String sql, final int resultSetType, final int resultSetConcurrency) {
+
+            return new Key(sql, resultSetType, resultSetConcurrency, NONE, NONE);
+        }
+
+        /**
+         * @param sql                  The SQL of the statement
+         * @param resultSetType        The result set type
+         * @param resultSetConcurrency The result set concurrency
+         * @param resultSetHoldability The result set holdability
+         * @return The key of a statement prepared with {@link Connection#prepareStatement(String, int, int, int)}
+         */
+        static Key of(final String sql, final int resultSetType, final int resultSetConcurrency,
+                      final int resultSetHoldability) {
+
+            return new Key(sql, resultSetType, resultSetConcurrency, resultSetHoldability, NONE);
+        }
+
+        /**
+         * @param sql               The SQL of the statement
+         * @param autoGeneratedKeys The auto-generated keys flag
+         * @return The key of a statement prepared with {@link Connection#prepareStatement(String, int)}
+         */
+        static Key ofGeneratedKeys(final String sql, final int autoGeneratedKeys) {
+
+            return new Key(sql, NONE, NONE, NONE, autoGeneratedKeys);
+        }
+
+        /**
+         * Prepare a new statement on a physical connection, with the options of this key
+         *
+         * @param connection The physical connection
+         * @return The new statement
+         * @throws SQLException When the statement cannot be prepared
+         */
+        PreparedStatement prepare(final Connection connection)
+                throws SQLException {
+
+            if (autoGeneratedKeys != NONE) {
+                return connection.prepareStatement(sql, autoGeneratedKeys);
+            }
+            if (resultSetHoldability != NONE) {
+                return connection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+            }
+            if (resultSetType != NONE) {
+                return connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+            }
+            return connection.prepareStatement(sql);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(final Object obj) {
+
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return sql.equals(other.sql)
+                    && resultSetType == other.resultSetType
+                    && resultSetConcurrency == other.resultSetConcurrency
+                    && resultSetHoldability == other.resultSetHoldability
+                    && autoGeneratedKeys == other.autoGeneratedKeys;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+
+            int result = sql.hashCode();
+            result = HASH_MULTIPLIER * result + resultSetType;
+            result = HASH_MULTIPLIER * result + resultSetConcurrency;
+            result = HASH_MULTIPLIER * result + resultSetHoldability;
+            result = HASH_MULTIPLIER * result + autoGeneratedKeys;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,720 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.lang3.Validate;
+import org.beiter.michael.db.ConnectionProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A connection pool that keeps the connection a thread has returned last for that thread, and hands it back to the
+ * thread on its next borrow without going through another pool.
+ * <p>
+ * Every thread has a slot for one parked connection. When a thread returns a connection, the connection stays
+ * borrowed from the underlying pool and is parked in the slot of the thread. The next borrow of the thread takes the
+ * connection from its slot, which touches no shared data structure except for the slot itself. A connection is only
+ * parked for {@code threadAffinityMillis}: after that time, it is returned to the underlying pool on the next borrow
+ * of the thread (so that the underlying pool can validate, evict, or retire it).
+ * <p>
+ * Parked connections are still available to other threads when the pool is under pressure:
+ * <ul>
+ * <li>A thread that finds its slot empty while the underlying pool has no idle connections steals a parked connection
+ * from the slot of another thread.</li>
+ * <li>A returned connection is not parked (but returned to the underlying pool) while other threads are borrowing from
+ * the underlying pool, so that threads waiting in the underlying pool are not starved by parked connections.</li>
+ * </ul>
+ * A thread that finds its slot empty also returns the connections parked by threads that have died, and the connections
+ * that have been parked for longer than the thread affinity time, to the underlying pool (at most once per thread
+ * affinity time), so that the underlying pool can evict and validate them.
+ * <p>
+ * Before a connection is parked, an open transaction is rolled back and the warnings are cleared. Other settings are
+ * not reset: a connection whose auto-commit or read-only setting differs from the default of the pool, or whose
+ * transaction isolation or catalog has been changed by the borrower, is returned to the underlying pool instead. The
+ * active and idle counts of this pool count the parked connections as idle.
+ */
+// CHECKSTYLE:OFF
+// this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+// suppress warnings about a potential God class (not the case, the slots and the parked connections are one unit)
+@SuppressWarnings({"PMD.GodClass", "PMD.TooManyMethods"})
+// CHECKSTYLE:ON
+public final class ThreadAffineManagedPool
+        implements ReconfigurableManagedPool {
+
+    /**
+     * The logger object for this class
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ThreadAffineManagedPool.class);
+
+    /**
+     * The underlying pool
+     */
+    private final ManagedPool pool;
+
+    /**
+     * The metrics of the pool
+     */
+    private final PoolMetrics metrics;
+
+    /**
+     * The slot of the current thread
+     */
+    private final ThreadLocal<Slot> slot = new ThreadLocal<Slot>() {
+        @Override
+        protected Slot initialValue() {
+
+            final Slot newSlot = new Slot(Thread.currentThread());
+            slots.add(newSlot);
+            return newSlot;
+        }
+    };
+
+    /**
+     * The slots of all threads that have used this pool
+     */
+    private final Set<Slot> slots = Collections.newSetFromMap(new ConcurrentHashMap<Slot, Boolean>());
+
+    /**
+     * The number of parked connections
+     */
+    private final AtomicInteger parked = new AtomicInteger();
+
+    /**
+     * The time (in {@link System#nanoTime()}) when the slots are swept for connections parked by threads that have died
+     * or parked for longer than the thread affinity time next
+     */
+    private final AtomicLong nextSweepNanos = new AtomicLong(System.nanoTime());
+
+    /**
+     * The number of threads that are currently borrowing from the underlying pool
+     */
+    private final AtomicInteger borrowing = new AtomicInteger();
+
+    /**
+     * The time in nanoseconds that a returned connection is parked for the returning thread
+     */
+    private volatile long affinityNanos;
+
+    /**
+     * The default auto-commit setting of the connections
+     */
+    private volatile boolean defaultAutoCommit;
+
+    /**
+     * The default read-only setting of the connections
+     */
+    private volatile boolean defaultReadOnly;
+
+    /**
+     * {@code true} when the pool has been closed
+     */
+    private volatile boolean closed;
+
+    /**
+     * The data source that hands out the parked connections
+     */
+    private final DataSource dataSource;
+
+    /**
+     * Create a thread-affinity layer in front of a connection pool
+     *
+     * @param pool     The underlying pool
+     * @param metrics  The metrics of the pool, which count the affinity hits and steals
+     * @param poolSpec The settings of the pool (thread affinity time and connection defaults)
+     * @throws NullPointerException     When {@code pool}, {@code metrics}, or {@code poolSpec} are {@code null}
+     * @throws IllegalArgumentException When {@code poolSpec.getThreadAffinityMillis()} is not positive
+     */
+    public ThreadAffineManagedPool(final ManagedPool pool, final PoolMetrics metrics,
+                                   final ConnectionProperties poolSpec) {
+
+        Validate.notNull(pool, "The validated object 'pool' is null");
+        Validate.notNull(metrics, "The validated object 'metrics' is null");
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+        Validate.inclusiveBetween(1, Long.MAX_VALUE, poolSpec.getThreadAffinityMillis());
+
+        this.pool = pool;
+        this.metrics = metrics;
+        this.affinityNanos = TimeUnit.MILLISECONDS.toNanos(poolSpec.getThreadAffinityMillis());
+        this.defaultAutoCommit = poolSpec.isDefaultAutoCommit();
+        this.defaultReadOnly = poolSpec.isDefaultReadOnly();
+        this.dataSource = new AffineDataSource();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DataSource getDataSource() {
+
+        return dataSource;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumActive() {
+
+        return Math.max(0, pool.getNumActive() - parked.get());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumIdle() {
+
+        return pool.getNumIdle() + parked.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The thread affinity time and the connection defaults are replaced. If the thread affinity time is set to zero or
+     * less, connections are no longer parked, and the parked connections are returned to the underlying pool.
+     */
+    @Override
+    public void reconfigure(final ConnectionProperties poolSpec) {
+
+        Validate.notNull(poolSpec, "The validated object 'poolSpec' is null");
+
+        if (!(pool instanceof ReconfigurableManagedPool)) {
+            throw new UnsupportedOperationException("The underlying pool cannot be reconfigured");
+        }
+
+        affinityNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, poolSpec.getThreadAffinityMillis()));
+        defaultAutoCommit = poolSpec.isDefaultAutoCommit();
+        defaultReadOnly = poolSpec.isDefaultReadOnly();
+        if (affinityNanos == 0) {
+            releaseParked();
+        }
+        ((ReconfigurableManagedPool) pool).reconfigure(poolSpec);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The parked connections are returned to the underlying pool before it is closed.
+     */
+    @Override
+    public void close() {
+
+        closed = true;
+        releaseParked();
+        pool.close();
+    }
+
+    /**
+     * Borrow the connection that the current thread has parked, or (under pressure) a connection that another thread
+     * has parked, or a connection from the underlying pool.
+     *
+     * @return A connection that is parked for the current thread when it is closed
+     * @throws SQLException When the underlying pool cannot provide a connection
+     */
+    private Connection borrow()
+            throws SQLException {
+
+        final Parked own = take(slot.get());
+        if (own != null) {
+            if (!closed && System.nanoTime() - own.parkedAtNanos < affinityNanos) {
+                metrics.recordAffinityHit();
+                return new AffineConnection(own.connection);
+            }
+            release(own.connection);
+        }
+        sweepIfDue();
+
+        // announce the borrow before looking for parked connections, so that a concurrent return either sees the
+        // borrower (and does not park), or parks before the borrower looks (and the borrower can steal)
+        borrowing.incrementAndGet();
+        try {
+            if (pool.getNumIdle() == 0) {
+                final Connection stolen = steal();
+                if (stolen != null) {
+                    metrics.recordAffinitySteal();
+                    return new AffineConnection(stolen);
+                }
+            }
+            return new AffineConnection(pool.getDataSource().getConnection());
+        } finally {
+            borrowing.decrementAndGet();
+        }
+    }
+
+    /**
+     * Take a parked connection from the slot of another thread. The connections parked by threads that have died, and
+     * the connections that have been parked for longer than the thread affinity time are returned to the underlying
+     * pool.
+     *
+     * @return A parked connection, or {@code null} if no connection is parked
+     */
+    private Connection steal() {
+
+        final Iterator<Slot> iterator = slots.iterator();
+        while (iterator.hasNext()) {
+            final Slot other = iterator.next();
+            final boolean ownerDied = other.isOwnerDead();
+            if (ownerDied) {
+                iterator.remove();
+            }
+
+            final Parked stolen = take(other);
+            if (stolen == null) {
+                continue;
+            }
+            if (ownerDied || System.nanoTime() - stolen.parkedAtNanos >= affinityNanos) {
+                release(stolen.connection);
+            } else {
+                return stolen.connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the connections parked by threads that have died, and the connections that have been parked for longer
+     * than the thread affinity time to the underlying pool, at most once per thread affinity time. Without the sweep,
+     * these connections would only be returned under pressure (see {@link #steal()}), and would be hidden from the
+     * eviction and validation of the underlying pool in the meantime.
+     */
+    private void sweepIfDue() {
+
+        final long now = System.nanoTime();
+        final long dueNanos = nextSweepNanos.get();
+        if (now - dueNanos < 0 || !nextSweepNanos.compareAndSet(dueNanos, now + affinityNanos)) {
+            return;
+        }
+
+        final Iterator<Slot> iterator = slots.iterator();
+        while (iterator.hasNext()) {
+            final Slot other = iterator.next();
+            final Parked parkedConnection = other.peek();
+            if (other.isOwnerDead()) {
+                iterator.remove();
+                final Parked taken = take(other);
+                if (taken != null) {
+                    release(taken.connection);
+                }
+            } else if (parkedConnection != null && now - parkedConnection.parkedAtNanos >= affinityNanos
+                    && other.remove(parkedConnection)) {
+                parked.decrementAndGet();
+                release(parkedConnection.connection);
+            }
+        }
+    }
+
+    /**
+     * Park a returned connection for the current thread, or return it to the underlying pool if it cannot be parked.
+     *
+     * @param connection      The connection borrowed from the underlying pool
+     * @param settingsChanged {@code true} if the borrower has changed the transaction isolation or the catalog
+     * @throws SQLException When the connection cannot be returned to the underlying pool
+     */
+    private void park(final Connection connection, final boolean settingsChanged)
+            throws SQLException {
+
+        if (!canPark(connection, settingsChanged)) {
+            connection.close();
+            return;
+        }
+
+        final Slot own = slot.get();
+        if (!offer(own, new Parked(connection, System.nanoTime()))) {
+            // the thread has already parked another connection
+            connection.close();
+            return;
+        }
+
+        // re-check after parking (see borrow()), and give the connection to the pool if a borrower has come along
+        if (closed || borrowing.get() > 0) {
+            final Parked taken = take(own);
+            if (taken != null) {
+                taken.connection.close();
+            }
+        }
+    }
+
+    /**
+     * Check if a returned connection can be parked: the pool is open, thread affinity is enabled, no other thread is
+     * borrowing from the underlying pool, and the connection can be handed out again without being reset.
+     *
+     * @param connection      The connection borrowed from the underlying pool
+     * @param settingsChanged {@code true} if the borrower has changed the transaction isolation or the catalog
+     * @return {@code true} if the connection can be parked
+     */
+    private boolean canPark(final Connection connection, final boolean settingsChanged) {
+
+        return !closed && affinityNanos != 0 && borrowing.get() == 0 && !settingsChanged
+                && prepareForParking(connection);
+    }
+
+    /**
+     * Check if a returned connection can be handed out again without being reset by the underlying pool, and roll back
+     * its open transaction and clear its warnings if it can.
+     *
+     * @param connection The connection
+     * @return {@code true} if the connection is open, has the default auto-commit and read-only settings, and has been
+     * rolled back
+     */
+    private boolean prepareForParking(final Connection connection) {
+
+        try {
+            if (connection.isClosed() || connection.getAutoCommit() != defaultAutoCommit
+                    || connection.isReadOnly() != defaultReadOnly) {
+                return false;
+            }
+            if (!defaultAutoCommit) {
+                connection.rollback();
+            }
+            connection.clearWarnings();
+            return true;
+        } catch (SQLException e) {
+            LOG.debug("Cannot check the state of a returned connection, returning it to the pool", e);
+            return false;
+        }
+    }
+
+    /**
+     * Return the parked connections of all threads to the underlying pool.
+     */
+    private void releaseParked() {
+
+        for (final Slot other : slots) {
+            final Parked taken = take(other);
+            if (taken != null) {
+                release(taken.connection);
+            }
+        }
+    }
+
+    /**
+     * Take the parked connection out of a slot, and count it as no longer parked
+     *
+     * @param other The slot
+     * @return The parked connection, or {@code null} if no connection is parked
+     */
+    private Parked take(final Slot other) {
+
+        final Parked taken = other.take();
+        if (taken != null) {
+            parked.decrementAndGet();
+        }
+        return taken;
+    }
+
+    /**
+     * Park a connection in a slot if the slot is empty, and count it as parked
+     *
+     * @param own        The slot
+     * @param connection The connection to park
+     * @return {@code true} if the connection has been parked
+     */
+    private boolean offer(final Slot own, final Parked connection) {
+
+        if (own.offer(connection)) {
+            parked.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return a connection to the underlying pool, and log failures
+     *
+     * @param connection The connection
+     */
+    private static void release(final Connection connection) {
+
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOG.warn("Cannot return a parked connection to the pool", e);
+        }
+    }
+
+    /**
+     * A connection that is parked in a slot
+     */
+    private static final class Parked {
+
+        /**
+         * The connection borrowed from the underlying pool
+         */
+        private final Connection connection;
+
+        /**
+         * The time (in {@link System#nanoTime()}) when the connection has been parked
+         */
+        private final long parkedAtNanos;
+
+        /**
+         * Create a parked connection
+         *
+         * @param connection    The connection borrowed from the underlying pool
+         * @param parkedAtNanos The time (in {@link System#nanoTime()}) when the connection has been parked
+         */
+        Parked(final Connection connection, final long parkedAtNanos) {
+
+            this.connection = connection;
+            this.parkedAtNanos = parkedAtNanos;
+        }
+    }
+
+    /**
+     * The slot of a thread, which holds at most one parked connection
+     */
+    // CHECKSTYLE:OFF
+    // this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
+    // suppress warnings about the short class name (the slot of a thread)
+    // suppress warnings about using threads (the slot checks if its thread is still alive)
+    @SuppressWarnings({"PMD.ShortClassName", "PMD.DoNotUseThreads"})
+    // CHECKSTYLE:ON
+    private static final class Slot {
+
+        /**
+         * The parked connection, or {@code null} if no connection is parked
+         */
+        private final AtomicReference<Parked> parkedConnection = new AtomicReference<>();
+
+        /**
+         * The thread that owns the slot
+         */
+        private final WeakReference<Thread> owner;
+
+        /**
+         * Create the slot of a thread
+         *
+         * @param owner The thread that owns the slot
+         */
+        Slot(final Thread owner) {
+
+            this.owner = new WeakReference<>(owner);
+        }
+
+        /**
+         * @return {@code true} if the thread that owns the slot has died
+         */
+        private boolean isOwnerDead() {
+
+            final Thread thread = owner.get();
+            return thread == null || !thread.isAlive();
+        }
+
+        /**
+         * @return The parked connection, or {@code null} if no connection is parked
+         */
+        private Parked peek() {
+
+            return parkedConnection.get();
+        }
+
+        /**
+         * Take the parked connection out of the slot
+         *
+         * @return The parked connection, or {@code null} if no connection is parked
+         */
+        private Parked take() {
+
+            return parkedConnection.getAndSet(null);
+        }
+
+        /**
+         * Take a parked connection out of the slot, if it is still parked
+         *
+         * @param expected The parked connection
+         * @return {@code true} if the connection has been taken out of the slot
+         */
+        private boolean remove(final Parked expected) {
+
+            return parkedConnection.compareAndSet(expected, null);
+        }
+
+        /**
+         * Park a connection in the slot, if the slot is empty
+         *
+         * @param connection The connection to park
+         * @return {@code true} if the connection has been parked
+         */
+        private boolean offer(final Parked connection) {
+
+            return parkedConnection.compareAndSet(null, connection);
+        }
+    }
+
+    /**
+     * A connection that is parked for the current thread when it is closed
+     */
+    private final class AffineConnection
+            extends ConnectionWrapper {
+
+        /**
+         * The connection borrowed from the underlying pool
+         */
+        private final Connection delegate;
+
+        /**
+         * {@code true} when the connection has been closed
+         */
+        private final AtomicBoolean returned = new AtomicBoolean();
+
+        /**
+         * {@code true} when the borrower has changed the transaction isolation or the catalog of the connection
+         */
+        private boolean settingsChanged;
+
+        /**
+         * Create a connection that is parked when it is closed
+         *
+         * @param delegate The connection borrowed from the underlying pool
+         */
+        AffineConnection(final Connection delegate) {
+
+            super();
+            this.delegate = delegate;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected Connection getDelegate()
+                throws SQLException {
+
+            if (returned.get()) {
+                throw new SQLException("The connection has been closed");
+            }
+            return delegate;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isClosed()
+                throws SQLException {
+
+            return returned.get() || delegate.isClosed();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setTransactionIsolation(final int level)
+                throws SQLException {
+
+            getDelegate().setTransactionIsolation(level);
+            settingsChanged = true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setCatalog(final String catalog)
+                throws SQLException {
+
+            getDelegate().setCatalog(catalog);
+            settingsChanged = true;
+        }
+
+        /**
+         * Park the connection for the current thread, or return it to the underlying pool.
+         *
+         * @throws SQLException When the connection cannot be returned to the underlying pool
+         */
+        @Override
+        public void close()
+                throws SQLException {
+
+            if (returned.compareAndSet(false, true)) {
+                park(delegate, settingsChanged);
+            }
+        }
+
+        /**
+         * Abort the connection (it is never parked).
+         *
+         * @param executor The executor used by the connection to abort
+         * @throws SQLException When the connection cannot be aborted
+         */
+        @Override
+        public void abort(final Executor executor)
+                throws SQLException {
+
+            if (returned.compareAndSet(false, true)) {
+                delegate.abort(executor);
+            }
+        }
+    }
+
+    /**
+     * The data source that hands out the parked connections
+     */
+    private final class AffineDataSource
+            extends DelegatingDataSource {
+
+        /**
+         * Create a data source that hands out the parked connections
+         */
+        AffineDataSource() {
+
+            super(pool.getDataSource());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Connection getConnection()
+                throws SQLException {
+
+            return borrow();
+        }
+    }
+}
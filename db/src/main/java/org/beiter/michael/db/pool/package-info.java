@@ -0,0 +1,5 @@
+/**
+ * Provides the pool engine service provider interface (SPI) used by the {@link org.beiter.michael.db.DataSourceFactory}
+ * to create connection pools, as well as the pool engines that ship with this library.
+ */
+package org.beiter.michael.db.pool;
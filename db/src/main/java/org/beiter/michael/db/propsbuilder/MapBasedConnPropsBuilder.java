@@ -33,6 +33,7 @@
 package org.beiter.michael.db.propsbuilder;
 
 import java.sql.Connection;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -51,7 +52,8 @@ import org.slf4j.LoggerFactory;
 // this is flagged in checkstyle with a missing whitespace before '}', which is a bug in checkstyle
 // suppress warnings about the long variable names that are "inherited" from Apache DBCP (which I used as a blueprint)
 // suppress warnings about a potential God class (not the case, this is triggered by the builder)
-@SuppressWarnings({"PMD.LongVariable", "PMD.GodClass"})
+// suppress warnings about the class length (triggered by the many keys and their documentation)
+@SuppressWarnings({"PMD.LongVariable", "PMD.GodClass", "PMD.ExcessiveClassLength"})
 // CHECKSTYLE:ON
 public final class MapBasedConnPropsBuilder {
 
@@ -174,11 +176,164 @@ public final class MapBasedConnPropsBuilder {
      */
     public static final String DEFAULT_VALIDATION_QUERY = "SELECT 1";
 
+    /**
+     * The value of {@link #KEY_VALIDATION_QUERY} that selects validation with <code>Connection.isValid()</code>
+     * instead of a validation query (case insensitive)
+     *
+     * @see ConnectionProperties#setValidationQuery(String)
+     */
+    public static final String VALIDATION_QUERY_IS_VALID = "isValid";
+
     /**
      * @see ConnectionProperties#setMaxConnLifetimeMillis(long)
      */
     public static final long DEFAULT_MAX_CONN_LIFETIME_MILLIS = -1;
 
+    /**
+     * @see ConnectionProperties#setPoolEngine(String)
+     */
+    public static final String DEFAULT_POOL_ENGINE = "dbcp2";
+
+
+    /**
+     * @see ConnectionProperties#setAcquisitionMode(String)
+     */
+    public static final String DEFAULT_ACQUISITION_MODE = "pool";
+
+    /**
+     * @see ConnectionProperties#setLeakDetectionThresholdMillis(long)
+     */
+    public static final long DEFAULT_LEAK_DETECTION_THRESHOLD_MILLIS = 0L;
+
+    /**
+     * @see ConnectionProperties#setLeakDetectionStackSampleRate(int)
+     */
+    public static final int DEFAULT_LEAK_DETECTION_STACK_SAMPLE_RATE = 0;
+
+    /**
+     * @see ConnectionProperties#setAbandonedTimeoutMillis(long)
+     */
+    public static final long DEFAULT_ABANDONED_TIMEOUT_MILLIS = 0L;
+
+    /**
+     * @see ConnectionProperties#setPoolPreparedStatements(boolean)
+     */
+    public static final boolean DEFAULT_POOL_PREPARED_STATEMENTS = false;
+
+    /**
+     * @see ConnectionProperties#setMaxOpenPreparedStatements(int)
+     */
+    public static final int DEFAULT_MAX_OPEN_PREPARED_STATEMENTS = -1;
+
+    /**
+     * @see ConnectionProperties#setInitialSize(int)
+     */
+    public static final int DEFAULT_INITIAL_SIZE = 0;
+
+    /**
+     * @see ConnectionProperties#setWarmUpInBackground(boolean)
+     */
+    public static final boolean DEFAULT_WARM_UP_IN_BACKGROUND = false;
+
+    /**
+     * @see ConnectionProperties#setShutdownGracePeriodMillis(long)
+     */
+    public static final long DEFAULT_SHUTDOWN_GRACE_PERIOD_MILLIS = 30000L;
+
+    /**
+     * @see ConnectionProperties#setReplicaUrls(List)
+     */
+    public static final String DEFAULT_REPLICA_URLS = "";
+
+    /**
+     * @see ConnectionProperties#setReplicaRetryMillis(long)
+     */
+    public static final long DEFAULT_REPLICA_RETRY_MILLIS = 5000L;
+
+    /**
+     * @see ConnectionProperties#setFailoverUrls(List)
+     */
+    public static final String DEFAULT_FAILOVER_URLS = "";
+
+    /**
+     * @see ConnectionProperties#setHealthCheckIntervalMillis(long)
+     */
+    public static final long DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS = 5000L;
+
+    /**
+     * @see ConnectionProperties#setValidationIntervalMillis(long)
+     */
+    public static final long DEFAULT_VALIDATION_INTERVAL_MILLIS = 0;
+
+    /**
+     * @see ConnectionProperties#setIdleValidationIntervalMillis(long)
+     */
+    public static final long DEFAULT_IDLE_VALIDATION_INTERVAL_MILLIS = 0;
+
+    /**
+     * @see ConnectionProperties#setAutoSizeIntervalMillis(long)
+     */
+    public static final long DEFAULT_AUTO_SIZE_INTERVAL_MILLIS = 0L;
+
+    /**
+     * @see ConnectionProperties#setAutoSizeMinTotal(int)
+     */
+    public static final int DEFAULT_AUTO_SIZE_MIN_TOTAL = 1;
+
+    /**
+     * @see ConnectionProperties#setAutoSizeMaxTotal(int)
+     */
+    public static final int DEFAULT_AUTO_SIZE_MAX_TOTAL = 32;
+
+    /**
+     * @see ConnectionProperties#setAutoSizeWaitThresholdMillis(long)
+     */
+    public static final long DEFAULT_AUTO_SIZE_WAIT_THRESHOLD_MILLIS = 1L;
+
+    /**
+     * @see ConnectionProperties#setThreadAffinityMillis(long)
+     */
+    public static final long DEFAULT_THREAD_AFFINITY_MILLIS = 0L;
+
+    /**
+     * @see ConnectionProperties#setBulkheadMaxWaiters(int)
+     */
+    public static final int DEFAULT_BULKHEAD_MAX_WAITERS = 0;
+
+    /**
+     * @see ConnectionProperties#setBulkheadMaxQueueMillis(long)
+     */
+    public static final long DEFAULT_BULKHEAD_MAX_QUEUE_MILLIS = 0L;
+
+    /**
+     * @see ConnectionProperties#setCircuitBreakerFailureThreshold(int)
+     */
+    public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 0;
+
+    /**
+     * @see ConnectionProperties#setCircuitBreakerOpenMillis(long)
+     */
+    public static final long DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS = 5000;
+
+    /**
+     * @see ConnectionProperties#setCircuitBreakerHalfOpenProbes(int)
+     */
+    public static final int DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_PROBES = 1;
+
+    /**
+     * @see ConnectionProperties#setMaxConcurrentCreations(int)
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_CREATIONS = 0;
+
+    /**
+     * @see ConnectionProperties#setGlobalMaxConcurrentCreations(int)
+     */
+    public static final int DEFAULT_GLOBAL_MAX_CONCURRENT_CREATIONS = 0;
+
+    /**
+     * @see ConnectionProperties#setCreationPacingMillis(long)
+     */
+    public static final long DEFAULT_CREATION_PACING_MILLIS = 0;
 
     // #####################
     // # Configuration Keys
@@ -302,6 +457,163 @@ public final class MapBasedConnPropsBuilder {
      */
     public static final String KEY_MAX_CONN_LIFETIME_MILLIS = "jdbc.connection.maxConnLifetimeMillis";
 
+    /**
+     * @see ConnectionProperties#setPoolEngine(String)
+     */
+    public static final String KEY_POOL_ENGINE = "jdbc.connection.poolEngine";
+
+    /**
+     * @see ConnectionProperties#setAcquisitionMode(String)
+     */
+    public static final String KEY_ACQUISITION_MODE = "jdbc.connection.acquisitionMode";
+
+    /**
+     * @see ConnectionProperties#setLeakDetectionThresholdMillis(long)
+     */
+    public static final String KEY_LEAK_DETECTION_THRESHOLD_MILLIS = "jdbc.connection.leakDetectionThresholdMillis";
+
+    /**
+     * @see ConnectionProperties#setLeakDetectionStackSampleRate(int)
+     */
+    public static final String KEY_LEAK_DETECTION_STACK_SAMPLE_RATE = "jdbc.connection.leakDetectionStackSampleRate";
+
+    /**
+     * @see ConnectionProperties#setAbandonedTimeoutMillis(long)
+     */
+    public static final String KEY_ABANDONED_TIMEOUT_MILLIS = "jdbc.connection.abandonedTimeoutMillis";
+
+    /**
+     * @see ConnectionProperties#setPoolPreparedStatements(boolean)
+     */
+    public static final String KEY_POOL_PREPARED_STATEMENTS = "jdbc.connection.poolPreparedStatements";
+
+    /**
+     * @see ConnectionProperties#setMaxOpenPreparedStatements(int)
+     */
+    public static final String KEY_MAX_OPEN_PREPARED_STATEMENTS = "jdbc.connection.maxOpenPreparedStatements";
+
+    /**
+     * The prefix of the keys that are passed to the JDBC driver, e.g. <code>jdbc.driver.defaultRowPrefetch</code> is
+     * passed as the <code>defaultRowPrefetch</code> driver property
+     *
+     * @see ConnectionProperties#setDriverProperties(Map)
+     */
+    public static final String KEY_DRIVER_PROPERTIES_PREFIX = "jdbc.driver.";
+
+    /**
+     * @see ConnectionProperties#setInitialSize(int)
+     */
+    public static final String KEY_INITIAL_SIZE = "jdbc.connection.initialSize";
+
+    /**
+     * @see ConnectionProperties#setWarmUpInBackground(boolean)
+     */
+    public static final String KEY_WARM_UP_IN_BACKGROUND = "jdbc.connection.warmUpInBackground";
+
+    /**
+     * @see ConnectionProperties#setShutdownGracePeriodMillis(long)
+     */
+    public static final String KEY_SHUTDOWN_GRACE_PERIOD_MILLIS = "jdbc.connection.shutdownGracePeriodMillis";
+
+    /**
+     * A comma separated list of JDBC URLs
+     *
+     * @see ConnectionProperties#setReplicaUrls(List)
+     */
+    public static final String KEY_REPLICA_URLS = "jdbc.connection.replicaUrls";
+
+    /**
+     * @see ConnectionProperties#setReplicaRetryMillis(long)
+     */
+    public static final String KEY_REPLICA_RETRY_MILLIS = "jdbc.connection.replicaRetryMillis";
+
+    /**
+     * A comma separated list of JDBC URLs
+     *
+     * @see ConnectionProperties#setFailoverUrls(List)
+     */
+    public static final String KEY_FAILOVER_URLS = "jdbc.connection.failoverUrls";
+
+    /**
+     * @see ConnectionProperties#setHealthCheckIntervalMillis(long)
+     */
+    public static final String KEY_HEALTH_CHECK_INTERVAL_MILLIS = "jdbc.connection.healthCheckIntervalMillis";
+
+    /**
+     * @see ConnectionProperties#setValidationIntervalMillis(long)
+     */
+    public static final String KEY_VALIDATION_INTERVAL_MILLIS = "jdbc.connection.validationIntervalMillis";
+
+    /**
+     * @see ConnectionProperties#setIdleValidationIntervalMillis(long)
+     */
+    public static final String KEY_IDLE_VALIDATION_INTERVAL_MILLIS = "jdbc.connection.idleValidationIntervalMillis";
+
+    /**
+     * @see ConnectionProperties#setAutoSizeIntervalMillis(long)
+     */
+    public static final String KEY_AUTO_SIZE_INTERVAL_MILLIS = "jdbc.connection.autoSizeIntervalMillis";
+
+    /**
+     * @see ConnectionProperties#setAutoSizeMinTotal(int)
+     */
+    public static final String KEY_AUTO_SIZE_MIN_TOTAL = "jdbc.connection.autoSizeMinTotal";
+
+    /**
+     * @see ConnectionProperties#setAutoSizeMaxTotal(int)
+     */
+    public static final String KEY_AUTO_SIZE_MAX_TOTAL = "jdbc.connection.autoSizeMaxTotal";
+
+    /**
+     * @see ConnectionProperties#setAutoSizeWaitThresholdMillis(long)
+     */
+    public static final String KEY_AUTO_SIZE_WAIT_THRESHOLD_MILLIS = "jdbc.connection.autoSizeWaitThresholdMillis";
+
+    /**
+     * @see ConnectionProperties#setThreadAffinityMillis(long)
+     */
+    public static final String KEY_THREAD_AFFINITY_MILLIS = "jdbc.connection.threadAffinityMillis";
+
+    /**
+     * @see ConnectionProperties#setBulkheadMaxWaiters(int)
+     */
+    public static final String KEY_BULKHEAD_MAX_WAITERS = "jdbc.connection.bulkheadMaxWaiters";
+
+    /**
+     * @see ConnectionProperties#setBulkheadMaxQueueMillis(long)
+     */
+    public static final String KEY_BULKHEAD_MAX_QUEUE_MILLIS = "jdbc.connection.bulkheadMaxQueueMillis";
+
+    /**
+     * @see ConnectionProperties#setCircuitBreakerFailureThreshold(int)
+     */
+    public static final String KEY_CIRCUIT_BREAKER_FAILURE_THRESHOLD = "jdbc.connection.circuitBreakerFailureThreshold";
+
+    /**
+     * @see ConnectionProperties#setCircuitBreakerOpenMillis(long)
+     */
+    public static final String KEY_CIRCUIT_BREAKER_OPEN_MILLIS = "jdbc.connection.circuitBreakerOpenMillis";
+
+    /**
+     * @see ConnectionProperties#setCircuitBreakerHalfOpenProbes(int)
+     */
+    public static final String KEY_CIRCUIT_BREAKER_HALF_OPEN_PROBES = "jdbc.connection.circuitBreakerHalfOpenProbes";
+
+    /**
+     * @see ConnectionProperties#setMaxConcurrentCreations(int)
+     */
+    public static final String KEY_MAX_CONCURRENT_CREATIONS = "jdbc.connection.maxConcurrentCreations";
+
+    /**
+     * @see ConnectionProperties#setGlobalMaxConcurrentCreations(int)
+     */
+    public static final String KEY_GLOBAL_MAX_CONCURRENT_CREATIONS = "jdbc.connection.globalMaxConcurrentCreations";
+
+    /**
+     * @see ConnectionProperties#setCreationPacingMillis(long)
+     */
+    public static final String KEY_CREATION_PACING_MILLIS = "jdbc.connection.creationPacingMillis";
+
     /**
      * A private constructor to prevent instantiation of this class
      */
@@ -579,7 +891,10 @@ public final class MapBasedConnPropsBuilder {
         }
 
         tmp = properties.get(KEY_VALIDATION_QUERY);
-        if (StringUtils.isNotEmpty(tmp)) {
+        if (VALIDATION_QUERY_IS_VALID.equalsIgnoreCase(StringUtils.trim(tmp))) {
+            connProps.setValidationQuery(null);
+            logValue(KEY_VALIDATION_QUERY, tmp);
+        } else if (StringUtils.isNotEmpty(tmp)) {
             connProps.setValidationQuery(tmp);
             logValue(KEY_VALIDATION_QUERY, tmp);
         } else {
@@ -602,6 +917,415 @@ public final class MapBasedConnPropsBuilder {
             logDefault(KEY_MAX_CONN_LIFETIME_MILLIS, String.valueOf(DEFAULT_MAX_CONN_LIFETIME_MILLIS));
         }
 
+        tmp = properties.get(KEY_POOL_ENGINE);
+        if (StringUtils.isNotBlank(tmp)) {
+            connProps.setPoolEngine(tmp);
+            logValue(KEY_POOL_ENGINE, tmp);
+        } else {
+            connProps.setPoolEngine(DEFAULT_POOL_ENGINE);
+            logDefault(KEY_POOL_ENGINE, DEFAULT_POOL_ENGINE);
+        }
+
+        tmp = properties.get(KEY_ACQUISITION_MODE);
+        if (StringUtils.isNotBlank(tmp)) {
+            connProps.setAcquisitionMode(tmp);
+            logValue(KEY_ACQUISITION_MODE, tmp);
+        } else {
+            connProps.setAcquisitionMode(DEFAULT_ACQUISITION_MODE);
+            logDefault(KEY_ACQUISITION_MODE, DEFAULT_ACQUISITION_MODE);
+        }
+
+        tmp = properties.get(KEY_LEAK_DETECTION_THRESHOLD_MILLIS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setLeakDetectionThresholdMillis(Long.decode(tmp));
+                logValue(KEY_LEAK_DETECTION_THRESHOLD_MILLIS, tmp);
+            } else {
+                connProps.setLeakDetectionThresholdMillis(DEFAULT_LEAK_DETECTION_THRESHOLD_MILLIS);
+                logDefault(KEY_LEAK_DETECTION_THRESHOLD_MILLIS, tmp, "not numeric",
+                        String.valueOf(DEFAULT_LEAK_DETECTION_THRESHOLD_MILLIS));
+            }
+        } else {
+            connProps.setLeakDetectionThresholdMillis(DEFAULT_LEAK_DETECTION_THRESHOLD_MILLIS);
+            logDefault(KEY_LEAK_DETECTION_THRESHOLD_MILLIS, String.valueOf(DEFAULT_LEAK_DETECTION_THRESHOLD_MILLIS));
+        }
+
+        tmp = properties.get(KEY_LEAK_DETECTION_STACK_SAMPLE_RATE);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setLeakDetectionStackSampleRate(Integer.decode(tmp));
+                logValue(KEY_LEAK_DETECTION_STACK_SAMPLE_RATE, tmp);
+            } else {
+                connProps.setLeakDetectionStackSampleRate(DEFAULT_LEAK_DETECTION_STACK_SAMPLE_RATE);
+                logDefault(KEY_LEAK_DETECTION_STACK_SAMPLE_RATE, tmp, "not numeric",
+                        String.valueOf(DEFAULT_LEAK_DETECTION_STACK_SAMPLE_RATE));
+            }
+        } else {
+            connProps.setLeakDetectionStackSampleRate(DEFAULT_LEAK_DETECTION_STACK_SAMPLE_RATE);
+            logDefault(KEY_LEAK_DETECTION_STACK_SAMPLE_RATE, String.valueOf(DEFAULT_LEAK_DETECTION_STACK_SAMPLE_RATE));
+        }
+
+        tmp = properties.get(KEY_ABANDONED_TIMEOUT_MILLIS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setAbandonedTimeoutMillis(Long.decode(tmp));
+                logValue(KEY_ABANDONED_TIMEOUT_MILLIS, tmp);
+            } else {
+                connProps.setAbandonedTimeoutMillis(DEFAULT_ABANDONED_TIMEOUT_MILLIS);
+                logDefault(KEY_ABANDONED_TIMEOUT_MILLIS, tmp, "not numeric",
+                        String.valueOf(DEFAULT_ABANDONED_TIMEOUT_MILLIS));
+            }
+        } else {
+            connProps.setAbandonedTimeoutMillis(DEFAULT_ABANDONED_TIMEOUT_MILLIS);
+            logDefault(KEY_ABANDONED_TIMEOUT_MILLIS, String.valueOf(DEFAULT_ABANDONED_TIMEOUT_MILLIS));
+        }
+
+        tmp = properties.get(KEY_POOL_PREPARED_STATEMENTS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            connProps.setPoolPreparedStatements(Boolean.parseBoolean(tmp));
+            logValue(KEY_POOL_PREPARED_STATEMENTS, tmp);
+        } else {
+            connProps.setPoolPreparedStatements(DEFAULT_POOL_PREPARED_STATEMENTS);
+            logDefault(KEY_POOL_PREPARED_STATEMENTS, String.valueOf(DEFAULT_POOL_PREPARED_STATEMENTS));
+        }
+
+        tmp = properties.get(KEY_MAX_OPEN_PREPARED_STATEMENTS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setMaxOpenPreparedStatements(Integer.decode(tmp));
+                logValue(KEY_MAX_OPEN_PREPARED_STATEMENTS, tmp);
+            } else {
+                connProps.setMaxOpenPreparedStatements(DEFAULT_MAX_OPEN_PREPARED_STATEMENTS);
+                logDefault(KEY_MAX_OPEN_PREPARED_STATEMENTS, tmp, "not numeric",
+                        String.valueOf(DEFAULT_MAX_OPEN_PREPARED_STATEMENTS));
+            }
+        } else {
+            connProps.setMaxOpenPreparedStatements(DEFAULT_MAX_OPEN_PREPARED_STATEMENTS);
+            logDefault(KEY_MAX_OPEN_PREPARED_STATEMENTS, String.valueOf(DEFAULT_MAX_OPEN_PREPARED_STATEMENTS));
+        }
+
+        // collect the driver properties from the keys in the driver properties namespace
+        final Map<String, String> driverProps = new ConcurrentHashMap<>();
+        for (final Map.Entry<String, String> entry : properties.entrySet()) {
+            final String key = entry.getKey();
+            final String value = entry.getValue();
+
+            if (key != null && value != null && key.startsWith(KEY_DRIVER_PROPERTIES_PREFIX)
+                    && key.length() > KEY_DRIVER_PROPERTIES_PREFIX.length()) {
+                driverProps.put(key.substring(KEY_DRIVER_PROPERTIES_PREFIX.length()), value);
+                logValue(key, value);
+            }
+        }
+        connProps.setDriverProperties(driverProps);
+
+        tmp = properties.get(KEY_INITIAL_SIZE);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setInitialSize(Integer.decode(tmp));
+                logValue(KEY_INITIAL_SIZE, tmp);
+            } else {
+                connProps.setInitialSize(DEFAULT_INITIAL_SIZE);
+                logDefault(KEY_INITIAL_SIZE, tmp, "not numeric", String.valueOf(DEFAULT_INITIAL_SIZE));
+            }
+        } else {
+            connProps.setInitialSize(DEFAULT_INITIAL_SIZE);
+            logDefault(KEY_INITIAL_SIZE, String.valueOf(DEFAULT_INITIAL_SIZE));
+        }
+
+        tmp = properties.get(KEY_WARM_UP_IN_BACKGROUND);
+        if (StringUtils.isNotEmpty(tmp)) {
+            connProps.setWarmUpInBackground(Boolean.parseBoolean(tmp));
+            logValue(KEY_WARM_UP_IN_BACKGROUND, tmp);
+        } else {
+            connProps.setWarmUpInBackground(DEFAULT_WARM_UP_IN_BACKGROUND);
+            logDefault(KEY_WARM_UP_IN_BACKGROUND, String.valueOf(DEFAULT_WARM_UP_IN_BACKGROUND));
+        }
+
+        tmp = properties.get(KEY_SHUTDOWN_GRACE_PERIOD_MILLIS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setShutdownGracePeriodMillis(Long.decode(tmp));
+                logValue(KEY_SHUTDOWN_GRACE_PERIOD_MILLIS, tmp);
+            } else {
+                connProps.setShutdownGracePeriodMillis(DEFAULT_SHUTDOWN_GRACE_PERIOD_MILLIS);
+                logDefault(KEY_SHUTDOWN_GRACE_PERIOD_MILLIS, tmp, "not numeric",
+                        String.valueOf(DEFAULT_SHUTDOWN_GRACE_PERIOD_MILLIS));
+            }
+        } else {
+            connProps.setShutdownGracePeriodMillis(DEFAULT_SHUTDOWN_GRACE_PERIOD_MILLIS);
+            logDefault(KEY_SHUTDOWN_GRACE_PERIOD_MILLIS, String.valueOf(DEFAULT_SHUTDOWN_GRACE_PERIOD_MILLIS));
+        }
+
+        tmp = properties.get(KEY_REPLICA_URLS);
+        if (StringUtils.isNotBlank(tmp)) {
+            connProps.setReplicaUrls(Arrays.asList(StringUtils.split(tmp, ',')));
+            logValue(KEY_REPLICA_URLS, tmp);
+        } else {
+            connProps.setReplicaUrls(Arrays.asList(StringUtils.split(DEFAULT_REPLICA_URLS, ',')));
+            logDefault(KEY_REPLICA_URLS, DEFAULT_REPLICA_URLS);
+        }
+
+        tmp = properties.get(KEY_REPLICA_RETRY_MILLIS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setReplicaRetryMillis(Long.decode(tmp));
+                logValue(KEY_REPLICA_RETRY_MILLIS, tmp);
+            } else {
+                connProps.setReplicaRetryMillis(DEFAULT_REPLICA_RETRY_MILLIS);
+                logDefault(KEY_REPLICA_RETRY_MILLIS, tmp, "not numeric", String.valueOf(DEFAULT_REPLICA_RETRY_MILLIS));
+            }
+        } else {
+            connProps.setReplicaRetryMillis(DEFAULT_REPLICA_RETRY_MILLIS);
+            logDefault(KEY_REPLICA_RETRY_MILLIS, String.valueOf(DEFAULT_REPLICA_RETRY_MILLIS));
+        }
+
+        tmp = properties.get(KEY_FAILOVER_URLS);
+        if (StringUtils.isNotBlank(tmp)) {
+            connProps.setFailoverUrls(Arrays.asList(StringUtils.split(tmp, ',')));
+            logValue(KEY_FAILOVER_URLS, tmp);
+        } else {
+            connProps.setFailoverUrls(Arrays.asList(StringUtils.split(DEFAULT_FAILOVER_URLS, ',')));
+            logDefault(KEY_FAILOVER_URLS, DEFAULT_FAILOVER_URLS);
+        }
+
+        tmp = properties.get(KEY_HEALTH_CHECK_INTERVAL_MILLIS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setHealthCheckIntervalMillis(Long.decode(tmp));
+                logValue(KEY_HEALTH_CHECK_INTERVAL_MILLIS, tmp);
+            } else {
+                connProps.setHealthCheckIntervalMillis(DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS);
+                logDefault(KEY_HEALTH_CHECK_INTERVAL_MILLIS, tmp, "not numeric",
+                        String.valueOf(DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS));
+            }
+        } else {
+            connProps.setHealthCheckIntervalMillis(DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS);
+            logDefault(KEY_HEALTH_CHECK_INTERVAL_MILLIS, String.valueOf(DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS));
+        }
+
+        tmp = properties.get(KEY_VALIDATION_INTERVAL_MILLIS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setValidationIntervalMillis(Long.decode(tmp));
+                logValue(KEY_VALIDATION_INTERVAL_MILLIS, tmp);
+            } else {
+                connProps.setValidationIntervalMillis(DEFAULT_VALIDATION_INTERVAL_MILLIS);
+                logDefault(KEY_VALIDATION_INTERVAL_MILLIS, tmp, "not numeric",
+                        String.valueOf(DEFAULT_VALIDATION_INTERVAL_MILLIS));
+            }
+        } else {
+            connProps.setValidationIntervalMillis(DEFAULT_VALIDATION_INTERVAL_MILLIS);
+            logDefault(KEY_VALIDATION_INTERVAL_MILLIS, String.valueOf(DEFAULT_VALIDATION_INTERVAL_MILLIS));
+        }
+
+        tmp = properties.get(KEY_IDLE_VALIDATION_INTERVAL_MILLIS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setIdleValidationIntervalMillis(Long.decode(tmp));
+                logValue(KEY_IDLE_VALIDATION_INTERVAL_MILLIS, tmp);
+            } else {
+                connProps.setIdleValidationIntervalMillis(DEFAULT_IDLE_VALIDATION_INTERVAL_MILLIS);
+                logDefault(KEY_IDLE_VALIDATION_INTERVAL_MILLIS, tmp, "not numeric",
+                        String.valueOf(DEFAULT_IDLE_VALIDATION_INTERVAL_MILLIS));
+            }
+        } else {
+            connProps.setIdleValidationIntervalMillis(DEFAULT_IDLE_VALIDATION_INTERVAL_MILLIS);
+            logDefault(KEY_IDLE_VALIDATION_INTERVAL_MILLIS, String.valueOf(DEFAULT_IDLE_VALIDATION_INTERVAL_MILLIS));
+        }
+
+        tmp = properties.get(KEY_AUTO_SIZE_INTERVAL_MILLIS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setAutoSizeIntervalMillis(Long.decode(tmp));
+                logValue(KEY_AUTO_SIZE_INTERVAL_MILLIS, tmp);
+            } else {
+                connProps.setAutoSizeIntervalMillis(DEFAULT_AUTO_SIZE_INTERVAL_MILLIS);
+                logDefault(KEY_AUTO_SIZE_INTERVAL_MILLIS, tmp, "not numeric",
+                        String.valueOf(DEFAULT_AUTO_SIZE_INTERVAL_MILLIS));
+            }
+        } else {
+            connProps.setAutoSizeIntervalMillis(DEFAULT_AUTO_SIZE_INTERVAL_MILLIS);
+            logDefault(KEY_AUTO_SIZE_INTERVAL_MILLIS, String.valueOf(DEFAULT_AUTO_SIZE_INTERVAL_MILLIS));
+        }
+
+        tmp = properties.get(KEY_AUTO_SIZE_MIN_TOTAL);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setAutoSizeMinTotal(Integer.decode(tmp));
+                logValue(KEY_AUTO_SIZE_MIN_TOTAL, tmp);
+            } else {
+                connProps.setAutoSizeMinTotal(DEFAULT_AUTO_SIZE_MIN_TOTAL);
+                logDefault(KEY_AUTO_SIZE_MIN_TOTAL, tmp, "not numeric", String.valueOf(DEFAULT_AUTO_SIZE_MIN_TOTAL));
+            }
+        } else {
+            connProps.setAutoSizeMinTotal(DEFAULT_AUTO_SIZE_MIN_TOTAL);
+            logDefault(KEY_AUTO_SIZE_MIN_TOTAL, String.valueOf(DEFAULT_AUTO_SIZE_MIN_TOTAL));
+        }
+
+        tmp = properties.get(KEY_AUTO_SIZE_MAX_TOTAL);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setAutoSizeMaxTotal(Integer.decode(tmp));
+                logValue(KEY_AUTO_SIZE_MAX_TOTAL, tmp);
+            } else {
+                connProps.setAutoSizeMaxTotal(DEFAULT_AUTO_SIZE_MAX_TOTAL);
+                logDefault(KEY_AUTO_SIZE_MAX_TOTAL, tmp, "not numeric", String.valueOf(DEFAULT_AUTO_SIZE_MAX_TOTAL));
+            }
+        } else {
+            connProps.setAutoSizeMaxTotal(DEFAULT_AUTO_SIZE_MAX_TOTAL);
+            logDefault(KEY_AUTO_SIZE_MAX_TOTAL, String.valueOf(DEFAULT_AUTO_SIZE_MAX_TOTAL));
+        }
+
+        tmp = properties.get(KEY_AUTO_SIZE_WAIT_THRESHOLD_MILLIS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setAutoSizeWaitThresholdMillis(Long.decode(tmp));
+                logValue(KEY_AUTO_SIZE_WAIT_THRESHOLD_MILLIS, tmp);
+            } else {
+                connProps.setAutoSizeWaitThresholdMillis(DEFAULT_AUTO_SIZE_WAIT_THRESHOLD_MILLIS);
+                logDefault(KEY_AUTO_SIZE_WAIT_THRESHOLD_MILLIS, tmp, "not numeric",
+                        String.valueOf(DEFAULT_AUTO_SIZE_WAIT_THRESHOLD_MILLIS));
+            }
+        } else {
+            connProps.setAutoSizeWaitThresholdMillis(DEFAULT_AUTO_SIZE_WAIT_THRESHOLD_MILLIS);
+            logDefault(KEY_AUTO_SIZE_WAIT_THRESHOLD_MILLIS, String.valueOf(DEFAULT_AUTO_SIZE_WAIT_THRESHOLD_MILLIS));
+        }
+
+        tmp = properties.get(KEY_THREAD_AFFINITY_MILLIS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setThreadAffinityMillis(Long.decode(tmp));
+                logValue(KEY_THREAD_AFFINITY_MILLIS, tmp);
+            } else {
+                connProps.setThreadAffinityMillis(DEFAULT_THREAD_AFFINITY_MILLIS);
+                logDefault(KEY_THREAD_AFFINITY_MILLIS, tmp, "not numeric",
+                        String.valueOf(DEFAULT_THREAD_AFFINITY_MILLIS));
+            }
+        } else {
+            connProps.setThreadAffinityMillis(DEFAULT_THREAD_AFFINITY_MILLIS);
+            logDefault(KEY_THREAD_AFFINITY_MILLIS, String.valueOf(DEFAULT_THREAD_AFFINITY_MILLIS));
+        }
+
+        tmp = properties.get(KEY_BULKHEAD_MAX_WAITERS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setBulkheadMaxWaiters(Integer.decode(tmp));
+                logValue(KEY_BULKHEAD_MAX_WAITERS, tmp);
+            } else {
+                connProps.setBulkheadMaxWaiters(DEFAULT_BULKHEAD_MAX_WAITERS);
+                logDefault(KEY_BULKHEAD_MAX_WAITERS, tmp, "not numeric", String.valueOf(DEFAULT_BULKHEAD_MAX_WAITERS));
+            }
+        } else {
+            connProps.setBulkheadMaxWaiters(DEFAULT_BULKHEAD_MAX_WAITERS);
+            logDefault(KEY_BULKHEAD_MAX_WAITERS, String.valueOf(DEFAULT_BULKHEAD_MAX_WAITERS));
+        }
+
+        tmp = properties.get(KEY_BULKHEAD_MAX_QUEUE_MILLIS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setBulkheadMaxQueueMillis(Long.decode(tmp));
+                logValue(KEY_BULKHEAD_MAX_QUEUE_MILLIS, tmp);
+            } else {
+                connProps.setBulkheadMaxQueueMillis(DEFAULT_BULKHEAD_MAX_QUEUE_MILLIS);
+                logDefault(KEY_BULKHEAD_MAX_QUEUE_MILLIS, tmp, "not numeric",
+                        String.valueOf(DEFAULT_BULKHEAD_MAX_QUEUE_MILLIS));
+            }
+        } else {
+            connProps.setBulkheadMaxQueueMillis(DEFAULT_BULKHEAD_MAX_QUEUE_MILLIS);
+            logDefault(KEY_BULKHEAD_MAX_QUEUE_MILLIS, String.valueOf(DEFAULT_BULKHEAD_MAX_QUEUE_MILLIS));
+        }
+
+        tmp = properties.get(KEY_CIRCUIT_BREAKER_FAILURE_THRESHOLD);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setCircuitBreakerFailureThreshold(Integer.decode(tmp));
+                logValue(KEY_CIRCUIT_BREAKER_FAILURE_THRESHOLD, tmp);
+            } else {
+                connProps.setCircuitBreakerFailureThreshold(DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD);
+                logDefault(KEY_CIRCUIT_BREAKER_FAILURE_THRESHOLD, tmp, "not numeric",
+                        String.valueOf(DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD));
+            }
+        } else {
+            connProps.setCircuitBreakerFailureThreshold(DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD);
+            logDefault(KEY_CIRCUIT_BREAKER_FAILURE_THRESHOLD,
+                    String.valueOf(DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD));
+        }
+
+        tmp = properties.get(KEY_CIRCUIT_BREAKER_OPEN_MILLIS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setCircuitBreakerOpenMillis(Long.decode(tmp));
+                logValue(KEY_CIRCUIT_BREAKER_OPEN_MILLIS, tmp);
+            } else {
+                connProps.setCircuitBreakerOpenMillis(DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS);
+                logDefault(KEY_CIRCUIT_BREAKER_OPEN_MILLIS, tmp, "not numeric",
+                        String.valueOf(DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS));
+            }
+        } else {
+            connProps.setCircuitBreakerOpenMillis(DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS);
+            logDefault(KEY_CIRCUIT_BREAKER_OPEN_MILLIS, String.valueOf(DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS));
+        }
+
+        tmp = properties.get(KEY_CIRCUIT_BREAKER_HALF_OPEN_PROBES);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setCircuitBreakerHalfOpenProbes(Integer.decode(tmp));
+                logValue(KEY_CIRCUIT_BREAKER_HALF_OPEN_PROBES, tmp);
+            } else {
+                connProps.setCircuitBreakerHalfOpenProbes(DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_PROBES);
+                logDefault(KEY_CIRCUIT_BREAKER_HALF_OPEN_PROBES, tmp, "not numeric",
+                        String.valueOf(DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_PROBES));
+            }
+        } else {
+            connProps.setCircuitBreakerHalfOpenProbes(DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_PROBES);
+            logDefault(KEY_CIRCUIT_BREAKER_HALF_OPEN_PROBES, String.valueOf(DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_PROBES));
+        }
+
+        tmp = properties.get(KEY_MAX_CONCURRENT_CREATIONS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setMaxConcurrentCreations(Integer.decode(tmp));
+                logValue(KEY_MAX_CONCURRENT_CREATIONS, tmp);
+            } else {
+                connProps.setMaxConcurrentCreations(DEFAULT_MAX_CONCURRENT_CREATIONS);
+                logDefault(KEY_MAX_CONCURRENT_CREATIONS, tmp, "not numeric",
+                        String.valueOf(DEFAULT_MAX_CONCURRENT_CREATIONS));
+            }
+        } else {
+            connProps.setMaxConcurrentCreations(DEFAULT_MAX_CONCURRENT_CREATIONS);
+            logDefault(KEY_MAX_CONCURRENT_CREATIONS, String.valueOf(DEFAULT_MAX_CONCURRENT_CREATIONS));
+        }
+
+        tmp = properties.get(KEY_GLOBAL_MAX_CONCURRENT_CREATIONS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setGlobalMaxConcurrentCreations(Integer.decode(tmp));
+                logValue(KEY_GLOBAL_MAX_CONCURRENT_CREATIONS, tmp);
+            } else {
+                connProps.setGlobalMaxConcurrentCreations(DEFAULT_GLOBAL_MAX_CONCURRENT_CREATIONS);
+                logDefault(KEY_GLOBAL_MAX_CONCURRENT_CREATIONS, tmp, "not numeric",
+                        String.valueOf(DEFAULT_GLOBAL_MAX_CONCURRENT_CREATIONS));
+            }
+        } else {
+            connProps.setGlobalMaxConcurrentCreations(DEFAULT_GLOBAL_MAX_CONCURRENT_CREATIONS);
+            logDefault(KEY_GLOBAL_MAX_CONCURRENT_CREATIONS, String.valueOf(DEFAULT_GLOBAL_MAX_CONCURRENT_CREATIONS));
+        }
+
+        tmp = properties.get(KEY_CREATION_PACING_MILLIS);
+        if (StringUtils.isNotEmpty(tmp)) {
+            if (StringUtils.isNumeric(tmp)) {
+                connProps.setCreationPacingMillis(Long.decode(tmp));
+                logValue(KEY_CREATION_PACING_MILLIS, tmp);
+            } else {
+                connProps.setCreationPacingMillis(DEFAULT_CREATION_PACING_MILLIS);
+                logDefault(KEY_CREATION_PACING_MILLIS, tmp, "not numeric",
+                        String.valueOf(DEFAULT_CREATION_PACING_MILLIS));
+            }
+        } else {
+            connProps.setCreationPacingMillis(DEFAULT_CREATION_PACING_MILLIS);
+            logDefault(KEY_CREATION_PACING_MILLIS, String.valueOf(DEFAULT_CREATION_PACING_MILLIS));
+        }
+
         // set the additional properties, preserving the originally provided properties
         // create a defensive copy of the map and all its properties
         // the code looks a little more complicated than a simple "putAll()", but it catches situations
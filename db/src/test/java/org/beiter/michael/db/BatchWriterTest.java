@@ -0,0 +1,351 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db;
+
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class BatchWriterTest {
+
+    private static final String INSERT = "INSERT INTO some_table (id, key, value) VALUES (?, ?, ?)";
+    private static final int THREADS = 8;
+    private static final int ROWS_PER_THREAD = 250;
+    private static final int MAX_BATCH_SIZE = 100;
+    private static final long MAX_DELAY_MILLIS = 10;
+    private static final long LONG_DELAY_MILLIS = 60000;
+    private static final int FIRST_ID = 100;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that the rows written by many threads are grouped into batches, and that every row is written
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void concurrentWritesTest()
+            throws Exception {
+
+        final BatchWriter writer = new BatchWriter(getConnProps(), INSERT, MAX_BATCH_SIZE, MAX_DELAY_MILLIS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<List<Future<Integer>>>> threads = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int firstId = FIRST_ID + t * ROWS_PER_THREAD;
+                threads.add(executor.submit(new Callable<List<Future<Integer>>>() {
+                    @Override
+                    public List<Future<Integer>> call() {
+
+                        List<Future<Integer>> rows = new ArrayList<>();
+                        for (int id = firstId; id < firstId + ROWS_PER_THREAD; id++) {
+                            rows.add(writer.write(id, "key" + id, "value" + id));
+                        }
+                        return rows;
+                    }
+                }));
+            }
+
+            for (Future<List<Future<Integer>>> thread : threads) {
+                for (Future<Integer> row : thread.get()) {
+                    String error = "The row has not been written";
+                    assertThat(error, row.get(), is(equalTo(1)));
+                }
+            }
+        } finally {
+            executor.shutdown();
+            writer.close();
+        }
+
+        String error = "The number of written rows does not match";
+        assertThat(error, writer.getRowCount(), is(equalTo((long) THREADS * ROWS_PER_THREAD)));
+        assertThat(error, countRows(), is(equalTo(3 + THREADS * ROWS_PER_THREAD)));
+        error = "The rows have not been grouped into batches";
+        assertThat(error, writer.getBatchCount(), is(lessThan((long) THREADS * ROWS_PER_THREAD)));
+    }
+
+    /**
+     * Test that a row that fails in a batch does not fail the other rows of the batch
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void failureAttributionTest()
+            throws Exception {
+
+        BatchWriter writer = new BatchWriter(getConnProps(), INSERT, 3, LONG_DELAY_MILLIS);
+        try {
+            Future<Integer> row1 = writer.write(FIRST_ID, "key", "value");
+            Future<Integer> duplicate = writer.write(1, "key1", "value1");
+            Future<Integer> row2 = writer.write(FIRST_ID + 1, "key", "value");
+
+            String error = "A valid row of the failed batch has not been written";
+            assertThat(error, row1.get(), is(equalTo(1)));
+            assertThat(error, row2.get(), is(equalTo(1)));
+            try {
+                duplicate.get();
+                fail("The row with a duplicate key has been written");
+            } catch (ExecutionException e) {
+                error = "The row does not fail with the error of the database";
+                assertThat(error, e.getCause(), is(instanceOf(SQLException.class)));
+            }
+        } finally {
+            writer.close();
+        }
+
+        String error = "The number of written rows does not match";
+        assertThat(error, writer.getBatchCount(), is(equalTo(1L)));
+        assertThat(error, writer.getRowCount(), is(equalTo(2L)));
+        assertThat(error, countRows(), is(equalTo(3 + 2)));
+    }
+
+    /**
+     * Test that closing the writer writes the pending rows, and that no rows are accepted after the writer has been
+     * closed
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void closeTest()
+            throws Exception {
+
+        BatchWriter writer = new BatchWriter(getConnProps(), INSERT, MAX_BATCH_SIZE, LONG_DELAY_MILLIS);
+        Future<Integer> row = writer.write(FIRST_ID, "key", "value");
+        writer.close();
+
+        String error = "The pending row has not been written on close";
+        assertThat(error, row.isDone(), is(true));
+        assertThat(error, row.get(), is(equalTo(1)));
+
+        try {
+            writer.write(FIRST_ID + 1, "key", "value");
+            fail("The closed writer accepted a row");
+        } catch (IllegalStateException e) {
+            error = "The exception does not explain that the writer is closed";
+            assertThat(error, e.getMessage(), containsString("closed"));
+        }
+    }
+
+    /**
+     * Test that the future of a row can be cancelled before the row has been written, and not after
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void cancelTest()
+            throws Exception {
+
+        BatchWriter writer = new BatchWriter(getConnProps(), INSERT, MAX_BATCH_SIZE, LONG_DELAY_MILLIS);
+        Future<Integer> cancelled;
+        Future<Integer> written;
+        try {
+            cancelled = writer.write(FIRST_ID, "key", "value");
+            written = writer.write(FIRST_ID + 1, "key", "value");
+
+            String error = "The future of a pending row cannot be cancelled";
+            assertThat(error, cancelled.cancel(false), is(true));
+            assertThat(error, cancelled.isCancelled(), is(true));
+            assertThat(error, cancelled.isDone(), is(true));
+        } finally {
+            writer.close();
+        }
+
+        try {
+            cancelled.get();
+            fail("The cancelled future returned an update count");
+        } catch (CancellationException e) {
+            // expected
+        }
+
+        String error = "The future of a written row can be cancelled";
+        assertThat(error, written.cancel(false), is(false));
+        error = "The row has not been written";
+        assertThat(error, written.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), is(equalTo(1)));
+    }
+
+    /**
+     * Test that every row that has been accepted while the writer is closed concurrently is written
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void concurrentCloseTest()
+            throws Exception {
+
+        final BatchWriter writer = new BatchWriter(getConnProps(), INSERT, MAX_BATCH_SIZE, MAX_DELAY_MILLIS);
+        final CountDownLatch started = new CountDownLatch(THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<List<Future<Integer>>>> threads = new ArrayList<>();
+        try {
+            for (int t = 0; t < THREADS; t++) {
+                final int firstId = FIRST_ID + t * ROWS_PER_THREAD;
+                threads.add(executor.submit(new Callable<List<Future<Integer>>>() {
+                    @Override
+                    public List<Future<Integer>> call() {
+
+                        List<Future<Integer>> rows = new ArrayList<>();
+                        started.countDown();
+                        try {
+                            for (int id = firstId; id < firstId + ROWS_PER_THREAD; id++) {
+                                rows.add(writer.write(id, "key" + id, "value" + id));
+                            }
+                        } catch (IllegalStateException e) {
+                            // the writer has been closed
+                        }
+                        return rows;
+                    }
+                }));
+            }
+
+            started.await();
+            writer.close();
+        } finally {
+            executor.shutdown();
+        }
+
+        for (Future<List<Future<Integer>>> thread : threads) {
+            for (Future<Integer> row : thread.get()) {
+                String error = "The accepted row has not been written";
+                assertThat(error, row.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), is(equalTo(1)));
+            }
+        }
+    }
+
+    /**
+     * Test that the rows of a group fail with a {@link FactoryException} if no connection can be obtained
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void unavailableDatabaseTest()
+            throws Exception {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setUrl("jdbc:h2:tcp://localhost:1/unavailable");
+
+        BatchWriter writer = new BatchWriter(connProps, INSERT, MAX_BATCH_SIZE, MAX_DELAY_MILLIS);
+        try {
+            writer.write(FIRST_ID, "key", "value").get();
+            fail("The row has been written to an unavailable database");
+        } catch (ExecutionException e) {
+            String error = "The row does not fail with a FactoryException";
+            assertThat(error, e.getCause(), is(instanceOf(FactoryException.class)));
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return The number of rows in the test table
+     * @throws FactoryException When the connection cannot be obtained
+     * @throws SQLException     When the rows cannot be counted
+     */
+    private static int countRows()
+            throws FactoryException, SQLException {
+
+        Connection con = ConnectionFactory.getConnection(getConnProps());
+        try {
+            ResultSet rs = con.prepareStatement("SELECT COUNT(id) AS count FROM some_table").executeQuery();
+            rs.next();
+            return rs.getInt("count");
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * @return Connection properties for the in-memory database
+     */
+    private static ConnectionProperties getConnProps() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        return connProps;
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db;
+
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ColumnarReaderTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ColumnarReaderTest.class);
+
+    private static final int ROWS = 5000;
+    private static final int BATCH_SIZE = 2048;
+    private static final int BENCHMARK_ROWS = 200000;
+    private static final int BENCHMARK_RUNS = 2;
+    private static final String QUERY = "SELECT X, X * 2, X / 2.0, CASEWHEN(MOD(X, 3) = 0, NULL, X)"
+            + " FROM SYSTEM_RANGE(1, ?)";
+    private static final String BENCHMARK_QUERY = "SELECT * FROM numbers";
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that the columns are read in batches, with the SQL NULL values recorded in the null bitmaps
+     *
+     * @throws FactoryException When the connection cannot be obtained
+     * @throws SQLException     When the rows cannot be read
+     */
+    @Test
+    public void readBatchesTest()
+            throws FactoryException, SQLException {
+
+        Connection con = ConnectionFactory.getConnection(getConnProps());
+        try {
+            ColumnarReader reader = new ColumnarReader(executeQuery(con, ROWS), BATCH_SIZE);
+            int ints = reader.addIntColumn(1);
+            int longs = reader.addLongColumn(2);
+            int doubles = reader.addDoubleColumn(3);
+            int nullables = reader.addLongColumn(4);
+
+            int expected = 0;
+            int batches = 0;
+            while (reader.readBatch() > 0) {
+                batches++;
+                String error = "The batch is larger than the batch size";
+                assertThat(error, reader.getRowCount(), is(lessThanOrEqualTo(BATCH_SIZE)));
+
+                for (int row = 0; row < reader.getRowCount(); row++) {
+                    expected++;
+                    error = "The value of row " + expected + " does not match";
+                    assertThat(error, reader.getInts(ints)[row], is(equalTo(expected)));
+                    assertThat(error, reader.getLongs(longs)[row], is(equalTo(expected * 2L)));
+                    assertThat(error, reader.getDoubles(doubles)[row], is(equalTo(expected / 2d)));
+                    assertThat(error, reader.isNull(ints, row), is(false));
+
+                    error = "The null bitmap of row " + expected + " does not match";
+                    assertThat(error, reader.isNull(nullables, row), is(expected % 3 == 0));
+                    if (expected % 3 != 0) {
+                        assertThat(error, reader.getLongs(nullables)[row], is(equalTo((long) expected)));
+                    }
+                }
+            }
+
+            String error = "The number of rows does not match";
+            assertThat(error, expected, is(equalTo(ROWS)));
+            error = "The number of batches does not match";
+            assertThat(error, batches, is(equalTo((ROWS + BATCH_SIZE - 1) / BATCH_SIZE)));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that a column cannot be read as a different type than it has been registered with
+     *
+     * @throws FactoryException When the connection cannot be obtained
+     * @throws SQLException     When the rows cannot be read
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongColumnTypeTest()
+            throws FactoryException, SQLException {
+
+        Connection con = ConnectionFactory.getConnection(getConnProps());
+        try {
+            ColumnarReader reader = new ColumnarReader(executeQuery(con, ROWS), BATCH_SIZE);
+            int ints = reader.addIntColumn(1);
+            reader.readBatch();
+            reader.getLongs(ints);
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that no columns can be added once the first batch has been read
+     *
+     * @throws FactoryException When the connection cannot be obtained
+     * @throws SQLException     When the rows cannot be read
+     */
+    @Test
+    public void addColumnAfterReadTest()
+            throws FactoryException, SQLException {
+
+        Connection con = ConnectionFactory.getConnection(getConnProps());
+        try {
+            ColumnarReader reader = new ColumnarReader(executeQuery(con, ROWS), BATCH_SIZE);
+            reader.addIntColumn(1);
+            reader.readBatch();
+            try {
+                reader.addLongColumn(2);
+                fail("A column has been added after the first batch");
+            } catch (IllegalStateException e) {
+                String error = "The exception does not explain that the columns cannot be added";
+                assertThat(error, e.getMessage(), containsString("Columns cannot be added"));
+            }
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that the result set is no longer accessed once its last row has been read
+     *
+     * @throws FactoryException When the connection cannot be obtained
+     * @throws SQLException     When the rows cannot be read
+     */
+    @Test
+    public void readAfterLastBatchTest()
+            throws FactoryException, SQLException {
+
+        Connection con = ConnectionFactory.getConnection(getConnProps());
+        try {
+            ResultSet rs = executeQuery(con, BATCH_SIZE);
+            ColumnarReader reader = new ColumnarReader(rs, BATCH_SIZE);
+            reader.addIntColumn(1);
+
+            String error = "The first batch does not contain all rows";
+            assertThat(error, reader.readBatch(), is(equalTo(BATCH_SIZE)));
+            error = "The reader returns rows after the end of the result set";
+            assertThat(error, reader.readBatch(), is(equalTo(0)));
+
+            // a closed result set fails on next(), so this verifies that next() is not called again
+            rs.close();
+            assertThat(error, reader.readBatch(), is(equalTo(0)));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Read numeric rows with a row object mapper and with the columnar reader, and log the time and the memory per
+     * row that is allocated in addition to what the driver allocates to read the rows
+     *
+     * @throws FactoryException When the connection cannot be obtained
+     * @throws SQLException     When the rows cannot be read
+     */
+    @Test
+    public void columnarReaderBenchmarkTest()
+            throws FactoryException, SQLException {
+
+        Connection con = ConnectionFactory.getConnection(getConnProps());
+        try {
+            // store the rows in a table, so that the driver does not compute the values while they are read
+            con.prepareStatement("DROP TABLE IF EXISTS numbers").execute();
+            PreparedStatement stmt = con.prepareStatement("CREATE TABLE numbers AS " + QUERY);
+            stmt.setInt(1, BENCHMARK_ROWS);
+            stmt.execute();
+
+            for (int run = 0; run < BENCHMARK_RUNS; run++) {
+                long start = System.nanoTime();
+                long allocated = getAllocatedBytes();
+                int count = readValues(con.prepareStatement(BENCHMARK_QUERY).executeQuery());
+                long driverBytesPerRow = logResult("driver only", start, allocated, count, 0);
+
+                start = System.nanoTime();
+                allocated = getAllocatedBytes();
+                List<NumericRow> rows = readRows(con.prepareStatement(BENCHMARK_QUERY).executeQuery());
+                logResult("row objects", start, allocated, rows.size(), driverBytesPerRow);
+
+                start = System.nanoTime();
+                allocated = getAllocatedBytes();
+                count = readColumns(con.prepareStatement(BENCHMARK_QUERY).executeQuery());
+                logResult("columnar reader", start, allocated, count, driverBytesPerRow);
+            }
+
+            con.prepareStatement("DROP TABLE numbers").execute();
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Read all values without storing them, which measures what the driver allocates to read the rows
+     *
+     * @param rs The result set
+     * @return The number of rows
+     * @throws SQLException When the rows cannot be read
+     */
+    private static int readValues(final ResultSet rs)
+            throws SQLException {
+
+        int count = 0;
+        while (rs.next()) {
+            rs.getInt(1);
+            rs.getLong(2);
+            rs.getDouble(3);
+            rs.getLong(4);
+            rs.wasNull();
+            count++;
+        }
+        rs.close();
+        return count;
+    }
+
+    /**
+     * Read all rows into row objects with boxed values
+     *
+     * @param rs The result set
+     * @return The rows
+     * @throws SQLException When the rows cannot be read
+     */
+    private static List<NumericRow> readRows(final ResultSet rs)
+            throws SQLException {
+
+        List<NumericRow> rows = new ArrayList<>();
+        while (rs.next()) {
+            Long nullable = rs.getLong(4);
+            if (rs.wasNull()) {
+                nullable = null;
+            }
+            rows.add(new NumericRow(rs.getInt(1), rs.getLong(2), rs.getDouble(3), nullable));
+        }
+        rs.close();
+        return rows;
+    }
+
+    /**
+     * Read all rows with the columnar reader
+     *
+     * @param rs The result set
+     * @return The number of rows
+     * @throws SQLException When the rows cannot be read
+     */
+    private static int readColumns(final ResultSet rs)
+            throws SQLException {
+
+        ColumnarReader reader = new ColumnarReader(rs, BATCH_SIZE);
+        reader.addIntColumn(1);
+        reader.addLongColumn(2);
+        reader.addDoubleColumn(3);
+        reader.addLongColumn(4);
+
+        int count = 0;
+        int rows;
+        while ((rows = reader.readBatch()) > 0) {
+            count += rows;
+        }
+        rs.close();
+        return count;
+    }
+
+    /**
+     * Log the time and the allocated memory per row of a benchmark run
+     *
+     * @param approach          The approach that has been measured
+     * @param start             The start time of the run in nanoseconds
+     * @param allocated         The allocated bytes of the thread at the start of the run, or -1 if unknown
+     * @param rows              The number of rows that have been read
+     * @param driverBytesPerRow The bytes per row that the driver allocates to read the rows
+     * @return The bytes allocated per row, or -1 if unknown
+     */
+    private static long logResult(final String approach, final long start, final long allocated, final int rows,
+                                  final long driverBytesPerRow) {
+
+        long elapsedNanos = System.nanoTime() - start;
+        long allocatedPerRow = -1;
+        if (allocated >= 0) {
+            allocatedPerRow = (getAllocatedBytes() - allocated) / rows;
+        }
+        LOG.info(String.format("Columnar benchmark, %s: %d rows in %dms, %d bytes allocated per row (%d bytes more"
+                        + " than the driver)", approach, rows, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                allocatedPerRow, allocatedPerRow - driverBytesPerRow));
+        return allocatedPerRow;
+    }
+
+    /**
+     * @return The number of bytes allocated by the current thread, or -1 if the JVM does not measure it
+     */
+    private static long getAllocatedBytes() {
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * @param con  The connection
+     * @param rows The number of rows to select
+     * @return The result set of the test query
+     * @throws SQLException When the query fails
+     */
+    private static ResultSet executeQuery(final Connection con, final int rows)
+            throws SQLException {
+
+        PreparedStatement stmt = con.prepareStatement(QUERY);
+        stmt.setInt(1, rows);
+        return stmt.executeQuery();
+    }
+
+    /**
+     * @return Connection properties for the in-memory database
+     */
+    private static ConnectionProperties getConnProps() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        return connProps;
+    }
+
+    /**
+     * A row object with boxed values, as created by a typical row mapper
+     */
+    private static final class NumericRow {
+
+        private final Integer id;
+        private final Long doubled;
+        private final Double half;
+        private final Long nullable;
+
+        private NumericRow(final Integer id, final Long doubled, final Double half, final Long nullable) {
+
+            this.id = id;
+            this.doubled = doubled;
+            this.half = half;
+            this.nullable = nullable;
+        }
+    }
+}
@@ -42,6 +42,14 @@ import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
@@ -357,4 +365,184 @@ public class ConnectionFactoryDirectTest {
             }
         }
     }
+
+    /**
+     * Test that the asynchronous direct factory method returns a connection, and runs the registered listeners
+     *
+     * @throws Exception When the connection cannot be obtained
+     */
+    @Test
+    public void directAsyncConnectionTest()
+            throws Exception {
+
+        ConnectionFuture future = ConnectionFactory.getConnectionAsync(getConnProps());
+
+        final CountDownLatch listenerRun = new CountDownLatch(1);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                listenerRun.countDown();
+            }
+        }, new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                command.run();
+            }
+        });
+
+        Connection con = future.get(5, TimeUnit.SECONDS);
+        try {
+            String error = "The DB connection is null";
+            assertThat(error, con, notNullValue());
+            error = "The listener has not been run";
+            assertThat(error, listenerRun.await(5, TimeUnit.SECONDS), is(true));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that the asynchronous direct factory method completes with a FactoryException if the pool is exhausted
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void directAsyncExhaustedPoolTest()
+            throws Exception {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setMaxTotal(1);
+        connProps.setMaxWaitMillis(50);
+
+        Connection con = ConnectionFactory.getConnection(connProps);
+        try {
+            ConnectionFuture future = ConnectionFactory.getConnectionAsync(connProps);
+            future.get(5, TimeUnit.SECONDS).close();
+            throw new AssertionError("The connection request did not time out");
+        } catch (ExecutionException e) {
+            String error = "The connection request did not fail with a FactoryException";
+            assertThat(error, e.getCause(), is(instanceOf(FactoryException.class)));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that a connection request that is cancelled while waiting for a connection does not leak the connection
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void directAsyncCancelTest()
+            throws Exception {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setMaxTotal(1);
+        connProps.setMaxWaitMillis(5000);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Connection con = ConnectionFactory.getConnection(connProps);
+
+            // the request waits for the only connection in the pool
+            ConnectionFuture future = ConnectionFactory.getConnectionAsync(connProps, executor);
+            Thread.sleep(50);
+            String error = "The connection request has not been cancelled";
+            assertThat(error, future.cancel(false), is(true));
+
+            // returning the connection completes the cancelled request, which must return the connection again
+            con.close();
+            executor.shutdown();
+            assertThat(error, executor.awaitTermination(5, TimeUnit.SECONDS), is(true));
+
+            con = ConnectionFactory.getConnection(connProps);
+            error = "The connection of the cancelled request has leaked";
+            assertThat(error, con, notNullValue());
+            con.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test that a connection request that times out in get() is cancelled, and that the connection that is obtained
+     * after the timeout is returned to the pool instead of being leaked
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void directAsyncTimeoutTest()
+            throws Exception {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setMaxTotal(1);
+        connProps.setMaxWaitMillis(5000);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Connection con = ConnectionFactory.getConnection(connProps);
+
+            // the request waits for the only connection in the pool
+            ConnectionFuture future = ConnectionFactory.getConnectionAsync(connProps, executor);
+            try {
+                future.get(50, TimeUnit.MILLISECONDS).close();
+                throw new AssertionError("The connection request did not time out");
+            } catch (TimeoutException e) {
+                String error = "The connection request has not been cancelled on the timeout";
+                assertThat(error, future.isCancelled(), is(true));
+            }
+
+            // returning the connection delivers it late to the timed out request, which must return it again
+            con.close();
+            executor.shutdown();
+            String error = "The connection request did not complete";
+            assertThat(error, executor.awaitTermination(5, TimeUnit.SECONDS), is(true));
+
+            con = ConnectionFactory.getConnection(connProps);
+            error = "The connection of the timed out request has leaked";
+            assertThat(error, con, notNullValue());
+            con.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test that the asynchronous direct factory method completes with a FactoryException if the executor rejects the
+     * connection request
+     *
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void directAsyncRejectedTest()
+            throws InterruptedException {
+
+        ConnectionFuture future = ConnectionFactory.getConnectionAsync(getConnProps(), new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                throw new RejectedExecutionException("rejected");
+            }
+        });
+
+        try {
+            future.get();
+            throw new AssertionError("The connection request did not fail");
+        } catch (ExecutionException e) {
+            String error = "The connection request did not fail with a FactoryException";
+            assertThat(error, e.getCause(), is(instanceOf(FactoryException.class)));
+        }
+    }
+
+    /**
+     * @return Connection properties for the in-memory database
+     */
+    private static ConnectionProperties getConnProps() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(DRIVER);
+        connProps.setUrl(URL);
+        connProps.setUsername(USER);
+        connProps.setPassword(PASSWORD);
+        return connProps;
+    }
 }
@@ -47,6 +47,9 @@ import javax.sql.DataSource;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
@@ -230,4 +233,49 @@ public class ConnectionFactoryJndiTest {
             throw ae;
         }
     }
+
+    /**
+     * Test that the asynchronous JNDI factory method returns a connection
+     *
+     * @throws Exception When the connection cannot be obtained
+     */
+    @Test
+    public void jndiAsyncConnectionTest()
+            throws Exception {
+
+        ConnectionFuture future = ConnectionFactory.getConnectionAsync(JNDI_NAME);
+
+        Connection con = future.get(5, TimeUnit.SECONDS);
+        try {
+            String error = "The DB connection is null";
+            assertThat(error, con, notNullValue());
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that the asynchronous JNDI factory method completes with a FactoryException for an unknown JNDI name
+     *
+     * @throws InterruptedException When the test is interrupted
+     * @throws TimeoutException     When the connection request does not complete
+     */
+    @Test
+    public void jndiAsyncIllegalNameTest()
+            throws InterruptedException, TimeoutException {
+
+        ConnectionFuture future = ConnectionFactory.getConnectionAsync("someIllegalName");
+
+        try {
+            future.get(5, TimeUnit.SECONDS).close();
+            throw new AssertionError("The connection request did not fail");
+        } catch (ExecutionException e) {
+            String error = "The connection request did not fail with a FactoryException";
+            assertThat(error, e.getCause(), is(instanceOf(FactoryException.class)));
+        } catch (SQLException e) {
+            AssertionError ae = new AssertionError("Error closing the connection");
+            ae.initCause(e);
+            throw ae;
+        }
+    }
 }
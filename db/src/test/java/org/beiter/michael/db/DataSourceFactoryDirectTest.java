@@ -32,6 +32,9 @@
  */
 package org.beiter.michael.db;
 
+import org.beiter.michael.db.pool.BuiltinPoolProvider;
+import org.beiter.michael.db.pool.Dbcp2PoolProvider;
+import org.beiter.michael.db.pool.HikariPoolProvider;
 import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -41,8 +44,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
 
+import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.sameInstance;
@@ -283,4 +294,124 @@ public class DataSourceFactoryDirectTest {
             throw ae;
         }
     }
+
+    /**
+     * Test that the direct factory throws an exception when an unknown pool engine is configured
+     *
+     * @throws FactoryException When a pool engine is configured for which no pool provider exists (expected)
+     */
+    @Test(expected = FactoryException.class)
+    public void directConstructorUnknownPoolEngineTest()
+            throws FactoryException {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(DRIVER);
+        connProps.setUrl(URL);
+        connProps.setUsername(USER);
+        connProps.setPassword(PASSWORD);
+        connProps.setPoolEngine("unknownPoolEngine");
+
+        DataSourceFactory.getDataSource(connProps);
+    }
+
+    /**
+     * Test that the direct factory throws an exception when an unknown acquisition mode is configured
+     *
+     * @throws FactoryException When an unknown acquisition mode is configured (expected)
+     */
+    @Test(expected = FactoryException.class)
+    public void directConstructorUnknownAcquisitionModeTest()
+            throws FactoryException {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(DRIVER);
+        connProps.setUrl(URL);
+        connProps.setUsername(USER);
+        connProps.setPassword(PASSWORD);
+        connProps.setAcquisitionMode("unknownAcquisitionMode");
+
+        DataSourceFactory.getDataSource(connProps);
+    }
+
+    /**
+     * Test that the driver properties are passed to the JDBC driver, and cannot override the credentials
+     *
+     * @throws FactoryException When the data source cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void directConstructorDriverPropertiesTest()
+            throws FactoryException, SQLException {
+
+        Map<String, String> map = new HashMap<>();
+        map.put(MapBasedConnPropsBuilder.KEY_DRIVER, DRIVER);
+        map.put(MapBasedConnPropsBuilder.KEY_URL, URL);
+        map.put(MapBasedConnPropsBuilder.KEY_USERNAME, USER);
+        map.put(MapBasedConnPropsBuilder.KEY_PASSWORD, PASSWORD);
+        // H2 runs the INIT statement when a connection is opened
+        map.put(MapBasedConnPropsBuilder.KEY_DRIVER_PROPERTIES_PREFIX + "INIT", "SET @DRIVER_PROPERTY = 42");
+        map.put(MapBasedConnPropsBuilder.KEY_DRIVER_PROPERTIES_PREFIX + "password", "wrongPassword");
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+
+        Connection con = ds.getConnection();
+        try {
+            ResultSet rs = con.prepareStatement("SELECT @DRIVER_PROPERTY AS value").executeQuery();
+            rs.next();
+
+            String error = "The driver property has not been passed to the JDBC driver";
+            assertThat(error, rs.getInt("value"), is(equalTo(42)));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that the statements and the database metadata of a pooled connection return the pooled connection (and
+     * not the connection behind it), for all pool engines
+     *
+     * @throws FactoryException When the data source cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void directConstructorStatementConnectionTest()
+            throws FactoryException, SQLException {
+
+        for (String poolEngine : new String[]{Dbcp2PoolProvider.NAME, HikariPoolProvider.NAME,
+                BuiltinPoolProvider.NAME}) {
+
+            ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+            connProps.setDriver(DRIVER);
+            connProps.setUrl(URL);
+            connProps.setUsername(USER);
+            connProps.setPassword(PASSWORD);
+            connProps.setPoolEngine(poolEngine);
+            connProps.setPoolPreparedStatements(true);
+            connProps.setLeakDetectionThresholdMillis(60000);
+
+            Connection con = DataSourceFactory.getDataSource(connProps).getConnection();
+            try {
+                String error = "The statement does not return the pooled connection (" + poolEngine + ")";
+                Statement stmt = con.createStatement();
+                assertThat(error, stmt.getConnection(), is(sameInstance(con)));
+                stmt.close();
+
+                PreparedStatement pstmt = con.prepareStatement("SELECT 1");
+                assertThat(error, pstmt.getConnection(), is(sameInstance(con)));
+                pstmt.close();
+
+                CallableStatement cstmt = con.prepareCall("CALL 1");
+                assertThat(error, cstmt.getConnection(), is(sameInstance(con)));
+                cstmt.close();
+
+                error = "The database metadata does not return the pooled connection (" + poolEngine + ")";
+                assertThat(error, con.getMetaData().getConnection(), is(sameInstance(con)));
+            } finally {
+                con.close();
+            }
+
+            DataSourceFactory.reset();
+        }
+    }
 }
@@ -0,0 +1,270 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db;
+
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class FailoverDataSourceTest {
+
+    private static final String UNAVAILABLE_URL = "jdbc:h2:tcp://localhost:1/unavailable";
+    private static final String RECOVERING_DATABASE = "RECOVERING";
+    private static final String RECOVERING_URL = "jdbc:h2:mem:" + RECOVERING_DATABASE + ";IFEXISTS=TRUE";
+    private static final long HEALTH_CHECK_INTERVAL_MILLIS = 50;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that connections are borrowed from the next endpoint when the first endpoint is down, and that the endpoint
+     * is marked down
+     *
+     * @throws FactoryException     When the pools cannot be created
+     * @throws SQLException         When a connection cannot be used
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void failoverTest()
+            throws FactoryException, SQLException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps(UNAVAILABLE_URL, H2Server.URL);
+
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+
+        String error = "The data source is not a failover data source";
+        assertThat(error, ds, is(instanceOf(FailoverDataSource.class)));
+        FailoverDataSource failoverDs = (FailoverDataSource) ds;
+
+        assertDatabase(ds, H2Server.DATABASE);
+        awaitHealthyEndpoints(failoverDs, 1);
+
+        error = "The endpoints have not been counted";
+        assertThat(error, failoverDs.getEndpointCount(), is(equalTo(2)));
+        assertDatabase(ds, H2Server.DATABASE);
+    }
+
+    /**
+     * Test that the traffic returns to an endpoint when it has recovered
+     *
+     * @throws FactoryException     When the pools cannot be created
+     * @throws SQLException         When a connection cannot be used
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void failbackTest()
+            throws FactoryException, SQLException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps(RECOVERING_URL, H2Server.URL);
+        FailoverDataSource ds = (FailoverDataSource) DataSourceFactory.getDataSource(connProps);
+
+        awaitHealthyEndpoints(ds, 1);
+        assertDatabase(ds, H2Server.DATABASE);
+
+        // "start" the first endpoint by creating the in-memory database, and keep it open until the end of the test
+        Connection keepAlive = DriverManager.getConnection("jdbc:h2:mem:" + RECOVERING_DATABASE, H2Server.USER,
+                H2Server.PASSWORD);
+        try {
+            awaitHealthyEndpoints(ds, 2);
+            assertDatabase(ds, RECOVERING_DATABASE);
+        } finally {
+            keepAlive.close();
+        }
+    }
+
+    /**
+     * Test that an endpoint that has been marked down is checked again when the health check interval is not positive
+     *
+     * @throws FactoryException     When the pools cannot be created
+     * @throws SQLException         When a connection cannot be used
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void nonPositiveHealthCheckIntervalTest()
+            throws FactoryException, SQLException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps(RECOVERING_URL, H2Server.URL);
+        connProps.setHealthCheckIntervalMillis(0);
+        FailoverDataSource ds = (FailoverDataSource) DataSourceFactory.getDataSource(connProps);
+
+        // the failed borrow marks the first endpoint down
+        assertDatabase(ds, H2Server.DATABASE);
+        awaitHealthyEndpoints(ds, 1);
+
+        Connection keepAlive = DriverManager.getConnection("jdbc:h2:mem:" + RECOVERING_DATABASE, H2Server.USER,
+                H2Server.PASSWORD);
+        try {
+            final long deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(MapBasedConnPropsBuilder.DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS * 2);
+            while (ds.getHealthyEndpointCount() != 2 && System.nanoTime() < deadline) {
+                Thread.sleep(HEALTH_CHECK_INTERVAL_MILLIS);
+            }
+
+            String error = "The endpoint has not been checked again after it has been marked down";
+            assertThat(error, ds.getHealthyEndpointCount(), is(equalTo(2)));
+            assertDatabase(ds, RECOVERING_DATABASE);
+        } finally {
+            keepAlive.close();
+        }
+    }
+
+    /**
+     * Test that borrowing fails without delay when all endpoints are down
+     *
+     * @throws FactoryException     When the pools cannot be created
+     * @throws SQLException         When a connection cannot be used
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void allEndpointsDownTest()
+            throws FactoryException, SQLException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps(UNAVAILABLE_URL, UNAVAILABLE_URL + "2");
+        FailoverDataSource ds = (FailoverDataSource) DataSourceFactory.getDataSource(connProps);
+
+        awaitHealthyEndpoints(ds, 0);
+
+        try {
+            ds.getConnection();
+            fail("A connection has been borrowed although all endpoints are down");
+        } catch (SQLTransientConnectionException e) {
+            String error = "The exception does not report the endpoints";
+            assertThat(error, e.getMessage(), containsString("0 of 2 endpoints up"));
+        }
+    }
+
+    /**
+     * Wait until the health checks report the expected number of healthy endpoints
+     *
+     * @param ds      The failover data source
+     * @param healthy The expected number of healthy endpoints
+     * @throws InterruptedException When the test is interrupted
+     */
+    private static void awaitHealthyEndpoints(final FailoverDataSource ds, final int healthy)
+            throws InterruptedException {
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (ds.getHealthyEndpointCount() != healthy && System.nanoTime() < deadline) {
+            Thread.sleep(HEALTH_CHECK_INTERVAL_MILLIS / 2);
+        }
+
+        String error = "The health checks did not report the expected number of healthy endpoints";
+        assertThat(error, ds.getHealthyEndpointCount(), is(equalTo(healthy)));
+    }
+
+    /**
+     * Assert that a connection is borrowed from the expected database
+     *
+     * @param ds       The data source
+     * @param database The name of the expected database
+     * @throws SQLException When the connection cannot be used
+     */
+    private static void assertDatabase(final DataSource ds, final String database)
+            throws SQLException {
+
+        Connection con = ds.getConnection();
+        try {
+            ResultSet rs = con.createStatement().executeQuery("SELECT DATABASE()");
+            rs.next();
+
+            String error = "The connection has not been borrowed from the expected endpoint";
+            assertThat(error, rs.getString(1), is(equalToIgnoringCase(database)));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * @param url          The JDBC URL of the first endpoint
+     * @param failoverUrls The JDBC URLs of the failover endpoints
+     * @return Connection properties for the endpoints
+     */
+    private static ConnectionProperties getConnProps(final String url, final String... failoverUrls) {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(url);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setFailoverUrls(Arrays.asList(failoverUrls));
+        connProps.setHealthCheckIntervalMillis(HEALTH_CHECK_INTERVAL_MILLIS);
+        return connProps;
+    }
+}
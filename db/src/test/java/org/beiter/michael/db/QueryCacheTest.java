@@ -0,0 +1,313 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db;
+
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class QueryCacheTest {
+
+    private static final int MAX_ENTRIES = 100;
+    private static final long MAX_BYTES = 1024L * 1024L;
+    private static final long TTL_MILLIS = 60000;
+    private static final long SHORT_TTL_MILLIS = 50;
+    private static final int THREADS = 8;
+    private static final String QUERY = "SELECT value FROM some_table WHERE id = ?";
+    private static final List<String> TABLES = Collections.singletonList("some_table");
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that repeated queries with the same parameters are served from the cache, and that the hit ratio is
+     * reported
+     *
+     * @throws FactoryException When the query cannot be executed
+     */
+    @Test
+    public void hitTest()
+            throws FactoryException {
+
+        QueryCache cache = new QueryCache(getConnProps(), MAX_ENTRIES, MAX_BYTES);
+
+        List<Object[]> first = cache.query(QUERY, TTL_MILLIS, TABLES, 1);
+        List<Object[]> second = cache.query(QUERY, TTL_MILLIS, TABLES, 1);
+        List<Object[]> other = cache.query(QUERY, TTL_MILLIS, TABLES, 2);
+        cache.query(QUERY, TTL_MILLIS, TABLES, 2);
+
+        String error = "The query does not return the expected rows";
+        assertThat(error, first.size(), is(equalTo(1)));
+        assertThat(error, (String) first.get(0)[0], is(equalTo("value1")));
+        assertThat(error, (String) other.get(0)[0], is(equalTo("value2")));
+        error = "The repeated query has not been served from the cache";
+        assertThat(error, (String) second.get(0)[0], is(equalTo("value1")));
+        error = "The metrics do not match";
+        assertThat(error, cache.getHitCount(), is(equalTo(2L)));
+        assertThat(error, cache.getMissCount(), is(equalTo(2L)));
+        assertThat(error, cache.getLoadCount(), is(equalTo(2L)));
+        assertThat(error, cache.getHitRatio(), is(closeTo(0.5d, 0.001d)));
+        assertThat(error, cache.getEntryCount(), is(equalTo(2)));
+        assertThat(error, cache.getEstimatedBytes(), is(greaterThan(0L)));
+
+        // modifying the returned rows does not change the cached rows
+        first.get(0)[0] = "modified";
+        second.clear();
+        List<Object[]> third = cache.query(QUERY, TTL_MILLIS, TABLES, 1);
+        error = "The cached rows have been modified by a caller";
+        assertThat(error, third.size(), is(equalTo(1)));
+        assertThat(error, (String) third.get(0)[0], is(equalTo("value1")));
+    }
+
+    /**
+     * Test that expired entries are loaded again
+     *
+     * @throws FactoryException     When the query cannot be executed
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void ttlTest()
+            throws FactoryException, InterruptedException {
+
+        QueryCache cache = new QueryCache(getConnProps(), MAX_ENTRIES, MAX_BYTES);
+
+        cache.query(QUERY, SHORT_TTL_MILLIS, TABLES, 1);
+        Thread.sleep(SHORT_TTL_MILLIS * 2);
+        cache.query(QUERY, SHORT_TTL_MILLIS, TABLES, 1);
+
+        String error = "The expired entry has not been loaded again";
+        assertThat(error, cache.getLoadCount(), is(equalTo(2L)));
+        assertThat(error, cache.getHitCount(), is(equalTo(0L)));
+    }
+
+    /**
+     * Test that the least recently used entries are evicted when the entry count or the size bound is exceeded
+     *
+     * @throws FactoryException When the query cannot be executed
+     */
+    @Test
+    public void evictionTest()
+            throws FactoryException {
+
+        QueryCache cache = new QueryCache(getConnProps(), 2, MAX_BYTES);
+
+        cache.query(QUERY, TTL_MILLIS, TABLES, 1);
+        cache.query(QUERY, TTL_MILLIS, TABLES, 2);
+        cache.query(QUERY, TTL_MILLIS, TABLES, 1); // 2 is now the least recently used entry
+        cache.query(QUERY, TTL_MILLIS, TABLES, 3);
+
+        String error = "The entry count bound has not been enforced";
+        assertThat(error, cache.getEntryCount(), is(equalTo(2)));
+        assertThat(error, cache.getEvictionCount(), is(equalTo(1L)));
+
+        cache.query(QUERY, TTL_MILLIS, TABLES, 1);
+        error = "The recently used entry has been evicted";
+        assertThat(error, cache.getLoadCount(), is(equalTo(3L)));
+        cache.query(QUERY, TTL_MILLIS, TABLES, 2);
+        error = "The least recently used entry has not been evicted";
+        assertThat(error, cache.getLoadCount(), is(equalTo(4L)));
+
+        // a cache that can hold only one entry by size
+        QueryCache smallCache = new QueryCache(getConnProps(), MAX_ENTRIES, 1);
+        smallCache.query(QUERY, TTL_MILLIS, TABLES, 1);
+        error = "The size bound has not been enforced";
+        assertThat(error, smallCache.getEntryCount(), is(equalTo(0)));
+        assertThat(error, smallCache.getEstimatedBytes(), is(equalTo(0L)));
+
+        // a result that is larger than the cache does not evict the other entries
+        long entryBytes = cache.getEstimatedBytes() / cache.getEntryCount();
+        QueryCache boundedCache = new QueryCache(getConnProps(), MAX_ENTRIES, entryBytes);
+        boundedCache.query(QUERY, TTL_MILLIS, TABLES, 1);
+        boundedCache.query("SELECT * FROM some_table", TTL_MILLIS, TABLES);
+        error = "The result that is larger than the cache has evicted the other entries";
+        assertThat(error, boundedCache.getEntryCount(), is(equalTo(1)));
+        assertThat(error, boundedCache.getEvictionCount(), is(equalTo(0L)));
+    }
+
+    /**
+     * Test that concurrent misses of the same entry share one query
+     *
+     * @throws Exception When the concurrent queries fail
+     */
+    @Test
+    public void singleFlightTest()
+            throws Exception {
+
+        final QueryCache cache = new QueryCache(getConnProps(), MAX_ENTRIES, MAX_BYTES);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<List<Object[]>>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(new Callable<List<Object[]>>() {
+                    @Override
+                    public List<Object[]> call()
+                            throws Exception {
+
+                        start.await();
+                        return cache.query(QUERY, TTL_MILLIS, TABLES, 1);
+                    }
+                }));
+            }
+            start.countDown();
+
+            for (Future<List<Object[]>> result : results) {
+                String error = "The concurrent queries do not return the expected rows";
+                assertThat(error, (String) result.get().get(0)[0], is(equalTo("value1")));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        String error = "The concurrent misses have not shared one query";
+        assertThat(error, cache.getLoadCount(), is(equalTo(1L)));
+        assertThat(error, cache.getHitCount() + cache.getMissCount(), is(equalTo((long) THREADS)));
+    }
+
+    /**
+     * Test that invalidating a table removes the entries that are tagged with it (and only those)
+     *
+     * @throws FactoryException When the query cannot be executed
+     * @throws SQLException     When the table cannot be updated
+     */
+    @Test
+    public void invalidateTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps();
+        QueryCache cache = new QueryCache(connProps, MAX_ENTRIES, MAX_BYTES);
+
+        cache.query(QUERY, TTL_MILLIS, TABLES, 1);
+        cache.query("SELECT 1", TTL_MILLIS, Collections.<String>emptyList());
+
+        Connection con = ConnectionFactory.getConnection(connProps);
+        try {
+            con.prepareStatement("UPDATE some_table SET value = 'changed' WHERE id = 1").executeUpdate();
+        } finally {
+            con.close();
+        }
+        cache.invalidate("SOME_TABLE");
+
+        List<Object[]> rows = cache.query(QUERY, TTL_MILLIS, TABLES, 1);
+        String error = "The invalidated entry has been served from the cache";
+        assertThat(error, (String) rows.get(0)[0], is(equalTo("changed")));
+        error = "The entry without the table tag has been invalidated";
+        assertThat(error, cache.getEntryCount(), is(equalTo(2)));
+
+        cache.invalidateAll();
+        error = "The cache has not been cleared";
+        assertThat(error, cache.getEntryCount(), is(equalTo(0)));
+        assertThat(error, cache.getEstimatedBytes(), is(equalTo(0L)));
+    }
+
+    /**
+     * Test that a failed query is reported to the caller, and not cached
+     */
+    @Test
+    public void invalidQueryTest() {
+
+        QueryCache cache = new QueryCache(getConnProps(), MAX_ENTRIES, MAX_BYTES);
+
+        try {
+            cache.query("SELECT * FROM no_such_table", TTL_MILLIS, TABLES);
+            fail("The invalid query has been executed");
+        } catch (FactoryException e) {
+            String error = "The exception does not wrap the SQL error";
+            assertThat(error, e.getCause(), is(instanceOf(SQLException.class)));
+        }
+
+        String error = "The failed query has been cached";
+        assertThat(error, cache.getEntryCount(), is(equalTo(0)));
+    }
+
+    /**
+     * @return Connection properties for the in-memory database
+     */
+    private static ConnectionProperties getConnProps() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        return connProps;
+    }
+}
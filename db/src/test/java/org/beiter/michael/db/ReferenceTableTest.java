@@ -0,0 +1,268 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db;
+
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ReferenceTableTest {
+
+    private static final long POLL_INTERVAL_MILLIS = 50;
+    private static final long WAIT_MILLIS = 5000;
+    private static final String LOAD_QUERY = "SELECT id, value FROM some_table";
+    private static final String VERSION_QUERY = "SELECT MAX(id) FROM some_table";
+    private static final String BINARY_VERSION_QUERY = "SELECT CAST(MAX(id) AS BINARY) FROM some_table";
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that the first snapshot is loaded by the constructor, and cannot be modified
+     *
+     * @throws FactoryException When the snapshot cannot be loaded
+     */
+    @Test
+    public void loadTest()
+            throws FactoryException {
+
+        try (ReferenceTable<Integer, String> table = createTable(getConnProps(), VERSION_QUERY)) {
+            String error = "The snapshot does not contain the rows of the table";
+            assertThat(error, table.getSnapshot().size(), is(equalTo(3)));
+            assertThat(error, table.get(2), is(equalTo("value2")));
+            assertThat(error, table.get(4), is(nullValue()));
+            error = "The version does not match";
+            assertThat(error, ((Number) table.getVersion()).intValue(), is(equalTo(3)));
+            error = "The load count does not match";
+            assertThat(error, table.getLoadCount(), is(equalTo(1L)));
+
+            try {
+                table.getSnapshot().clear();
+                fail("The snapshot can be modified");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Test that a changed version is picked up by the background thread, and that the new snapshot is swapped in
+     * without changing the old snapshot
+     *
+     * @throws FactoryException     When the snapshot cannot be loaded
+     * @throws SQLException         When the table cannot be changed
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void pollTest()
+            throws FactoryException, SQLException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps();
+        try (ReferenceTable<Integer, String> table = createTable(connProps, VERSION_QUERY)) {
+            Map<Integer, String> oldSnapshot = table.getSnapshot();
+
+            execute(connProps, "INSERT INTO some_table (id, key, value) VALUES (4, 'key4', 'value4')");
+
+            long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+            while (table.getLoadCount() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            }
+
+            String error = "The changed version has not been picked up";
+            assertThat(error, table.getLoadCount(), is(equalTo(2L)));
+            assertThat(error, table.get(4), is(equalTo("value4")));
+            error = "The old snapshot has been changed";
+            assertThat(error, oldSnapshot.size(), is(equalTo(3)));
+            error = "The failed poll count does not match";
+            assertThat(error, table.getFailedPollCount(), is(equalTo(0L)));
+        }
+    }
+
+    /**
+     * Test that no new snapshot is loaded when the version has not changed
+     *
+     * @throws FactoryException When the snapshot cannot be loaded
+     * @throws SQLException     When the table cannot be changed
+     */
+    @Test
+    public void unchangedVersionTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps();
+        try (ReferenceTable<Integer, String> table = createTable(connProps, VERSION_QUERY)) {
+            table.close(); // poll explicitly
+
+            execute(connProps, "UPDATE some_table SET value = 'changed' WHERE id = 1");
+
+            String error = "A new snapshot has been loaded for an unchanged version";
+            assertThat(error, table.refresh(), is(false));
+            assertThat(error, table.get(1), is(equalTo("value1")));
+            assertThat(error, table.getLoadCount(), is(equalTo(1L)));
+        }
+    }
+
+    /**
+     * Test that a binary version is compared by its content
+     *
+     * @throws FactoryException When the snapshot cannot be loaded
+     */
+    @Test
+    public void unchangedBinaryVersionTest()
+            throws FactoryException {
+
+        try (ReferenceTable<Integer, String> table = createTable(getConnProps(), BINARY_VERSION_QUERY)) {
+            table.close(); // poll explicitly
+
+            String error = "A new snapshot has been loaded for an unchanged binary version";
+            assertThat(error, table.refresh(), is(false));
+            assertThat(error, table.getLoadCount(), is(equalTo(1L)));
+        }
+    }
+
+    /**
+     * Test that the constructor fails when the first snapshot cannot be loaded
+     *
+     * @throws FactoryException When the snapshot cannot be loaded (expected)
+     */
+    @Test(expected = FactoryException.class)
+    public void invalidVersionQueryTest()
+            throws FactoryException {
+
+        createTable(getConnProps(), "SELECT MAX(version) FROM no_such_table");
+    }
+
+    /**
+     * Create a reference table of the ids and values of the test table
+     *
+     * @param connProps  The connection properties
+     * @param versionSql The version query
+     * @return The reference table
+     * @throws FactoryException When the snapshot cannot be loaded
+     */
+    private static ReferenceTable<Integer, String> createTable(final ConnectionProperties connProps,
+                                                               final String versionSql)
+            throws FactoryException {
+
+        return new ReferenceTable<>(connProps, LOAD_QUERY, versionSql, POLL_INTERVAL_MILLIS,
+                new RowMapper<Integer>() {
+                    @Override
+                    public Integer mapRow(final ResultSet resultSet)
+                            throws SQLException {
+
+                        return resultSet.getInt("id");
+                    }
+                },
+                new RowMapper<String>() {
+                    @Override
+                    public String mapRow(final ResultSet resultSet)
+                            throws SQLException {
+
+                        return resultSet.getString("value");
+                    }
+                });
+    }
+
+    /**
+     * Execute an update statement
+     *
+     * @param connProps The connection properties
+     * @param sql       The update statement
+     * @throws FactoryException When the connection cannot be obtained
+     * @throws SQLException     When the statement fails
+     */
+    private static void execute(final ConnectionProperties connProps, final String sql)
+            throws FactoryException, SQLException {
+
+        Connection con = ConnectionFactory.getConnection(connProps);
+        try {
+            con.prepareStatement(sql).executeUpdate();
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * @return Connection properties for the in-memory database
+     */
+    private static ConnectionProperties getConnProps() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        return connProps;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db;
+
+import org.beiter.michael.db.pool.PoolMetrics;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ResultSetIteratorTest {
+
+    private static final int ROWS = 100000;
+    private static final int FETCH_SIZE = 100;
+    private static final int ROWS_TO_READ = 10;
+    private static final String QUERY = "SELECT X FROM SYSTEM_RANGE(1, ?)";
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that all rows are streamed, and that the connection is returned to the pool after the last row
+     *
+     * @throws FactoryException When the query cannot be executed
+     */
+    @Test
+    public void streamAllRowsTest()
+            throws FactoryException {
+
+        ConnectionProperties connProps = getConnProps();
+        CountingMapper mapper = new CountingMapper();
+
+        long sum = 0;
+        int count = 0;
+        try (ResultSetIterator<Long> rows = ResultSetIterator.query(connProps, QUERY, FETCH_SIZE, mapper, ROWS)) {
+            PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+            String error = "The connection is not in use while the rows are read";
+            assertThat(error, metrics.getNumActive(), is(equalTo(1)));
+
+            while (rows.hasNext()) {
+                sum += rows.next();
+                count++;
+            }
+
+            error = "The connection has not been returned to the pool after the last row";
+            assertThat(error, metrics.getNumActive(), is(equalTo(0)));
+        }
+
+        String error = "The number of rows does not match";
+        assertThat(error, count, is(equalTo(ROWS)));
+        assertThat(error, mapper.mapped.get(), is(equalTo(ROWS)));
+        error = "The rows do not match";
+        assertThat(error, sum, is(equalTo((long) ROWS * (ROWS + 1) / 2)));
+    }
+
+    /**
+     * Test that the rows are mapped lazily, and that closing the iterator early returns the connection with its
+     * original auto-commit setting
+     *
+     * @throws FactoryException When the query cannot be executed
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void earlyCloseTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps();
+        CountingMapper mapper = new CountingMapper();
+
+        ResultSetIterator<Long> rows = ResultSetIterator.query(connProps, QUERY, FETCH_SIZE, mapper, ROWS);
+        for (int i = 0; i < ROWS_TO_READ; i++) {
+            rows.next();
+        }
+        rows.hasNext();
+
+        String error = "The rows have not been mapped lazily";
+        assertThat(error, mapper.mapped.get(), is(equalTo(ROWS_TO_READ)));
+
+        rows.close();
+        error = "The closed iterator returns more rows";
+        assertThat(error, rows.hasNext(), is(false));
+        error = "The connection has not been returned to the pool when the iterator was closed";
+        assertThat(error, DataSourceFactory.getPoolMetrics(connProps).getNumActive(), is(equalTo(0)));
+
+        Connection con = ConnectionFactory.getConnection(connProps);
+        try {
+            error = "The auto-commit setting of the connection has not been restored";
+            assertThat(error, con.getAutoCommit(), is(true));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that an invalid query fails with a {@link FactoryException}, and does not leak the connection
+     */
+    @Test
+    public void invalidQueryTest() {
+
+        ConnectionProperties connProps = getConnProps();
+
+        try {
+            ResultSetIterator.query(connProps, "SELECT * FROM no_such_table", FETCH_SIZE, new CountingMapper());
+            fail("The invalid query has been executed");
+        } catch (FactoryException e) {
+            String error = "The exception does not wrap the SQL error";
+            assertThat(error, e.getCause(), is(instanceOf(SQLException.class)));
+        }
+
+        String error = "The connection of the failed query has not been returned to the pool";
+        assertThat(error, DataSourceFactory.getPoolMetrics(connProps).getNumActive(), is(equalTo(0)));
+    }
+
+    /**
+     * @return Connection properties for the in-memory database with a single connection
+     */
+    private static ConnectionProperties getConnProps() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setMaxTotal(1);
+        return connProps;
+    }
+
+    /**
+     * Maps the first column to a long, and counts the mapped rows
+     */
+    private static final class CountingMapper
+            implements RowMapper<Long> {
+
+        private final AtomicInteger mapped = new AtomicInteger();
+
+        @Override
+        public Long mapRow(final ResultSet resultSet)
+                throws SQLException {
+
+            mapped.incrementAndGet();
+            return resultSet.getLong(1);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db;
+
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class RoutingDataSourceTest {
+
+    private static final String REPLICA_1 = "REPLICA1";
+    private static final String REPLICA_2 = "REPLICA2";
+    private static final String REPLICA_URL_PREFIX = "jdbc:h2:mem:";
+    private static final String UNAVAILABLE_REPLICA_URL = "jdbc:h2:tcp://localhost:1/unavailable";
+    private static final int READ_CONNECTIONS = 6;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that read-write connections are borrowed from the primary database, and read-only connections from the
+     * replicas
+     *
+     * @throws FactoryException When the pools cannot be created
+     * @throws SQLException     When a connection cannot be used
+     */
+    @Test
+    public void readWriteSplitTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps(REPLICA_URL_PREFIX + REPLICA_1);
+        RoutingDataSource ds = DataSourceFactory.getRoutingDataSource(connProps);
+
+        String error = "The routing data source has not been cached";
+        assertThat(error, DataSourceFactory.getRoutingDataSource(connProps), is(sameInstance(ds)));
+
+        Connection con = ds.getConnection();
+        try {
+            error = "The read-write connection is not from the primary database";
+            assertThat(error, getDatabaseName(con), is(equalTo(H2Server.DATABASE.toUpperCase())));
+            error = "The read-write connection is read-only";
+            assertThat(error, con.isReadOnly(), is(false));
+        } finally {
+            con.close();
+        }
+
+        con = ds.getConnection(true);
+        try {
+            error = "The read-only connection is not from the replica";
+            assertThat(error, getDatabaseName(con), is(equalTo(REPLICA_1)));
+            error = "The read-only connection is not read-only";
+            assertThat(error, con.isReadOnly(), is(true));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that read-only connections are spread over the replicas
+     *
+     * @throws FactoryException When the pools cannot be created
+     * @throws SQLException     When a connection cannot be used
+     */
+    @Test
+    public void replicaBalancingTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps(REPLICA_URL_PREFIX + REPLICA_1, REPLICA_URL_PREFIX + REPLICA_2);
+        connProps.setDefaultReadOnly(true);
+        RoutingDataSource ds = DataSourceFactory.getRoutingDataSource(connProps);
+
+        Map<String, Integer> counts = new HashMap<>();
+        List<Connection> connections = new ArrayList<>();
+        try {
+            for (int i = 0; i < READ_CONNECTIONS; i++) {
+                Connection con = ds.getConnection();
+                connections.add(con);
+
+                String name = getDatabaseName(con);
+                // CHECKSTYLE:OFF
+                counts.put(name, counts.containsKey(name) ? counts.get(name) + 1 : 1);
+                // CHECKSTYLE:ON
+            }
+        } finally {
+            for (Connection con : connections) {
+                con.close();
+            }
+        }
+
+        String error = "The read-only connections are not balanced over the replicas";
+        assertThat(error, counts.get(REPLICA_1), is(equalTo(READ_CONNECTIONS / 2)));
+        assertThat(error, counts.get(REPLICA_2), is(equalTo(READ_CONNECTIONS / 2)));
+    }
+
+    /**
+     * Test that read-only connections are borrowed from the primary database when no replica is available
+     *
+     * @throws FactoryException When the pools cannot be created
+     * @throws SQLException     When a connection cannot be used
+     */
+    @Test
+    public void unavailableReplicaTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps(UNAVAILABLE_REPLICA_URL);
+        RoutingDataSource ds = DataSourceFactory.getRoutingDataSource(connProps);
+
+        String error = "The replica is not available before it has failed";
+        assertThat(error, ds.getAvailableReplicaCount(), is(equalTo(1)));
+
+        Connection con = ds.getConnection(true);
+        try {
+            error = "The read-only connection is not from the primary database";
+            assertThat(error, getDatabaseName(con), is(equalTo(H2Server.DATABASE.toUpperCase())));
+            error = "The read-only connection from the primary database is not read-only";
+            assertThat(error, con.isReadOnly(), is(true));
+        } finally {
+            con.close();
+        }
+
+        error = "The failed replica is still available";
+        assertThat(error, ds.getReplicaCount(), is(equalTo(1)));
+        assertThat(error, ds.getAvailableReplicaCount(), is(equalTo(0)));
+    }
+
+    /**
+     * Test that a read-only pool (created by {@link DataSourceFactory#getDataSource(ConnectionProperties)} for the same
+     * URL and username) is not used as the primary database of a routing data source
+     *
+     * @throws FactoryException When the primary pool is read-only (expected)
+     */
+    @Test(expected = FactoryException.class)
+    public void readOnlyPrimaryTest()
+            throws FactoryException {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setDefaultReadOnly(true);
+        DataSourceFactory.getDataSource(connProps);
+
+        DataSourceFactory.getRoutingDataSource(connProps);
+    }
+
+    /**
+     * Test that the primary pool of a routing data source cannot be reconfigured to be read-only
+     *
+     * @throws FactoryException When the pool is reconfigured to be read-only (expected)
+     */
+    @Test(expected = FactoryException.class)
+    public void reconfigureReadOnlyPrimaryTest()
+            throws FactoryException {
+
+        ConnectionProperties connProps = getConnProps();
+        DataSourceFactory.getRoutingDataSource(connProps);
+
+        connProps.setDefaultReadOnly(true);
+        DataSourceFactory.reconfigure(connProps);
+    }
+
+    /**
+     * @param connection A connection
+     * @return The name of the database of the connection
+     * @throws SQLException When the connection cannot be used
+     */
+    private static String getDatabaseName(final Connection connection)
+            throws SQLException {
+
+        ResultSet rs = connection.createStatement().executeQuery("SELECT DATABASE()");
+        rs.next();
+        return rs.getString(1);
+    }
+
+    /**
+     * @param replicaUrls The JDBC URLs of the replicas
+     * @return Connection properties for the in-memory database with the provided replicas
+     */
+    private static ConnectionProperties getConnProps(final String... replicaUrls) {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setReplicaUrls(Arrays.asList(replicaUrls));
+        return connProps;
+    }
+}
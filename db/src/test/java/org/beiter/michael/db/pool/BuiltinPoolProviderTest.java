@@ -0,0 +1,514 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.DataSourceFactory;
+import org.beiter.michael.db.FactoryException;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.h2.jdbc.JdbcConnection;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class BuiltinPoolProviderTest {
+
+    private static final int POOL_MAX_CONNECTIONS = 2;
+
+    private ManagedPool pool;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Close the pool created by the test (if any)
+     */
+    @After
+    public void closePool() {
+
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+    /**
+     * Test that the builtin pool engine is selected from the connection properties and hands out working connections
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void builtinPoolEngineTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps();
+
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+
+        Connection con = ds.getConnection();
+        try {
+            String error = "The connection is not a builtin pooled connection";
+            assertThat(error, con.isWrapperFor(BuiltinPooledConnection.class), is(true));
+
+            ResultSet rs = con.prepareStatement("SELECT COUNT(id) AS count FROM some_table").executeQuery();
+            rs.next();
+
+            error = "The connection does not return the expected number of rows";
+            assertThat(error, rs.getInt("count"), is(equalTo(3)));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that the builtin pool engine does not return more connections than are available in the pool
+     *
+     * @throws SQLException When the pool is exhausted (expected)
+     */
+    @Test(expected = SQLException.class)
+    public void builtinPoolEngineExhaustedPoolTest()
+            throws SQLException {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setMaxWaitMillis(0); // fail immediately if no connections are available
+
+        DataSource ds = createPool(connProps);
+
+        Connection con1 = ds.getConnection();
+        Connection con2 = ds.getConnection();
+        try {
+            String error = "The DB connection 2 is same instance as DB connection 1";
+            assertThat(error, con2, is(not(sameInstance(con1))));
+
+            // the pool supports only 2 connections, borrowing a third connection times out
+            ds.getConnection();
+        } finally {
+            con1.close();
+            con2.close();
+        }
+    }
+
+    /**
+     * Test that a connection that is returned to the pool is reused, and that the pool keeps count of the active and
+     * idle connections
+     *
+     * @throws SQLException When the connection cannot be used
+     */
+    @Test
+    public void builtinPoolEngineReuseTest()
+            throws SQLException {
+
+        DataSource ds = createPool(getConnProps());
+
+        Connection con1 = ds.getConnection();
+        JdbcConnection physical1 = con1.unwrap(JdbcConnection.class);
+
+        String error = "The number of active connections is incorrect";
+        assertThat(error, pool.getNumActive(), is(equalTo(1)));
+
+        con1.close();
+
+        error = "The number of idle connections is incorrect";
+        assertThat(error, pool.getNumIdle(), is(equalTo(1)));
+        error = "The returned connection is not closed";
+        assertThat(error, con1.isClosed(), is(true));
+
+        Connection con2 = ds.getConnection();
+        try {
+            error = "The physical connection has not been reused";
+            assertThat(error, con2.unwrap(JdbcConnection.class), is(sameInstance(physical1)));
+        } finally {
+            con2.close();
+        }
+    }
+
+    /**
+     * Test that a returned connection cannot be used anymore
+     *
+     * @throws SQLException When the connection is used after it has been returned (expected)
+     */
+    @Test(expected = SQLException.class)
+    public void builtinPoolEngineUseAfterCloseTest()
+            throws SQLException {
+
+        DataSource ds = createPool(getConnProps());
+
+        Connection con = ds.getConnection();
+        con.close();
+
+        con.createStatement();
+    }
+
+    /**
+     * Test that uncommitted work is rolled back and the connection defaults are restored when a connection is returned
+     *
+     * @throws SQLException When the connection cannot be used
+     */
+    @Test
+    public void builtinPoolEngineResetStateTest()
+            throws SQLException {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setMaxTotal(1);
+        DataSource ds = createPool(connProps);
+
+        Connection con = ds.getConnection();
+        con.setAutoCommit(false);
+        con.setReadOnly(true);
+        con.prepareStatement("DELETE FROM some_table").executeUpdate();
+        con.close();
+
+        con = ds.getConnection();
+        try {
+            String error = "The auto commit setting has not been restored";
+            assertThat(error, con.getAutoCommit(), is(true));
+            error = "The read only setting has not been restored";
+            assertThat(error, con.isReadOnly(), is(false));
+
+            ResultSet rs = con.prepareStatement("SELECT COUNT(id) AS count FROM some_table").executeQuery();
+            rs.next();
+            error = "The uncommitted work has not been rolled back";
+            assertThat(error, rs.getInt("count"), is(equalTo(3)));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that no more than maxIdle connections are kept in the pool
+     *
+     * @throws SQLException When the connection cannot be used
+     */
+    @Test
+    public void builtinPoolEngineMaxIdleTest()
+            throws SQLException {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setMaxTotal(4);
+        connProps.setMaxIdle(1);
+        DataSource ds = createPool(connProps);
+
+        Connection con1 = ds.getConnection();
+        Connection con2 = ds.getConnection();
+        Connection con3 = ds.getConnection();
+        con1.close();
+        con2.close();
+        con3.close();
+
+        String error = "The number of idle connections exceeds maxIdle";
+        assertThat(error, pool.getNumIdle(), is(equalTo(1)));
+    }
+
+    /**
+     * Test that a connection is replaced when it exceeds its maximum lifetime
+     *
+     * @throws SQLException         When the connection cannot be used
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void builtinPoolEngineMaxLifetimeTest()
+            throws SQLException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setMaxConnLifetimeMillis(50);
+        DataSource ds = createPool(connProps);
+
+        Connection con = ds.getConnection();
+        JdbcConnection physical = con.unwrap(JdbcConnection.class);
+        con.close();
+
+        Thread.sleep(100);
+
+        con = ds.getConnection();
+        try {
+            String error = "The expired physical connection has been reused";
+            assertThat(error, con.unwrap(JdbcConnection.class), is(not(sameInstance(physical))));
+            error = "The expired physical connection has not been closed";
+            assertThat(error, physical.isClosed(), is(true));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that a broken idle connection is detected and replaced on borrow
+     *
+     * @throws SQLException When the connection cannot be used
+     */
+    @Test
+    public void builtinPoolEngineTestOnBorrowTest()
+            throws SQLException {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setTestOnBorrow(true);
+        connProps.setValidationQuery("SELECT 1");
+        DataSource ds = createPool(connProps);
+
+        Connection con = ds.getConnection();
+        JdbcConnection physical = con.unwrap(JdbcConnection.class);
+        con.close();
+
+        // break the idle physical connection behind the back of the pool
+        physical.close();
+
+        con = ds.getConnection();
+        try {
+            String error = "The broken physical connection has been handed out";
+            assertThat(error, con.unwrap(JdbcConnection.class), is(not(sameInstance(physical))));
+            error = "The replacement connection is not valid";
+            assertThat(error, con.isValid(1), is(true));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that the house keeping evicts idle connections and replenishes the pool to minIdle
+     *
+     * @throws SQLException         When the connection cannot be used
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void builtinPoolEngineHouseKeepingTest()
+            throws SQLException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setMinIdle(1);
+        connProps.setTimeBetweenEvictionRunsMillis(20);
+        connProps.setMinEvictableIdleTimeMillis(10000);
+        DataSource ds = createPool(connProps);
+
+        // the house keeping creates the minIdle connection in the background
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getNumIdle() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        String error = "The pool has not been replenished to minIdle";
+        assertThat(error, pool.getNumIdle(), is(equalTo(1)));
+
+        // stop the house keeping from replenishing the pool while the connection is borrowed, which would be a
+        // legitimate minIdle refill
+        connProps.setTimeBetweenEvictionRunsMillis(60000);
+        ((ReconfigurableManagedPool) pool).reconfigure(connProps);
+
+        Connection con = ds.getConnection();
+        con.close();
+
+        error = "The pool has created more connections than needed";
+        assertThat(error, pool.getNumIdle(), is(equalTo(1)));
+    }
+
+    /**
+     * Test that a thread waiting for a connection receives a connection that is returned by another thread
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void builtinPoolEngineHandoffTest()
+            throws Exception {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setMaxTotal(1);
+        connProps.setMaxWaitMillis(5000);
+        final DataSource ds = createPool(connProps);
+
+        Connection con = ds.getConnection();
+        JdbcConnection physical = con.unwrap(JdbcConnection.class);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<JdbcConnection> waiter = executor.submit(new Callable<JdbcConnection>() {
+                @Override
+                public JdbcConnection call()
+                        throws SQLException {
+
+                    Connection con = ds.getConnection();
+                    try {
+                        return con.unwrap(JdbcConnection.class);
+                    } finally {
+                        con.close();
+                    }
+                }
+            });
+
+            Thread.sleep(50);
+            con.close();
+
+            String error = "The waiting thread did not receive the returned connection";
+            assertThat(error, waiter.get(5, TimeUnit.SECONDS), is(sameInstance(physical)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test that a closed pool does not hand out connections anymore
+     *
+     * @throws SQLException When the pool is closed (expected)
+     */
+    @Test(expected = SQLException.class)
+    public void builtinPoolEngineClosedPoolTest()
+            throws SQLException {
+
+        DataSource ds = createPool(getConnProps());
+        ds.getConnection().close();
+
+        pool.close();
+
+        ds.getConnection();
+    }
+
+    /**
+     * Test that closing the pool releases a thread that waits indefinitely for a connection
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void builtinPoolEngineCloseReleasesWaiterTest()
+            throws Exception {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setMaxTotal(1);
+        connProps.setMaxWaitMillis(-1);
+        final DataSource ds = createPool(connProps);
+
+        Connection con = ds.getConnection();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> waiter = executor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+
+                    try {
+                        ds.getConnection().close();
+                        return null;
+                    } catch (SQLException e) {
+                        return e.getMessage();
+                    }
+                }
+            });
+
+            Thread.sleep(50);
+            pool.close();
+
+            String error = "The waiting thread has not been failed with a closed pool error";
+            assertThat(error, waiter.get(5, TimeUnit.SECONDS), containsString("pool is closed"));
+        } finally {
+            con.close();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Create a builtin pool for the in-memory database, which is closed after the test
+     *
+     * @param connProps The connection properties
+     * @return The pooled data source
+     */
+    private DataSource createPool(final ConnectionProperties connProps) {
+
+        Properties properties = new Properties();
+        properties.put("user", H2Server.USER);
+        properties.put("password", H2Server.PASSWORD);
+
+        pool = new BuiltinPoolProvider().createPool(new ConnectionCreator(H2Server.URL, properties), connProps);
+        return pool.getDataSource();
+    }
+
+    /**
+     * @return Connection properties for the in-memory database that use the builtin pool engine
+     */
+    private static ConnectionProperties getConnProps() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setMaxTotal(POOL_MAX_CONNECTIONS);
+        connProps.setPoolEngine(BuiltinPoolProvider.NAME);
+        return connProps;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.h2.jdbc.JdbcConnection;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * A stress test for the builtin pool engine, which borrows and returns connections on 1 to 256 threads.
+ * <p>
+ * The borrow / return latencies are logged (INFO) for each number of threads. The test asserts that a physical
+ * connection is never handed out to two threads at the same time, and that all connections are returned.
+ */
+public class BuiltinPoolStressTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BuiltinPoolStressTest.class);
+
+    private static final int POOL_MAX_CONNECTIONS = 8;
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64, 128, 256};
+    private static final int BORROWS_PER_RUN = 8192;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Borrow and return connections on an increasing number of threads, and log the latencies
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void borrowReturnLatencyTest()
+            throws Exception {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setMaxTotal(POOL_MAX_CONNECTIONS);
+        connProps.setMaxIdle(POOL_MAX_CONNECTIONS);
+        connProps.setMaxWaitMillis(10000);
+
+        Properties properties = new Properties();
+        properties.put("user", H2Server.USER);
+        properties.put("password", H2Server.PASSWORD);
+
+        ManagedPool pool = new BuiltinPoolProvider().createPool(new ConnectionCreator(H2Server.URL, properties),
+                connProps);
+        try {
+            // warm up the pool and the JIT before measuring
+            runBorrowCycles(pool.getDataSource(), POOL_MAX_CONNECTIONS, BORROWS_PER_RUN / POOL_MAX_CONNECTIONS);
+
+            for (int threads : THREADS) {
+                int iterations = Math.max(1, BORROWS_PER_RUN / threads);
+
+                long start = System.nanoTime();
+                long[][] latencies = runBorrowCycles(pool.getDataSource(), threads, iterations);
+                long elapsedNanos = System.nanoTime() - start;
+
+                String error = "Not all connections have been returned to the pool";
+                assertThat(error, pool.getNumActive(), is(equalTo(0)));
+                error = "The pool has created more connections than allowed";
+                assertThat(error, pool.getNumIdle(), is(lessThanOrEqualTo(POOL_MAX_CONNECTIONS)));
+
+                long[] borrow = latencies[0];
+                long[] release = latencies[1];
+                Arrays.sort(borrow);
+                Arrays.sort(release);
+                LOG.info(String.format("Builtin pool engine: %3d threads, %d connections, %.0f cycles/s,"
+                                + " borrow p50=%dus p99=%dus, return p50=%dus p99=%dus",
+                        threads, POOL_MAX_CONNECTIONS,
+                        borrow.length / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1)),
+                        TimeUnit.NANOSECONDS.toMicros(borrow[borrow.length / 2]),
+                        TimeUnit.NANOSECONDS.toMicros(borrow[(int) (borrow.length * 0.99)]),
+                        TimeUnit.NANOSECONDS.toMicros(release[release.length / 2]),
+                        TimeUnit.NANOSECONDS.toMicros(release[(int) (release.length * 0.99)])));
+            }
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     * Borrow, use, and return connections on the provided number of threads, and check that no physical connection
+     * is used by two threads at the same time
+     *
+     * @param ds         The data source to borrow from
+     * @param threads    The number of borrowing threads
+     * @param iterations The number of borrow cycles per thread
+     * @return The borrow latencies (index 0) and return latencies (index 1) in nanoseconds
+     * @throws Exception When a borrow cycle fails
+     */
+    private static long[][] runBorrowCycles(final DataSource ds, final int threads, final int iterations)
+            throws Exception {
+
+        final Set<JdbcConnection> inUse =
+                Collections.newSetFromMap(new ConcurrentHashMap<JdbcConnection, Boolean>());
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<long[][]>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Callable<long[][]>() {
+                    @Override
+                    public long[][] call()
+                            throws SQLException {
+
+                        long[][] latencies = new long[2][iterations];
+                        for (int j = 0; j < iterations; j++) {
+                            long start = System.nanoTime();
+                            Connection con = ds.getConnection();
+                            latencies[0][j] = System.nanoTime() - start;
+
+                            JdbcConnection physical = con.unwrap(JdbcConnection.class);
+                            if (!inUse.add(physical)) {
+                                throw new IllegalStateException("The connection has been handed out twice");
+                            }
+                            con.prepareStatement("SELECT 1").executeQuery().close();
+                            inUse.remove(physical);
+
+                            start = System.nanoTime();
+                            con.close();
+                            latencies[1][j] = System.nanoTime() - start;
+                        }
+                        return latencies;
+                    }
+                }));
+            }
+
+            long[][] all = new long[2][threads * iterations];
+            int pos = 0;
+            for (Future<long[][]> result : results) {
+                long[][] latencies = result.get();
+                System.arraycopy(latencies[0], 0, all[0], pos, iterations);
+                System.arraycopy(latencies[1], 0, all[1], pos, iterations);
+                pos += iterations;
+            }
+            return all;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.ConnectionRejectedException;
+import org.beiter.michael.db.DataSourceFactory;
+import org.beiter.michael.db.FactoryException;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class BulkheadManagedPoolTest {
+
+    private static final long MAX_WAIT_MILLIS = 5000;
+    private static final long MAX_QUEUE_MILLIS = 50;
+    private static final long HOLD_MILLIS = 400;
+    private static final long FAST_FAIL_MILLIS = 1000;
+    private static final long POLL_MILLIS = 10;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that a borrower is rejected immediately when the maximum number of threads is already waiting
+     *
+     * @throws Exception When the connections cannot be borrowed
+     */
+    @Test
+    public void maxWaitersTest()
+            throws Exception {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setBulkheadMaxWaiters(1);
+        PoolMetrics metrics = getMetrics(connProps);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Connection held = ConnectionFactory.getConnection(connProps);
+            Future<Boolean> waiter = borrowInBackground(executor, connProps);
+            awaitWaiter(metrics);
+
+            assertRejected(connProps);
+            String error = "The rejection has not been counted";
+            assertThat(error, metrics.getBulkheadRejectedCount(), is(equalTo(1L)));
+
+            held.close();
+            error = "The admitted waiter did not get a connection";
+            assertThat(error, waiter.get(), is(true));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test that a borrower is rejected immediately while other threads are waiting and the recent wait times are too
+     * long, and admitted again when no thread is waiting
+     *
+     * @throws Exception When the connections cannot be borrowed
+     */
+    @Test
+    public void maxQueueTest()
+            throws Exception {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setBulkheadMaxQueueMillis(MAX_QUEUE_MILLIS);
+        PoolMetrics metrics = getMetrics(connProps);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // a slow borrow raises the recent wait time above the limit
+            Connection held = ConnectionFactory.getConnection(connProps);
+            Future<Boolean> waiter = borrowInBackground(executor, connProps);
+            awaitWaiter(metrics);
+            Thread.sleep(HOLD_MILLIS);
+            held.close();
+            String error = "The first waiter did not get a connection";
+            assertThat(error, waiter.get(), is(true));
+
+            held = ConnectionFactory.getConnection(connProps);
+            waiter = borrowInBackground(executor, connProps);
+            awaitWaiter(metrics);
+
+            assertRejected(connProps);
+            error = "The rejection has not been counted";
+            assertThat(error, metrics.getBulkheadRejectedCount(), is(equalTo(1L)));
+
+            held.close();
+            error = "The second waiter did not get a connection";
+            assertThat(error, waiter.get(), is(true));
+
+            error = "The borrower has not been admitted while no thread is waiting";
+            try (Connection con = ConnectionFactory.getConnection(connProps)) {
+                assertThat(error, con.isValid(1), is(true));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Assert that a borrower is rejected with a {@link ConnectionRejectedException} without waiting
+     *
+     * @param connProps The connection properties
+     * @throws FactoryException When the borrow fails with another exception
+     */
+    private static void assertRejected(final ConnectionProperties connProps)
+            throws FactoryException {
+
+        long start = System.nanoTime();
+        try {
+            ConnectionFactory.getConnection(connProps).close();
+            fail("The borrower has not been rejected");
+        } catch (ConnectionRejectedException e) {
+            String error = "The exception does not wrap the bulkhead rejection";
+            assertThat(error, e.getCause(), is(instanceOf(BulkheadRejectedException.class)));
+        } catch (SQLException e) {
+            fail("The borrower has not been rejected");
+        }
+        String error = "The borrower has not been rejected without waiting";
+        assertThat(error, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(lessThan(FAST_FAIL_MILLIS)));
+    }
+
+    /**
+     * Borrow a connection on another thread
+     *
+     * @param executor  The executor of the other thread
+     * @param connProps The connection properties
+     * @return {@code true} when the connection has been borrowed and returned
+     */
+    private static Future<Boolean> borrowInBackground(final ExecutorService executor,
+                                                      final ConnectionProperties connProps) {
+
+        return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call()
+                    throws FactoryException, SQLException {
+
+                try (Connection con = ConnectionFactory.getConnection(connProps)) {
+                    return con.isValid(1);
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait until a thread is waiting for a connection
+     *
+     * @param metrics The metrics of the pool
+     * @throws InterruptedException When the test is interrupted
+     */
+    private static void awaitWaiter(final PoolMetrics metrics)
+            throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+        while (metrics.getNumWaiters() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(POLL_MILLIS);
+        }
+        String error = "No thread is waiting for a connection";
+        assertThat(error, metrics.getNumWaiters(), is(equalTo(1)));
+    }
+
+    /**
+     * Create the pool, and return its metrics
+     *
+     * @param connProps The connection properties
+     * @return The metrics of the pool
+     * @throws FactoryException When the pool cannot be created
+     */
+    private static PoolMetrics getMetrics(final ConnectionProperties connProps)
+            throws FactoryException {
+
+        DataSourceFactory.getDataSource(connProps);
+        return DataSourceFactory.getPoolMetrics(connProps);
+    }
+
+    /**
+     * @return Connection properties for the in-memory database with a single connection
+     */
+    private static ConnectionProperties getConnProps() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setMaxTotal(1);
+        connProps.setMaxWaitMillis(MAX_WAIT_MILLIS);
+        return connProps;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.ConnectionRejectedException;
+import org.beiter.michael.db.DataSourceFactory;
+import org.beiter.michael.db.FactoryException;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerManagedPoolTest {
+
+    private static final String UNAVAILABLE_URL = "jdbc:h2:tcp://localhost:1/unavailable";
+    private static final int FAILURE_THRESHOLD = 2;
+    private static final long SHORT_OPEN_MILLIS = 50;
+    private static final long LONG_OPEN_MILLIS = 60000;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that the circuit breaker opens after the configured number of consecutive connection failures, and that
+     * further requests are rejected without connecting to the database
+     *
+     * @throws FactoryException When the pool metrics cannot be retrieved
+     */
+    @Test
+    public void openTest()
+            throws FactoryException {
+
+        ConnectionProperties connProps = getConnProps(LONG_OPEN_MILLIS);
+        connProps.setUrl(UNAVAILABLE_URL);
+
+        for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+            try {
+                ConnectionFactory.getConnection(connProps).close();
+                fail("A connection to an unavailable database has been created");
+            } catch (ConnectionRejectedException e) {
+                fail("The circuit breaker opened before the failure threshold has been reached");
+            } catch (FactoryException | SQLException e) {
+                // expected
+            }
+        }
+
+        try {
+            ConnectionFactory.getConnection(connProps).close();
+            fail("The open circuit breaker did not reject the request");
+        } catch (ConnectionRejectedException e) {
+            String error = "The rejection is not caused by the circuit breaker";
+            assertThat(error, e.getCause(), is(instanceOf(CircuitOpenException.class)));
+        } catch (FactoryException | SQLException e) {
+            fail("The open circuit breaker let a connection attempt through");
+        }
+
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+        String error = "The open circuit breaker let a connection attempt through";
+        assertThat(error, metrics.getCreateFailedCount(), is(equalTo((long) FAILURE_THRESHOLD)));
+        error = "The circuit breaker state is wrong";
+        assertThat(error, metrics.getCircuitBreakerState(), is(equalTo("OPEN")));
+        error = "The opening of the circuit breaker has not been counted";
+        assertThat(error, metrics.getCircuitBreakerOpenCount(), is(equalTo(1L)));
+        error = "The rejection has not been counted";
+        assertThat(error, metrics.getCircuitBreakerRejectedCount(), is(equalTo(1L)));
+    }
+
+    /**
+     * Test that the half-open circuit breaker lets a limited number of probes through, opens again when a probe fails,
+     * and closes when a probe succeeds
+     *
+     * @throws Exception When the test is interrupted
+     */
+    @Test
+    public void halfOpenTest()
+            throws Exception {
+
+        ConnectionProperties connProps = getConnProps(SHORT_OPEN_MILLIS);
+        PoolMetrics metrics = new PoolMetrics("halfOpenTest");
+        CircuitBreaker circuitBreaker = new CircuitBreaker(metrics, connProps);
+
+        for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+            String error = "A closed circuit breaker started a probe";
+            assertThat(error, circuitBreaker.acquire(), is(false));
+            circuitBreaker.recordFailure(false);
+        }
+        String error = "The circuit breaker did not open";
+        assertThat(error, circuitBreaker.getState(), is(equalTo(CircuitBreaker.State.OPEN)));
+        assertRejected(circuitBreaker);
+
+        Thread.sleep(SHORT_OPEN_MILLIS * 2);
+        error = "The circuit breaker did not let a probe through after the open time";
+        assertThat(error, circuitBreaker.acquire(), is(true));
+        assertThat(error, circuitBreaker.getState(), is(equalTo(CircuitBreaker.State.HALF_OPEN)));
+        assertRejected(circuitBreaker);
+
+        circuitBreaker.recordFailure(true);
+        error = "The circuit breaker did not open again after a failed probe";
+        assertThat(error, circuitBreaker.getState(), is(equalTo(CircuitBreaker.State.OPEN)));
+        assertRejected(circuitBreaker);
+
+        Thread.sleep(SHORT_OPEN_MILLIS * 2);
+        assertThat(error, circuitBreaker.acquire(), is(true));
+        circuitBreaker.recordSuccess();
+        error = "The circuit breaker did not close after a successful probe";
+        assertThat(error, circuitBreaker.getState(), is(equalTo(CircuitBreaker.State.CLOSED)));
+        assertThat(error, circuitBreaker.acquire(), is(false));
+
+        error = "The state changes have not been recorded";
+        assertThat(error, metrics.getCircuitBreakerState(), is(equalTo("CLOSED")));
+        assertThat(error, metrics.getCircuitBreakerOpenCount(), is(equalTo(2L)));
+    }
+
+    /**
+     * Test that the open circuit breaker still hands out idle connections, and only rejects borrowers that would need
+     * a new connection
+     *
+     * @throws Exception When the pool cannot be used
+     */
+    @Test
+    public void idleConnectionTest()
+            throws Exception {
+
+        ConnectionProperties connProps = getConnProps(LONG_OPEN_MILLIS);
+
+        Properties properties = new Properties();
+        properties.put("user", H2Server.USER);
+        properties.put("password", H2Server.PASSWORD);
+
+        PoolMetrics metrics = new PoolMetrics("idleConnectionTest");
+        CircuitBreaker circuitBreaker = new CircuitBreaker(metrics, connProps);
+        ManagedPool pool = new CircuitBreakerManagedPool(new BuiltinPoolProvider().createPool(
+                new ConnectionCreator(H2Server.URL, properties, metrics, circuitBreaker), connProps), circuitBreaker);
+        try {
+            pool.getDataSource().getConnection().close();
+            for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+                circuitBreaker.recordFailure(false);
+            }
+
+            Connection con = pool.getDataSource().getConnection();
+            try {
+                String error = "The idle connection has not been handed out while the circuit breaker is open";
+                assertThat(error, con.isValid(1), is(true));
+
+                try {
+                    pool.getDataSource().getConnection().close();
+                    fail("The open circuit breaker did not reject a borrower that needs a new connection");
+                } catch (CircuitOpenException e) {
+                    // expected
+                }
+            } finally {
+                con.close();
+            }
+
+            String error = "The open circuit breaker let a connection attempt through";
+            assertThat(error, metrics.getCreatedCount(), is(equalTo(1L)));
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     * Assert that the circuit breaker rejects a connection attempt
+     *
+     * @param circuitBreaker The circuit breaker
+     */
+    private static void assertRejected(final CircuitBreaker circuitBreaker) {
+
+        try {
+            circuitBreaker.acquire();
+            fail("The circuit breaker did not reject the connection attempt");
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+    }
+
+    /**
+     * @param openMillis The time that the circuit breaker stays open
+     * @return Connection properties for the in-memory database with a circuit breaker
+     */
+    private static ConnectionProperties getConnProps(final long openMillis) {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setPoolEngine(BuiltinPoolProvider.NAME);
+        connProps.setCircuitBreakerFailureThreshold(FAILURE_THRESHOLD);
+        connProps.setCircuitBreakerOpenMillis(openMillis);
+        return connProps;
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ConcurrentBagTest {
+
+    /**
+     * Test that an idle entry can be borrowed, and cannot be borrowed a second time until it is returned
+     *
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void borrowRequiteTest()
+            throws InterruptedException {
+
+        ConcurrentBag<TestEntry> bag = new ConcurrentBag<>();
+        TestEntry entry = new TestEntry();
+        bag.add(entry);
+
+        String error = "The idle entry has not been borrowed";
+        assertThat(error, bag.borrow(0, TimeUnit.MILLISECONDS), is(sameInstance(entry)));
+        error = "The borrowed entry has been borrowed a second time";
+        assertThat(error, bag.borrow(0, TimeUnit.MILLISECONDS), is(nullValue()));
+        error = "The number of borrowed entries is incorrect";
+        assertThat(error, bag.getCount(ConcurrentBag.STATE_IN_USE), is(equalTo(1)));
+
+        bag.requite(entry);
+
+        error = "The number of idle entries is incorrect";
+        assertThat(error, bag.getCount(ConcurrentBag.STATE_NOT_IN_USE), is(equalTo(1)));
+        error = "The returned entry has not been borrowed";
+        assertThat(error, bag.borrow(0, TimeUnit.MILLISECONDS), is(sameInstance(entry)));
+    }
+
+    /**
+     * Test that a thread gets the entry back that it has returned most recently
+     *
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void threadAffinityTest()
+            throws InterruptedException {
+
+        ConcurrentBag<TestEntry> bag = new ConcurrentBag<>();
+        for (int i = 0; i < 4; i++) {
+            bag.add(new TestEntry());
+        }
+
+        TestEntry entry1 = bag.borrow(0, TimeUnit.MILLISECONDS);
+        TestEntry entry2 = bag.borrow(0, TimeUnit.MILLISECONDS);
+        bag.requite(entry1);
+        bag.requite(entry2);
+
+        String error = "The most recently returned entry has not been borrowed first";
+        assertThat(error, bag.borrow(0, TimeUnit.MILLISECONDS), is(sameInstance(entry2)));
+    }
+
+    /**
+     * Test that an entry that is returned is handed off to a waiting thread
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void handoffTest()
+            throws Exception {
+
+        final ConcurrentBag<TestEntry> bag = new ConcurrentBag<>();
+        TestEntry entry = new TestEntry();
+        bag.add(entry);
+        bag.borrow(0, TimeUnit.MILLISECONDS);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<TestEntry> waiter = executor.submit(new Callable<TestEntry>() {
+                @Override
+                public TestEntry call()
+                        throws InterruptedException {
+
+                    return bag.borrow(5, TimeUnit.SECONDS);
+                }
+            });
+
+            while (bag.getWaitingThreadCount() == 0) {
+                Thread.sleep(1);
+            }
+            bag.requite(entry);
+
+            String error = "The returned entry has not been handed off to the waiting thread";
+            assertThat(error, waiter.get(5, TimeUnit.SECONDS), is(sameInstance(entry)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test that a waiting thread is woken up without an entry, and that a thread which has read the wake-up count
+     * before the wake-up does not wait at all
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void wakeUpTest()
+            throws Exception {
+
+        final ConcurrentBag<TestEntry> bag = new ConcurrentBag<>();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<TestEntry> waiter = executor.submit(new Callable<TestEntry>() {
+                @Override
+                public TestEntry call()
+                        throws InterruptedException {
+
+                    return bag.borrow(-1, TimeUnit.MILLISECONDS);
+                }
+            });
+
+            while (bag.getWaitingThreadCount() == 0) {
+                Thread.sleep(1);
+            }
+            long wakeUpCount = bag.getWakeUpCount();
+            bag.wakeUp();
+
+            String error = "The waiting thread has not been woken up";
+            assertThat(error, waiter.get(5, TimeUnit.SECONDS), is(nullValue()));
+
+            long start = System.nanoTime();
+            error = "The thread has waited although the bag has been woken up after it read the wake-up count";
+            assertThat(error, bag.borrow(5, TimeUnit.SECONDS, wakeUpCount), is(nullValue()));
+            assertThat(error, System.nanoTime() - start, is(lessThan(TimeUnit.SECONDS.toNanos(1))));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test that borrowing times out if no entry becomes available
+     *
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void borrowTimeoutTest()
+            throws InterruptedException {
+
+        ConcurrentBag<TestEntry> bag = new ConcurrentBag<>();
+
+        String error = "An entry has been borrowed from an empty bag";
+        assertThat(error, bag.borrow(10, TimeUnit.MILLISECONDS), is(nullValue()));
+        error = "The waiting thread has not been deregistered";
+        assertThat(error, bag.getWaitingThreadCount(), is(equalTo(0)));
+    }
+
+    /**
+     * Test that reserved entries cannot be borrowed, and that only borrowed or reserved entries can be removed
+     *
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void reserveRemoveTest()
+            throws InterruptedException {
+
+        ConcurrentBag<TestEntry> bag = new ConcurrentBag<>();
+        TestEntry entry = new TestEntry();
+        bag.add(entry);
+
+        String error = "An idle entry has been removed";
+        assertThat(error, bag.remove(entry), is(false));
+
+        error = "The idle entry has not been reserved";
+        assertThat(error, bag.reserve(entry), is(true));
+        error = "The reserved entry has been borrowed";
+        assertThat(error, bag.borrow(0, TimeUnit.MILLISECONDS), is(nullValue()));
+
+        bag.unreserve(entry);
+        error = "The unreserved entry has not been borrowed";
+        assertThat(error, bag.borrow(0, TimeUnit.MILLISECONDS), is(sameInstance(entry)));
+
+        error = "The borrowed entry has not been removed";
+        assertThat(error, bag.remove(entry), is(true));
+        error = "The bag is not empty";
+        assertThat(error, bag.size(), is(equalTo(0)));
+    }
+
+    /**
+     * Test that an entry is never borrowed by two threads at the same time
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void exclusiveBorrowTest()
+            throws Exception {
+
+        final int threads = 32;
+        final int iterations = 2000;
+        final ConcurrentBag<TestEntry> bag = new ConcurrentBag<>();
+        for (int i = 0; i < 4; i++) {
+            bag.add(new TestEntry());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Future<?>[] results = new Future<?>[threads];
+            for (int i = 0; i < threads; i++) {
+                results[i] = executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call()
+                            throws InterruptedException {
+
+                        for (int j = 0; j < iterations; j++) {
+                            TestEntry entry = bag.borrow(5, TimeUnit.SECONDS);
+                            if (entry == null) {
+                                throw new IllegalStateException("Timeout waiting for an entry");
+                            }
+                            if (entry.users.incrementAndGet() != 1) {
+                                throw new IllegalStateException("The entry has been borrowed twice");
+                            }
+                            entry.users.decrementAndGet();
+                            bag.requite(entry);
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        String error = "Not all entries have been returned";
+        assertThat(error, bag.getCount(ConcurrentBag.STATE_NOT_IN_USE), is(equalTo(4)));
+    }
+
+    /**
+     * A bag entry for testing, which counts the threads that use it
+     */
+    private static final class TestEntry
+            implements ConcurrentBag.Entry {
+
+        private final AtomicInteger state = new AtomicInteger();
+        private final AtomicInteger users = new AtomicInteger();
+
+        @Override
+        public boolean compareAndSetState(final int expect, final int update) {
+
+            return state.compareAndSet(expect, update);
+        }
+
+        @Override
+        public void setState(final int state) {
+
+            this.state.set(state);
+        }
+
+        @Override
+        public int getState() {
+
+            return state.get();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class CreationThrottleTest {
+
+    private static final long MAX_WAIT_MILLIS = 5000;
+    private static final long SHORT_WAIT_MILLIS = 50;
+    private static final long PACING_MILLIS = 100;
+    private static final long POLL_MILLIS = 10;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that a connection attempt waits for a creation slot of the pool, and times out after
+     * {@code maxWaitMillis}
+     *
+     * @throws SQLException When a creation slot cannot be acquired
+     */
+    @Test
+    public void poolLimitTest()
+            throws SQLException {
+
+        ConnectionProperties connProps = getConnProps(SHORT_WAIT_MILLIS);
+        connProps.setMaxConcurrentCreations(1);
+        PoolMetrics metrics = new PoolMetrics("poolLimitTest");
+        CreationThrottle throttle = new CreationThrottle(metrics, connProps);
+
+        throttle.acquire();
+        assertTimeout(throttle);
+        String error = "The throttled connection attempt has not been counted";
+        assertThat(error, metrics.getThrottledCreationCount(), is(equalTo(1L)));
+
+        throttle.release();
+        error = "The released creation slot cannot be acquired";
+        assertThat(error, throttle.isSaturated(), is(false));
+        throttle.acquire();
+        throttle.release();
+    }
+
+    /**
+     * Test that the global creation limit is shared by the pools that opt in, and does not apply to other pools
+     *
+     * @throws SQLException When a creation slot cannot be acquired
+     */
+    @Test
+    public void globalLimitTest()
+            throws SQLException {
+
+        ConnectionProperties connProps = getConnProps(SHORT_WAIT_MILLIS);
+        connProps.setGlobalMaxConcurrentCreations(1);
+        CreationThrottle throttle1 = new CreationThrottle(new PoolMetrics("globalLimitTest1"), connProps);
+        CreationThrottle throttle2 = new CreationThrottle(new PoolMetrics("globalLimitTest2"), connProps);
+        CreationThrottle local = new CreationThrottle(new PoolMetrics("globalLimitTest3"),
+                getConnProps(SHORT_WAIT_MILLIS));
+
+        try {
+            throttle1.acquire();
+            try {
+                assertTimeout(throttle2);
+
+                String error = "The global creation limit applies to a pool that does not share it";
+                assertThat(error, local.isSaturated(), is(false));
+                local.acquire();
+                local.release();
+            } finally {
+                throttle1.release();
+            }
+        } finally {
+            throttle1.close();
+            throttle2.close();
+        }
+
+        throttle1.acquire();
+        try {
+            String error = "The global creation limit applies after all pools that share it have been closed";
+            assertThat(error, throttle2.isSaturated(), is(false));
+        } finally {
+            throttle1.release();
+        }
+    }
+
+    /**
+     * Test that the global creation limit is the smallest value of the pools that share it, and is raised when the
+     * pool with the smallest value is closed
+     *
+     * @throws SQLException When a creation slot cannot be acquired
+     */
+    @Test
+    public void globalLimitMinimumTest()
+            throws SQLException {
+
+        ConnectionProperties connProps = getConnProps(SHORT_WAIT_MILLIS);
+        connProps.setGlobalMaxConcurrentCreations(2);
+        CreationThrottle large = new CreationThrottle(new PoolMetrics("globalLimitMinimumTest1"), connProps);
+        connProps = getConnProps(SHORT_WAIT_MILLIS);
+        connProps.setGlobalMaxConcurrentCreations(1);
+        CreationThrottle small = new CreationThrottle(new PoolMetrics("globalLimitMinimumTest2"), connProps);
+
+        try {
+            large.acquire();
+            try {
+                String error = "The global creation limit is not the smallest value of the pools that share it";
+                assertThat(error, large.isSaturated(), is(true));
+
+                small.close();
+                error = "The global creation limit is not raised when the pool with the smallest value is closed";
+                assertThat(error, large.isSaturated(), is(false));
+            } finally {
+                large.release();
+            }
+
+            connProps = getConnProps(SHORT_WAIT_MILLIS);
+            connProps.setGlobalMaxConcurrentCreations(1);
+            CreationThrottle late = new CreationThrottle(new PoolMetrics("globalLimitMinimumTest3"), connProps);
+            try {
+                large.acquire();
+                try {
+                    String error = "A pool created later does not lower the global creation limit";
+                    assertThat(error, large.isSaturated(), is(true));
+                } finally {
+                    large.release();
+                }
+            } finally {
+                late.close();
+            }
+        } finally {
+            large.close();
+            small.close();
+        }
+    }
+
+    /**
+     * Test that the connection attempts are spaced by at least half of the pacing interval
+     *
+     * @throws SQLException When a creation slot cannot be acquired
+     */
+    @Test
+    public void pacingTest()
+            throws SQLException {
+
+        ConnectionProperties connProps = getConnProps(MAX_WAIT_MILLIS);
+        connProps.setCreationPacingMillis(PACING_MILLIS);
+        CreationThrottle throttle = new CreationThrottle(new PoolMetrics("pacingTest"), connProps);
+
+        final int attempts = 3;
+        long start = System.nanoTime();
+        for (int i = 0; i < attempts; i++) {
+            throttle.acquire();
+            throttle.release();
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        String error = "The connection attempts have not been paced";
+        assertThat(error, elapsedMillis, is(greaterThanOrEqualTo((attempts - 1) * PACING_MILLIS / 2)));
+    }
+
+    /**
+     * Test that a borrower of the builtin pool is served by a returned connection while all creation slots are busy,
+     * instead of waiting for a creation slot
+     *
+     * @throws Exception When the pool cannot be used
+     */
+    @Test
+    public void servedByReturnedConnectionTest()
+            throws Exception {
+
+        ConnectionProperties connProps = getConnProps(MAX_WAIT_MILLIS);
+        connProps.setMaxConcurrentCreations(1);
+
+        Properties properties = new Properties();
+        properties.put("user", H2Server.USER);
+        properties.put("password", H2Server.PASSWORD);
+
+        PoolMetrics metrics = new PoolMetrics("servedByReturnedConnectionTest");
+        CreationThrottle throttle = new CreationThrottle(metrics, connProps);
+        final ManagedPool pool = new BuiltinPoolProvider().createPool(
+                new ConnectionCreator(H2Server.URL, properties, metrics, null, throttle), connProps);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Connection held = pool.getDataSource().getConnection();
+
+            // another connection attempt occupies the only creation slot
+            throttle.acquire();
+            try {
+                Future<Boolean> borrower = executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call()
+                            throws SQLException {
+
+                        try (Connection con = pool.getDataSource().getConnection()) {
+                            return con.isValid(1);
+                        }
+                    }
+                });
+                Thread.sleep(POLL_MILLIS * 2);
+                held.close();
+
+                String error = "The borrower has not been served by the returned connection";
+                assertThat(error, borrower.get(MAX_WAIT_MILLIS / 2, TimeUnit.MILLISECONDS), is(true));
+            } finally {
+                throttle.release();
+            }
+
+            String error = "A connection has been created while the creation slot was busy";
+            assertThat(error, metrics.getCreatedCount(), is(equalTo(1L)));
+        } finally {
+            executor.shutdownNow();
+            pool.close();
+        }
+    }
+
+    /**
+     * Assert that a connection attempt times out waiting for a creation slot
+     *
+     * @param throttle The creation throttle
+     * @throws SQLException When the connection attempt fails for another reason
+     */
+    private static void assertTimeout(final CreationThrottle throttle)
+            throws SQLException {
+
+        try {
+            throttle.acquire();
+            throttle.release();
+            fail("The connection attempt did not wait for a creation slot");
+        } catch (SQLTransientConnectionException e) {
+            // expected
+        }
+    }
+
+    /**
+     * @param maxWaitMillis The maximum time to wait for a connection
+     * @return Connection properties for the in-memory database that use the builtin pool engine
+     */
+    private static ConnectionProperties getConnProps(final long maxWaitMillis) {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setPoolEngine(BuiltinPoolProvider.NAME);
+        connProps.setMaxWaitMillis(maxWaitMillis);
+        return connProps;
+    }
+}
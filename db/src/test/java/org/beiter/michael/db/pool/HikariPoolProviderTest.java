@@ -0,0 +1,201 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.DataSourceFactory;
+import org.beiter.michael.db.FactoryException;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class HikariPoolProviderTest {
+
+    private static final int POOL_MAX_CONNECTIONS = 2;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that the HikariCP pool engine is selected from the connection properties and hands out working connections
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void hikariPoolEngineTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps();
+
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+
+        String error = "The data source is not a HikariCP data source";
+        assertThat(error, ds.isWrapperFor(com.zaxxer.hikari.HikariDataSource.class), is(true));
+
+        Connection con = ds.getConnection();
+        try {
+            ResultSet rs = con.prepareStatement("SELECT COUNT(id) AS count FROM some_table").executeQuery();
+            rs.next();
+
+            error = "The connection does not return the expected number of rows";
+            assertThat(error, rs.getInt("count"), is(equalTo(3)));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that the HikariCP pool engine does not return more connections than are available in the pool
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the pool is exhausted (expected)
+     */
+    @Test(expected = SQLException.class)
+    public void hikariPoolEngineExhaustedPoolTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setMaxWaitMillis(0); // fail as quickly as HikariCP allows if no connections are available
+
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+
+        Connection con1 = ds.getConnection();
+        Connection con2 = ds.getConnection();
+        try {
+            String error = "The DB connection 2 is same instance as DB connection 1";
+            assertThat(error, con2, is(not(sameInstance(con1))));
+
+            // the pool supports only 2 connections, borrowing a third connection times out
+            ds.getConnection();
+        } finally {
+            con1.close();
+            con2.close();
+        }
+    }
+
+    /**
+     * Test that the HikariCP pool provider rejects an invalid pool size
+     *
+     * @throws FactoryException When the pool cannot be created (expected)
+     */
+    @Test(expected = FactoryException.class)
+    public void hikariPoolEngineInvalidConfigTest()
+            throws FactoryException {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setMaxTotal(0);
+
+        DataSourceFactory.getDataSource(connProps);
+    }
+
+    /**
+     * Test that the HikariCP pool provider maps all JDBC transaction isolation levels, and rejects unknown levels
+     * instead of replacing them with a default
+     */
+    @Test
+    public void isolationLevelNameTest() {
+
+        String error = "The transaction isolation level has not been mapped";
+        assertThat(error, HikariPoolProvider.getIsolationLevelName(Connection.TRANSACTION_REPEATABLE_READ),
+                is(equalTo("TRANSACTION_REPEATABLE_READ")));
+        assertThat(error, HikariPoolProvider.getIsolationLevelName(Connection.TRANSACTION_SERIALIZABLE),
+                is(equalTo("TRANSACTION_SERIALIZABLE")));
+
+        try {
+            HikariPoolProvider.getIsolationLevelName(-1);
+            fail("An unknown transaction isolation level has been accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * @return Connection properties for the in-memory database that use the HikariCP pool engine
+     */
+    private static ConnectionProperties getConnProps() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setMaxTotal(POOL_MAX_CONNECTIONS);
+        connProps.setPoolEngine(HikariPoolProvider.NAME);
+        return connProps;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.DataSourceFactory;
+import org.beiter.michael.db.FactoryException;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.h2.jdbc.JdbcConnection;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class IdleValidationTest {
+
+    private static final int POOL_MAX_CONNECTIONS = 2;
+    private static final long SHORT_INTERVAL_MILLIS = 50;
+    private static final long LONG_INTERVAL_MILLIS = 60000;
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final long POLL_MILLIS = 10;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that the background validation evicts an idle connection that died, before it can be borrowed
+     *
+     * @throws FactoryException     When the pool cannot be created
+     * @throws SQLException         When the connection cannot be used
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void backgroundValidationTest()
+            throws FactoryException, SQLException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps(SHORT_INTERVAL_MILLIS);
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+        Connection con = ds.getConnection();
+        JdbcConnection physical = con.unwrap(JdbcConnection.class);
+        con.close();
+
+        // the database closes the idle connection
+        physical.close();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (metrics.getIdleValidationFailedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(POLL_MILLIS);
+        }
+
+        String error = "The dead idle connection has not been detected by the background validation";
+        assertThat(error, metrics.getIdleValidationFailedCount(), is(equalTo(1L)));
+        error = "The validation cycle has not been recorded";
+        assertThat(error, metrics.getIdleValidationCycleCount(), is(greaterThan(0L)));
+        error = "The dead idle connection has not been evicted";
+        assertThat(error, metrics.getNumIdle(), is(equalTo(0)));
+
+        con = ds.getConnection();
+        try {
+            error = "The dead idle connection has been handed out";
+            assertThat(error, con.unwrap(JdbcConnection.class), is(not(sameInstance(physical))));
+            assertThat(error, con.isValid(1), is(true));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that the background validation does not validate connections that have been used within the interval
+     *
+     * @throws FactoryException     When the pool cannot be created
+     * @throws SQLException         When the connection cannot be used
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void recentlyUsedConnectionTest()
+            throws FactoryException, SQLException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps(LONG_INTERVAL_MILLIS);
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+        ds.getConnection().close();
+        Thread.sleep(SHORT_INTERVAL_MILLIS);
+
+        String error = "A recently used connection has been validated in the background";
+        assertThat(error, metrics.getIdleValidatedCount(), is(equalTo(0L)));
+    }
+
+    /**
+     * Test that a failure reported by a borrower triggers the validation of the idle connections, so that a dead idle
+     * connection is not handed out even if the background validation is not due yet
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void repairTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps(LONG_INTERVAL_MILLIS);
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+        Connection con1 = ds.getConnection();
+        Connection con2 = ds.getConnection();
+        JdbcConnection physical1 = con1.unwrap(JdbcConnection.class);
+        JdbcConnection physical2 = con2.unwrap(JdbcConnection.class);
+        con1.setAutoCommit(false);
+        con2.close();
+
+        // the database goes away: both connections die
+        physical1.close();
+        physical2.close();
+
+        // the borrower reports the failure when the transaction cannot be rolled back on return
+        con1.close();
+
+        String error = "The failure reported by the borrower has not been recorded";
+        assertThat(error, metrics.getReportedFailureCount(), is(equalTo(1L)));
+
+        Connection con = ds.getConnection();
+        try {
+            error = "A dead idle connection has been handed out after a reported failure";
+            assertThat(error, con.unwrap(JdbcConnection.class), is(not(sameInstance(physical2))));
+            assertThat(error, con.isValid(1), is(true));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that the DBCP2 pool engine emulates the background validation with its evictor
+     */
+    @Test
+    public void dbcp2IdleValidationConfigTest() {
+
+        ConnectionProperties connProps = getConnProps(SHORT_INTERVAL_MILLIS);
+        connProps.setPoolEngine(Dbcp2PoolProvider.NAME);
+        connProps.setTestWhileIdle(false);
+        connProps.setTimeBetweenEvictionRunsMillis(LONG_INTERVAL_MILLIS);
+
+        GenericObjectPoolConfig poolConfig = Dbcp2PoolProvider.getPoolConfig(connProps);
+        String error = "The idle connections are not validated by the evictor";
+        assertThat(error, poolConfig.getTestWhileIdle(), is(true));
+        assertThat(error, poolConfig.getNumTestsPerEvictionRun(), is(equalTo(-1)));
+        error = "The evictor does not run at least once per validation interval";
+        assertThat(error, poolConfig.getTimeBetweenEvictionRunsMillis(), is(equalTo(SHORT_INTERVAL_MILLIS)));
+
+        connProps.setIdleValidationIntervalMillis(0);
+        poolConfig = Dbcp2PoolProvider.getPoolConfig(connProps);
+        error = "The evictor settings have been changed without background validation";
+        assertThat(error, poolConfig.getTestWhileIdle(), is(false));
+        assertThat(error, poolConfig.getTimeBetweenEvictionRunsMillis(), is(equalTo(LONG_INTERVAL_MILLIS)));
+    }
+
+    /**
+     * @param idleValidationIntervalMillis The interval of the background validation
+     * @return Connection properties for the in-memory database that use the builtin pool engine without validation on
+     * borrow
+     */
+    private static ConnectionProperties getConnProps(final long idleValidationIntervalMillis) {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setMaxTotal(POOL_MAX_CONNECTIONS);
+        connProps.setPoolEngine(BuiltinPoolProvider.NAME);
+        connProps.setTestOnBorrow(false);
+        connProps.setIdleValidationIntervalMillis(idleValidationIntervalMillis);
+        return connProps;
+    }
+}
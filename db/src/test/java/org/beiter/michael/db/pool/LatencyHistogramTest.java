@@ -0,0 +1,181 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class LatencyHistogramTest {
+
+    /**
+     * Test that an empty histogram reports zeros
+     */
+    @Test
+    public void emptyHistogramTest() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        String error = "The count of an empty histogram is not 0";
+        assertThat(error, histogram.getCount(), is(equalTo(0L)));
+        error = "The percentile of an empty histogram is not 0";
+        assertThat(error, histogram.getPercentile(99), is(equalTo(0L)));
+        error = "The mean of an empty histogram is not 0";
+        assertThat(error, histogram.getMean(), is(equalTo(0L)));
+    }
+
+    /**
+     * Test that every value is counted in a bucket whose upper bound is within 12.5% of the value
+     */
+    @Test
+    public void bucketBoundsTest() {
+
+        long[] values = {0, 1, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = LatencyHistogram.getBucket(value);
+            long upperBound = LatencyHistogram.getUpperBound(bucket);
+
+            String error = "The value " + value + " is larger than the upper bound of its bucket";
+            assertThat(error, upperBound, is(greaterThanOrEqualTo(value)));
+            error = "The upper bound of the bucket of " + value + " is not within 12.5%";
+            assertThat(error, (double) upperBound - value, is(lessThanOrEqualTo(value / 8d)));
+            if (bucket > 0) {
+                error = "The value " + value + " is not larger than the upper bound of the previous bucket";
+                assertThat(error, LatencyHistogram.getUpperBound(bucket - 1), is(lessThan(value)));
+            }
+        }
+    }
+
+    /**
+     * Test that the percentiles of a uniform distribution are within the error bounds
+     */
+    @Test
+    public void percentileTest() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+
+        String error = "The count does not match";
+        assertThat(error, histogram.getCount(), is(equalTo(10000L)));
+        error = "The median is not within the error bounds";
+        assertThat(error, histogram.getPercentile(50, TimeUnit.MICROSECONDS), is(both(greaterThanOrEqualTo(5000L))
+                .and(lessThanOrEqualTo(5625L))));
+        error = "The 99th percentile is not within the error bounds";
+        assertThat(error, histogram.getPercentile(99, TimeUnit.MICROSECONDS), is(both(greaterThanOrEqualTo(9900L))
+                .and(lessThanOrEqualTo(10000L))));
+        error = "The maximum does not match";
+        assertThat(error, histogram.getMax(), is(equalTo(TimeUnit.MICROSECONDS.toNanos(10000))));
+        error = "The mean does not match";
+        assertThat(error, histogram.getMean(), is(equalTo(TimeUnit.MICROSECONDS.toNanos(10001) / 2)));
+
+        histogram.reset();
+        error = "The histogram has not been reset";
+        assertThat(error, histogram.getCount(), is(equalTo(0L)));
+    }
+
+    /**
+     * Test that the percentiles of a window between two snapshots only include the values recorded in the window
+     */
+    @Test
+    public void windowPercentileTest() {
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 1000; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        long[] before = histogram.getBucketCounts();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        long[] after = histogram.getBucketCounts();
+
+        String error = "The window percentile includes values recorded before the window";
+        assertThat(error, LatencyHistogram.getPercentile(before, after, 99), is(both(
+                greaterThanOrEqualTo(TimeUnit.MICROSECONDS.toNanos(99))).and(lessThan(TimeUnit.MICROSECONDS.toNanos(
+                113)))));
+        error = "The empty window does not have a percentile of 0";
+        assertThat(error, LatencyHistogram.getPercentile(after, after, 99), is(equalTo(0L)));
+        error = "The sum does not match";
+        assertThat(error, histogram.getSum(), is(equalTo(TimeUnit.MILLISECONDS.toNanos(100000)
+                + TimeUnit.MICROSECONDS.toNanos(5050))));
+    }
+
+    /**
+     * Test that the histogram does not lose values that are recorded concurrently
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void concurrentRecordTest()
+            throws Exception {
+
+        final int threads = 16;
+        final int iterations = 10000;
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Future<?>[] results = new Future<?>[threads];
+            for (int i = 0; i < threads; i++) {
+                results[i] = executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int j = 0; j < iterations; j++) {
+                            histogram.record(j);
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        String error = "Concurrently recorded values have been lost";
+        assertThat(error, histogram.getCount(), is(equalTo((long) threads * iterations)));
+        error = "The maximum does not match";
+        assertThat(error, histogram.getMax(), is(equalTo(iterations - 1L)));
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.DataSourceFactory;
+import org.beiter.michael.db.FactoryException;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class LeakDetectingManagedPoolTest {
+
+    private static final int POOL_MAX_CONNECTIONS = 2;
+    private static final long THRESHOLD_MILLIS = 50;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that a connection held longer than the leak detection threshold is reported, but remains usable
+     *
+     * @throws FactoryException     When the pool cannot be created
+     * @throws SQLException         When the connection cannot be used
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void leakReportTest()
+            throws FactoryException, SQLException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setLeakDetectionThresholdMillis(THRESHOLD_MILLIS);
+
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+        Connection con = ds.getConnection();
+        try {
+            awaitCount(metrics, true, 1);
+
+            String error = "The reported connection is not usable";
+            assertThat(error, con.isValid(1), is(true));
+        } finally {
+            con.close();
+        }
+
+        Thread.sleep(THRESHOLD_MILLIS * 2);
+        String error = "The connection has been reported more than once";
+        assertThat(error, metrics.getLeakCount(), is(equalTo(1L)));
+        error = "A connection has been reclaimed";
+        assertThat(error, metrics.getAbandonedCount(), is(equalTo(0L)));
+        error = "The connection has not been returned to the pool";
+        assertThat(error, metrics.getNumActive(), is(equalTo(0)));
+    }
+
+    /**
+     * Test that a connection held longer than the abandoned timeout is returned to the pool, and that neither the
+     * connection nor its statements can be used by the borrower anymore
+     *
+     * @throws FactoryException     When the pool cannot be created
+     * @throws SQLException         When the connection cannot be used
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void abandonedReclaimTest()
+            throws FactoryException, SQLException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setAbandonedTimeoutMillis(THRESHOLD_MILLIS);
+        connProps.setLeakDetectionStackSampleRate(0);
+
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+        Connection con = ds.getConnection();
+        Statement statement = con.createStatement();
+        awaitCount(metrics, false, 1);
+
+        String error = "The reclaimed connection is not closed";
+        assertThat(error, con.isClosed(), is(true));
+        error = "The statement of the reclaimed connection is not closed";
+        assertThat(error, statement.isClosed(), is(true));
+        error = "The reclaimed connection has not been returned to the pool";
+        assertThat(error, metrics.getNumActive(), is(equalTo(0)));
+
+        try {
+            con.createStatement();
+            fail("The reclaimed connection can still be used");
+        } catch (SQLException e) {
+            error = "The exception does not explain that the connection has been reclaimed";
+            assertThat(error, e.getMessage(), containsString("reclaimed"));
+        }
+        try {
+            statement.executeQuery("SELECT 1");
+            fail("The statement of the reclaimed connection can still be used");
+        } catch (SQLException e) {
+            // expected
+        }
+
+        // closing the reclaimed connection is a no-op
+        con.close();
+        error = "The pool does not hand out connections after a reclaim";
+        Connection con2 = ds.getConnection();
+        try {
+            assertThat(error, con2.isValid(1), is(true));
+        } finally {
+            con2.close();
+        }
+    }
+
+    /**
+     * Test that the leak detector cannot be created when both leak detection and abandoned connection removal are
+     * disabled
+     *
+     * @throws FactoryException When the pool cannot be created
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void leakDetectionDisabledTest()
+            throws FactoryException {
+
+        ConnectionProperties connProps = getConnProps();
+
+        Properties properties = new Properties();
+        properties.put("user", H2Server.USER);
+        properties.put("password", H2Server.PASSWORD);
+
+        PoolMetrics metrics = new PoolMetrics("leakDetectionDisabledTest");
+        ManagedPool pool = new BuiltinPoolProvider().createPool(new ConnectionCreator(H2Server.URL, properties,
+                metrics), connProps);
+        try {
+            new LeakDetectingManagedPool(pool, metrics, 0, 0, 1);
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     * Wait until the pool has reported (or reclaimed) the expected number of connections
+     *
+     * @param metrics  The pool metrics
+     * @param leaks    {@code true} to wait for reported leaks, {@code false} to wait for reclaimed connections
+     * @param expected The expected number of connections
+     * @throws InterruptedException When the test is interrupted
+     */
+    private static void awaitCount(final PoolMetrics metrics, final boolean leaks, final long expected)
+            throws InterruptedException {
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            long count = leaks ? metrics.getLeakCount() : metrics.getAbandonedCount();
+            if (count >= expected) {
+                return;
+            }
+            Thread.sleep(THRESHOLD_MILLIS / 5);
+        }
+        fail("The leak detector did not detect the connection within " + TIMEOUT_MILLIS + "ms");
+    }
+
+    /**
+     * @return Connection properties for the in-memory database
+     */
+    private static ConnectionProperties getConnProps() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setMaxTotal(POOL_MAX_CONNECTIONS);
+        return connProps;
+    }
+}
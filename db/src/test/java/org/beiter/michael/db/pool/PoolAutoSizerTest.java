@@ -0,0 +1,270 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.DataSourceFactory;
+import org.beiter.michael.db.FactoryException;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class PoolAutoSizerTest {
+
+    private static final long MANUAL_INTERVAL_MILLIS = 60000;
+    private static final long SHORT_INTERVAL_MILLIS = 50;
+    private static final long HOLD_MILLIS = 50;
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final long POLL_MILLIS = 10;
+    private static final int MAX_TOTAL = 4;
+
+    private MeteredManagedPool pool;
+    private PoolAutoSizer autoSizer;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Stop the auto-sizer and close the pool of the test
+     */
+    @After
+    public void closePool() {
+
+        if (autoSizer != null) {
+            autoSizer.stop();
+            autoSizer = null;
+        }
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+    /**
+     * Test that the pool is grown when borrowers have to wait
+     *
+     * @throws SQLException         When the connections cannot be used
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void growTest()
+            throws SQLException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps(MANUAL_INTERVAL_MILLIS);
+        connProps.setMaxTotal(1);
+        createAutoSizedPool(connProps);
+        final DataSource ds = pool.getDataSource();
+
+        // hold the only connection, so that the next borrower has to wait
+        final CountDownLatch borrowed = new CountDownLatch(1);
+        Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try (Connection con = ds.getConnection()) {
+                    borrowed.countDown();
+                    Thread.sleep(HOLD_MILLIS);
+                } catch (SQLException | InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        holder.start();
+        borrowed.await();
+        ds.getConnection().close();
+        holder.join();
+
+        autoSizer.adjust();
+
+        PoolMetrics metrics = pool.getMetrics();
+        String error = "The pool has not been grown";
+        assertThat(error, metrics.getAutoSizedMaxTotal(), is(greaterThan(1)));
+        assertThat(error, metrics.getAutoSizeGrowCount(), is(equalTo(1L)));
+        error = "The decision has not been recorded";
+        assertThat(error, metrics.getAutoSizeDecisionCount(), is(equalTo(2L)));
+
+        try (Connection con1 = ds.getConnection(); Connection con2 = ds.getConnection()) {
+            error = "The grown pool does not hand out a second connection";
+            assertThat(error, con2, is(not(sameInstance(con1))));
+        }
+    }
+
+    /**
+     * Test that an idle pool is shrunk gradually, down to the lower bound
+     */
+    @Test
+    public void shrinkTest() {
+
+        ConnectionProperties connProps = getConnProps(MANUAL_INTERVAL_MILLIS);
+        connProps.setMaxTotal(MAX_TOTAL);
+        createAutoSizedPool(connProps);
+        PoolMetrics metrics = pool.getMetrics();
+
+        String error = "The initial size does not match";
+        assertThat(error, metrics.getAutoSizedMaxTotal(), is(equalTo(MAX_TOTAL)));
+
+        autoSizer.adjust();
+        error = "The idle pool has not been shrunk gradually";
+        assertThat(error, metrics.getAutoSizedMaxTotal(), is(equalTo(MAX_TOTAL - 1)));
+
+        for (int i = 0; i < MAX_TOTAL; i++) {
+            autoSizer.adjust();
+        }
+        error = "The idle pool has not been shrunk to the lower bound";
+        assertThat(error, metrics.getAutoSizedMaxTotal(), is(equalTo(1)));
+        assertThat(error, metrics.getAutoSizedMinIdle(), is(equalTo(0)));
+        error = "The decisions have not been recorded";
+        assertThat(error, metrics.getAutoSizeShrinkCount(), is(equalTo((long) MAX_TOTAL - 1)));
+        assertThat(error, metrics.getAutoSizeGrowCount(), is(equalTo(0L)));
+    }
+
+    /**
+     * Test that pools created by the data source factory are auto-sized within the configured bounds, and that
+     * reconfiguring the pool replaces the bounds
+     *
+     * @throws FactoryException     When the pool cannot be created or reconfigured
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void dataSourceFactoryTest()
+            throws FactoryException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps(SHORT_INTERVAL_MILLIS);
+        connProps.setMaxTotal(100);
+        DataSourceFactory.getDataSource(connProps);
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+        String error = "The initial size has not been limited to the upper bound";
+        assertThat(error, metrics.getAutoSizedMaxTotal(), is(equalTo(MAX_TOTAL)));
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (metrics.getAutoSizedMaxTotal() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(POLL_MILLIS);
+        }
+        error = "The idle pool has not been shrunk in the background";
+        assertThat(error, metrics.getAutoSizedMaxTotal(), is(equalTo(1)));
+
+        connProps.setAutoSizeMinTotal(2);
+        DataSourceFactory.reconfigure(connProps);
+
+        deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (metrics.getAutoSizedMaxTotal() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(POLL_MILLIS);
+        }
+        error = "The new lower bound has not been applied";
+        assertThat(error, metrics.getAutoSizedMaxTotal(), is(equalTo(2)));
+    }
+
+    /**
+     * Create a builtin pool with an auto-sizer, and apply the initial size
+     *
+     * @param connProps The connection properties
+     */
+    private void createAutoSizedPool(final ConnectionProperties connProps) {
+
+        Properties properties = new Properties();
+        properties.put("user", H2Server.USER);
+        properties.put("password", H2Server.PASSWORD);
+
+        PoolMetrics metrics = new PoolMetrics("autosizer-test");
+        ManagedPool builtin = new BuiltinPoolProvider().createPool(
+                new ConnectionCreator(H2Server.URL, properties, metrics), connProps);
+        pool = new MeteredManagedPool(builtin, metrics);
+        autoSizer = new PoolAutoSizer(pool, metrics, connProps);
+        autoSizer.start();
+    }
+
+    /**
+     * @param autoSizeIntervalMillis The auto-sizing interval
+     * @return Connection properties for the in-memory database that use the builtin pool engine with auto-sizing
+     */
+    private static ConnectionProperties getConnProps(final long autoSizeIntervalMillis) {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setPoolEngine(BuiltinPoolProvider.NAME);
+        connProps.setAutoSizeIntervalMillis(autoSizeIntervalMillis);
+        connProps.setAutoSizeMinTotal(1);
+        connProps.setAutoSizeMaxTotal(MAX_TOTAL);
+        connProps.setAutoSizeWaitThresholdMillis(1);
+        return connProps;
+    }
+}
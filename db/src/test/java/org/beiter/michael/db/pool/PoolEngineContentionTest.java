@@ -0,0 +1,250 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.DataSourceFactory;
+import org.beiter.michael.db.FactoryException;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * A small benchmark that compares the pool engines under contention, i.e. with more borrowing threads than there are
+ * connections in the pool.
+ * <p>
+ * The results are logged (INFO) for comparison, only the correctness of the borrow / return cycles is asserted.
+ */
+public class PoolEngineContentionTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PoolEngineContentionTest.class);
+
+    private static final int POOL_MAX_CONNECTIONS = 4;
+    private static final int THREADS = 16;
+    private static final int BORROWS_PER_THREAD = 500;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Benchmark the DBCP2 pool engine under contention
+     *
+     * @throws Exception When the benchmark fails
+     */
+    @Test
+    public void dbcp2ContentionTest()
+            throws Exception {
+
+        runContentionBenchmark(Dbcp2PoolProvider.NAME);
+    }
+
+    /**
+     * Benchmark the HikariCP pool engine under contention
+     *
+     * @throws Exception When the benchmark fails
+     */
+    @Test
+    public void hikariContentionTest()
+            throws Exception {
+
+        runContentionBenchmark(HikariPoolProvider.NAME);
+    }
+
+    /**
+     * Benchmark the builtin pool engine under contention
+     *
+     * @throws Exception When the benchmark fails
+     */
+    @Test
+    public void builtinContentionTest()
+            throws Exception {
+
+        runContentionBenchmark(BuiltinPoolProvider.NAME);
+    }
+
+    /**
+     * Run a borrow / query / return cycle on many threads against a small pool, and log the throughput and latency.
+     *
+     * @param poolEngine The pool engine to benchmark
+     * @throws Exception When the benchmark fails
+     */
+    static void runContentionBenchmark(final String poolEngine)
+            throws Exception {
+
+        final DataSource ds = getDataSource(poolEngine);
+
+        // warm up the pool and the JIT before measuring
+        runBorrowCycles(ds, THREADS, BORROWS_PER_THREAD / 5);
+
+        final long start = System.nanoTime();
+        final long[] latencies = runBorrowCycles(ds, THREADS, BORROWS_PER_THREAD);
+        final long elapsedNanos = System.nanoTime() - start;
+
+        final long borrows = (long) THREADS * BORROWS_PER_THREAD;
+        String error = "Not all borrow cycles completed";
+        assertThat(error, (long) latencies.length, is(equalTo(borrows)));
+
+        Arrays.sort(latencies);
+        LOG.info(String.format("Pool engine '%s': %d threads, %d connections, %.0f borrows/s,"
+                        + " borrow latency p50=%dus p99=%dus max=%dus",
+                poolEngine, THREADS, POOL_MAX_CONNECTIONS,
+                borrows / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1)),
+                TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length / 2]),
+                TimeUnit.NANOSECONDS.toMicros(latencies[(int) (latencies.length * 0.99)]),
+                TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length - 1])));
+    }
+
+    /**
+     * Borrow, use, and return connections on the provided number of threads
+     *
+     * @param ds         The data source to borrow from
+     * @param threads    The number of borrowing threads
+     * @param iterations The number of borrow cycles per thread
+     * @return The borrow latencies in nanoseconds
+     * @throws Exception When a borrow cycle fails
+     */
+    static long[] runBorrowCycles(final DataSource ds, final int threads, final int iterations)
+            throws Exception {
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<long[]>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call()
+                            throws SQLException {
+
+                        final long[] latencies = new long[iterations];
+                        for (int j = 0; j < iterations; j++) {
+                            final long start = System.nanoTime();
+                            final Connection con = ds.getConnection();
+                            latencies[j] = System.nanoTime() - start;
+                            try {
+                                con.prepareStatement("SELECT 1").executeQuery().close();
+                            } finally {
+                                con.close();
+                            }
+                        }
+                        return latencies;
+                    }
+                }));
+            }
+
+            final long[] all = new long[threads * iterations];
+            int pos = 0;
+            for (final Future<long[]> result : results) {
+                final long[] latencies = result.get();
+                System.arraycopy(latencies, 0, all, pos, latencies.length);
+                pos += latencies.length;
+            }
+            return all;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Get a pooled data source for the in-memory database
+     *
+     * @param poolEngine The pool engine to use
+     * @return A pooled data source
+     * @throws FactoryException When the pool cannot be created
+     */
+    private static DataSource getDataSource(final String poolEngine)
+            throws FactoryException {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setMaxTotal(POOL_MAX_CONNECTIONS);
+        connProps.setMaxIdle(POOL_MAX_CONNECTIONS);
+        connProps.setPoolEngine(poolEngine);
+
+        return DataSourceFactory.getDataSource(connProps);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.DataSourceFactory;
+import org.beiter.michael.db.FactoryException;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class PoolMetricsTest {
+
+    private static final int POOL_MAX_CONNECTIONS = 2;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that the metrics of a pool created by the data source factory track the borrowed connections
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void dataSourceFactoryMetricsTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps();
+
+        String error = "Metrics are returned for a pool that does not exist";
+        assertThat(error, DataSourceFactory.getPoolMetrics(connProps), is(nullValue()));
+
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+        error = "No metrics are returned for the pool";
+        assertThat(error, metrics, is(notNullValue()));
+        Map<String, PoolMetrics> allMetrics = DataSourceFactory.getPoolMetrics();
+        error = "The metrics are not returned in the map of all metrics";
+        assertThat(error, allMetrics.values(), hasItem(sameInstance(metrics)));
+
+        Connection con1 = ds.getConnection();
+        Connection con2 = ds.getConnection();
+
+        error = "The number of active connections is incorrect";
+        assertThat(error, metrics.getNumActive(), is(equalTo(2)));
+        error = "The number of created connections is incorrect";
+        assertThat(error, metrics.getCreatedCount(), is(equalTo(2L)));
+        error = "The number of borrowed connections is incorrect";
+        assertThat(error, metrics.getBorrowCount(), is(equalTo(2L)));
+        error = "The creation time has not been recorded";
+        assertThat(error, metrics.getCreationTime().getCount(), is(equalTo(2L)));
+
+        con1.close();
+        con2.close();
+        con2.close();
+
+        error = "The number of active connections is incorrect";
+        assertThat(error, metrics.getNumActive(), is(equalTo(0)));
+        error = "The number of idle connections is incorrect";
+        assertThat(error, metrics.getNumIdle(), is(equalTo(2)));
+        error = "The hold time has not been recorded once per borrowed connection";
+        assertThat(error, metrics.getHoldTime().getCount(), is(equalTo(2L)));
+        error = "The number of waiting threads is incorrect";
+        assertThat(error, metrics.getNumWaiters(), is(equalTo(0)));
+    }
+
+    /**
+     * Test that the destroyed connections are counted
+     *
+     * @throws SQLException When the connection cannot be used
+     */
+    @Test
+    public void destroyedCountTest()
+            throws SQLException {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setMaxIdle(0);
+
+        Properties properties = new Properties();
+        properties.put("user", H2Server.USER);
+        properties.put("password", H2Server.PASSWORD);
+
+        PoolMetrics metrics = new PoolMetrics("destroyedCountTest");
+        ConnectionCreator creator = new ConnectionCreator(H2Server.URL, properties, metrics);
+        MeteredManagedPool pool = new MeteredManagedPool(new BuiltinPoolProvider().createPool(creator, connProps),
+                metrics);
+        try {
+            // no idle connections are kept, so the connection is closed when it is returned
+            pool.getDataSource().getConnection().close();
+
+            String error = "The number of created connections is incorrect";
+            assertThat(error, metrics.getCreatedCount(), is(equalTo(1L)));
+            error = "The number of destroyed connections is incorrect";
+            assertThat(error, metrics.getDestroyedCount(), is(equalTo(1L)));
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     * Test that the metrics are registered with JMX while the pool is open
+     *
+     * @throws JMException  When the MBean cannot be queried
+     * @throws SQLException When the connection cannot be used
+     */
+    @Test
+    public void jmxRegistrationTest()
+            throws JMException, SQLException {
+
+        ConnectionProperties connProps = getConnProps();
+
+        Properties properties = new Properties();
+        properties.put("user", H2Server.USER);
+        properties.put("password", H2Server.PASSWORD);
+
+        PoolMetrics metrics = new PoolMetrics("jmx:test,pool");
+        ConnectionCreator creator = new ConnectionCreator(H2Server.URL, properties, metrics);
+        MeteredManagedPool pool = new MeteredManagedPool(new BuiltinPoolProvider().createPool(creator, connProps),
+                metrics);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.beiter.michael.db:type=ConnectionPool,name="
+                + ObjectName.quote("jmx:test,pool"));
+        try {
+            Connection con = pool.getDataSource().getConnection();
+            try {
+                String error = "The MBean does not report the active connection";
+                assertThat(error, (Integer) server.getAttribute(name, "NumActive"), is(equalTo(1)));
+            } finally {
+                con.close();
+            }
+        } finally {
+            pool.close();
+        }
+
+        String error = "The MBean has not been unregistered";
+        assertThat(error, server.isRegistered(name), is(false));
+    }
+
+    /**
+     * @return Connection properties for the in-memory database
+     */
+    private static ConnectionProperties getConnProps() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setMaxTotal(POOL_MAX_CONNECTIONS);
+        return connProps;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.DataSourceFactory;
+import org.beiter.michael.db.FactoryException;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class PoolReconfigurationTest {
+
+    private static final int POOL_MAX_CONNECTIONS = 3;
+    private static final long MAX_WAIT_MILLIS = 100;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that reconfiguring connection parameters without a pool does not create a pool
+     *
+     * @throws FactoryException When the pool cannot be reconfigured
+     */
+    @Test
+    public void noPoolTest()
+            throws FactoryException {
+
+        ConnectionProperties connProps = getConnProps(BuiltinPoolProvider.NAME, 1);
+
+        String error = "A pool that does not exist has been reconfigured";
+        assertThat(error, DataSourceFactory.reconfigure(connProps), is(false));
+        error = "A pool has been created";
+        assertThat(error, DataSourceFactory.getPoolMetrics(connProps), is(nullValue()));
+    }
+
+    /**
+     * Test that a pool of each pool engine can grow while a connection is borrowed, and that the borrowed connection
+     * remains usable
+     *
+     * @throws FactoryException When the pool cannot be created or reconfigured
+     * @throws SQLException     When a connection cannot be used
+     */
+    @Test
+    public void growTest()
+            throws FactoryException, SQLException {
+
+        for (final String poolEngine : new String[]{
+                BuiltinPoolProvider.NAME, Dbcp2PoolProvider.NAME, HikariPoolProvider.NAME}) {
+
+            ConnectionFactory.reset();
+            ConnectionProperties connProps = getConnProps(poolEngine, 1);
+            DataSource ds = DataSourceFactory.getDataSource(connProps);
+
+            Connection con1 = ds.getConnection();
+            try {
+                assertExhausted(ds, poolEngine);
+
+                connProps.setMaxTotal(2);
+                String error = "The pool has not been reconfigured (" + poolEngine + ")";
+                assertThat(error, DataSourceFactory.reconfigure(connProps), is(true));
+
+                Connection con2 = ds.getConnection();
+                con2.close();
+
+                error = "The borrowed connection is not usable after the reconfiguration (" + poolEngine + ")";
+                assertThat(error, con1.isValid(1), is(true));
+            } finally {
+                con1.close();
+            }
+        }
+    }
+
+    /**
+     * Test that surplus connections are retired when they are returned after the pool has shrunk
+     *
+     * @throws FactoryException When the pool cannot be created or reconfigured
+     * @throws SQLException     When a connection cannot be used
+     */
+    @Test
+    public void shrinkTest()
+            throws FactoryException, SQLException {
+
+        for (final String poolEngine : new String[]{BuiltinPoolProvider.NAME, Dbcp2PoolProvider.NAME}) {
+
+            ConnectionFactory.reset();
+            ConnectionProperties connProps = getConnProps(poolEngine, POOL_MAX_CONNECTIONS);
+            DataSource ds = DataSourceFactory.getDataSource(connProps);
+            PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+            Connection[] connections = new Connection[POOL_MAX_CONNECTIONS];
+            for (int i = 0; i < POOL_MAX_CONNECTIONS; i++) {
+                connections[i] = ds.getConnection();
+            }
+
+            connProps.setMaxTotal(1);
+            connProps.setMaxIdle(1);
+            DataSourceFactory.reconfigure(connProps);
+
+            String error = "A borrowed connection has been closed by the reconfiguration (" + poolEngine + ")";
+            for (final Connection connection : connections) {
+                assertThat(error, connection.isValid(1), is(true));
+                connection.close();
+            }
+
+            error = "The surplus connections have not been retired (" + poolEngine + ")";
+            assertThat(error, metrics.getNumIdle(), is(equalTo(1)));
+            assertThat(error, metrics.getNumActive(), is(equalTo(0)));
+        }
+    }
+
+    /**
+     * Test that the semaphore acquisition mode follows the new pool size
+     *
+     * @throws FactoryException When the pool cannot be created or reconfigured
+     * @throws SQLException     When a connection cannot be used
+     */
+    @Test
+    public void semaphoreResizeTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps(BuiltinPoolProvider.NAME, 1);
+        connProps.setAcquisitionMode(SemaphoreManagedPool.ACQUISITION_MODE);
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+
+        Connection con1 = ds.getConnection();
+        try {
+            assertExhausted(ds, SemaphoreManagedPool.ACQUISITION_MODE);
+
+            connProps.setMaxTotal(2);
+            DataSourceFactory.reconfigure(connProps);
+            Connection con2 = ds.getConnection();
+
+            connProps.setMaxTotal(1);
+            DataSourceFactory.reconfigure(connProps);
+            con2.close();
+
+            // the permit of the returned connection is not handed out again
+            assertExhausted(ds, SemaphoreManagedPool.ACQUISITION_MODE);
+        } finally {
+            con1.close();
+        }
+
+        ds.getConnection().close();
+    }
+
+    /**
+     * Assert that a data source cannot hand out another connection
+     *
+     * @param ds   The data source
+     * @param name The name of the pool engine or acquisition mode under test
+     */
+    private static void assertExhausted(final DataSource ds, final String name) {
+
+        try {
+            ds.getConnection().close();
+            fail("The pool handed out more connections than configured (" + name + ")");
+        } catch (SQLException e) {
+            // expected
+        }
+    }
+
+    /**
+     * @param poolEngine The name of the pool engine
+     * @param maxTotal   The maximum number of connections
+     * @return Connection properties for the in-memory database that use the provided pool engine
+     */
+    private static ConnectionProperties getConnProps(final String poolEngine, final int maxTotal) {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setMaxTotal(maxTotal);
+        connProps.setMaxIdle(maxTotal);
+        connProps.setMaxWaitMillis(MAX_WAIT_MILLIS);
+        connProps.setPoolEngine(poolEngine);
+        return connProps;
+    }
+}
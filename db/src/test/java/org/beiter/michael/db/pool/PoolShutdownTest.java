@@ -0,0 +1,219 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.DataSourceFactory;
+import org.beiter.michael.db.FactoryException;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class PoolShutdownTest {
+
+    private static final long GRACE_PERIOD_MILLIS = 500;
+    private static final long LONG_GRACE_PERIOD_MILLIS = 10000;
+    private static final long RETURN_DELAY_MILLIS = 100;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that a reset closes the pool, so that the old data source no longer hands out connections
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void resetClosesPoolTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps(H2Server.URL, 0);
+
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+        ds.getConnection().close();
+
+        DataSourceFactory.reset();
+
+        try {
+            ds.getConnection();
+            fail("The data source of a closed pool handed out a connection");
+        } catch (SQLException e) {
+            String error = "The exception does not report the shutdown";
+            assertThat(error, e.getMessage(), containsString("shutting down"));
+        }
+    }
+
+    /**
+     * Test that a reset waits for a borrowed connection that is returned within the grace period
+     *
+     * @throws FactoryException     When the pool cannot be created
+     * @throws SQLException         When the connection cannot be used
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void gracefulDrainTest()
+            throws FactoryException, SQLException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps(H2Server.URL, LONG_GRACE_PERIOD_MILLIS);
+
+        final Connection con = DataSourceFactory.getDataSource(connProps).getConnection();
+        final AtomicBoolean returned = new AtomicBoolean();
+
+        Thread borrower = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    Thread.sleep(RETURN_DELAY_MILLIS);
+                    con.createStatement().execute("SELECT 1");
+                    con.close();
+                    returned.set(true);
+                } catch (InterruptedException | SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        borrower.start();
+
+        long start = System.nanoTime();
+        DataSourceFactory.reset();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        borrower.join();
+
+        String error = "The reset did not wait for the borrowed connection";
+        assertThat(error, elapsedMillis, is(greaterThanOrEqualTo(RETURN_DELAY_MILLIS / 2)));
+        error = "The reset waited for the whole grace period although the connection has been returned";
+        assertThat(error, elapsedMillis, is(lessThan(LONG_GRACE_PERIOD_MILLIS)));
+        error = "The borrower could not use and return the connection during the grace period";
+        assertThat(error, returned.get(), is(true));
+    }
+
+    /**
+     * Test that pools are shut down in parallel, and that connections that are not returned within the grace period
+     * are closed forcibly
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void parallelForcedShutdownTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps1 = getConnProps(H2Server.URL, GRACE_PERIOD_MILLIS);
+        ConnectionProperties connProps2 = getConnProps(H2Server.URL + ";TRACE_LEVEL_SYSTEM_OUT=0", GRACE_PERIOD_MILLIS);
+
+        Connection con1 = DataSourceFactory.getDataSource(connProps1).getConnection();
+        Connection con2 = DataSourceFactory.getDataSource(connProps2).getConnection();
+
+        long start = System.nanoTime();
+        DataSourceFactory.reset();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        String error = "The reset did not wait for the grace period";
+        assertThat(error, elapsedMillis, is(greaterThanOrEqualTo(GRACE_PERIOD_MILLIS)));
+        error = "The pools have not been shut down in parallel";
+        assertThat(error, elapsedMillis, is(lessThan(GRACE_PERIOD_MILLIS * 2)));
+        error = "The borrowed connection has not been closed forcibly";
+        assertThat(error, con1.isClosed(), is(true));
+        assertThat(error, con2.isClosed(), is(true));
+
+        try {
+            con1.createStatement();
+            fail("A forcibly closed connection can still be used");
+        } catch (SQLException e) {
+            // expected
+        }
+    }
+
+    /**
+     * @param url                       The JDBC URL of the pool
+     * @param shutdownGracePeriodMillis The shutdown grace period of the pool
+     * @return Connection properties for the in-memory database
+     */
+    private static ConnectionProperties getConnProps(final String url, final long shutdownGracePeriodMillis) {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(url);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setShutdownGracePeriodMillis(shutdownGracePeriodMillis);
+        return connProps;
+    }
+}
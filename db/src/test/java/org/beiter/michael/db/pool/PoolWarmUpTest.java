@@ -0,0 +1,204 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.DataSourceFactory;
+import org.beiter.michael.db.FactoryException;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class PoolWarmUpTest {
+
+    private static final int POOL_MAX_CONNECTIONS = 4;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that a pool without an initial size is not warmed up
+     *
+     * @throws FactoryException     When the pool cannot be created
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void noWarmUpTest()
+            throws FactoryException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps(Dbcp2PoolProvider.NAME);
+
+        DataSourceFactory.getDataSource(connProps);
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+        String error = "The pool has been warmed up";
+        assertThat(error, metrics.getNumIdle(), is(equalTo(0)));
+        assertThat(error, metrics.getWarmUpMicros(), is(equalTo(-1L)));
+        error = "Waiting for a pool without warm-up does not return immediately";
+        assertThat(error, DataSourceFactory.awaitWarmUp(connProps, 0, TimeUnit.MILLISECONDS), is(true));
+    }
+
+    /**
+     * Test that the pool is warm when the data source is returned from a synchronous warm-up
+     *
+     * @throws FactoryException When the pool cannot be created
+     */
+    @Test
+    public void synchronousWarmUpTest()
+            throws FactoryException {
+
+        ConnectionProperties connProps = getConnProps(Dbcp2PoolProvider.NAME);
+        connProps.setInitialSize(POOL_MAX_CONNECTIONS);
+
+        DataSourceFactory.getDataSource(connProps);
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+        assertWarm(metrics, POOL_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Test that a background warm-up can be awaited, using the builtin pool engine
+     *
+     * @throws FactoryException     When the pool cannot be created
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void backgroundWarmUpTest()
+            throws FactoryException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps(BuiltinPoolProvider.NAME);
+        connProps.setInitialSize(POOL_MAX_CONNECTIONS);
+        connProps.setWarmUpInBackground(true);
+
+        DataSourceFactory.getDataSource(connProps);
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+        String error = "The background warm-up did not finish in time";
+        assertThat(error, DataSourceFactory.awaitWarmUp(connProps, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), is(true));
+        assertWarm(metrics, POOL_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Test that the warm-up does not open more connections than the pool can hold
+     *
+     * @throws FactoryException When the pool cannot be created
+     */
+    @Test
+    public void warmUpLimitedToMaxTotalTest()
+            throws FactoryException {
+
+        ConnectionProperties connProps = getConnProps(Dbcp2PoolProvider.NAME);
+        connProps.setInitialSize(POOL_MAX_CONNECTIONS * 2);
+
+        DataSourceFactory.getDataSource(connProps);
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+        assertWarm(metrics, POOL_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Assert that a pool has been warmed up with the expected number of connections
+     *
+     * @param metrics     The metrics of the pool
+     * @param connections The expected number of connections
+     */
+    private static void assertWarm(final PoolMetrics metrics, final int connections) {
+
+        String error = "The warm-up did not open the expected number of connections";
+        assertThat(error, metrics.getWarmUpConnections(), is(equalTo(connections)));
+        error = "The warm-up connections are not idle in the pool";
+        assertThat(error, metrics.getNumIdle(), is(equalTo(connections)));
+        assertThat(error, metrics.getNumActive(), is(equalTo(0)));
+        error = "The warm-up duration has not been recorded";
+        assertThat(error, metrics.getWarmUpMicros(), is(greaterThanOrEqualTo(0L)));
+    }
+
+    /**
+     * @param poolEngine The name of the pool engine
+     * @return Connection properties for the in-memory database that use the provided pool engine
+     */
+    private static ConnectionProperties getConnProps(final String poolEngine) {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setMaxTotal(POOL_MAX_CONNECTIONS);
+        connProps.setMaxIdle(POOL_MAX_CONNECTIONS);
+        connProps.setPoolEngine(poolEngine);
+        return connProps;
+    }
+}
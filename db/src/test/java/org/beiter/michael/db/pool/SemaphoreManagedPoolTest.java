@@ -0,0 +1,400 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.DataSourceFactory;
+import org.beiter.michael.db.FactoryException;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SemaphoreManagedPoolTest {
+
+    private static final int POOL_MAX_CONNECTIONS = 16;
+
+    /**
+     * The number of threads that queue for a connection. Java 7 has no virtual threads, so this uses platform threads,
+     * which shows the same property: waiting threads are parked, and never blocked on a monitor.
+     */
+    private static final int WAITING_THREADS = 2000;
+
+    private ManagedPool pool;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Close the pool created by the test (if any)
+     */
+    @After
+    public void closePool() {
+
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+    /**
+     * Test that the semaphore acquisition mode is selected from the connection properties and hands out working
+     * connections
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void semaphoreAcquisitionModeTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setAcquisitionMode(SemaphoreManagedPool.ACQUISITION_MODE);
+
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+
+        Connection con = ds.getConnection();
+        try {
+            String error = "The connection is not gated by a semaphore";
+            assertThat(error, con.isWrapperFor(SemaphoreManagedPool.PermitConnection.class), is(true));
+            error = "The connection is not valid";
+            assertThat(error, con.isValid(1), is(true));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that the semaphore does not hand out more connections than are available in the pool
+     *
+     * @throws SQLException When the pool is exhausted (expected)
+     */
+    @Test(expected = SQLException.class)
+    public void semaphoreExhaustedPoolTest()
+            throws SQLException {
+
+        DataSource ds = createPool(1, 0);
+
+        Connection con = ds.getConnection();
+        try {
+            ds.getConnection();
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that closing a connection twice releases only one permit
+     *
+     * @throws SQLException When the connection cannot be used
+     */
+    @Test
+    public void semaphoreDoubleCloseTest()
+            throws SQLException {
+
+        DataSource ds = createPool(1, 0);
+
+        Connection con = ds.getConnection();
+        con.close();
+        con.close();
+
+        String error = "The returned connection is not closed";
+        assertThat(error, con.isClosed(), is(true));
+
+        Connection con1 = ds.getConnection();
+        try {
+            ds.getConnection();
+            throw new AssertionError("The second close has released an additional permit");
+        } catch (SQLException e) {
+            // expected, the pool only has one permit
+        } finally {
+            con1.close();
+        }
+    }
+
+    /**
+     * Test that a failed reconfiguration (because the underlying pool cannot be reconfigured) does not shrink the gate
+     *
+     * @throws SQLException When the connection cannot be used
+     */
+    @Test
+    public void semaphoreReconfigureUnsupportedTest()
+            throws SQLException {
+
+        final ManagedPool dbcp2Pool = createDbcp2Pool(1, 0);
+        final ManagedPool plainPool = new ManagedPool() {
+            @Override
+            public DataSource getDataSource() {
+                return dbcp2Pool.getDataSource();
+            }
+
+            @Override
+            public int getNumActive() {
+                return dbcp2Pool.getNumActive();
+            }
+
+            @Override
+            public int getNumIdle() {
+                return dbcp2Pool.getNumIdle();
+            }
+
+            @Override
+            public void close() {
+                dbcp2Pool.close();
+            }
+        };
+        SemaphoreManagedPool semaphorePool = new SemaphoreManagedPool(plainPool, 1, 0);
+        pool = semaphorePool;
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setMaxTotal(0);
+        try {
+            semaphorePool.reconfigure(connProps);
+            throw new AssertionError("The reconfiguration of a non-reconfigurable pool did not fail");
+        } catch (UnsupportedOperationException e) {
+            // expected, the underlying pool cannot be reconfigured
+        }
+
+        Connection con = pool.getDataSource().getConnection();
+        try {
+            String error = "The connection is not valid after the failed reconfiguration";
+            assertThat(error, con.isValid(1), is(true));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that reconfiguring to an unlimited {@code maxTotal} opens the gate
+     *
+     * @throws SQLException When the connection cannot be used
+     */
+    @Test
+    public void semaphoreReconfigureUnlimitedTest()
+            throws SQLException {
+
+        createPool(1, 0);
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setMaxTotal(-1);
+        connProps.setMaxIdle(2);
+        connProps.setMaxWaitMillis(0);
+        ((SemaphoreManagedPool) pool).reconfigure(connProps);
+
+        Connection con1 = pool.getDataSource().getConnection();
+        try {
+            Connection con2 = pool.getDataSource().getConnection();
+            try {
+                String error = "The second connection is not valid";
+                assertThat(error, con2.isValid(1), is(true));
+            } finally {
+                con2.close();
+            }
+        } finally {
+            con1.close();
+        }
+
+        String error = "The number of active connections is wrong";
+        assertThat(error, pool.getNumActive(), is(0));
+    }
+
+    /**
+     * Test that thousands of threads can queue for a small pool, that the waiting threads are parked instead of being
+     * blocked on a monitor, and that all of them eventually get a connection
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void semaphoreManyWaitersTest()
+            throws Exception {
+
+        final DataSource ds = createPool(POOL_MAX_CONNECTIONS, -1);
+
+        // hold all connections, so that all threads have to queue
+        List<Connection> held = new ArrayList<>();
+        for (int i = 0; i < POOL_MAX_CONNECTIONS; i++) {
+            held.add(ds.getConnection());
+        }
+
+        final CountDownLatch done = new CountDownLatch(WAITING_THREADS);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < WAITING_THREADS; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        Connection con = ds.getConnection();
+                        try {
+                            con.prepareStatement("SELECT 1").executeQuery().close();
+                        } finally {
+                            con.close();
+                        }
+                    } catch (SQLException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        SemaphoreManagedPool semaphorePool = (SemaphoreManagedPool) pool;
+        long deadline = System.currentTimeMillis() + 30000;
+        while (semaphorePool.getNumWaiters() < WAITING_THREADS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        String error = "Not all threads are queued for a connection";
+        assertThat(error, semaphorePool.getNumWaiters(), is(equalTo(WAITING_THREADS)));
+
+        int blocked = 0;
+        for (Thread thread : threads) {
+            if (thread.getState() == Thread.State.BLOCKED) {
+                blocked++;
+            }
+        }
+        error = "Threads waiting for a connection are blocked on a monitor";
+        assertThat(error, blocked, is(equalTo(0)));
+
+        for (Connection con : held) {
+            con.close();
+        }
+
+        error = "Not all waiting threads got a connection";
+        assertThat(error, done.await(60, TimeUnit.SECONDS), is(true));
+        error = "Some threads failed to get a connection";
+        assertThat(error, failures.get(), is(equalTo(0)));
+        error = "Not all connections have been returned to the pool";
+        assertThat(error, pool.getNumActive(), is(equalTo(0)));
+    }
+
+    /**
+     * Create a semaphore gated DBCP2 pool for the in-memory database, which is closed after the test
+     *
+     * @param maxTotal      The maximum number of connections
+     * @param maxWaitMillis The maximum time to wait for a connection
+     * @return The pooled data source
+     */
+    private DataSource createPool(final int maxTotal, final long maxWaitMillis) {
+
+        pool = new SemaphoreManagedPool(createDbcp2Pool(maxTotal, maxWaitMillis), maxTotal, maxWaitMillis);
+        return pool.getDataSource();
+    }
+
+    /**
+     * Create a DBCP2 pool for the in-memory database
+     *
+     * @param maxTotal      The maximum number of connections
+     * @param maxWaitMillis The maximum time to wait for a connection
+     * @return The pool
+     */
+    private static ManagedPool createDbcp2Pool(final int maxTotal, final long maxWaitMillis) {
+
+        ConnectionProperties connProps = getConnProps();
+        connProps.setMaxTotal(maxTotal);
+        connProps.setMaxIdle(maxTotal);
+        connProps.setMaxWaitMillis(maxWaitMillis);
+
+        Properties properties = new Properties();
+        properties.put("user", H2Server.USER);
+        properties.put("password", H2Server.PASSWORD);
+
+        return new Dbcp2PoolProvider().createPool(new ConnectionCreator(H2Server.URL, properties), connProps);
+    }
+
+    /**
+     * @return Connection properties for the in-memory database
+     */
+    private static ConnectionProperties getConnProps() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        return connProps;
+    }
+}
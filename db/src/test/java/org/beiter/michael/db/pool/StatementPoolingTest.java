@@ -0,0 +1,410 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.DataSourceFactory;
+import org.beiter.michael.db.FactoryException;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.h2.jdbc.JdbcPreparedStatement;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class StatementPoolingTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StatementPoolingTest.class);
+
+    private static final int POOL_MAX_CONNECTIONS = 2;
+    private static final int QUERIES_PER_RUN = 20000;
+    private static final String QUERY = "SELECT value FROM some_table WHERE id = ?";
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that the builtin pool engine reuses a closed prepared statement for the same SQL
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void builtinStatementPoolingTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps(BuiltinPoolProvider.NAME);
+
+        Connection con = DataSourceFactory.getDataSource(connProps).getConnection();
+        try {
+            PreparedStatement stmt1 = con.prepareStatement(QUERY);
+            JdbcPreparedStatement physical1 = stmt1.unwrap(JdbcPreparedStatement.class);
+            stmt1.setInt(1, 1);
+            ResultSet rs = stmt1.executeQuery();
+
+            String error = "The pooled statement does not return the connection it has been prepared on";
+            assertThat(error, stmt1.getConnection(), is(sameInstance(con)));
+            error = "The pooled statement does not return the expected row";
+            assertThat(error, rs.next(), is(true));
+
+            stmt1.close();
+            error = "The pooled statement is not closed";
+            assertThat(error, stmt1.isClosed(), is(true));
+            error = "The result set of the pooled statement has not been closed";
+            assertThat(error, rs.isClosed(), is(true));
+            try {
+                stmt1.executeQuery();
+                fail("The closed pooled statement can still be used");
+            } catch (SQLException e) {
+                error = "The exception does not explain that the statement is closed";
+                assertThat(error, e.getMessage(), containsString("closed"));
+            }
+
+            PreparedStatement stmt2 = con.prepareStatement(QUERY);
+            error = "The physical statement has not been reused";
+            assertThat(error, stmt2.unwrap(JdbcPreparedStatement.class), is(sameInstance(physical1)));
+            error = "The proxy of a closed statement has been reused";
+            assertThat(error, stmt2, is(not(sameInstance(stmt1))));
+
+            PreparedStatement stmt3 = con.prepareStatement(QUERY);
+            error = "A statement in use has been handed out twice";
+            assertThat(error, stmt3.unwrap(JdbcPreparedStatement.class), is(not(sameInstance(physical1))));
+
+            stmt2.close();
+            stmt3.close();
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that the builtin pool engine closes the least recently used statement when the cache is full
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void builtinStatementEvictionTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps(BuiltinPoolProvider.NAME);
+        connProps.setMaxOpenPreparedStatements(2);
+
+        Connection con = DataSourceFactory.getDataSource(connProps).getConnection();
+        try {
+            JdbcPreparedStatement first = prepareAndClose(con, "SELECT 1");
+            JdbcPreparedStatement second = prepareAndClose(con, "SELECT 2");
+            JdbcPreparedStatement third = prepareAndClose(con, "SELECT 3");
+
+            String error = "The least recently used statement has not been closed";
+            assertThat(error, first.isClosed(), is(true));
+            error = "A recently used statement has been closed";
+            assertThat(error, second.isClosed(), is(false));
+            assertThat(error, third.isClosed(), is(false));
+            error = "The recently used statement has not been reused";
+            assertThat(error, prepareAndClose(con, "SELECT 3"), is(sameInstance(third)));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that the statements that the borrower did not close are returned to the cache with the connection
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void builtinUnclosedStatementTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps(BuiltinPoolProvider.NAME);
+        connProps.setMaxTotal(1);
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+
+        Connection con = ds.getConnection();
+        PreparedStatement stmt = con.prepareStatement(QUERY);
+        JdbcPreparedStatement physical = stmt.unwrap(JdbcPreparedStatement.class);
+        con.close();
+
+        String error = "The unclosed statement has not been closed with the connection";
+        assertThat(error, stmt.isClosed(), is(true));
+
+        con = ds.getConnection();
+        try {
+            error = "The unclosed statement has not been returned to the cache";
+            assertThat(error, prepareAndClose(con, QUERY), is(sameInstance(physical)));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that rows added to the batch of a pooled statement, but not executed, are not executed by the next user of
+     * the statement
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void builtinStatementBatchResetTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps(BuiltinPoolProvider.NAME);
+        String insert = "INSERT INTO some_table (id, key, value) VALUES (?, ?, ?)";
+
+        Connection con = DataSourceFactory.getDataSource(connProps).getConnection();
+        try {
+            PreparedStatement stmt = con.prepareStatement(insert);
+            JdbcPreparedStatement physical = stmt.unwrap(JdbcPreparedStatement.class);
+            stmt.setInt(1, 4);
+            stmt.setString(2, "key4");
+            stmt.setString(3, "value4");
+            stmt.addBatch();
+            stmt.close();
+
+            stmt = con.prepareStatement(insert);
+            String error = "The physical statement has not been reused";
+            assertThat(error, stmt.unwrap(JdbcPreparedStatement.class), is(sameInstance(physical)));
+            stmt.setInt(1, 5);
+            stmt.setString(2, "key5");
+            stmt.setString(3, "value5");
+            stmt.addBatch();
+            int[] updateCounts = stmt.executeBatch();
+            stmt.close();
+
+            error = "The rows of the previous batch have been executed";
+            assertThat(error, updateCounts.length, is(equalTo(1)));
+            ResultSet rs = con.prepareStatement("SELECT COUNT(*) FROM some_table").executeQuery();
+            rs.next();
+            assertThat(error, rs.getInt(1), is(equalTo(4)));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that a pooled statement whose properties have been changed is not reused
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void builtinStatementPropertiesResetTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps(BuiltinPoolProvider.NAME);
+
+        Connection con = DataSourceFactory.getDataSource(connProps).getConnection();
+        try {
+            PreparedStatement stmt = con.prepareStatement(QUERY);
+            JdbcPreparedStatement physical = stmt.unwrap(JdbcPreparedStatement.class);
+            stmt.setMaxRows(1);
+            stmt.close();
+
+            stmt = con.prepareStatement(QUERY);
+            try {
+                String error = "The statement with changed properties has been reused";
+                assertThat(error, stmt.unwrap(JdbcPreparedStatement.class), is(not(sameInstance(physical))));
+                assertThat(error, stmt.getMaxRows(), is(equalTo(0)));
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that the DBCP2 pool engine reuses a closed prepared statement for the same SQL
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void dbcp2StatementPoolingTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps(Dbcp2PoolProvider.NAME);
+
+        Connection con = DataSourceFactory.getDataSource(connProps).getConnection();
+        try {
+            JdbcPreparedStatement physical = prepareAndClose(con, QUERY);
+
+            String error = "The physical statement has not been reused";
+            assertThat(error, prepareAndClose(con, QUERY), is(sameInstance(physical)));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Run a repeated-query workload with and without statement pooling, and log the throughput
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void repeatedQueryBenchmarkTest()
+            throws FactoryException, SQLException {
+
+        for (String poolEngine : new String[]{Dbcp2PoolProvider.NAME, BuiltinPoolProvider.NAME}) {
+            for (boolean poolStatements : new boolean[]{false, true}) {
+                // closing the pools drops the in-memory database when no other connection is open
+                ConnectionFactory.reset();
+                H2Server.init();
+                ConnectionProperties connProps = getConnProps(poolEngine);
+                connProps.setPoolPreparedStatements(poolStatements);
+                DataSource ds = DataSourceFactory.getDataSource(connProps);
+
+                // warm up the pool and the JIT before measuring
+                runQueries(ds, QUERIES_PER_RUN);
+
+                long start = System.nanoTime();
+                runQueries(ds, QUERIES_PER_RUN);
+                long elapsedNanos = System.nanoTime() - start;
+
+                LOG.info(String.format("Pool engine %s, statement pooling %s: %.0f queries/s, %.1fus per query",
+                        poolEngine, poolStatements,
+                        QUERIES_PER_RUN / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1)),
+                        elapsedNanos / (double) TimeUnit.MICROSECONDS.toNanos(1) / QUERIES_PER_RUN));
+            }
+        }
+    }
+
+    /**
+     * Borrow a connection, run a parameterized query, and return the connection
+     *
+     * @param ds      The data source
+     * @param queries The number of queries to run
+     * @throws SQLException When a query fails
+     */
+    private static void runQueries(final DataSource ds, final int queries)
+            throws SQLException {
+
+        for (int i = 0; i < queries; i++) {
+            Connection con = ds.getConnection();
+            try {
+                PreparedStatement stmt = con.prepareStatement(QUERY);
+                stmt.setInt(1, i % 3 + 1);
+                ResultSet rs = stmt.executeQuery();
+                if (!rs.next()) {
+                    throw new IllegalStateException("The query did not return a row");
+                }
+                stmt.close();
+            } finally {
+                con.close();
+            }
+        }
+    }
+
+    /**
+     * Prepare and close a statement
+     *
+     * @param con The connection
+     * @param sql The SQL of the statement
+     * @return The physical statement
+     * @throws SQLException When the statement cannot be prepared
+     */
+    private static JdbcPreparedStatement prepareAndClose(final Connection con, final String sql)
+            throws SQLException {
+
+        PreparedStatement stmt = con.prepareStatement(sql);
+        JdbcPreparedStatement physical = stmt.unwrap(JdbcPreparedStatement.class);
+        stmt.close();
+        return physical;
+    }
+
+    /**
+     * @param poolEngine The pool engine
+     * @return Connection properties for the in-memory database with statement pooling enabled
+     */
+    private static ConnectionProperties getConnProps(final String poolEngine) {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setMaxTotal(POOL_MAX_CONNECTIONS);
+        connProps.setPoolEngine(poolEngine);
+        connProps.setPoolPreparedStatements(true);
+        return connProps;
+    }
+}
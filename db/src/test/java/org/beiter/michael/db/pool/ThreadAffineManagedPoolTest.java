@@ -0,0 +1,360 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.DataSourceFactory;
+import org.beiter.michael.db.FactoryException;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ThreadAffineManagedPoolTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ThreadAffineManagedPoolTest.class);
+
+    private static final long AFFINITY_MILLIS = 60000;
+    private static final long SHORT_AFFINITY_MILLIS = 20;
+    private static final long MAX_WAIT_MILLIS = 1000;
+    private static final int BENCHMARK_BORROWS = 100000;
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that a thread gets the connection back that it has returned last, and that the parked connection counts as
+     * idle
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void affinityHitTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps(AFFINITY_MILLIS);
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+        Connection con = ds.getConnection();
+        con.close();
+
+        String error = "The parked connection is not counted as idle";
+        assertThat(error, metrics.getNumActive(), is(equalTo(0)));
+        assertThat(error, metrics.getNumIdle(), is(equalTo(1)));
+
+        con = ds.getConnection();
+        try {
+            error = "The parked connection has not been handed back to the thread";
+            assertThat(error, metrics.getAffinityHitCount(), is(equalTo(1L)));
+            assertThat(error, con.isValid(1), is(true));
+        } finally {
+            con.close();
+        }
+
+        error = "The closed connection can still be used";
+        assertThat(error, con.isClosed(), is(true));
+    }
+
+    /**
+     * Test that another thread steals the parked connection when the pool has no idle connections left
+     *
+     * @throws Exception When the connection cannot be borrowed
+     */
+    @Test
+    public void stealTest()
+            throws Exception {
+
+        ConnectionProperties connProps = getConnProps(AFFINITY_MILLIS);
+        final DataSource ds = DataSourceFactory.getDataSource(connProps);
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+        // park the only connection of the pool for this thread
+        ds.getConnection().close();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            boolean valid = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call()
+                        throws SQLException {
+
+                    try (Connection con = ds.getConnection()) {
+                        return con.isValid(1);
+                    }
+                }
+            }).get();
+
+            String error = "The parked connection has not been stolen by the other thread";
+            assertThat(error, valid, is(true));
+            assertThat(error, metrics.getAffinityStealCount(), is(equalTo(1L)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test that the connection parked by a thread that has died is returned to the pool engine, instead of staying
+     * parked until another thread needs to steal it
+     *
+     * @throws Exception When the connection cannot be borrowed
+     */
+    @Test
+    public void deadThreadReclaimTest()
+            throws Exception {
+
+        ConnectionProperties connProps = getConnProps(AFFINITY_MILLIS);
+        final DataSource ds = DataSourceFactory.getDataSource(connProps);
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                try {
+                    ds.getConnection().close();
+                } catch (SQLException e) {
+                    LOG.error("Cannot borrow a connection", e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+
+        String error = "The connection of the thread has not been parked";
+        assertThat(error, metrics.getNumIdle(), is(equalTo(1)));
+
+        Connection con = ds.getConnection();
+        try {
+            error = "The connection parked by the dead thread has not been returned to the pool engine";
+            assertThat(error, metrics.getAffinityStealCount(), is(equalTo(0L)));
+            assertThat(error, con.isValid(1), is(true));
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Test that connections with changed settings and connections that have been parked for too long are returned to
+     * the pool engine instead of being handed back
+     *
+     * @throws FactoryException     When the pool cannot be created
+     * @throws SQLException         When the connection cannot be used
+     * @throws InterruptedException When the test is interrupted
+     */
+    @Test
+    public void notParkedTest()
+            throws FactoryException, SQLException, InterruptedException {
+
+        ConnectionProperties connProps = getConnProps(SHORT_AFFINITY_MILLIS);
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+        Connection con = ds.getConnection();
+        con.setAutoCommit(false);
+        con.close();
+        con = ds.getConnection();
+        try {
+            String error = "The connection with changed settings has been parked";
+            assertThat(error, metrics.getAffinityHitCount(), is(equalTo(0L)));
+            assertThat(error, con.getAutoCommit(), is(true));
+        } finally {
+            con.close();
+        }
+
+        Thread.sleep(SHORT_AFFINITY_MILLIS * 2);
+        ds.getConnection().close();
+        String error = "The connection has been handed back after the thread affinity time";
+        assertThat(error, metrics.getAffinityHitCount(), is(equalTo(0L)));
+    }
+
+    /**
+     * Test that the open transaction of a parked connection is rolled back before the connection is handed out again,
+     * and that a connection with a changed transaction isolation is not parked
+     *
+     * @throws Exception When the connection cannot be used
+     */
+    @Test
+    public void parkedConnectionResetTest()
+            throws Exception {
+
+        ConnectionProperties connProps = getConnProps(AFFINITY_MILLIS);
+        connProps.setDefaultAutoCommit(false);
+        final DataSource ds = DataSourceFactory.getDataSource(connProps);
+        PoolMetrics metrics = DataSourceFactory.getPoolMetrics(connProps);
+
+        Connection con = ds.getConnection();
+        con.prepareStatement("INSERT INTO some_table (id, key, value) VALUES (4, 'key4', 'value4')").execute();
+        con.close();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            int rows = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call()
+                        throws SQLException {
+
+                    try (Connection stolen = ds.getConnection();
+                         ResultSet rs = stolen.prepareStatement("SELECT COUNT(*) FROM some_table").executeQuery()) {
+                        rs.next();
+                        return rs.getInt(1);
+                    }
+                }
+            }).get();
+
+            String error = "The uncommitted insert of the previous borrower is visible to the next borrower";
+            assertThat(error, metrics.getAffinityStealCount(), is(equalTo(1L)));
+            assertThat(error, rows, is(equalTo(3)));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        con = ds.getConnection();
+        con.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
+        con.close();
+        long hits = metrics.getAffinityHitCount();
+        ds.getConnection().close();
+        String error = "The connection with a changed transaction isolation has been parked";
+        assertThat(error, metrics.getAffinityHitCount(), is(equalTo(hits)));
+    }
+
+    /**
+     * Benchmark a borrow / return cycle on a single thread, with and without thread affinity in front of the DBCP2 pool
+     * engine
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void borrowBenchmarkTest()
+            throws FactoryException, SQLException {
+
+        long withoutAffinity = runBorrowCycles(getConnProps(0));
+        ConnectionFactory.reset();
+        long withAffinity = runBorrowCycles(getConnProps(AFFINITY_MILLIS));
+
+        LOG.info(String.format("Pool engine '%s': borrow / return cycle %dns without thread affinity,"
+                        + " %dns with thread affinity",
+                Dbcp2PoolProvider.NAME, withoutAffinity / BENCHMARK_BORROWS, withAffinity / BENCHMARK_BORROWS));
+    }
+
+    /**
+     * Borrow and return a connection repeatedly (after a warm-up)
+     *
+     * @param connProps The connection properties
+     * @return The time of the measured borrow cycles in nanoseconds
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    private static long runBorrowCycles(final ConnectionProperties connProps)
+            throws FactoryException, SQLException {
+
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+        for (int i = 0; i < BENCHMARK_BORROWS; i++) {
+            ds.getConnection().close();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_BORROWS; i++) {
+            ds.getConnection().close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @param threadAffinityMillis The thread affinity time
+     * @return Connection properties for the in-memory database with a single connection, using the DBCP2 pool engine
+     */
+    private static ConnectionProperties getConnProps(final long threadAffinityMillis) {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setPoolEngine(Dbcp2PoolProvider.NAME);
+        connProps.setMaxTotal(1);
+        connProps.setMaxWaitMillis(MAX_WAIT_MILLIS);
+        connProps.setThreadAffinityMillis(threadAffinityMillis);
+        return connProps;
+    }
+}
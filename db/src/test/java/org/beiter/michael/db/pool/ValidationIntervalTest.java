@@ -0,0 +1,282 @@
+/*
+ * #%L
+ * This file is part of a universal JDBC Connection factory.
+ * %%
+ * Copyright (C) 2014 - 2016 Michael Beiter <michael@beiter.org>
+ * %%
+ * All rights reserved.
+ * .
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the copyright holder nor the names of the
+ *       contributors may be used to endorse or promote products derived
+ *       from this software without specific prior written permission.
+ * .
+ * .
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.beiter.michael.db.pool;
+
+import org.beiter.michael.db.ConnectionFactory;
+import org.beiter.michael.db.ConnectionProperties;
+import org.beiter.michael.db.DataSourceFactory;
+import org.beiter.michael.db.FactoryException;
+import org.beiter.michael.db.H2Server;
+import org.beiter.michael.db.propsbuilder.MapBasedConnPropsBuilder;
+import org.h2.jdbc.JdbcConnection;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ValidationIntervalTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ValidationIntervalTest.class);
+
+    private static final int POOL_MAX_CONNECTIONS = 2;
+    private static final int BORROWS_PER_RUN = 20000;
+    private static final long VALIDATION_INTERVAL_MILLIS = 60000;
+
+    /**
+     * A validation query that always fails, which makes every validation visible as a replaced connection
+     */
+    private static final String FAILING_VALIDATION_QUERY = "SELECT * FROM no_such_table";
+
+    /**
+     * Start the in-memory database server
+     *
+     * @throws SQLException When the startup fails
+     */
+    @BeforeClass
+    public static void startDbServer()
+            throws SQLException {
+
+        H2Server.start();
+    }
+
+    /**
+     * Stops the in-memory database server
+     */
+    @AfterClass
+    public static void stopDbServer() {
+
+        H2Server.stop();
+    }
+
+    /**
+     * Initialize the database with a default database schema + values
+     *
+     * @throws SQLException When the initialization fails
+     */
+    @Before
+    public void initDatabase()
+            throws SQLException {
+
+        H2Server.init();
+        ConnectionFactory.reset();
+    }
+
+    /**
+     * Test that the builtin pool engine validates every borrowed connection if no validation interval is configured
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void builtinNoValidationIntervalTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps(BuiltinPoolProvider.NAME);
+        connProps.setValidationQuery(FAILING_VALIDATION_QUERY);
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+
+        JdbcConnection physical1 = borrowAndReturn(ds);
+        JdbcConnection physical2 = borrowAndReturn(ds);
+
+        String error = "The connection has not been validated on borrow";
+        assertThat(error, physical2, is(not(sameInstance(physical1))));
+        error = "The connection that failed the validation has not been closed";
+        assertThat(error, physical1.isClosed(), is(true));
+    }
+
+    /**
+     * Test that the builtin pool engine does not validate a connection that has been used within the validation
+     * interval
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void builtinValidationIntervalTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps(BuiltinPoolProvider.NAME);
+        connProps.setValidationQuery(FAILING_VALIDATION_QUERY);
+        connProps.setValidationIntervalMillis(VALIDATION_INTERVAL_MILLIS);
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+
+        JdbcConnection physical1 = borrowAndReturn(ds);
+        JdbcConnection physical2 = borrowAndReturn(ds);
+
+        String error = "The recently used connection has been validated on borrow";
+        assertThat(error, physical2, is(sameInstance(physical1)));
+    }
+
+    /**
+     * Test that the DBCP2 pool engine does not validate a connection that has been returned within the validation
+     * interval
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void dbcp2ValidationIntervalTest()
+            throws FactoryException, SQLException {
+
+        ConnectionProperties connProps = getConnProps(Dbcp2PoolProvider.NAME);
+        connProps.setValidationQuery(FAILING_VALIDATION_QUERY);
+        connProps.setValidationIntervalMillis(VALIDATION_INTERVAL_MILLIS);
+        DataSource ds = DataSourceFactory.getDataSource(connProps);
+
+        JdbcConnection physical1 = borrowAndReturn(ds);
+        JdbcConnection physical2 = borrowAndReturn(ds);
+
+        String error = "The recently used connection has been validated on borrow";
+        assertThat(error, physical2, is(sameInstance(physical1)));
+    }
+
+    /**
+     * Test that connections are validated with <code>Connection.isValid()</code> if no validation query is configured
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void isValidValidationTest()
+            throws FactoryException, SQLException {
+
+        for (String poolEngine : new String[]{Dbcp2PoolProvider.NAME, BuiltinPoolProvider.NAME}) {
+            ConnectionFactory.reset();
+            ConnectionProperties connProps = getConnProps(poolEngine);
+            connProps.setValidationQuery(null);
+            DataSource ds = DataSourceFactory.getDataSource(connProps);
+
+            JdbcConnection physical1 = borrowAndReturn(ds);
+            JdbcConnection physical2 = borrowAndReturn(ds);
+
+            String error = "The valid connection has not been reused by pool engine " + poolEngine;
+            assertThat(error, physical2, is(sameInstance(physical1)));
+        }
+    }
+
+    /**
+     * Borrow and return connections with a validation query, with <code>Connection.isValid()</code>, and with a
+     * validation interval, and log the borrow latency
+     *
+     * @throws FactoryException When the pool cannot be created
+     * @throws SQLException     When the connection cannot be used
+     */
+    @Test
+    public void borrowLatencyBenchmarkTest()
+            throws FactoryException, SQLException {
+
+        for (String poolEngine : new String[]{Dbcp2PoolProvider.NAME, BuiltinPoolProvider.NAME}) {
+            for (String validation : new String[]{"query", "isValid", "interval"}) {
+                ConnectionFactory.reset();
+                ConnectionProperties connProps = getConnProps(poolEngine);
+                if ("isValid".equals(validation)) {
+                    connProps.setValidationQuery(null);
+                } else if ("interval".equals(validation)) {
+                    connProps.setValidationIntervalMillis(VALIDATION_INTERVAL_MILLIS);
+                }
+                DataSource ds = DataSourceFactory.getDataSource(connProps);
+
+                // warm up the pool and the JIT before measuring
+                borrowAndReturn(ds, BORROWS_PER_RUN);
+
+                long start = System.nanoTime();
+                borrowAndReturn(ds, BORROWS_PER_RUN);
+                long elapsedNanos = System.nanoTime() - start;
+
+                LOG.info(String.format("Pool engine %s, validation %s: %.2fus per borrow / return",
+                        poolEngine, validation,
+                        elapsedNanos / (double) TimeUnit.MICROSECONDS.toNanos(1) / BORROWS_PER_RUN));
+            }
+        }
+    }
+
+    /**
+     * Borrow a connection and return it to the pool
+     *
+     * @param ds The data source
+     * @return The physical connection
+     * @throws SQLException When the connection cannot be borrowed
+     */
+    private static JdbcConnection borrowAndReturn(final DataSource ds)
+            throws SQLException {
+
+        Connection con = ds.getConnection();
+        try {
+            return con.unwrap(JdbcConnection.class);
+        } finally {
+            con.close();
+        }
+    }
+
+    /**
+     * Borrow connections and return them to the pool
+     *
+     * @param ds      The data source
+     * @param borrows The number of connections to borrow
+     * @throws SQLException When a connection cannot be borrowed
+     */
+    private static void borrowAndReturn(final DataSource ds, final int borrows)
+            throws SQLException {
+
+        for (int i = 0; i < borrows; i++) {
+            ds.getConnection().close();
+        }
+    }
+
+    /**
+     * @param poolEngine The pool engine
+     * @return Connection properties for the in-memory database that validate connections on borrow
+     */
+    private static ConnectionProperties getConnProps(final String poolEngine) {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+        connProps.setDriver(H2Server.DRIVER);
+        connProps.setUrl(H2Server.URL);
+        connProps.setUsername(H2Server.USER);
+        connProps.setPassword(H2Server.PASSWORD);
+        connProps.setMaxTotal(POOL_MAX_CONNECTIONS);
+        connProps.setPoolEngine(poolEngine);
+        connProps.setTestOnBorrow(true);
+        return connProps;
+    }
+}
@@ -1011,6 +1011,11 @@ public class MapBasedConnPropsBuilderTest {
         ConnectionProperties connProps2 = new ConnectionProperties(connProps);
         error = "copy constructor does not copy field";
         assertThat(error, connProps2.getValidationQuery(), is(equalTo("42")));
+
+        map.put(MapBasedConnPropsBuilder.KEY_VALIDATION_QUERY, " ISVALID ");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "validationQuery does not select Connection.isValid()";
+        assertThat(error, connProps.getValidationQuery(), is(nullValue()));
     }
 
     /**
@@ -1056,6 +1061,1271 @@ public class MapBasedConnPropsBuilderTest {
         assertThat(error, connProps2.getMaxConnLifetimeMillis(), is(equalTo(42l)));
     }
 
+    /**
+     * default poolEngine test
+     */
+    @Test
+    public void defaultPoolEngineTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "poolEngine does not match expected default value";
+        assertThat(error, connProps.getPoolEngine(), is(equalTo("dbcp2")));
+        error = "poolEngine does not match expected value";
+        connProps.setPoolEngine("42");
+        assertThat(error, connProps.getPoolEngine(), is(equalTo("42")));
+    }
+
+    /**
+     * poolEngine test
+     */
+    @Test
+    public void poolEngineTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_POOL_ENGINE, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "poolEngine does not match expected default value";
+        assertThat(error, connProps.getPoolEngine(), is(equalTo("dbcp2")));
+
+        map.put(MapBasedConnPropsBuilder.KEY_POOL_ENGINE, " ");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "poolEngine does not match expected value";
+        assertThat(error, connProps.getPoolEngine(), is(equalTo("dbcp2")));
+
+        map.put(MapBasedConnPropsBuilder.KEY_POOL_ENGINE, "hikari");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "poolEngine does not match expected value";
+        assertThat(error, connProps.getPoolEngine(), is(equalTo("hikari")));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getPoolEngine(), is(equalTo("hikari")));
+    }
+
+    /**
+     * default acquisitionMode test
+     */
+    @Test
+    public void defaultAcquisitionModeTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "acquisitionMode does not match expected default value";
+        assertThat(error, connProps.getAcquisitionMode(), is(equalTo("pool")));
+        error = "acquisitionMode does not match expected value";
+        connProps.setAcquisitionMode("42");
+        assertThat(error, connProps.getAcquisitionMode(), is(equalTo("42")));
+    }
+
+    /**
+     * acquisitionMode test
+     */
+    @Test
+    public void acquisitionModeTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_ACQUISITION_MODE, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "acquisitionMode does not match expected default value";
+        assertThat(error, connProps.getAcquisitionMode(), is(equalTo("pool")));
+
+        map.put(MapBasedConnPropsBuilder.KEY_ACQUISITION_MODE, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "acquisitionMode does not match expected value";
+        assertThat(error, connProps.getAcquisitionMode(), is(equalTo("asdf")));
+
+        map.put(MapBasedConnPropsBuilder.KEY_ACQUISITION_MODE, "semaphore");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "acquisitionMode does not match expected value";
+        assertThat(error, connProps.getAcquisitionMode(), is(equalTo("semaphore")));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getAcquisitionMode(), is(equalTo("semaphore")));
+    }
+
+    /**
+     * default leakDetectionThresholdMillis test
+     */
+    @Test
+    public void defaultLeakDetectionThresholdMillisTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "leakDetectionThresholdMillis does not match expected default value";
+        assertThat(error, connProps.getLeakDetectionThresholdMillis(), is(equalTo(0l)));
+        error = "leakDetectionThresholdMillis does not match expected value";
+        connProps.setLeakDetectionThresholdMillis(42);
+        assertThat(error, connProps.getLeakDetectionThresholdMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * leakDetectionThresholdMillis test
+     */
+    @Test
+    public void leakDetectionThresholdMillisTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_LEAK_DETECTION_THRESHOLD_MILLIS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "leakDetectionThresholdMillis does not match expected default value";
+        assertThat(error, connProps.getLeakDetectionThresholdMillis(), is(equalTo(0l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_LEAK_DETECTION_THRESHOLD_MILLIS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "leakDetectionThresholdMillis does not match expected value";
+        assertThat(error, connProps.getLeakDetectionThresholdMillis(), is(equalTo(0l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_LEAK_DETECTION_THRESHOLD_MILLIS, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "leakDetectionThresholdMillis does not match expected value";
+        assertThat(error, connProps.getLeakDetectionThresholdMillis(), is(equalTo(42l)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getLeakDetectionThresholdMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * default leakDetectionStackSampleRate test
+     */
+    @Test
+    public void defaultLeakDetectionStackSampleRateTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "leakDetectionStackSampleRate does not match expected default value";
+        assertThat(error, connProps.getLeakDetectionStackSampleRate(), is(equalTo(0)));
+        error = "leakDetectionStackSampleRate does not match expected value";
+        connProps.setLeakDetectionStackSampleRate(42);
+        assertThat(error, connProps.getLeakDetectionStackSampleRate(), is(equalTo(42)));
+    }
+
+    /**
+     * leakDetectionStackSampleRate test
+     */
+    @Test
+    public void leakDetectionStackSampleRateTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_LEAK_DETECTION_STACK_SAMPLE_RATE, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "leakDetectionStackSampleRate does not match expected default value";
+        assertThat(error, connProps.getLeakDetectionStackSampleRate(), is(equalTo(0)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_LEAK_DETECTION_STACK_SAMPLE_RATE, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "leakDetectionStackSampleRate does not match expected value";
+        assertThat(error, connProps.getLeakDetectionStackSampleRate(), is(equalTo(0)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_LEAK_DETECTION_STACK_SAMPLE_RATE, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "leakDetectionStackSampleRate does not match expected value";
+        assertThat(error, connProps.getLeakDetectionStackSampleRate(), is(equalTo(42)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getLeakDetectionStackSampleRate(), is(equalTo(42)));
+    }
+
+    /**
+     * default abandonedTimeoutMillis test
+     */
+    @Test
+    public void defaultAbandonedTimeoutMillisTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "abandonedTimeoutMillis does not match expected default value";
+        assertThat(error, connProps.getAbandonedTimeoutMillis(), is(equalTo(0l)));
+        error = "abandonedTimeoutMillis does not match expected value";
+        connProps.setAbandonedTimeoutMillis(42);
+        assertThat(error, connProps.getAbandonedTimeoutMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * abandonedTimeoutMillis test
+     */
+    @Test
+    public void abandonedTimeoutMillisTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_ABANDONED_TIMEOUT_MILLIS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "abandonedTimeoutMillis does not match expected default value";
+        assertThat(error, connProps.getAbandonedTimeoutMillis(), is(equalTo(0l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_ABANDONED_TIMEOUT_MILLIS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "abandonedTimeoutMillis does not match expected value";
+        assertThat(error, connProps.getAbandonedTimeoutMillis(), is(equalTo(0l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_ABANDONED_TIMEOUT_MILLIS, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "abandonedTimeoutMillis does not match expected value";
+        assertThat(error, connProps.getAbandonedTimeoutMillis(), is(equalTo(42l)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getAbandonedTimeoutMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * default poolPreparedStatements test
+     */
+    @Test
+    public void defaultPoolPreparedStatementsTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "poolPreparedStatements does not match expected default value";
+        assertThat(error, connProps.isPoolPreparedStatements(), is(equalTo(false)));
+        error = "poolPreparedStatements does not match expected value";
+        connProps.setPoolPreparedStatements(true);
+        assertThat(error, connProps.isPoolPreparedStatements(), is(equalTo(true)));
+    }
+
+    /**
+     * poolPreparedStatements test
+     */
+    @Test
+    public void poolPreparedStatementsTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_POOL_PREPARED_STATEMENTS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "poolPreparedStatements does not match expected default value";
+        assertThat(error, connProps.isPoolPreparedStatements(), is(equalTo(false)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_POOL_PREPARED_STATEMENTS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "poolPreparedStatements does not match expected value";
+        assertThat(error, connProps.isPoolPreparedStatements(), is(equalTo(false)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_POOL_PREPARED_STATEMENTS, "true");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "poolPreparedStatements does not match expected value";
+        assertThat(error, connProps.isPoolPreparedStatements(), is(equalTo(true)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.isPoolPreparedStatements(), is(equalTo(true)));
+    }
+
+    /**
+     * default maxOpenPreparedStatements test
+     */
+    @Test
+    public void defaultMaxOpenPreparedStatementsTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "maxOpenPreparedStatements does not match expected default value";
+        assertThat(error, connProps.getMaxOpenPreparedStatements(), is(equalTo(-1)));
+        error = "maxOpenPreparedStatements does not match expected value";
+        connProps.setMaxOpenPreparedStatements(42);
+        assertThat(error, connProps.getMaxOpenPreparedStatements(), is(equalTo(42)));
+    }
+
+    /**
+     * maxOpenPreparedStatements test
+     */
+    @Test
+    public void maxOpenPreparedStatementsTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_MAX_OPEN_PREPARED_STATEMENTS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "maxOpenPreparedStatements does not match expected default value";
+        assertThat(error, connProps.getMaxOpenPreparedStatements(), is(equalTo(-1)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_MAX_OPEN_PREPARED_STATEMENTS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "maxOpenPreparedStatements does not match expected value";
+        assertThat(error, connProps.getMaxOpenPreparedStatements(), is(equalTo(-1)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_MAX_OPEN_PREPARED_STATEMENTS, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "maxOpenPreparedStatements does not match expected value";
+        assertThat(error, connProps.getMaxOpenPreparedStatements(), is(equalTo(42)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getMaxOpenPreparedStatements(), is(equalTo(42)));
+    }
+
+    /**
+     * default driverProperties test
+     */
+    @Test
+    public void defaultDriverPropertiesTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "driverProperties does not match expected default value";
+        assertThat(error, connProps.getDriverProperties().isEmpty(), is(true));
+    }
+
+    /**
+     * driverProperties test: make sure that only the keys in the driver namespace are passed to the driver, without
+     * the namespace prefix
+     */
+    @Test
+    public void driverPropertiesTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_DRIVER_PROPERTIES_PREFIX + "rewriteBatchedStatements", "true");
+        map.put(MapBasedConnPropsBuilder.KEY_DRIVER_PROPERTIES_PREFIX + "defaultRowFetchSize", null);
+        map.put(MapBasedConnPropsBuilder.KEY_DRIVER_PROPERTIES_PREFIX, "empty name");
+        map.put("some property", "some value");
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+
+        String error = "driverProperties does not match expected value";
+        assertThat(error, connProps.getDriverProperties().size(), is(equalTo(1)));
+        assertThat(error, connProps.getDriverProperties().get("rewriteBatchedStatements"), is(equalTo("true")));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getDriverProperties(), is(equalTo(connProps.getDriverProperties())));
+        error = "copy constructor does not create a defensive copy";
+        assertThat(error, connProps2.getDriverProperties(), is(not(sameInstance(connProps.getDriverProperties()))));
+    }
+
+    /**
+     * default initialSize test
+     */
+    @Test
+    public void defaultInitialSizeTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "initialSize does not match expected default value";
+        assertThat(error, connProps.getInitialSize(), is(equalTo(0)));
+        error = "initialSize does not match expected value";
+        connProps.setInitialSize(42);
+        assertThat(error, connProps.getInitialSize(), is(equalTo(42)));
+    }
+
+    /**
+     * initialSize test
+     */
+    @Test
+    public void initialSizeTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_INITIAL_SIZE, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "initialSize does not match expected default value";
+        assertThat(error, connProps.getInitialSize(), is(equalTo(0)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_INITIAL_SIZE, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "initialSize does not match expected value";
+        assertThat(error, connProps.getInitialSize(), is(equalTo(0)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_INITIAL_SIZE, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "initialSize does not match expected value";
+        assertThat(error, connProps.getInitialSize(), is(equalTo(42)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getInitialSize(), is(equalTo(42)));
+    }
+
+    /**
+     * default warmUpInBackground test
+     */
+    @Test
+    public void defaultWarmUpInBackgroundTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "warmUpInBackground does not match expected default value";
+        assertThat(error, connProps.isWarmUpInBackground(), is(equalTo(false)));
+        error = "warmUpInBackground does not match expected value";
+        connProps.setWarmUpInBackground(true);
+        assertThat(error, connProps.isWarmUpInBackground(), is(equalTo(true)));
+    }
+
+    /**
+     * warmUpInBackground test
+     */
+    @Test
+    public void warmUpInBackgroundTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_WARM_UP_IN_BACKGROUND, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "warmUpInBackground does not match expected default value";
+        assertThat(error, connProps.isWarmUpInBackground(), is(equalTo(false)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_WARM_UP_IN_BACKGROUND, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "warmUpInBackground does not match expected value";
+        assertThat(error, connProps.isWarmUpInBackground(), is(equalTo(false)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_WARM_UP_IN_BACKGROUND, "true");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "warmUpInBackground does not match expected value";
+        assertThat(error, connProps.isWarmUpInBackground(), is(equalTo(true)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.isWarmUpInBackground(), is(equalTo(true)));
+    }
+
+    /**
+     * default shutdownGracePeriodMillis test
+     */
+    @Test
+    public void defaultShutdownGracePeriodMillisTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "shutdownGracePeriodMillis does not match expected default value";
+        assertThat(error, connProps.getShutdownGracePeriodMillis(), is(equalTo(30000l)));
+        error = "shutdownGracePeriodMillis does not match expected value";
+        connProps.setShutdownGracePeriodMillis(42);
+        assertThat(error, connProps.getShutdownGracePeriodMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * shutdownGracePeriodMillis test
+     */
+    @Test
+    public void shutdownGracePeriodMillisTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_SHUTDOWN_GRACE_PERIOD_MILLIS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "shutdownGracePeriodMillis does not match expected default value";
+        assertThat(error, connProps.getShutdownGracePeriodMillis(), is(equalTo(30000l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_SHUTDOWN_GRACE_PERIOD_MILLIS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "shutdownGracePeriodMillis does not match expected value";
+        assertThat(error, connProps.getShutdownGracePeriodMillis(), is(equalTo(30000l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_SHUTDOWN_GRACE_PERIOD_MILLIS, "5000");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "shutdownGracePeriodMillis does not match expected value";
+        assertThat(error, connProps.getShutdownGracePeriodMillis(), is(equalTo(5000l)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getShutdownGracePeriodMillis(), is(equalTo(5000l)));
+    }
+
+    /**
+     * default replicaUrls test
+     */
+    @Test
+    public void defaultReplicaUrlsTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "replicaUrls does not match expected default value";
+        assertThat(error, connProps.getReplicaUrls().isEmpty(), is(true));
+    }
+
+    /**
+     * replicaUrls test: make sure that the comma separated list is split, and blank entries are skipped
+     */
+    @Test
+    public void replicaUrlsTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_REPLICA_URLS, " jdbc:h2:mem:replica1, ,jdbc:h2:mem:replica2,");
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+
+        String error = "replicaUrls does not match expected value";
+        assertThat(error, connProps.getReplicaUrls(), contains("jdbc:h2:mem:replica1", "jdbc:h2:mem:replica2"));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getReplicaUrls(), is(equalTo(connProps.getReplicaUrls())));
+        error = "copy constructor does not create a defensive copy";
+        assertThat(error, connProps2.getReplicaUrls(), is(not(sameInstance(connProps.getReplicaUrls()))));
+    }
+
+    /**
+     * default replicaRetryMillis test
+     */
+    @Test
+    public void defaultReplicaRetryMillisTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "replicaRetryMillis does not match expected default value";
+        assertThat(error, connProps.getReplicaRetryMillis(), is(equalTo(5000l)));
+        error = "replicaRetryMillis does not match expected value";
+        connProps.setReplicaRetryMillis(42);
+        assertThat(error, connProps.getReplicaRetryMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * replicaRetryMillis test
+     */
+    @Test
+    public void replicaRetryMillisTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_REPLICA_RETRY_MILLIS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "replicaRetryMillis does not match expected default value";
+        assertThat(error, connProps.getReplicaRetryMillis(), is(equalTo(5000l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_REPLICA_RETRY_MILLIS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "replicaRetryMillis does not match expected value";
+        assertThat(error, connProps.getReplicaRetryMillis(), is(equalTo(5000l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_REPLICA_RETRY_MILLIS, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "replicaRetryMillis does not match expected value";
+        assertThat(error, connProps.getReplicaRetryMillis(), is(equalTo(42l)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getReplicaRetryMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * default failoverUrls test
+     */
+    @Test
+    public void defaultFailoverUrlsTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "failoverUrls does not match expected default value";
+        assertThat(error, connProps.getFailoverUrls().isEmpty(), is(true));
+    }
+
+    /**
+     * failoverUrls test: make sure that the comma separated list is split, and blank entries are skipped
+     */
+    @Test
+    public void failoverUrlsTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_FAILOVER_URLS, "jdbc:h2:mem:node2,, jdbc:h2:mem:node3 ");
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+
+        String error = "failoverUrls does not match expected value";
+        assertThat(error, connProps.getFailoverUrls(), contains("jdbc:h2:mem:node2", "jdbc:h2:mem:node3"));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getFailoverUrls(), is(equalTo(connProps.getFailoverUrls())));
+        error = "copy constructor does not create a defensive copy";
+        assertThat(error, connProps2.getFailoverUrls(), is(not(sameInstance(connProps.getFailoverUrls()))));
+    }
+
+    /**
+     * default healthCheckIntervalMillis test
+     */
+    @Test
+    public void defaultHealthCheckIntervalMillisTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "healthCheckIntervalMillis does not match expected default value";
+        assertThat(error, connProps.getHealthCheckIntervalMillis(), is(equalTo(5000l)));
+        error = "healthCheckIntervalMillis does not match expected value";
+        connProps.setHealthCheckIntervalMillis(42);
+        assertThat(error, connProps.getHealthCheckIntervalMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * healthCheckIntervalMillis test
+     */
+    @Test
+    public void healthCheckIntervalMillisTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_HEALTH_CHECK_INTERVAL_MILLIS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "healthCheckIntervalMillis does not match expected default value";
+        assertThat(error, connProps.getHealthCheckIntervalMillis(), is(equalTo(5000l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_HEALTH_CHECK_INTERVAL_MILLIS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "healthCheckIntervalMillis does not match expected value";
+        assertThat(error, connProps.getHealthCheckIntervalMillis(), is(equalTo(5000l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_HEALTH_CHECK_INTERVAL_MILLIS, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "healthCheckIntervalMillis does not match expected value";
+        assertThat(error, connProps.getHealthCheckIntervalMillis(), is(equalTo(42l)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getHealthCheckIntervalMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * default validationIntervalMillis test
+     */
+    @Test
+    public void defaultValidationIntervalMillisTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "validationIntervalMillis does not match expected default value";
+        assertThat(error, connProps.getValidationIntervalMillis(), is(equalTo(0l)));
+        error = "validationIntervalMillis does not match expected value";
+        connProps.setValidationIntervalMillis(42);
+        assertThat(error, connProps.getValidationIntervalMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * validationIntervalMillis test
+     */
+    @Test
+    public void validationIntervalMillisTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_VALIDATION_INTERVAL_MILLIS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "validationIntervalMillis does not match expected default value";
+        assertThat(error, connProps.getValidationIntervalMillis(), is(equalTo(0l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_VALIDATION_INTERVAL_MILLIS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "validationIntervalMillis does not match expected value";
+        assertThat(error, connProps.getValidationIntervalMillis(), is(equalTo(0l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_VALIDATION_INTERVAL_MILLIS, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "validationIntervalMillis does not match expected value";
+        assertThat(error, connProps.getValidationIntervalMillis(), is(equalTo(42l)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getValidationIntervalMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * default idleValidationIntervalMillis test
+     */
+    @Test
+    public void defaultIdleValidationIntervalMillisTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "idleValidationIntervalMillis does not match expected default value";
+        assertThat(error, connProps.getIdleValidationIntervalMillis(), is(equalTo(0l)));
+        error = "idleValidationIntervalMillis does not match expected value";
+        connProps.setIdleValidationIntervalMillis(42);
+        assertThat(error, connProps.getIdleValidationIntervalMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * idleValidationIntervalMillis test
+     */
+    @Test
+    public void idleValidationIntervalMillisTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_IDLE_VALIDATION_INTERVAL_MILLIS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "idleValidationIntervalMillis does not match expected default value";
+        assertThat(error, connProps.getIdleValidationIntervalMillis(), is(equalTo(0l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_IDLE_VALIDATION_INTERVAL_MILLIS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "idleValidationIntervalMillis does not match expected value";
+        assertThat(error, connProps.getIdleValidationIntervalMillis(), is(equalTo(0l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_IDLE_VALIDATION_INTERVAL_MILLIS, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "idleValidationIntervalMillis does not match expected value";
+        assertThat(error, connProps.getIdleValidationIntervalMillis(), is(equalTo(42l)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getIdleValidationIntervalMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * default autoSizeIntervalMillis test
+     */
+    @Test
+    public void defaultAutoSizeIntervalMillisTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "autoSizeIntervalMillis does not match expected default value";
+        assertThat(error, connProps.getAutoSizeIntervalMillis(), is(equalTo(0l)));
+        error = "autoSizeIntervalMillis does not match expected value";
+        connProps.setAutoSizeIntervalMillis(42);
+        assertThat(error, connProps.getAutoSizeIntervalMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * autoSizeIntervalMillis test
+     */
+    @Test
+    public void autoSizeIntervalMillisTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_AUTO_SIZE_INTERVAL_MILLIS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "autoSizeIntervalMillis does not match expected default value";
+        assertThat(error, connProps.getAutoSizeIntervalMillis(), is(equalTo(0l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_AUTO_SIZE_INTERVAL_MILLIS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "autoSizeIntervalMillis does not match expected value";
+        assertThat(error, connProps.getAutoSizeIntervalMillis(), is(equalTo(0l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_AUTO_SIZE_INTERVAL_MILLIS, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "autoSizeIntervalMillis does not match expected value";
+        assertThat(error, connProps.getAutoSizeIntervalMillis(), is(equalTo(42l)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getAutoSizeIntervalMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * default autoSizeMinTotal test
+     */
+    @Test
+    public void defaultAutoSizeMinTotalTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "autoSizeMinTotal does not match expected default value";
+        assertThat(error, connProps.getAutoSizeMinTotal(), is(equalTo(1)));
+        error = "autoSizeMinTotal does not match expected value";
+        connProps.setAutoSizeMinTotal(42);
+        assertThat(error, connProps.getAutoSizeMinTotal(), is(equalTo(42)));
+    }
+
+    /**
+     * autoSizeMinTotal test
+     */
+    @Test
+    public void autoSizeMinTotalTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_AUTO_SIZE_MIN_TOTAL, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "autoSizeMinTotal does not match expected default value";
+        assertThat(error, connProps.getAutoSizeMinTotal(), is(equalTo(1)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_AUTO_SIZE_MIN_TOTAL, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "autoSizeMinTotal does not match expected value";
+        assertThat(error, connProps.getAutoSizeMinTotal(), is(equalTo(1)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_AUTO_SIZE_MIN_TOTAL, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "autoSizeMinTotal does not match expected value";
+        assertThat(error, connProps.getAutoSizeMinTotal(), is(equalTo(42)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getAutoSizeMinTotal(), is(equalTo(42)));
+    }
+
+    /**
+     * default autoSizeMaxTotal test
+     */
+    @Test
+    public void defaultAutoSizeMaxTotalTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "autoSizeMaxTotal does not match expected default value";
+        assertThat(error, connProps.getAutoSizeMaxTotal(), is(equalTo(32)));
+        error = "autoSizeMaxTotal does not match expected value";
+        connProps.setAutoSizeMaxTotal(42);
+        assertThat(error, connProps.getAutoSizeMaxTotal(), is(equalTo(42)));
+    }
+
+    /**
+     * autoSizeMaxTotal test
+     */
+    @Test
+    public void autoSizeMaxTotalTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_AUTO_SIZE_MAX_TOTAL, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "autoSizeMaxTotal does not match expected default value";
+        assertThat(error, connProps.getAutoSizeMaxTotal(), is(equalTo(32)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_AUTO_SIZE_MAX_TOTAL, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "autoSizeMaxTotal does not match expected value";
+        assertThat(error, connProps.getAutoSizeMaxTotal(), is(equalTo(32)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_AUTO_SIZE_MAX_TOTAL, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "autoSizeMaxTotal does not match expected value";
+        assertThat(error, connProps.getAutoSizeMaxTotal(), is(equalTo(42)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getAutoSizeMaxTotal(), is(equalTo(42)));
+    }
+
+    /**
+     * default autoSizeWaitThresholdMillis test
+     */
+    @Test
+    public void defaultAutoSizeWaitThresholdMillisTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "autoSizeWaitThresholdMillis does not match expected default value";
+        assertThat(error, connProps.getAutoSizeWaitThresholdMillis(), is(equalTo(1l)));
+        error = "autoSizeWaitThresholdMillis does not match expected value";
+        connProps.setAutoSizeWaitThresholdMillis(42);
+        assertThat(error, connProps.getAutoSizeWaitThresholdMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * autoSizeWaitThresholdMillis test
+     */
+    @Test
+    public void autoSizeWaitThresholdMillisTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_AUTO_SIZE_WAIT_THRESHOLD_MILLIS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "autoSizeWaitThresholdMillis does not match expected default value";
+        assertThat(error, connProps.getAutoSizeWaitThresholdMillis(), is(equalTo(1l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_AUTO_SIZE_WAIT_THRESHOLD_MILLIS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "autoSizeWaitThresholdMillis does not match expected value";
+        assertThat(error, connProps.getAutoSizeWaitThresholdMillis(), is(equalTo(1l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_AUTO_SIZE_WAIT_THRESHOLD_MILLIS, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "autoSizeWaitThresholdMillis does not match expected value";
+        assertThat(error, connProps.getAutoSizeWaitThresholdMillis(), is(equalTo(42l)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getAutoSizeWaitThresholdMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * default threadAffinityMillis test
+     */
+    @Test
+    public void defaultThreadAffinityMillisTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "threadAffinityMillis does not match expected default value";
+        assertThat(error, connProps.getThreadAffinityMillis(), is(equalTo(0l)));
+        error = "threadAffinityMillis does not match expected value";
+        connProps.setThreadAffinityMillis(42);
+        assertThat(error, connProps.getThreadAffinityMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * threadAffinityMillis test
+     */
+    @Test
+    public void threadAffinityMillisTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_THREAD_AFFINITY_MILLIS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "threadAffinityMillis does not match expected default value";
+        assertThat(error, connProps.getThreadAffinityMillis(), is(equalTo(0l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_THREAD_AFFINITY_MILLIS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "threadAffinityMillis does not match expected value";
+        assertThat(error, connProps.getThreadAffinityMillis(), is(equalTo(0l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_THREAD_AFFINITY_MILLIS, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "threadAffinityMillis does not match expected value";
+        assertThat(error, connProps.getThreadAffinityMillis(), is(equalTo(42l)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getThreadAffinityMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * default bulkheadMaxWaiters test
+     */
+    @Test
+    public void defaultBulkheadMaxWaitersTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "bulkheadMaxWaiters does not match expected default value";
+        assertThat(error, connProps.getBulkheadMaxWaiters(), is(equalTo(0)));
+        error = "bulkheadMaxWaiters does not match expected value";
+        connProps.setBulkheadMaxWaiters(42);
+        assertThat(error, connProps.getBulkheadMaxWaiters(), is(equalTo(42)));
+    }
+
+    /**
+     * bulkheadMaxWaiters test
+     */
+    @Test
+    public void bulkheadMaxWaitersTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_BULKHEAD_MAX_WAITERS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "bulkheadMaxWaiters does not match expected default value";
+        assertThat(error, connProps.getBulkheadMaxWaiters(), is(equalTo(0)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_BULKHEAD_MAX_WAITERS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "bulkheadMaxWaiters does not match expected value";
+        assertThat(error, connProps.getBulkheadMaxWaiters(), is(equalTo(0)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_BULKHEAD_MAX_WAITERS, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "bulkheadMaxWaiters does not match expected value";
+        assertThat(error, connProps.getBulkheadMaxWaiters(), is(equalTo(42)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getBulkheadMaxWaiters(), is(equalTo(42)));
+    }
+
+    /**
+     * default bulkheadMaxQueueMillis test
+     */
+    @Test
+    public void defaultBulkheadMaxQueueMillisTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "bulkheadMaxQueueMillis does not match expected default value";
+        assertThat(error, connProps.getBulkheadMaxQueueMillis(), is(equalTo(0l)));
+        error = "bulkheadMaxQueueMillis does not match expected value";
+        connProps.setBulkheadMaxQueueMillis(42);
+        assertThat(error, connProps.getBulkheadMaxQueueMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * bulkheadMaxQueueMillis test
+     */
+    @Test
+    public void bulkheadMaxQueueMillisTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_BULKHEAD_MAX_QUEUE_MILLIS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "bulkheadMaxQueueMillis does not match expected default value";
+        assertThat(error, connProps.getBulkheadMaxQueueMillis(), is(equalTo(0l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_BULKHEAD_MAX_QUEUE_MILLIS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "bulkheadMaxQueueMillis does not match expected value";
+        assertThat(error, connProps.getBulkheadMaxQueueMillis(), is(equalTo(0l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_BULKHEAD_MAX_QUEUE_MILLIS, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "bulkheadMaxQueueMillis does not match expected value";
+        assertThat(error, connProps.getBulkheadMaxQueueMillis(), is(equalTo(42l)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getBulkheadMaxQueueMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * default circuitBreakerFailureThreshold test
+     */
+    @Test
+    public void defaultCircuitBreakerFailureThresholdTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "circuitBreakerFailureThreshold does not match expected default value";
+        assertThat(error, connProps.getCircuitBreakerFailureThreshold(), is(equalTo(0)));
+        error = "circuitBreakerFailureThreshold does not match expected value";
+        connProps.setCircuitBreakerFailureThreshold(42);
+        assertThat(error, connProps.getCircuitBreakerFailureThreshold(), is(equalTo(42)));
+    }
+
+    /**
+     * circuitBreakerFailureThreshold test
+     */
+    @Test
+    public void circuitBreakerFailureThresholdTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_CIRCUIT_BREAKER_FAILURE_THRESHOLD, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "circuitBreakerFailureThreshold does not match expected default value";
+        assertThat(error, connProps.getCircuitBreakerFailureThreshold(), is(equalTo(0)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_CIRCUIT_BREAKER_FAILURE_THRESHOLD, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "circuitBreakerFailureThreshold does not match expected value";
+        assertThat(error, connProps.getCircuitBreakerFailureThreshold(), is(equalTo(0)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_CIRCUIT_BREAKER_FAILURE_THRESHOLD, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "circuitBreakerFailureThreshold does not match expected value";
+        assertThat(error, connProps.getCircuitBreakerFailureThreshold(), is(equalTo(42)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getCircuitBreakerFailureThreshold(), is(equalTo(42)));
+    }
+
+    /**
+     * default circuitBreakerOpenMillis test
+     */
+    @Test
+    public void defaultCircuitBreakerOpenMillisTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "circuitBreakerOpenMillis does not match expected default value";
+        assertThat(error, connProps.getCircuitBreakerOpenMillis(), is(equalTo(5000l)));
+        error = "circuitBreakerOpenMillis does not match expected value";
+        connProps.setCircuitBreakerOpenMillis(42);
+        assertThat(error, connProps.getCircuitBreakerOpenMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * circuitBreakerOpenMillis test
+     */
+    @Test
+    public void circuitBreakerOpenMillisTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_CIRCUIT_BREAKER_OPEN_MILLIS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "circuitBreakerOpenMillis does not match expected default value";
+        assertThat(error, connProps.getCircuitBreakerOpenMillis(), is(equalTo(5000l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_CIRCUIT_BREAKER_OPEN_MILLIS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "circuitBreakerOpenMillis does not match expected value";
+        assertThat(error, connProps.getCircuitBreakerOpenMillis(), is(equalTo(5000l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_CIRCUIT_BREAKER_OPEN_MILLIS, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "circuitBreakerOpenMillis does not match expected value";
+        assertThat(error, connProps.getCircuitBreakerOpenMillis(), is(equalTo(42l)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getCircuitBreakerOpenMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * default circuitBreakerHalfOpenProbes test
+     */
+    @Test
+    public void defaultCircuitBreakerHalfOpenProbesTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "circuitBreakerHalfOpenProbes does not match expected default value";
+        assertThat(error, connProps.getCircuitBreakerHalfOpenProbes(), is(equalTo(1)));
+        error = "circuitBreakerHalfOpenProbes does not match expected value";
+        connProps.setCircuitBreakerHalfOpenProbes(42);
+        assertThat(error, connProps.getCircuitBreakerHalfOpenProbes(), is(equalTo(42)));
+    }
+
+    /**
+     * circuitBreakerHalfOpenProbes test
+     */
+    @Test
+    public void circuitBreakerHalfOpenProbesTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_CIRCUIT_BREAKER_HALF_OPEN_PROBES, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "circuitBreakerHalfOpenProbes does not match expected default value";
+        assertThat(error, connProps.getCircuitBreakerHalfOpenProbes(), is(equalTo(1)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_CIRCUIT_BREAKER_HALF_OPEN_PROBES, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "circuitBreakerHalfOpenProbes does not match expected value";
+        assertThat(error, connProps.getCircuitBreakerHalfOpenProbes(), is(equalTo(1)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_CIRCUIT_BREAKER_HALF_OPEN_PROBES, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "circuitBreakerHalfOpenProbes does not match expected value";
+        assertThat(error, connProps.getCircuitBreakerHalfOpenProbes(), is(equalTo(42)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getCircuitBreakerHalfOpenProbes(), is(equalTo(42)));
+    }
+
+    /**
+     * default maxConcurrentCreations test
+     */
+    @Test
+    public void defaultMaxConcurrentCreationsTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "maxConcurrentCreations does not match expected default value";
+        assertThat(error, connProps.getMaxConcurrentCreations(), is(equalTo(0)));
+        error = "maxConcurrentCreations does not match expected value";
+        connProps.setMaxConcurrentCreations(42);
+        assertThat(error, connProps.getMaxConcurrentCreations(), is(equalTo(42)));
+    }
+
+    /**
+     * maxConcurrentCreations test
+     */
+    @Test
+    public void maxConcurrentCreationsTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_MAX_CONCURRENT_CREATIONS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "maxConcurrentCreations does not match expected default value";
+        assertThat(error, connProps.getMaxConcurrentCreations(), is(equalTo(0)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_MAX_CONCURRENT_CREATIONS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "maxConcurrentCreations does not match expected value";
+        assertThat(error, connProps.getMaxConcurrentCreations(), is(equalTo(0)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_MAX_CONCURRENT_CREATIONS, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "maxConcurrentCreations does not match expected value";
+        assertThat(error, connProps.getMaxConcurrentCreations(), is(equalTo(42)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getMaxConcurrentCreations(), is(equalTo(42)));
+    }
+
+    /**
+     * default globalMaxConcurrentCreations test
+     */
+    @Test
+    public void defaultGlobalMaxConcurrentCreationsTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "globalMaxConcurrentCreations does not match expected default value";
+        assertThat(error, connProps.getGlobalMaxConcurrentCreations(), is(equalTo(0)));
+        error = "globalMaxConcurrentCreations does not match expected value";
+        connProps.setGlobalMaxConcurrentCreations(42);
+        assertThat(error, connProps.getGlobalMaxConcurrentCreations(), is(equalTo(42)));
+    }
+
+    /**
+     * globalMaxConcurrentCreations test
+     */
+    @Test
+    public void globalMaxConcurrentCreationsTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_GLOBAL_MAX_CONCURRENT_CREATIONS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "globalMaxConcurrentCreations does not match expected default value";
+        assertThat(error, connProps.getGlobalMaxConcurrentCreations(), is(equalTo(0)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_GLOBAL_MAX_CONCURRENT_CREATIONS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "globalMaxConcurrentCreations does not match expected value";
+        assertThat(error, connProps.getGlobalMaxConcurrentCreations(), is(equalTo(0)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_GLOBAL_MAX_CONCURRENT_CREATIONS, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "globalMaxConcurrentCreations does not match expected value";
+        assertThat(error, connProps.getGlobalMaxConcurrentCreations(), is(equalTo(42)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getGlobalMaxConcurrentCreations(), is(equalTo(42)));
+    }
+
+    /**
+     * default creationPacingMillis test
+     */
+    @Test
+    public void defaultCreationPacingMillisTest() {
+
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.buildDefault();
+
+        String error = "creationPacingMillis does not match expected default value";
+        assertThat(error, connProps.getCreationPacingMillis(), is(equalTo(0l)));
+        error = "creationPacingMillis does not match expected value";
+        connProps.setCreationPacingMillis(42);
+        assertThat(error, connProps.getCreationPacingMillis(), is(equalTo(42l)));
+    }
+
+    /**
+     * creationPacingMillis test
+     */
+    @Test
+    public void creationPacingMillisTest() {
+
+        Map<String, String> map = new HashMap<>();
+
+        map.put(MapBasedConnPropsBuilder.KEY_CREATION_PACING_MILLIS, null);
+        ConnectionProperties connProps = MapBasedConnPropsBuilder.build(map);
+        String error = "creationPacingMillis does not match expected default value";
+        assertThat(error, connProps.getCreationPacingMillis(), is(equalTo(0l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_CREATION_PACING_MILLIS, "asdf");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "creationPacingMillis does not match expected value";
+        assertThat(error, connProps.getCreationPacingMillis(), is(equalTo(0l)));
+
+        map.put(MapBasedConnPropsBuilder.KEY_CREATION_PACING_MILLIS, "42");
+        connProps = MapBasedConnPropsBuilder.build(map);
+        error = "creationPacingMillis does not match expected value";
+        assertThat(error, connProps.getCreationPacingMillis(), is(equalTo(42l)));
+
+        ConnectionProperties connProps2 = new ConnectionProperties(connProps);
+        error = "copy constructor does not copy field";
+        assertThat(error, connProps2.getCreationPacingMillis(), is(equalTo(42l)));
+    }
+
     /**
      * additionalProperties test: make sure that the additional properties are being set
      */